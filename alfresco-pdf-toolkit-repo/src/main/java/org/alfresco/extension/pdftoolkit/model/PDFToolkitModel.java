@@ -13,9 +13,38 @@ public interface PDFToolkitModel
 	static final QName PROP_REASON = QName.createQName(PDFTOOLKIT_MODEL_1_0_URI, "reason");
 	static final QName PROP_LOCATION = QName.createQName(PDFTOOLKIT_MODEL_1_0_URI, "location");
 	static final QName PROP_SIGNEDBY = QName.createQName(PDFTOOLKIT_MODEL_1_0_URI, "signedby");
+	static final QName PROP_VERIFIED = QName.createQName(PDFTOOLKIT_MODEL_1_0_URI, "verified");
+	static final QName PROP_VERIFICATION_RESULT = QName.createQName(PDFTOOLKIT_MODEL_1_0_URI, "verificationresult");
+	static final QName PROP_VERIFICATION_DATE = QName.createQName(PDFTOOLKIT_MODEL_1_0_URI, "verificationdate");
+	static final QName PROP_VERIFIED_CONTENT = QName.createQName(PDFTOOLKIT_MODEL_1_0_URI, "verifiedcontent");
+	
+	//signature pending aspect and properties, for deferred signatures awaiting the signer
+	static final QName ASPECT_SIGNATURE_PENDING = QName.createQName(PDFTOOLKIT_MODEL_1_0_URI, "signaturePending");
+	static final QName PROP_PENDING_BYTE_RANGE = QName.createQName(PDFTOOLKIT_MODEL_1_0_URI, "pendingbyterange");
+	static final QName PROP_PENDING_DIGEST = QName.createQName(PDFTOOLKIT_MODEL_1_0_URI, "pendingdigest");
+	static final QName PROP_PENDING_TIMESTAMP = QName.createQName(PDFTOOLKIT_MODEL_1_0_URI, "pendingtimestamp");
+	static final QName PROP_PENDING_LTV = QName.createQName(PDFTOOLKIT_MODEL_1_0_URI, "pendingltv");
+	static final QName PROP_PENDING_CONTENT = QName.createQName(PDFTOOLKIT_MODEL_1_0_URI, "pendingcontent");
 	
 	//encrypted aspect and properties
 	static final QName ASPECT_ENCRYPTED = QName.createQName(PDFTOOLKIT_MODEL_1_0_URI, "encrypted");
 	static final QName PROP_ENCRYPTIONDATE = QName.createQName(PDFTOOLKIT_MODEL_1_0_URI, "encryptiondate");
 	static final QName PROP_ENCRYPTEDBY = QName.createQName(PDFTOOLKIT_MODEL_1_0_URI, "encryptedby");
+	
+	//decrypted aspect and properties, the encryption a document had before it was decrypted
+	static final QName ASPECT_DECRYPTED = QName.createQName(PDFTOOLKIT_MODEL_1_0_URI, "decrypted");
+	static final QName PROP_DECRYPTIONDATE = QName.createQName(PDFTOOLKIT_MODEL_1_0_URI, "decryptiondate");
+	static final QName PROP_DECRYPTEDBY = QName.createQName(PDFTOOLKIT_MODEL_1_0_URI, "decryptedby");
+	static final QName PROP_ORIGINAL_ENCRYPTION_LEVEL = QName.createQName(PDFTOOLKIT_MODEL_1_0_URI, "originalencryptionlevel");
+	static final QName PROP_ORIGINAL_PERMISSIONS = QName.createQName(PDFTOOLKIT_MODEL_1_0_URI, "originalpermissions");
+	static final QName PROP_ORIGINAL_METADATA_ENCRYPTED = QName.createQName(PDFTOOLKIT_MODEL_1_0_URI, "originalmetadataencrypted");
+	
+	//structure aspect and properties
+	static final QName ASPECT_STRUCTURE = QName.createQName(PDFTOOLKIT_MODEL_1_0_URI, "structure");
+	static final QName PROP_PAGE_COUNT = QName.createQName(PDFTOOLKIT_MODEL_1_0_URI, "pagecount");
+	static final QName PROP_PAGE_SIZES = QName.createQName(PDFTOOLKIT_MODEL_1_0_URI, "pagesizes");
+	static final QName PROP_PDF_ENCRYPTED = QName.createQName(PDFTOOLKIT_MODEL_1_0_URI, "pdfencrypted");
+	static final QName PROP_LINEARIZED = QName.createQName(PDFTOOLKIT_MODEL_1_0_URI, "linearized");
+	static final QName PROP_PDF_VERSION = QName.createQName(PDFTOOLKIT_MODEL_1_0_URI, "pdfversion");
+	static final QName PROP_XREF_REBUILT = QName.createQName(PDFTOOLKIT_MODEL_1_0_URI, "xrefrebuilt");
 }
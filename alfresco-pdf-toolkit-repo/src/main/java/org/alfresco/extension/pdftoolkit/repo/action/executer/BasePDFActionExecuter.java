@@ -19,25 +19,84 @@
 package org.alfresco.extension.pdftoolkit.repo.action.executer;
 
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.extension.pdftoolkit.model.PDFToolkitModel;
+import org.alfresco.extension.pdftoolkit.repo.admission.PDFAdmissionController;
+import org.alfresco.extension.pdftoolkit.repo.structure.PDFPreflight;
+import org.alfresco.extension.pdftoolkit.repo.workspace.PDFTempWorkspace;
+import org.alfresco.extension.pdftoolkit.repo.workspace.PDFTempWorkspaceManager;
 import org.alfresco.model.ContentModel;
 import org.alfresco.repo.action.executer.ActionExecuterAbstractBase;
+import org.alfresco.repo.content.filestore.FileContentReader;
 import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.action.Action;
+import org.alfresco.service.cmr.dictionary.AspectDefinition;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
 import org.alfresco.service.cmr.model.FileInfo;
 import org.alfresco.service.cmr.model.FileNotFoundException;
 import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentService;
+import org.alfresco.service.cmr.repository.ContentWriter;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.NamespaceService;
 import org.alfresco.service.namespace.QName;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.pdfbox.exceptions.COSVisitorException;
+import org.apache.pdfbox.io.RandomAccessFile;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.RandomAccessFileOrArray;
 
 
 public abstract class BasePDFActionExecuter
     extends ActionExecuterAbstractBase
 {
+    private static Log logger = LogFactory.getLog(BasePDFActionExecuter.class);
+
 	private boolean createNew = true;
 	
+    /**
+     * Destination strategies used when createNew is false
+     */
+    public static final String DESTINATION_STRATEGY_COPY     = "copy";
+    public static final String DESTINATION_STRATEGY_METADATA = "metadata";
+
+    private String destinationStrategy = DESTINATION_STRATEGY_COPY;
+
+    //Properties the repository maintains itself, or that are replaced by the action
+    private static final Set<QName> EXCLUDED_PROPERTIES = new HashSet<QName>(Arrays.asList(
+            ContentModel.PROP_NAME, ContentModel.PROP_CONTENT, 
+            ContentModel.PROP_CREATED, ContentModel.PROP_CREATOR, ContentModel.PROP_MODIFIED, ContentModel.PROP_MODIFIER, 
+            ContentModel.PROP_ACCESSED, ContentModel.PROP_VERSION_LABEL, 
+            ContentModel.PROP_LOCK_OWNER, ContentModel.PROP_LOCK_TYPE, ContentModel.PROP_EXPIRY_DATE, 
+            ContentModel.PROP_WORKING_COPY_OWNER, 
+            PDFToolkitModel.PROP_VERIFIED, PDFToolkitModel.PROP_VERIFICATION_RESULT, 
+            PDFToolkitModel.PROP_VERIFICATION_DATE, PDFToolkitModel.PROP_VERIFIED_CONTENT));
+
+    //Aspects that describe the state of the source node, or of its content, rather than its metadata
+    private static final Set<QName> EXCLUDED_ASPECTS = new HashSet<QName>(Arrays.asList(
+            ContentModel.ASPECT_REFERENCEABLE, ContentModel.ASPECT_AUDITABLE, ContentModel.ASPECT_LOCKABLE, 
+            ContentModel.ASPECT_WORKING_COPY, ContentModel.ASPECT_COPIEDFROM, 
+            PDFToolkitModel.ASPECT_STRUCTURE, PDFToolkitModel.ASPECT_SIGNATURE_PENDING, PDFToolkitModel.ASPECT_DECRYPTED));
+
     protected static final String FILE_EXTENSION = ".pdf";
     protected static final String FILE_MIMETYPE  = "application/pdf";
     protected ServiceRegistry     serviceRegistry;
@@ -45,6 +104,20 @@ public abstract class BasePDFActionExecuter
     //Default number of map entries at creation 
     protected static final int INITIAL_OPTIONS = 5;
 
+    private PDFAdmissionController admissionController;
+
+    private PDFTempWorkspaceManager workspaceManager = new PDFTempWorkspaceManager();
+
+    private boolean directContentWrite = true;
+
+    private boolean preflight = false;
+
+    //Admission ticket of the job running on the current thread
+    private static final ThreadLocal<PDFAdmissionController.Ticket> admissionTicket = new ThreadLocal<PDFAdmissionController.Ticket>();
+
+    //Nodes created by the job running on the current thread, in order
+    private static final ThreadLocal<List<NodeRef>> createdNodes = new ThreadLocal<List<NodeRef>>();
+
 
     /**
      * Set a service registry to use, this will do away with all of the
@@ -67,6 +140,570 @@ public abstract class BasePDFActionExecuter
     {
     	this.createNew = createNew;
     }
+
+    /**
+     * Sets how the destination node is made when createNew is false.  "copy" copies the
+     * source node with the FileFolderService, including its content.  "metadata" creates
+     * a node of the same type and applies the source aspects and properties, without 
+     * copying the content that the action is about to replace.
+     * 
+     * @param destinationStrategy
+     */
+    public void setDestinationStrategy(String destinationStrategy)
+    {
+        if (!DESTINATION_STRATEGY_COPY.equals(destinationStrategy) && !DESTINATION_STRATEGY_METADATA.equals(destinationStrategy))
+        {
+            throw new AlfrescoRuntimeException("Unknown destination strategy: " + destinationStrategy);
+        }
+        this.destinationStrategy = destinationStrategy;
+    }
+
+    /**
+     * Sets the admission controller that reserves memory for each job before it runs.
+     * If not set, jobs are run without admission control.
+     * 
+     * @param admissionController
+     */
+    public void setAdmissionController(PDFAdmissionController admissionController)
+    {
+        this.admissionController = admissionController;
+    }
+
+    /**
+     * Sets the manager that provides per-invocation temp workspaces
+     * 
+     * @param workspaceManager
+     */
+    public void setWorkspaceManager(PDFTempWorkspaceManager workspaceManager)
+    {
+        this.workspaceManager = workspaceManager;
+    }
+
+    /**
+     * Sets whether results are written straight into the content store and bound to the
+     * destination node, or written to a temp file and copied into the node
+     * 
+     * @param directContentWrite
+     */
+    public void setDirectContentWrite(boolean directContentWrite)
+    {
+        this.directContentWrite = directContentWrite;
+    }
+
+    /**
+     * Sets whether the documents are preflighted, and rejected if the action can't work
+     * on them, before they are admitted and loaded
+     * 
+     * @param preflight
+     */
+    public void setPreflight(boolean preflight)
+    {
+        this.preflight = preflight;
+    }
+
+    /**
+     * @return whether the documents are preflighted before they are loaded
+     */
+    protected boolean isPreflight()
+    {
+        return preflight;
+    }
+
+    /**
+     * Reserves memory for the job from the admission controller before handing over
+     * to the executer, and releases it when the job completes.  Executers that admit
+     * each of their documents on their own are not admitted here.
+     * 
+     * @see org.alfresco.repo.action.executer.ActionExecuterAbstractBase#execute(org.alfresco.service.cmr.action.Action,
+     * org.alfresco.service.cmr.repository.NodeRef)
+     */
+    @Override
+    public void execute(Action action, NodeRef actionedUponNodeRef)
+    {
+        boolean exists = actionedUponNodeRef != null && serviceRegistry.getNodeService().exists(actionedUponNodeRef);
+        int pageCount = PDFAdmissionController.UNKNOWN_PAGE_COUNT;
+        if (preflight && exists)
+        {
+            pageCount = preflight(actionedUponNodeRef);
+            for (NodeRef document : getAdditionalDocuments(action))
+            {
+                preflight(document);
+            }
+        }
+
+        if (admissionController == null || !exists || admitsPerDocument())
+        {
+            executeCollectingResults(action, actionedUponNodeRef);
+            return;
+        }
+
+        ContentReader reader = getReader(actionedUponNodeRef);
+        long size = reader != null ? reader.getSize() : 0;
+        size = size + getAdditionalContentSize(action);
+
+        PDFAdmissionController.Ticket previous = admissionTicket.get();
+        PDFAdmissionController.Ticket ticket = admissionController.admit(action.getActionDefinitionName(), size, 
+                pageCount != PDFAdmissionController.UNKNOWN_PAGE_COUNT ? pageCount : getPageCount(actionedUponNodeRef));
+        admissionTicket.set(ticket);
+
+        try
+        {
+            executeCollectingResults(action, actionedUponNodeRef);
+        }
+        finally
+        {
+            admissionController.release(ticket);
+            admissionTicket.set(previous);
+        }
+    }
+
+    /**
+     * Runs the executer with the nodes it creates, in order, as the action's result, so
+     * that callers don't have to search for them.  An executer with a different kind of
+     * result replaces it.
+     * 
+     * @param action
+     * @param actionedUponNodeRef
+     */
+    private void executeCollectingResults(Action action, NodeRef actionedUponNodeRef)
+    {
+        List<NodeRef> previous = createdNodes.get();
+        ArrayList<NodeRef> results = new ArrayList<NodeRef>();
+        createdNodes.set(results);
+        action.setParameterValue(PARAM_RESULT, results);
+
+        try
+        {
+            super.execute(action, actionedUponNodeRef);
+        }
+        finally
+        {
+            createdNodes.set(previous);
+        }
+    }
+
+    /**
+     * @return how many nodes the job on the current thread has created so far
+     */
+    protected int getResultCount()
+    {
+        List<NodeRef> results = createdNodes.get();
+        return results != null ? results.size() : 0;
+    }
+
+    /**
+     * Drops the nodes created after the first count from the result, for a transaction
+     * that is retried and creates them again
+     * 
+     * @param count
+     */
+    protected void discardResults(int count)
+    {
+        List<NodeRef> results = createdNodes.get();
+        if (results != null && results.size() > count)
+        {
+            results.subList(count, results.size()).clear();
+        }
+    }
+
+    /**
+     * Admits one document of an action that works through several documents on its own
+     * threads.  The ticket applies to the calling thread until it is passed to
+     * releaseDocument.
+     * 
+     * @param actionName
+     * @param nodeRef
+     * @param reader
+     * @return the ticket, or null without admission control
+     */
+    protected PDFAdmissionController.Ticket admitDocument(String actionName, NodeRef nodeRef, ContentReader reader)
+    {
+        return admitDocument(actionName, reader.getSize(), getPageCount(nodeRef));
+    }
+
+    /**
+     * Admits one document from its size and page count, for threads that don't have
+     * access to the repository
+     * 
+     * @param actionName
+     * @param contentSize
+     * @param pageCount the page count, or UNKNOWN_PAGE_COUNT
+     * @return the ticket, or null without admission control
+     */
+    protected PDFAdmissionController.Ticket admitDocument(String actionName, long contentSize, int pageCount)
+    {
+        if (admissionController == null)
+        {
+            return null;
+        }
+
+        PDFAdmissionController.Ticket ticket = admissionController.admit(actionName, contentSize, pageCount);
+        admissionTicket.set(ticket);
+        return ticket;
+    }
+
+    /**
+     * Releases a ticket from admitDocument
+     * 
+     * @param ticket
+     */
+    protected void releaseDocument(PDFAdmissionController.Ticket ticket)
+    {
+        if (ticket != null)
+        {
+            admissionController.release(ticket);
+        }
+        admissionTicket.remove();
+    }
+
+    /**
+     * Whether the executer admits each document it loads with admitDocument, rather
+     * than the whole job being admitted up front.  Those executers would otherwise be
+     * charged twice for the same document, and wait on their own reservation.
+     * 
+     * @return true if the executer admits its documents one at a time
+     */
+    protected boolean admitsPerDocument()
+    {
+        return false;
+    }
+
+    /**
+     * Size of any content, other than the actioned upon node, that the action will load.
+     * Executers that work on more than one document override this so that admission
+     * control accounts for all of them.
+     * 
+     * @param action
+     * @return
+     */
+    protected long getAdditionalContentSize(Action action)
+    {
+        return 0;
+    }
+
+    /**
+     * Documents, other than the actioned upon node, that the action will load.  They are
+     * preflighted along with the actioned upon node.
+     * 
+     * @param action
+     * @return
+     */
+    protected List<NodeRef> getAdditionalDocuments(Action action)
+    {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Gets the node passed as an action parameter, as a list for getAdditionalDocuments
+     * 
+     * @param action
+     * @param param
+     * @return
+     */
+    protected List<NodeRef> getParameterDocuments(Action action, String param)
+    {
+        Serializable value = action.getParameterValue(param);
+        if (value instanceof NodeRef && serviceRegistry.getNodeService().exists((NodeRef)value))
+        {
+            return Collections.singletonList((NodeRef)value);
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Rejects a document the action can't work on, in milliseconds and before anything
+     * is loaded.  The pdft:structure aspect is used if the document has been indexed,
+     * otherwise the header, trailer and cross reference table of the content are read.
+     * A document that is encrypted, or is not a PDF, is rejected.  A damaged cross
+     * reference table is only logged, as the readers rebuild it.
+     * 
+     * @param nodeRef
+     * @return the page count, or UNKNOWN_PAGE_COUNT
+     */
+    protected int preflight(NodeRef nodeRef)
+    {
+        NodeService nodeService = serviceRegistry.getNodeService();
+        String name = (String)nodeService.getProperty(nodeRef, ContentModel.PROP_NAME);
+
+        if (nodeService.hasAspect(nodeRef, PDFToolkitModel.ASPECT_STRUCTURE))
+        {
+            if (Boolean.TRUE.equals(nodeService.getProperty(nodeRef, PDFToolkitModel.PROP_PDF_ENCRYPTED)))
+            {
+                throw new AlfrescoRuntimeException(name + " is encrypted, remove its encryption with pdf-decryption first");
+            }
+            return getPageCount(nodeRef);
+        }
+
+        ContentReader reader = getReader(nodeRef);
+        if (reader == null || !reader.exists())
+        {
+            return PDFAdmissionController.UNKNOWN_PAGE_COUNT;
+        }
+
+        FileChannel channel = reader.getFileChannel();
+        try
+        {
+            PDFPreflight result = PDFPreflight.scan(channel);
+            if (!result.isPdf())
+            {
+                throw new AlfrescoRuntimeException(name + " is not a PDF document");
+            }
+            if (result.isEncrypted())
+            {
+                throw new AlfrescoRuntimeException(name + " is encrypted, remove its encryption with pdf-decryption first");
+            }
+            if (result.isXrefDamaged())
+            {
+                logger.warn("The cross reference table of " + name + " is damaged and will be rebuilt");
+            }
+
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Preflighted " + name + ": PDF " + result.getVersion() + ", " + result.getPageCount() + " pages");
+            }
+            return result.getPageCount();
+        }
+        catch (IOException e)
+        {
+            throw new AlfrescoRuntimeException(e.getMessage(), e);
+        }
+        finally
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                // nothing more to do
+            }
+        }
+    }
+
+    /**
+     * Gets the size of the content of a node passed as an action parameter
+     * 
+     * @param action
+     * @param param
+     * @return
+     */
+    protected long getParameterContentSize(Action action, String param)
+    {
+        Serializable value = action.getParameterValue(param);
+        if (value instanceof NodeRef && serviceRegistry.getNodeService().exists((NodeRef)value))
+        {
+            ContentReader reader = getReader((NodeRef)value);
+            if (reader != null)
+            {
+                return reader.getSize();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Gets the page count recorded in the pdft:structure aspect, without parsing the
+     * document
+     * 
+     * @param nodeRef
+     * @return the page count, or UNKNOWN_PAGE_COUNT if the node has not been indexed
+     */
+    protected int getPageCount(NodeRef nodeRef)
+    {
+        Serializable pageCount = serviceRegistry.getNodeService().getProperty(nodeRef, PDFToolkitModel.PROP_PAGE_COUNT);
+        if (pageCount instanceof Integer)
+        {
+            return (Integer)pageCount;
+        }
+        return PDFAdmissionController.UNKNOWN_PAGE_COUNT;
+    }
+
+    /**
+     * Checks a page number against the indexed page count, so that a page out of range
+     * fails before the document is loaded
+     * 
+     * @param nodeRef
+     * @param page
+     */
+    protected void checkPageInRange(NodeRef nodeRef, int page)
+    {
+        int pageCount = getPageCount(nodeRef);
+        if (page < 1 || (pageCount != PDFAdmissionController.UNKNOWN_PAGE_COUNT && page > pageCount))
+        {
+            throw new AlfrescoRuntimeException("Page " + page + " is out of range for " + nodeRef);
+        }
+    }
+
+    /**
+     * @return true if the current job was admitted in low-memory mode
+     */
+    protected boolean isLowMemoryMode()
+    {
+        PDFAdmissionController.Ticket ticket = admissionTicket.get();
+        return ticket != null && ticket.isLowMemory();
+    }
+
+    /**
+     * Opens a private temp workspace for this invocation.  The caller must close it
+     * in a finally block.
+     * 
+     * @param nodeRef
+     * @param reader
+     * @return
+     */
+    protected PDFTempWorkspace openWorkspace(NodeRef nodeRef, ContentReader reader)
+    {
+        return workspaceManager.open(nodeRef, reader != null ? reader.getSize() : 0);
+    }
+
+    /**
+     * Loads a PDFBox document.  In low-memory mode the document is parsed against a
+     * scratch file in the workspace rather than held on the heap.
+     * 
+     * @param is
+     * @param workspace
+     * @return
+     * @throws IOException
+     */
+    protected PDDocument loadDocument(InputStream is, PDFTempWorkspace workspace) throws IOException
+    {
+        if (isLowMemoryMode())
+        {
+            File scratch = workspace.newScratchFile(".tmp");
+            return PDDocument.load(is, new RandomAccessFile(scratch, "rw"));
+        }
+        return PDDocument.load(is);
+    }
+
+    /**
+     * Opens an iText reader on the content.  In low-memory mode the reader is opened
+     * for partial reading from a file, so that objects are only read as they are needed.
+     * 
+     * @param contentReader
+     * @param workspace
+     * @return
+     * @throws IOException
+     */
+    protected PdfReader getPdfReader(ContentReader contentReader, PDFTempWorkspace workspace) throws IOException
+    {
+        if (isLowMemoryMode())
+        {
+            return new PdfReader(new RandomAccessFileOrArray(getContentFile(contentReader, workspace).getPath()), null);
+        }
+        return new PdfReader(contentReader.getContentInputStream());
+    }
+
+    /**
+     * Opens an iText reader on a file from getContentFile.  In low-memory mode the
+     * reader is opened for partial reading.
+     * 
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    protected PdfReader getPdfReader(File file) throws IOException
+    {
+        if (isLowMemoryMode())
+        {
+            return new PdfReader(new RandomAccessFileOrArray(file.getPath()), null);
+        }
+        return new PdfReader(file.getPath());
+    }
+
+    /**
+     * Gets a file holding the content, the content store's own file if it has one, 
+     * otherwise a copy in the workspace.  A reader opened on the file reads objects as 
+     * they are needed rather than loading the document.
+     * 
+     * @param contentReader
+     * @param workspace
+     * @return
+     */
+    protected File getContentFile(ContentReader contentReader, PDFTempWorkspace workspace)
+    {
+        if (contentReader instanceof FileContentReader)
+        {
+            return ((FileContentReader)contentReader).getFile();
+        }
+        File file = workspace.newScratchFile(FILE_EXTENSION);
+        contentReader.getContent(file);
+        return file;
+    }
+    
+    /**
+     * Gets a writer for the result of the action, with the encoding of the source.  With
+     * direct content writes the writer is allocated by the content store but not bound
+     * to a node, so the result is written once, into its final location.  Use bindResult
+     * to attach it to the destination node once it has been written.
+     * 
+     * @param source
+     * @return
+     */
+    protected ContentWriter getResultWriter(ContentReader source)
+    {
+        ContentService contentService = serviceRegistry.getContentService();
+        ContentWriter writer;
+        if (directContentWrite)
+        {
+            writer = contentService.getWriter(null, null, false);
+        }
+        else
+        {
+            writer = contentService.getTempWriter();
+        }
+        writer.setEncoding(source.getEncoding());
+        writer.setMimetype(FILE_MIMETYPE);
+
+        return writer;
+    }
+
+    /**
+     * Saves a PDFBox document as a result of the action
+     * 
+     * @param document
+     * @param source
+     * @return the closed result writer
+     * @throws IOException
+     * @throws COSVisitorException
+     */
+    protected ContentWriter saveResult(PDDocument document, ContentReader source) throws IOException, COSVisitorException
+    {
+        ContentWriter resultWriter = getResultWriter(source);
+        OutputStream os = resultWriter.getContentOutputStream();
+        try
+        {
+            document.save(os);
+        }
+        finally
+        {
+            os.close();
+        }
+
+        return resultWriter;
+    }
+
+    /**
+     * Binds a written result to the destination node.  A direct result is bound by
+     * setting its content URL on the node, without copying it, and can be bound to 
+     * several nodes that then share the same content.
+     * 
+     * @param resultWriter
+     * @param destinationNode
+     */
+    protected void bindResult(ContentWriter resultWriter, NodeRef destinationNode)
+    {
+        if (directContentWrite)
+        {
+            serviceRegistry.getNodeService().setProperty(destinationNode, ContentModel.PROP_CONTENT, resultWriter.getContentData());
+        }
+        else
+        {
+            ContentWriter writer = serviceRegistry.getContentService().getWriter(destinationNode, ContentModel.PROP_CONTENT, true);
+            writer.setEncoding(resultWriter.getEncoding());
+            writer.setMimetype(resultWriter.getMimetype());
+            writer.putContent(resultWriter.getReader());
+        }
+    }
     
     /**
      * @param actionedUponNodeRef
@@ -104,12 +741,17 @@ public abstract class BasePDFActionExecuter
 	        FileInfo fileInfo = serviceRegistry.getFileFolderService().create(destinationParent, filename, ContentModel.TYPE_CONTENT);
 	        destinationNode = fileInfo.getNodeRef();
     	}
+    	else if (DESTINATION_STRATEGY_METADATA.equals(destinationStrategy))
+    	{
+    		destinationNode = createMetadataCopy(filename, destinationParent, target);
+    	}
     	else
     	{
     		try 
     		{
 	    		FileInfo fileInfo = serviceRegistry.getFileFolderService().copy(target, destinationParent, filename);
 	    		destinationNode = fileInfo.getNodeRef();
+	    		removeContentState(destinationNode);
     		}
     		catch(FileNotFoundException fnf)
     		{
@@ -117,15 +759,116 @@ public abstract class BasePDFActionExecuter
     		}
     	}
 
+        List<NodeRef> results = createdNodes.get();
+        if (results != null)
+        {
+            results.add(destinationNode);
+        }
+        return destinationNode;
+    }
+
+    /**
+     * Creates a node of the same type as the target and gives it the target's aspects
+     * and properties.  Each aspect is added together with its properties, and the
+     * type's properties are added at the end, so every property is set once.  The
+     * content is not copied, the caller writes the new content.
+     * 
+     * @param filename
+     * @param destinationParent
+     * @param target
+     * @return
+     */
+    protected NodeRef createMetadataCopy(String filename, NodeRef destinationParent, NodeRef target)
+    {
+        NodeService nodeService = serviceRegistry.getNodeService();
+
+        FileInfo fileInfo = serviceRegistry.getFileFolderService().create(destinationParent, filename, nodeService.getType(target));
+        NodeRef destinationNode = fileInfo.getNodeRef();
+
+        Map<QName, Serializable> properties = new HashMap<QName, Serializable>();
+        for (Map.Entry<QName, Serializable> property : nodeService.getProperties(target).entrySet())
+        {
+            QName name = property.getKey();
+            if (!EXCLUDED_PROPERTIES.contains(name) && !NamespaceService.SYSTEM_MODEL_1_0_URI.equals(name.getNamespaceURI()))
+            {
+                properties.put(name, property.getValue());
+            }
+        }
+
+        DictionaryService dictionaryService = serviceRegistry.getDictionaryService();
+        for (QName aspect : nodeService.getAspects(target))
+        {
+            if (!EXCLUDED_ASPECTS.contains(aspect) && !NamespaceService.SYSTEM_MODEL_1_0_URI.equals(aspect.getNamespaceURI()))
+            {
+                // the aspect's own properties go with it, and aren't set again below
+                Map<QName, Serializable> aspectProperties = new HashMap<QName, Serializable>();
+                AspectDefinition definition = dictionaryService.getAspect(aspect);
+                if (definition != null)
+                {
+                    for (QName name : definition.getProperties().keySet())
+                    {
+                        if (properties.containsKey(name))
+                        {
+                            aspectProperties.put(name, properties.remove(name));
+                        }
+                    }
+                }
+                nodeService.addAspect(destinationNode, aspect, aspectProperties);
+            }
+        }
+
+        // properties of excluded aspects would bring the aspect back
+        for (QName aspect : EXCLUDED_ASPECTS)
+        {
+            AspectDefinition definition = dictionaryService.getAspect(aspect);
+            if (definition != null)
+            {
+                properties.keySet().removeAll(definition.getProperties().keySet());
+            }
+        }
+        if (!properties.isEmpty())
+        {
+            nodeService.addProperties(destinationNode, properties);
+        }
+
         return destinationNode;
     }
     
+    /**
+     * Removes what the PDF toolkit recorded about the content of the node a copy was
+     * made from, as the action is about to replace that content
+     * 
+     * @param nodeRef
+     */
+    protected void removeContentState(NodeRef nodeRef)
+    {
+        NodeService nodeService = serviceRegistry.getNodeService();
+        for (QName aspect : EXCLUDED_ASPECTS)
+        {
+            if (PDFToolkitModel.PDFTOOLKIT_MODEL_1_0_URI.equals(aspect.getNamespaceURI()) && nodeService.hasAspect(nodeRef, aspect))
+            {
+                nodeService.removeAspect(nodeRef, aspect);
+            }
+        }
+        for (QName property : EXCLUDED_PROPERTIES)
+        {
+            if (PDFToolkitModel.PDFTOOLKIT_MODEL_1_0_URI.equals(property.getNamespaceURI()))
+            {
+                nodeService.removeProperty(nodeRef, property);
+            }
+        }
+    }
+    
     protected int getInteger(Serializable val)
     {
     	if(val == null)
     	{ 
     		return 0;
     	}
+    	if(val instanceof Number)
+    	{
+    		return ((Number)val).intValue();
+    	}
     	try
     	{
     		return Integer.parseInt(val.toString());
@@ -19,14 +19,24 @@
 package org.alfresco.extension.pdftoolkit.repo.action.executer;
 
 
+import java.io.IOException;
+import java.io.Serializable;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
 
 import org.alfresco.extension.pdftoolkit.constraints.MapConstraint;
 import org.alfresco.repo.action.ParameterDefinitionImpl;
+import org.alfresco.service.cmr.action.Action;
 import org.alfresco.service.cmr.action.ParameterDefinition;
 import org.alfresco.service.cmr.dictionary.DataTypeDefinition;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.NodeRef;
 
+import com.itextpdf.text.BadElementException;
 import com.itextpdf.text.Image;
 import com.itextpdf.text.Rectangle;
 
@@ -57,6 +67,40 @@ public abstract class BasePDFStampActionExecuter
     public static final String                  PARAM_LOCATION_X     = "location-x";
     public static final String                  PARAM_LOCATION_Y     = "location-y";
 
+    protected static final float                PAD                  = 15;
+
+    private static final int                    PLAN_CACHE_SIZE      = 256;
+
+    private static final int                    IMAGE_CACHE_SIZE     = 16;
+
+    /**
+     * Compiled stamp plans by action id
+     */
+    private final Map<String, StampPlan>        plans                = new LinkedHashMap<String, StampPlan>(16, 0.75f, true)
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, StampPlan> eldest)
+        {
+            return size() > PLAN_CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Decoded stamp images by node and content URL
+     */
+    private final Map<String, Image>            images               = new LinkedHashMap<String, Image>(16, 0.75f, true)
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Image> eldest)
+        {
+            return size() > IMAGE_CACHE_SIZE;
+        }
+    };
+
 
     /**
      * Constraints
@@ -86,52 +130,106 @@ public abstract class BasePDFStampActionExecuter
 
 
     /**
-     * Determines whether or not a watermark should be applied to a given page
+     * Gets the compiled stamp plan for an action, compiling it the first time the action
+     * runs or when its parameters have changed since
      * 
-     * @param pages
-     * @param current
-     * @param numpages
+     * @param action
      * @return
      */
-    protected boolean checkPage(String pages, int current, int numpages)
+    protected StampPlan getStampPlan(Action action)
     {
+        return getStampPlan(action.getId(), action.getParameterValues());
+    }
 
-        boolean markPage = false;
 
-        if (pages.equals(PAGE_EVEN) || pages.equals(PAGE_ODD))
+    /**
+     * Gets the compiled stamp plan for a set of stamp parameters, cached under a key such
+     * as an action id or a configuration name
+     * 
+     * @param key
+     * @param parameters
+     * @return
+     */
+    protected StampPlan getStampPlan(String key, Map<String, Serializable> parameters)
+    {
+        StampPlan plan;
+        synchronized (plans)
         {
-            if (current % 2 == 0)
-            {
-                markPage = true;
-            }
+            plan = plans.get(key);
         }
-        else if (pages.equals(PAGE_ODD))
+
+        if (plan == null || !plan.isFor(parameters))
         {
-            if (current % 2 != 0)
+            plan = compileStampPlan(parameters);
+            synchronized (plans)
             {
-                markPage = true;
+                plans.put(key, plan);
             }
         }
-        else if (pages.equals(PAGE_FIRST))
+
+        return plan;
+    }
+
+
+    /**
+     * Gets an image to stamp, decoding it only the first time a version of the image is
+     * used
+     * 
+     * @param imageNodeRef
+     * @param imageContentReader
+     * @return
+     * @throws IOException
+     * @throws BadElementException
+     */
+    protected Image getImage(NodeRef imageNodeRef, ContentReader imageContentReader)
+        throws IOException, BadElementException
+    {
+        String key = imageNodeRef + "|" + imageContentReader.getContentUrl();
+
+        Image img;
+        synchronized (images)
         {
-            if (current == 1)
-            {
-                markPage = true;
-            }
+            img = images.get(key);
         }
-        else if (pages.equals(PAGE_LAST))
+
+        if (img == null)
         {
-            if (current == numpages)
+            // get a com.itextpdf.text.Image object via java.imageio.ImageIO
+            img = Image.getInstance(ImageIO.read(imageContentReader.getContentInputStream()), null);
+            synchronized (images)
             {
-                markPage = true;
+                images.put(key, img);
             }
         }
-        else
-        {
-            markPage = true;
-        }
 
-        return markPage;
+        return img;
+    }
+
+
+    /**
+     * Compiles the stamp parameters of an action.  Executers with more stamp parameters
+     * than the position override this.
+     * 
+     * @param parameters
+     * @return
+     */
+    protected StampPlan compileStampPlan(Map<String, Serializable> parameters)
+    {
+        return new StampPlan(parameters, (String)parameters.get(PARAM_POSITION), null, null, null, null);
+    }
+
+
+    /**
+     * Determines whether or not a watermark should be applied to a given page
+     * 
+     * @param pages
+     * @param current
+     * @param numpages
+     * @return
+     */
+    protected boolean checkPage(String pages, int current, int numpages)
+    {
+        return StampPlan.PageSelection.fromParameter(pages).includes(current, numpages);
     }
 
 
@@ -171,4 +269,44 @@ public abstract class BasePDFStampActionExecuter
 
         return y;
     }
+
+
+    /**
+     * Works out where a text stamp of the given width and height goes on the page
+     * 
+     * @param r
+     * @param width
+     * @param height
+     * @param position
+     * @param origin receives the horizontal center of the text and the baseline of its
+     *            first line
+     */
+    protected void getTextOrigin(Rectangle r, float width, float height, StampPlan.Position position, float[] origin)
+    {
+        // now that we have the width and height, we can calculate the center
+        // position for
+        // the rectangle that will contain our text.
+        switch (position)
+        {
+            case BOTTOMLEFT:
+                origin[0] = width / 2 + PAD;
+                origin[1] = 0 + PAD + height;
+                break;
+            case BOTTOMRIGHT:
+                origin[0] = r.getWidth() - (width / 2) - PAD;
+                origin[1] = 0 + PAD + height;
+                break;
+            case TOPLEFT:
+                origin[0] = width / 2 + PAD;
+                origin[1] = r.getHeight() - (PAD * 2);
+                break;
+            case TOPRIGHT:
+                origin[0] = r.getWidth() - (width / 2) - PAD;
+                origin[1] = r.getHeight() - (PAD * 2);
+                break;
+            default:
+                origin[0] = r.getWidth() / 2;
+                origin[1] = (r.getHeight() / 2) + (height / 2);
+        }
+    }
 }
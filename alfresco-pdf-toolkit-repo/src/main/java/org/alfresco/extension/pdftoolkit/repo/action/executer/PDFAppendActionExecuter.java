@@ -19,7 +19,6 @@
 package org.alfresco.extension.pdftoolkit.repo.action.executer;
 
 
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashMap;
@@ -27,7 +26,7 @@ import java.util.List;
 import java.util.Map;
 
 import org.alfresco.error.AlfrescoRuntimeException;
-import org.alfresco.model.ContentModel;
+import org.alfresco.extension.pdftoolkit.repo.workspace.PDFTempWorkspace;
 import org.alfresco.repo.action.ParameterDefinitionImpl;
 import org.alfresco.service.cmr.action.Action;
 import org.alfresco.service.cmr.action.ParameterDefinition;
@@ -36,7 +35,6 @@ import org.alfresco.service.cmr.model.FileExistsException;
 import org.alfresco.service.cmr.repository.ContentReader;
 import org.alfresco.service.cmr.repository.ContentWriter;
 import org.alfresco.service.cmr.repository.NodeRef;
-import org.alfresco.util.TempFileProvider;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.pdfbox.exceptions.COSVisitorException;
@@ -82,6 +80,28 @@ public class PDFAppendActionExecuter
     }
 
 
+    /**
+     * Account for the second document this action loads
+     * 
+     * @see org.alfresco.extension.pdftoolkit.repo.action.executer.BasePDFActionExecuter#getAdditionalContentSize(org.alfresco.service.cmr.action.Action)
+     */
+    @Override
+    protected long getAdditionalContentSize(Action action)
+    {
+        return getParameterContentSize(action, PARAM_TARGET_NODE);
+    }
+
+
+    /**
+     * @see org.alfresco.extension.pdftoolkit.repo.action.executer.BasePDFActionExecuter#getAdditionalDocuments(org.alfresco.service.cmr.action.Action)
+     */
+    @Override
+    protected List<NodeRef> getAdditionalDocuments(Action action)
+    {
+        return getParameterDocuments(action, PARAM_TARGET_NODE);
+    }
+
+
     /**
      * @see org.alfresco.repo.action.executer.ActionExecuterAbstractBase#executeImpl(org.alfresco.service.cmr.repository.NodeRef,
      * org.alfresco.service.cmr.repository.NodeRef)
@@ -160,58 +180,38 @@ public class PDFAppendActionExecuter
         PDDocument pdfTarget = null;
         InputStream is = null;
         InputStream tis = null;
-        File tempDir = null;
+        PDFTempWorkspace workspace = null;
         ContentWriter writer = null;
 
         try
         {
+            // get a private workspace for scratch files
+            workspace = openWorkspace(actionedUponNodeRef, reader);
+
             is = reader.getContentInputStream();
             tis = targetContentReader.getContentInputStream();
             // stream the document in
-            pdf = PDDocument.load(is);
-            pdfTarget = PDDocument.load(tis);
+            pdf = loadDocument(is, workspace);
+            pdfTarget = loadDocument(tis, workspace);
             // Append the PDFs
             PDFMergerUtility merger = new PDFMergerUtility();
             merger.appendDocument(pdfTarget, pdf);
             merger.setDestinationFileName(options.get(PARAM_DESTINATION_NAME).toString());
             merger.mergeDocuments();
 
-            // build a temp dir name based on the ID of the noderef we are
-            // importing
-            File alfTempDir = TempFileProvider.getTempDir();
-            tempDir = new File(alfTempDir.getPath() + File.separatorChar + actionedUponNodeRef.getId());
-            tempDir.mkdir();
-
             String fileName = options.get(PARAM_DESTINATION_NAME).toString();
-            pdfTarget.save(tempDir + "" + File.separatorChar + fileName + FILE_EXTENSION);
+            writer = saveResult(pdfTarget, reader);
 
-            for (File file : tempDir.listFiles())
+            try
             {
-                try
-                {
-                    if (file.isFile())
-                    {
-                        // Get a writer and prep it for putting it back into the
-                        // repo
-                        NodeRef destinationNode = createDestinationNode(file.getName(), 
-                        		(NodeRef)ruleAction.getParameterValue(PARAM_DESTINATION_FOLDER), actionedUponNodeRef);
-                        writer = serviceRegistry.getContentService().getWriter(destinationNode, ContentModel.PROP_CONTENT, true);
-                        
-                        writer.setEncoding(reader.getEncoding()); // original
-                                                                  // encoding
-                        writer.setMimetype(FILE_MIMETYPE);
-
-                        // Put it in the repo
-                        writer.putContent(file);
-
-                        // Clean up
-                        file.delete();
-                    }
-                }
-                catch (FileExistsException e)
-                {
-                    throw new AlfrescoRuntimeException("Failed to process file.", e);
-                }
+                // Put it in the repo
+                NodeRef destinationNode = createDestinationNode(fileName + FILE_EXTENSION, 
+                		(NodeRef)ruleAction.getParameterValue(PARAM_DESTINATION_FOLDER), actionedUponNodeRef);
+                bindResult(writer, destinationNode);
+            }
+            catch (FileExistsException e)
+            {
+                throw new AlfrescoRuntimeException("Failed to process file.", e);
             }
         }
         catch (COSVisitorException e)
@@ -259,9 +259,9 @@ public class PDFAppendActionExecuter
                 }
             }
 
-            if (tempDir != null)
+            if (workspace != null)
             {
-                tempDir.delete();
+                workspace.close();
             }
         }
     }
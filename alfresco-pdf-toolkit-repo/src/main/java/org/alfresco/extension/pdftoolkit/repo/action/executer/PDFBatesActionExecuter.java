@@ -0,0 +1,468 @@
+/*
+ * Copyright 2008-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.extension.pdftoolkit.repo.action.executer;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.extension.pdftoolkit.model.PDFToolkitModel;
+import org.alfresco.extension.pdftoolkit.repo.admission.PDFAdmissionController;
+import org.alfresco.extension.pdftoolkit.repo.structure.PDFStructureIndexer;
+import org.alfresco.extension.pdftoolkit.repo.workspace.PDFTempWorkspace;
+import org.alfresco.repo.action.ParameterDefinitionImpl;
+import org.alfresco.service.cmr.action.Action;
+import org.alfresco.service.cmr.action.ParameterDefinition;
+import org.alfresco.service.cmr.dictionary.DataTypeDefinition;
+import org.alfresco.service.cmr.model.FileInfo;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.pdf.BaseFont;
+import com.itextpdf.text.pdf.PdfContentByte;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfStamper;
+
+
+/**
+ * Bates numbers a set of PDF documents.  The documents are numbered consecutively, in
+ * order, as one production.  Each document's first number is worked out up front from
+ * the page counts of the documents before it, so the documents can be stamped in
+ * parallel, and the results are then stored in order.  Everything that needs the
+ * repository is done on the calling thread, in the caller's transaction, so documents
+ * the caller hasn't committed yet can be numbered.  The stamping threads only get the
+ * content files and the writers for the results.
+ */
+public class PDFBatesActionExecuter
+    extends BasePDFStampActionExecuter
+{
+    /**
+     * The logger
+     */
+    private static Log          logger                   = LogFactory.getLog(PDFBatesActionExecuter.class);
+
+    /**
+     * Action constants
+     */
+    public static final String  NAME                     = "pdf-bates";
+    public static final String  PARAM_DESTINATION_FOLDER = "destination-folder";
+    public static final String  PARAM_BATES_DOCUMENTS    = "bates-documents";
+    public static final String  PARAM_BATES_START        = "bates-start";
+    public static final String  PARAM_BATES_PREFIX       = "bates-prefix";
+    public static final String  PARAM_BATES_DIGITS       = "bates-digits";
+    public static final String  PARAM_BATES_FONT         = "bates-font";
+    public static final String  PARAM_BATES_SIZE         = "bates-size";
+
+    private static final String DEFAULT_FONT             = BaseFont.HELVETICA;
+    private static final String DEFAULT_SIZE             = "10";
+
+    private PDFStructureIndexer structureIndexer;
+    private ExecutorService     executor;
+    private int                 batesDigits              = 6;
+    private int                 documentsInFlight        = 4;
+
+
+    /**
+     * Used to count the pages of documents that have not been indexed yet
+     *
+     * @param structureIndexer
+     */
+    public void setStructureIndexer(PDFStructureIndexer structureIndexer)
+    {
+        this.structureIndexer = structureIndexer;
+    }
+
+
+    /**
+     * Sets the shared pool the documents are stamped on
+     *
+     * @param executor
+     */
+    public void setExecutor(ExecutorService executor)
+    {
+        this.executor = executor;
+    }
+
+
+    /**
+     * Sets how many documents are copied out and stamping ahead of the one being
+     * stored, which bounds the workspaces and result writers open at once
+     *
+     * @param documentsInFlight
+     */
+    public void setDocumentsInFlight(int documentsInFlight)
+    {
+        this.documentsInFlight = documentsInFlight;
+    }
+
+
+    /**
+     * Sets the minimum number of digits of a Bates number, when the action doesn't set
+     * one
+     *
+     * @param batesDigits
+     */
+    public void setBatesDigits(int batesDigits)
+    {
+        this.batesDigits = batesDigits;
+    }
+
+
+    /**
+     * Each document is admitted by the thread that stamps it
+     */
+    @Override
+    protected boolean admitsPerDocument()
+    {
+        return true;
+    }
+
+
+    /**
+     * @see org.alfresco.extension.pdftoolkit.repo.action.executer.BasePDFStampActionExecuter#compileStampPlan(java.util.Map)
+     */
+    @Override
+    protected StampPlan compileStampPlan(Map<String, Serializable> parameters)
+    {
+        String font = (String)parameters.get(PARAM_BATES_FONT);
+        String size = (String)parameters.get(PARAM_BATES_SIZE);
+
+        return new StampPlan(parameters, (String)parameters.get(PARAM_POSITION), PAGE_ALL, PDFWatermarkActionExecuter.DEPTH_OVER,
+                font != null ? font : DEFAULT_FONT, size != null ? size : DEFAULT_SIZE);
+    }
+
+
+    /**
+     * Add parameter definitions
+     */
+    @Override
+    protected void addParameterDefinitions(List<ParameterDefinition> paramList)
+    {
+        paramList.add(new ParameterDefinitionImpl(PARAM_DESTINATION_FOLDER, DataTypeDefinition.NODE_REF, true, getParamDisplayLabel(PARAM_DESTINATION_FOLDER)));
+        paramList.add(new ParameterDefinitionImpl(PARAM_BATES_DOCUMENTS, DataTypeDefinition.NODE_REF, false, getParamDisplayLabel(PARAM_BATES_DOCUMENTS), true));
+        paramList.add(new ParameterDefinitionImpl(PARAM_BATES_START, DataTypeDefinition.INT, false, getParamDisplayLabel(PARAM_BATES_START)));
+        paramList.add(new ParameterDefinitionImpl(PARAM_BATES_PREFIX, DataTypeDefinition.TEXT, false, getParamDisplayLabel(PARAM_BATES_PREFIX)));
+        paramList.add(new ParameterDefinitionImpl(PARAM_BATES_DIGITS, DataTypeDefinition.INT, false, getParamDisplayLabel(PARAM_BATES_DIGITS)));
+        paramList.add(new ParameterDefinitionImpl(PARAM_BATES_FONT, DataTypeDefinition.TEXT, false, getParamDisplayLabel(PARAM_BATES_FONT), false, "pdfc-font"));
+        paramList.add(new ParameterDefinitionImpl(PARAM_BATES_SIZE, DataTypeDefinition.TEXT, false, getParamDisplayLabel(PARAM_BATES_SIZE), false, "pdfc-fontsize"));
+        super.addParameterDefinitions(paramList);
+    }
+
+
+    /**
+     * @see org.alfresco.repo.action.executer.ActionExecuterAbstractBase#executeImpl(org.alfresco.service.cmr.action.Action,
+     * org.alfresco.service.cmr.repository.NodeRef)
+     */
+    @Override
+    protected void executeImpl(Action ruleAction, NodeRef actionedUponNodeRef)
+    {
+        if (serviceRegistry.getNodeService().exists(actionedUponNodeRef) == false)
+        {
+            // node doesn't exist - can't do anything
+            return;
+        }
+
+        List<NodeRef> documents = getDocuments(ruleAction, actionedUponNodeRef);
+        if (documents.isEmpty())
+        {
+            return;
+        }
+
+        // work out the first number of each document from the page counts
+        int start = getInteger(ruleAction.getParameterValue(PARAM_BATES_START));
+        long[] starts = new long[documents.size()];
+        int[] pageCounts = new int[documents.size()];
+        long next = start > 0 ? start : 1;
+        for (int i = 0; i < documents.size(); i++)
+        {
+            starts[i] = next;
+            pageCounts[i] = countPages(documents.get(i));
+            next = next + pageCounts[i];
+        }
+
+        int digits = getInteger(ruleAction.getParameterValue(PARAM_BATES_DIGITS));
+        String prefix = (String)ruleAction.getParameterValue(PARAM_BATES_PREFIX);
+        StampPlan plan = getStampPlan(ruleAction);
+        NodeRef destinationFolder = (NodeRef)ruleAction.getParameterValue(PARAM_DESTINATION_FOLDER);
+
+        // stamp the documents in parallel, resolving their content here, as the
+        // stamping threads can't see the caller's transaction.  Only a window of
+        // documents is in flight, so a large production doesn't copy out every
+        // document and open every result writer before the first one is stored.
+        int window = Math.max(1, documentsInFlight);
+        List<PDFTempWorkspace> workspaces = new ArrayList<PDFTempWorkspace>(documents.size());
+        List<Future<ContentWriter>> results = new ArrayList<Future<ContentWriter>>(documents.size());
+
+        try
+        {
+            for (int i = 0; i < documents.size(); i++)
+            {
+                while (results.size() < documents.size() && results.size() < i + window)
+                {
+                    int j = results.size();
+                    StampText text = new StampText(Collections.singletonList(StampText.TOKEN_BATES), pageCounts[j], prefix,
+                            starts[j], digits > 0 ? digits : batesDigits);
+                    results.add(submitDocument(documents.get(j), pageCounts[j], text, plan, workspaces));
+                }
+
+                // store the results in order, in the action's own transaction
+                NodeRef document = documents.get(i);
+                ContentWriter writer = results.get(i).get();
+                String fileName = serviceRegistry.getFileFolderService().getFileInfo(document).getName();
+                NodeRef destinationNode = createDestinationNode(fileName, destinationFolder, document);
+                bindResult(writer, destinationNode);
+                workspaces.get(i).close();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new AlfrescoRuntimeException(e.getMessage(), e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new AlfrescoRuntimeException(e.getCause().getMessage(), e.getCause());
+        }
+        finally
+        {
+            for (Future<ContentWriter> result : results)
+            {
+                result.cancel(true);
+            }
+            for (PDFTempWorkspace workspace : workspaces)
+            {
+                workspace.close();
+            }
+        }
+
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Bates numbered " + documents.size() + " documents from " + starts[0] + " to " + (next - 1));
+        }
+    }
+
+
+    /**
+     * Gets the documents to number, in order.  These are the bates-documents parameter
+     * if it is set, otherwise the PDF documents in the actioned upon folder by name.
+     *
+     * @param ruleAction
+     * @param actionedUponNodeRef
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    protected List<NodeRef> getDocuments(Action ruleAction, NodeRef actionedUponNodeRef)
+    {
+        Serializable documents = ruleAction.getParameterValue(PARAM_BATES_DOCUMENTS);
+        if (documents instanceof List)
+        {
+            return new ArrayList<NodeRef>((List<NodeRef>)documents);
+        }
+        else if (documents instanceof NodeRef)
+        {
+            return Collections.singletonList((NodeRef)documents);
+        }
+
+        List<FileInfo> files = new ArrayList<FileInfo>();
+        for (FileInfo file : serviceRegistry.getFileFolderService().listFiles(actionedUponNodeRef))
+        {
+            if (file.getContentData() != null && FILE_MIMETYPE.equals(file.getContentData().getMimetype()))
+            {
+                files.add(file);
+            }
+        }
+        Collections.sort(files, new Comparator<FileInfo>()
+        {
+            public int compare(FileInfo a, FileInfo b)
+            {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+
+        List<NodeRef> nodeRefs = new ArrayList<NodeRef>(files.size());
+        for (FileInfo file : files)
+        {
+            nodeRefs.add(file.getNodeRef());
+        }
+        return nodeRefs;
+    }
+
+
+    /**
+     * Counts the pages of a document, from the pdft:structure aspect if the document has
+     * been indexed.  With preflight on, the document is preflighted here, as the
+     * documents are usually the contents of the actioned upon folder rather than the
+     * node itself, so an encrypted document is rejected before any document is loaded.
+     *
+     * @param nodeRef
+     * @return
+     */
+    protected int countPages(NodeRef nodeRef)
+    {
+        int pageCount = isPreflight() ? preflight(nodeRef) : getPageCount(nodeRef);
+        if (pageCount != PDFAdmissionController.UNKNOWN_PAGE_COUNT)
+        {
+            return pageCount;
+        }
+
+        ContentReader reader = getReader(nodeRef);
+        if (reader == null || !reader.exists())
+        {
+            throw new AlfrescoRuntimeException("Document " + nodeRef + " has no content to number");
+        }
+
+        try
+        {
+            Serializable count = structureIndexer.scan(nodeRef, reader).get(PDFToolkitModel.PROP_PAGE_COUNT);
+            if (count instanceof Integer)
+            {
+                return (Integer)count;
+            }
+        }
+        catch (IOException e)
+        {
+            throw new AlfrescoRuntimeException(e.getMessage(), e);
+        }
+
+        throw new AlfrescoRuntimeException("Could not count the pages of " + nodeRef);
+    }
+
+
+    /**
+     * Resolves a document's content and result writer, and hands it to the pool to be
+     * stamped
+     *
+     * @param document
+     * @param pageCount the page count the numbers were worked out from
+     * @param text
+     * @param plan
+     * @param workspaces receives the document's workspace, to be closed by the caller
+     * @return the result writer, once the document has been stamped
+     */
+    private Future<ContentWriter> submitDocument(NodeRef document, final int pageCount, final StampText text, final StampPlan plan,
+                                                 List<PDFTempWorkspace> workspaces)
+    {
+        ContentReader contentReader = getReader(document);
+        PDFTempWorkspace workspace = openWorkspace(document, contentReader);
+        workspaces.add(workspace);
+        final File file = getContentFile(contentReader, workspace);
+        final long size = contentReader.getSize();
+        final ContentWriter writer = getResultWriter(contentReader);
+        final String name = document.toString();
+
+        return executor.submit(new Callable<ContentWriter>()
+        {
+            public ContentWriter call() throws Exception
+            {
+                stampDocument(name, file, size, pageCount, writer, text, plan);
+                return writer;
+            }
+        });
+    }
+
+
+    /**
+     * Stamps the Bates numbers on one document, without using the repository
+     *
+     * @param name the document, for messages
+     * @param file the document's content
+     * @param size the size of the content
+     * @param pageCount the page count the numbers were worked out from
+     * @param writer receives the result
+     * @param text
+     * @param plan
+     */
+    private void stampDocument(String name, File file, long size, int pageCount, ContentWriter writer, StampText text, StampPlan plan)
+    {
+        PDFAdmissionController.Ticket ticket = admitDocument(NAME, size, pageCount);
+        PdfStamper stamp = null;
+
+        try
+        {
+            PdfReader reader = getPdfReader(file);
+
+            // a stale page count would number the documents after this one wrongly
+            int numpages = reader.getNumberOfPages();
+            if (numpages != pageCount)
+            {
+                throw new AlfrescoRuntimeException("Document " + name + " has " + numpages + " pages, but was numbered for " 
+                        + pageCount + ", its pdft:structure aspect is out of date");
+            }
+
+            stamp = new PdfStamper(reader, writer.getContentOutputStream());
+
+            BaseFont bf = BaseFont.createFont(plan.getFont(), BaseFont.CP1250, BaseFont.EMBEDDED);
+            text.layout(bf, plan.getFontSize());
+            float width = text.getWidth();
+            float ascent = text.getAscent();
+            float[] origin = new float[2];
+
+            for (int i = 1; i <= numpages; i++)
+            {
+                Rectangle r = reader.getPageSizeWithRotation(i);
+                PdfContentByte pcb = stamp.getOverContent(i);
+                getTextOrigin(r, width, text.getHeight(), plan.getPosition(), origin);
+                text.writeSlots(pcb, bf, origin[0] - (width / 2), origin[1] + ascent - text.getBlockHeight(), 0, i);
+            }
+
+            stamp.close();
+            stamp = null;
+        }
+        catch (IOException e)
+        {
+            throw new AlfrescoRuntimeException(e.getMessage(), e);
+        }
+        catch (DocumentException e)
+        {
+            throw new AlfrescoRuntimeException(e.getMessage(), e);
+        }
+        finally
+        {
+            if (stamp != null)
+            {
+                try
+                {
+                    stamp.close();
+                }
+                catch (Exception ex)
+                {
+                    logger.warn("Could not close the stamper for " + name + ": " + ex.getMessage());
+                }
+            }
+
+            releaseDocument(ticket);
+        }
+    }
+}
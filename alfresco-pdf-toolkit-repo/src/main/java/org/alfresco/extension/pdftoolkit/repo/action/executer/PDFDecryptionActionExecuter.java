@@ -0,0 +1,200 @@
+/*
+ * Copyright 2008-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.extension.pdftoolkit.repo.action.executer;
+
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.extension.pdftoolkit.model.PDFToolkitModel;
+import org.alfresco.extension.pdftoolkit.repo.workspace.PDFTempWorkspace;
+import org.alfresco.repo.action.ParameterDefinitionImpl;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.service.cmr.action.Action;
+import org.alfresco.service.cmr.action.ParameterDefinition;
+import org.alfresco.service.cmr.dictionary.DataTypeDefinition;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.exceptions.BadPasswordException;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfStamper;
+import com.itextpdf.text.pdf.RandomAccessFileOrArray;
+
+
+/**
+ * Removes the password encryption of a PDF document.  The document is opened from a
+ * file with a random access reader, so each object is read and decrypted as the
+ * stamper writes it out rather than the document being loaded first.  The encryption
+ * the document had is recorded on the pdft:decrypted aspect of the result, in the
+ * terms of the pdf-encryption action, so that it can be put back.
+ */
+public class PDFDecryptionActionExecuter
+    extends BasePDFActionExecuter
+{
+    /**
+     * The logger
+     */
+    private static Log         logger                   = LogFactory.getLog(PDFDecryptionActionExecuter.class);
+
+    /**
+     * Action constants
+     */
+    public static final String NAME                     = "pdf-decryption";
+    public static final String PARAM_DESTINATION_FOLDER = "destination-folder";
+    public static final String PARAM_PASSWORD           = "password";
+
+    /**
+     * The encryption algorithm bits of a crypto mode, PdfWriter's own mask isn't public
+     */
+    private static final int   ENCRYPTION_MASK          = 7;
+
+
+    /**
+     * Add parameter definitions
+     */
+    @Override
+    protected void addParameterDefinitions(List<ParameterDefinition> paramList)
+    {
+        paramList.add(new ParameterDefinitionImpl(PARAM_DESTINATION_FOLDER, DataTypeDefinition.NODE_REF, true, getParamDisplayLabel(PARAM_DESTINATION_FOLDER)));
+        paramList.add(new ParameterDefinitionImpl(PARAM_PASSWORD, DataTypeDefinition.TEXT, true, getParamDisplayLabel(PARAM_PASSWORD)));
+    }
+
+
+    /**
+     * @see org.alfresco.repo.action.executer.ActionExecuterAbstractBase#executeImpl(org.alfresco.service.cmr.action.Action,
+     * org.alfresco.service.cmr.repository.NodeRef)
+     */
+    @Override
+    protected void executeImpl(Action ruleAction, NodeRef actionedUponNodeRef)
+    {
+        if (serviceRegistry.getNodeService().exists(actionedUponNodeRef) == false)
+        {
+            // node doesn't exist - can't do anything
+            return;
+        }
+
+        ContentReader actionedUponContentReader = getReader(actionedUponNodeRef);
+        if (actionedUponContentReader != null)
+        {
+            doDecrypt(ruleAction, actionedUponNodeRef, actionedUponContentReader);
+        }
+    }
+
+
+    /**
+     * Decrypts the document into a new node
+     *
+     * @param ruleAction
+     * @param actionedUponNodeRef
+     * @param actionedUponContentReader
+     */
+    protected void doDecrypt(Action ruleAction, NodeRef actionedUponNodeRef, ContentReader actionedUponContentReader)
+    {
+        String password = (String)ruleAction.getParameterValue(PARAM_PASSWORD);
+        PDFTempWorkspace workspace = null;
+        PdfReader reader = null;
+
+        try
+        {
+            workspace = openWorkspace(actionedUponNodeRef, actionedUponContentReader);
+            String fileName = serviceRegistry.getFileFolderService().getFileInfo(actionedUponNodeRef).getName();
+
+            // the password is tried as the owner password, then as the user password
+            reader = new PdfReader(new RandomAccessFileOrArray(getContentFile(actionedUponContentReader, workspace).getPath()),
+                    password != null ? password.getBytes(Charset.forName("UTF-8")) : null);
+            if (!reader.isEncrypted())
+            {
+                throw new AlfrescoRuntimeException(fileName + " is not encrypted");
+            }
+            if (!reader.isOpenedWithFullPermissions())
+            {
+                // the user password only grants the permissions the owner allowed
+                throw new AlfrescoRuntimeException("The owner password is needed to remove the encryption of " + fileName);
+            }
+
+            // the crypto mode also carries the metadata and embedded files flags, the
+            // level is only the algorithm
+            int encryptionLevel = reader.getCryptoMode() & ENCRYPTION_MASK;
+            Map<QName, Serializable> original = new HashMap<QName, Serializable>();
+            original.put(PDFToolkitModel.PROP_ORIGINAL_ENCRYPTION_LEVEL, String.valueOf(encryptionLevel));
+            original.put(PDFToolkitModel.PROP_ORIGINAL_PERMISSIONS, reader.getPermissions());
+            original.put(PDFToolkitModel.PROP_ORIGINAL_METADATA_ENCRYPTED, reader.isMetadataEncrypted());
+            original.put(PDFToolkitModel.PROP_DECRYPTEDBY, AuthenticationUtil.getRunAsUser());
+            original.put(PDFToolkitModel.PROP_DECRYPTIONDATE, new Date());
+
+            // with no encryption set the stamper writes each object out in the clear
+            ContentWriter writer = getResultWriter(actionedUponContentReader);
+            PdfStamper stamp = new PdfStamper(reader, writer.getContentOutputStream());
+            stamp.close();
+
+            NodeRef destinationNode = createDestinationNode(fileName,
+                    (NodeRef)ruleAction.getParameterValue(PARAM_DESTINATION_FOLDER), actionedUponNodeRef);
+            bindResult(writer, destinationNode);
+
+            NodeService nodeService = serviceRegistry.getNodeService();
+            if (nodeService.hasAspect(destinationNode, PDFToolkitModel.ASPECT_ENCRYPTED))
+            {
+                nodeService.removeAspect(destinationNode, PDFToolkitModel.ASPECT_ENCRYPTED);
+            }
+            nodeService.addAspect(destinationNode, PDFToolkitModel.ASPECT_DECRYPTED, original);
+
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Decrypted " + fileName + " from encryption level " + encryptionLevel);
+            }
+        }
+        catch (BadPasswordException e)
+        {
+            throw new AlfrescoRuntimeException("The password does not open " + actionedUponNodeRef, e);
+        }
+        catch (IOException e)
+        {
+            throw new AlfrescoRuntimeException(e.getMessage(), e);
+        }
+        catch (DocumentException e)
+        {
+            throw new AlfrescoRuntimeException(e.getMessage(), e);
+        }
+        finally
+        {
+            if (reader != null)
+            {
+                reader.close();
+            }
+
+            if (workspace != null)
+            {
+                workspace.close();
+            }
+        }
+    }
+}
@@ -1,14 +1,11 @@
 package org.alfresco.extension.pdftoolkit.repo.action.executer;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.alfresco.error.AlfrescoRuntimeException;
-import org.alfresco.model.ContentModel;
+import org.alfresco.extension.pdftoolkit.repo.workspace.PDFTempWorkspace;
 import org.alfresco.repo.action.ParameterDefinitionImpl;
 import org.alfresco.service.cmr.action.Action;
 import org.alfresco.service.cmr.action.ParameterDefinition;
@@ -16,7 +13,6 @@ import org.alfresco.service.cmr.dictionary.DataTypeDefinition;
 import org.alfresco.service.cmr.repository.ContentReader;
 import org.alfresco.service.cmr.repository.ContentWriter;
 import org.alfresco.service.cmr.repository.NodeRef;
-import org.alfresco.util.TempFileProvider;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.pdfbox.exceptions.COSVisitorException;
@@ -88,25 +84,20 @@ public class PDFDeletePageActionExecuter extends BasePDFActionExecuter {
 	 */
 	private void doDelete(Action action, NodeRef actionedUponNodeRef, ContentReader reader)
 	{
-		InputStream is = null;
-        File tempDir = null;
+        PDFTempWorkspace workspace = null;
         ContentWriter writer = null;
         PdfReader pdfReader = null;
 
         try
         {
-            is = reader.getContentInputStream();
-
-            File alfTempDir = TempFileProvider.getTempDir();
-            tempDir = new File(alfTempDir.getPath() + File.separatorChar + actionedUponNodeRef.getId());
-            tempDir.mkdir();
+            workspace = openWorkspace(actionedUponNodeRef, reader);
             
             String fileName = action.getParameterValue(PARAM_DESTINATION_NAME).toString();
-            File file = new File(tempDir, serviceRegistry.getFileFolderService().getFileInfo(actionedUponNodeRef).getName());
+            writer = getResultWriter(reader);
 
-            pdfReader = new PdfReader(is);
+            pdfReader = getPdfReader(reader, workspace);
             Document doc = new Document(pdfReader.getPageSizeWithRotation(1));
-            PdfCopy copy = new PdfCopy(doc, new FileOutputStream(file));
+            PdfCopy copy = new PdfCopy(doc, writer.getContentOutputStream());
             doc.open();
 
             List<Integer> toDelete = parseDeleteList(action.getParameterValue(PARAM_DELETE_PAGES).toString());
@@ -121,16 +112,9 @@ public class PDFDeletePageActionExecuter extends BasePDFActionExecuter {
 
             NodeRef destinationNode = createDestinationNode(fileName, 
             		(NodeRef)action.getParameterValue(PARAM_DESTINATION_FOLDER), actionedUponNodeRef);
-            writer = serviceRegistry.getContentService().getWriter(destinationNode, ContentModel.PROP_CONTENT, true);
-
-            writer.setEncoding(reader.getEncoding());
-            writer.setMimetype(FILE_MIMETYPE);
 
             // Put it in the repository
-            writer.putContent(file);
-
-            // Clean up
-            file.delete();
+            bindResult(writer, destinationNode);
 
         }
         catch (IOException e)
@@ -151,21 +135,9 @@ public class PDFDeletePageActionExecuter extends BasePDFActionExecuter {
             {
             	pdfReader.close();
             }
-            if (is != null)
-            {
-                try
-                {
-                    is.close();
-                }
-                catch (IOException e)
-                {
-                    throw new AlfrescoRuntimeException(e.getMessage(), e);
-                }
-            }
-
-            if (tempDir != null)
+            if (workspace != null)
             {
-                tempDir.delete();
+                workspace.close();
             }
         }
 	}
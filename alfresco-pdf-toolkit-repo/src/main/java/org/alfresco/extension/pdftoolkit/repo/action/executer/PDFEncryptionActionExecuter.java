@@ -19,11 +19,13 @@
 package org.alfresco.extension.pdftoolkit.repo.action.executer;
 
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.nio.charset.Charset;
+import java.security.cert.Certificate;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -31,7 +33,8 @@ import java.util.Map;
 import org.alfresco.error.AlfrescoRuntimeException;
 import org.alfresco.extension.pdftoolkit.constraints.MapConstraint;
 import org.alfresco.extension.pdftoolkit.model.PDFToolkitModel;
-import org.alfresco.model.ContentModel;
+import org.alfresco.extension.pdftoolkit.repo.signature.RecipientCertificateCache;
+import org.alfresco.extension.pdftoolkit.repo.workspace.PDFTempWorkspace;
 import org.alfresco.repo.action.ParameterDefinitionImpl;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
 import org.alfresco.service.cmr.action.Action;
@@ -41,7 +44,6 @@ import org.alfresco.service.cmr.repository.ContentReader;
 import org.alfresco.service.cmr.repository.ContentWriter;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.namespace.QName;
-import org.alfresco.util.TempFileProvider;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -64,6 +66,11 @@ public class PDFEncryptionActionExecuter
      * Flag for use of "pdft:encrypted" aspect, enable search by encryption metadata
      */
     private boolean useAspect									   			  = true;
+
+    /**
+     * Shared cache of the parsed certificates of recipients
+     */
+    private RecipientCertificateCache     recipientCertificateCache;
     
     /**
      * Constraints
@@ -92,6 +99,7 @@ public class PDFEncryptionActionExecuter
     public static final String            PARAM_ENCRYPTION_LEVEL              = "encryption-level";
     public static final String            PARAM_EXCLUDE_METADATA              = "exclude-metadata";
     public static final String            PARAM_OPTIONS_LEVEL                 = "level-options";
+    public static final String            PARAM_RECIPIENTS                    = "recipients";
 
 
     /**
@@ -109,6 +117,11 @@ public class PDFEncryptionActionExecuter
     	this.useAspect = useAspect;
     }
 
+    public void setRecipientCertificateCache(RecipientCertificateCache recipientCertificateCache)
+    {
+        this.recipientCertificateCache = recipientCertificateCache;
+    }
+
     /**
      * Add parameter definitions
      */
@@ -117,8 +130,10 @@ public class PDFEncryptionActionExecuter
     {
 
         paramList.add(new ParameterDefinitionImpl(PARAM_DESTINATION_FOLDER, DataTypeDefinition.NODE_REF, true, getParamDisplayLabel(PARAM_DESTINATION_FOLDER)));
-        paramList.add(new ParameterDefinitionImpl(PARAM_USER_PASSWORD, DataTypeDefinition.TEXT, true, getParamDisplayLabel(PARAM_USER_PASSWORD)));
-        paramList.add(new ParameterDefinitionImpl(PARAM_OWNER_PASSWORD, DataTypeDefinition.TEXT, true, getParamDisplayLabel(PARAM_OWNER_PASSWORD)));
+        // the passwords are not needed when the document is encrypted for recipients
+        paramList.add(new ParameterDefinitionImpl(PARAM_USER_PASSWORD, DataTypeDefinition.TEXT, false, getParamDisplayLabel(PARAM_USER_PASSWORD)));
+        paramList.add(new ParameterDefinitionImpl(PARAM_OWNER_PASSWORD, DataTypeDefinition.TEXT, false, getParamDisplayLabel(PARAM_OWNER_PASSWORD)));
+        paramList.add(new ParameterDefinitionImpl(PARAM_RECIPIENTS, DataTypeDefinition.NODE_REF, false, getParamDisplayLabel(PARAM_RECIPIENTS), true));
         paramList.add(new ParameterDefinitionImpl(PARAM_ALLOW_PRINT, DataTypeDefinition.BOOLEAN, true, getParamDisplayLabel(PARAM_ALLOW_PRINT)));
         paramList.add(new ParameterDefinitionImpl(PARAM_ALLOW_COPY, DataTypeDefinition.BOOLEAN, true, getParamDisplayLabel(PARAM_ALLOW_COPY)));
         paramList.add(new ParameterDefinitionImpl(PARAM_ALLOW_CONTENT_MODIFICATION, DataTypeDefinition.BOOLEAN, true, getParamDisplayLabel(PARAM_ALLOW_CONTENT_MODIFICATION)));
@@ -187,6 +202,7 @@ public class PDFEncryptionActionExecuter
         options.put(PARAM_ENCRYPTION_LEVEL, ruleAction.getParameterValue(PARAM_ENCRYPTION_LEVEL));
         options.put(PARAM_EXCLUDE_METADATA, ruleAction.getParameterValue(PARAM_EXCLUDE_METADATA));
         options.put(PARAM_OPTIONS_LEVEL, ruleAction.getParameterValue(PARAM_OPTIONS_LEVEL));
+        options.put(PARAM_RECIPIENTS, ruleAction.getParameterValue(PARAM_RECIPIENTS));
 
         try
         {
@@ -210,7 +226,7 @@ public class PDFEncryptionActionExecuter
     {
 
         PdfStamper stamp = null;
-        File tempDir = null;
+        PDFTempWorkspace workspace = null;
         ContentWriter writer = null;
 
         try
@@ -218,6 +234,11 @@ public class PDFEncryptionActionExecuter
             // get the parameters
             String userPassword = (String)options.get(PARAM_USER_PASSWORD);
             String ownerPassword = (String)options.get(PARAM_OWNER_PASSWORD);
+            Collection<NodeRef> recipients = getRecipients(options.get(PARAM_RECIPIENTS));
+            if (recipients.isEmpty() && (userPassword == null || ownerPassword == null))
+            {
+                throw new AlfrescoRuntimeException("A user and owner password, or recipients, are needed to encrypt");
+            }
             int permissions = buildPermissionMask(options);
             int encryptionType = Integer.parseInt((String)options.get(PARAM_ENCRYPTION_LEVEL));
 
@@ -227,29 +248,33 @@ public class PDFEncryptionActionExecuter
                 encryptionType = encryptionType | PdfWriter.DO_NOT_ENCRYPT_METADATA;
             }
 
-            // get temp file
-            File alfTempDir = TempFileProvider.getTempDir();
-            tempDir = new File(alfTempDir.getPath() + File.separatorChar + actionedUponNodeRef.getId());
-            tempDir.mkdir();
-            File file = new File(tempDir, serviceRegistry.getFileFolderService().getFileInfo(actionedUponNodeRef).getName());
+            // get a workspace for scratch files and a writer for the result
+            workspace = openWorkspace(actionedUponNodeRef, actionedUponContentReader);
+            String fileName = serviceRegistry.getFileFolderService().getFileInfo(actionedUponNodeRef).getName();
+            writer = getResultWriter(actionedUponContentReader);
 
             // get the PDF input stream and create a reader for iText
-            PdfReader reader = new PdfReader(actionedUponContentReader.getContentInputStream());
-            stamp = new PdfStamper(reader, new FileOutputStream(file));
+            PdfReader reader = getPdfReader(actionedUponContentReader, workspace);
+            stamp = new PdfStamper(reader, writer.getContentOutputStream());
 
-            // encrypt PDF
-            stamp.setEncryption(userPassword.getBytes(Charset.forName("UTF-8")), ownerPassword.getBytes(Charset.forName("UTF-8")), permissions, encryptionType);
+            // encrypt PDF, for recipients the content key is wrapped once per certificate
+            if (!recipients.isEmpty())
+            {
+                Certificate[] certificates = recipientCertificateCache.getCertificates(recipients);
+                int[] recipientPermissions = new int[certificates.length];
+                Arrays.fill(recipientPermissions, permissions);
+                stamp.setEncryption(certificates, recipientPermissions, encryptionType);
+            }
+            else
+            {
+                stamp.setEncryption(userPassword.getBytes(Charset.forName("UTF-8")), ownerPassword.getBytes(Charset.forName("UTF-8")), permissions, encryptionType);
+            }
             stamp.close();
 
             // write out to destination
-            NodeRef destinationNode = createDestinationNode(file.getName(), 
+            NodeRef destinationNode = createDestinationNode(fileName, 
             		(NodeRef)ruleAction.getParameterValue(PARAM_DESTINATION_FOLDER), actionedUponNodeRef);
-            writer = serviceRegistry.getContentService().getWriter(destinationNode, ContentModel.PROP_CONTENT, true);
-
-            writer.setEncoding(actionedUponContentReader.getEncoding());
-            writer.setMimetype(FILE_MIMETYPE);
-            writer.putContent(file);
-            file.delete();
+            bindResult(writer, destinationNode);
             
             //if useAspect is true, store some additional info about the signature in the props
             if(useAspect)
@@ -270,11 +295,11 @@ public class PDFEncryptionActionExecuter
         }
         finally
         {
-            if (tempDir != null)
+            if (stamp != null)
             {
                 try
                 {
-                    tempDir.delete();
+                    stamp.close();
                 }
                 catch (Exception ex)
                 {
@@ -282,28 +307,40 @@ public class PDFEncryptionActionExecuter
                 }
             }
 
-            if (stamp != null)
+            if (workspace != null)
             {
-                try
-                {
-                    stamp.close();
-                }
-                catch (Exception ex)
-                {
-                    throw new AlfrescoRuntimeException(ex.getMessage(), ex);
-                }
+                workspace.close();
             }
         }
     }
 
 
     /**
-     * Build the permissions mask for iText
+     * @param recipients the recipients parameter, one node or a list of them
+     * @return the recipient certificate nodes, empty for password encryption
+     */
+    @SuppressWarnings("unchecked")
+    private Collection<NodeRef> getRecipients(Object recipients)
+    {
+        if (recipients instanceof Collection)
+        {
+            return (Collection<NodeRef>)recipients;
+        }
+        else if (recipients instanceof NodeRef)
+        {
+            return Collections.singletonList((NodeRef)recipients);
+        }
+        return Collections.emptyList();
+    }
+
+
+    /**
+     * Build the permissions mask for iText, also used by pdf-reencryption
      * 
      * @param options
      * @return
      */
-    private int buildPermissionMask(Map<String, Object> options)
+    protected static int buildPermissionMask(Map<String, Object> options)
     {
         int permissions = 0;
 
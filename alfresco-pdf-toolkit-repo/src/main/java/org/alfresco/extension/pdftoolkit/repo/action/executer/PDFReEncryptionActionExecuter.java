@@ -0,0 +1,597 @@
+/*
+ * Copyright 2008-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.extension.pdftoolkit.repo.action.executer;
+
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.extension.pdftoolkit.model.PDFToolkitModel;
+import org.alfresco.extension.pdftoolkit.repo.admission.PDFAdmissionController;
+import org.alfresco.extension.pdftoolkit.repo.workspace.PDFTempWorkspace;
+import org.alfresco.repo.action.ParameterDefinitionImpl;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.action.Action;
+import org.alfresco.service.cmr.action.ParameterDefinition;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.dictionary.DataTypeDefinition;
+import org.alfresco.service.cmr.model.FileFolderService;
+import org.alfresco.service.cmr.model.FileInfo;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.search.LimitBy;
+import org.alfresco.service.cmr.search.ResultSet;
+import org.alfresco.service.cmr.search.SearchParameters;
+import org.alfresco.service.cmr.search.SearchService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.exceptions.BadPasswordException;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfStamper;
+import com.itextpdf.text.pdf.PdfWriter;
+import com.itextpdf.text.pdf.RandomAccessFileOrArray;
+
+
+/**
+ * Rotates the passwords of the encrypted PDF documents under a folder, or found by a
+ * query, re-encrypting each in place with new passwords and permissions.  Documents
+ * are taken in batches, several batches at a time, and each batch is committed in its
+ * own transaction along with a checkpoint.  A job that is run again resumes after the
+ * batches it has already committed, and documents that already open with the new
+ * owner password are skipped rather than failed.  The action's result is a report of
+ * how many documents were re-encrypted and how fast.
+ */
+public class PDFReEncryptionActionExecuter
+    extends BasePDFActionExecuter
+{
+    /**
+     * The logger
+     */
+    private static Log          logger                   = LogFactory.getLog(PDFReEncryptionActionExecuter.class);
+
+    /**
+     * Action constants
+     */
+    public static final String  NAME                     = "pdf-reencryption";
+    public static final String  PARAM_QUERY              = "query";
+    public static final String  PARAM_OLD_PASSWORD       = "old-password";
+    public static final String  PARAM_JOB_ID             = "job-id";
+
+    private static final String CHECKPOINT_KEY           = ".pdftoolkit.reencryption.checkpoint";
+
+    private static final int    REENCRYPTED              = 0;
+    private static final int    SKIPPED                  = 1;
+    private static final int    FAILED                   = 2;
+
+    private int                 threads                  = 4;
+    private int                 batchSize                = 50;
+
+
+    /**
+     * Sets how many batches are re-encrypted at the same time
+     *
+     * @param threads
+     */
+    public void setThreads(int threads)
+    {
+        this.threads = threads;
+    }
+
+
+    /**
+     * Sets how many documents are committed, and checkpointed, per transaction
+     *
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
+
+    /**
+     * Each document is admitted as its batch reaches it
+     */
+    @Override
+    protected boolean admitsPerDocument()
+    {
+        return true;
+    }
+
+
+    /**
+     * Add parameter definitions
+     */
+    @Override
+    protected void addParameterDefinitions(List<ParameterDefinition> paramList)
+    {
+        paramList.add(new ParameterDefinitionImpl(PARAM_QUERY, DataTypeDefinition.TEXT, false, getParamDisplayLabel(PARAM_QUERY)));
+        paramList.add(new ParameterDefinitionImpl(PARAM_JOB_ID, DataTypeDefinition.TEXT, false, getParamDisplayLabel(PARAM_JOB_ID)));
+        paramList.add(new ParameterDefinitionImpl(PARAM_OLD_PASSWORD, DataTypeDefinition.TEXT, true, getParamDisplayLabel(PARAM_OLD_PASSWORD)));
+        paramList.add(new ParameterDefinitionImpl(PDFEncryptionActionExecuter.PARAM_USER_PASSWORD, DataTypeDefinition.TEXT, true,
+                getParamDisplayLabel(PDFEncryptionActionExecuter.PARAM_USER_PASSWORD)));
+        paramList.add(new ParameterDefinitionImpl(PDFEncryptionActionExecuter.PARAM_OWNER_PASSWORD, DataTypeDefinition.TEXT, true,
+                getParamDisplayLabel(PDFEncryptionActionExecuter.PARAM_OWNER_PASSWORD)));
+        paramList.add(new ParameterDefinitionImpl(PDFEncryptionActionExecuter.PARAM_ALLOW_PRINT, DataTypeDefinition.BOOLEAN, true,
+                getParamDisplayLabel(PDFEncryptionActionExecuter.PARAM_ALLOW_PRINT)));
+        paramList.add(new ParameterDefinitionImpl(PDFEncryptionActionExecuter.PARAM_ALLOW_COPY, DataTypeDefinition.BOOLEAN, true,
+                getParamDisplayLabel(PDFEncryptionActionExecuter.PARAM_ALLOW_COPY)));
+        paramList.add(new ParameterDefinitionImpl(PDFEncryptionActionExecuter.PARAM_ALLOW_CONTENT_MODIFICATION, DataTypeDefinition.BOOLEAN, true,
+                getParamDisplayLabel(PDFEncryptionActionExecuter.PARAM_ALLOW_CONTENT_MODIFICATION)));
+        paramList.add(new ParameterDefinitionImpl(PDFEncryptionActionExecuter.PARAM_ALLOW_ANNOTATION_MODIFICATION, DataTypeDefinition.BOOLEAN, true,
+                getParamDisplayLabel(PDFEncryptionActionExecuter.PARAM_ALLOW_ANNOTATION_MODIFICATION)));
+        paramList.add(new ParameterDefinitionImpl(PDFEncryptionActionExecuter.PARAM_ALLOW_FORM_FILL, DataTypeDefinition.BOOLEAN, true,
+                getParamDisplayLabel(PDFEncryptionActionExecuter.PARAM_ALLOW_FORM_FILL)));
+        paramList.add(new ParameterDefinitionImpl(PDFEncryptionActionExecuter.PARAM_ALLOW_SCREEN_READER, DataTypeDefinition.BOOLEAN, true,
+                getParamDisplayLabel(PDFEncryptionActionExecuter.PARAM_ALLOW_SCREEN_READER)));
+        paramList.add(new ParameterDefinitionImpl(PDFEncryptionActionExecuter.PARAM_ALLOW_DEGRADED_PRINT, DataTypeDefinition.BOOLEAN, true,
+                getParamDisplayLabel(PDFEncryptionActionExecuter.PARAM_ALLOW_DEGRADED_PRINT)));
+        paramList.add(new ParameterDefinitionImpl(PDFEncryptionActionExecuter.PARAM_ALLOW_ASSEMBLY, DataTypeDefinition.BOOLEAN, true,
+                getParamDisplayLabel(PDFEncryptionActionExecuter.PARAM_ALLOW_ASSEMBLY)));
+        paramList.add(new ParameterDefinitionImpl(PDFEncryptionActionExecuter.PARAM_ENCRYPTION_LEVEL, DataTypeDefinition.TEXT, true,
+                getParamDisplayLabel(PDFEncryptionActionExecuter.PARAM_ENCRYPTION_LEVEL), false, "pdfc-encryptionlevel"));
+        paramList.add(new ParameterDefinitionImpl(PDFEncryptionActionExecuter.PARAM_EXCLUDE_METADATA, DataTypeDefinition.BOOLEAN, true,
+                getParamDisplayLabel(PDFEncryptionActionExecuter.PARAM_EXCLUDE_METADATA)));
+    }
+
+
+    /**
+     * @see org.alfresco.repo.action.executer.ActionExecuterAbstractBase#executeImpl(org.alfresco.service.cmr.action.Action,
+     * org.alfresco.service.cmr.repository.NodeRef)
+     */
+    @Override
+    protected void executeImpl(Action ruleAction, NodeRef actionedUponNodeRef)
+    {
+        if (serviceRegistry.getNodeService().exists(actionedUponNodeRef) == false)
+        {
+            // node doesn't exist - can't do anything
+            return;
+        }
+
+        String query = (String)ruleAction.getParameterValue(PARAM_QUERY);
+        String jobId = (String)ruleAction.getParameterValue(PARAM_JOB_ID);
+        if (jobId == null || jobId.length() == 0)
+        {
+            jobId = query != null && query.length() > 0 ? "query:" + query : "folder:" + actionedUponNodeRef;
+        }
+
+        List<NodeRef> documents = query != null && query.length() > 0 ? findDocuments(query, actionedUponNodeRef)
+                : walkDocuments(actionedUponNodeRef);
+
+        // the mask and type are the same for every document, so they are worked out once
+        Map<String, Object> options = new HashMap<String, Object>(ruleAction.getParameterValues());
+        int permissions = PDFEncryptionActionExecuter.buildPermissionMask(options);
+        int encryptionType = Integer.parseInt((String)options.get(PDFEncryptionActionExecuter.PARAM_ENCRYPTION_LEVEL));
+        if ((Boolean)options.get(PDFEncryptionActionExecuter.PARAM_EXCLUDE_METADATA))
+        {
+            encryptionType = encryptionType | PdfWriter.DO_NOT_ENCRYPT_METADATA;
+        }
+
+        String report = reencrypt(jobId, documents, new Passwords(ruleAction, permissions, encryptionType));
+        ruleAction.setParameterValue(PARAM_RESULT, report);
+    }
+
+
+    /**
+     * Re-encrypts the documents batch by batch, skipping the batches checkpointed by an
+     * earlier run of the job
+     *
+     * @param jobId
+     * @param documents
+     * @param passwords
+     * @return the throughput report
+     */
+    protected String reencrypt(final String jobId, List<NodeRef> documents, final Passwords passwords)
+    {
+        long started = System.currentTimeMillis();
+        final AttributeService attributeService = serviceRegistry.getAttributeService();
+        int size = Math.max(1, batchSize);
+        int batches = (documents.size() + size - 1) / size;
+
+        final String user = AuthenticationUtil.getRunAsUser();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, batches)));
+        List<Future<int[]>> results = new ArrayList<Future<int[]>>(batches);
+        List<Integer> batchSizes = new ArrayList<Integer>(batches);
+        int resumed = 0;
+
+        try
+        {
+            for (int i = 0; i < batches; i++)
+            {
+                final Integer index = Integer.valueOf(i);
+                final List<NodeRef> batch = documents.subList(i * size, Math.min((i + 1) * size, documents.size()));
+                final String last = batch.get(batch.size() - 1).toString();
+
+                // a checkpoint only counts if the batch still ends on the same document
+                if (last.equals(attributeService.getAttribute(CHECKPOINT_KEY, jobId, index)))
+                {
+                    resumed = resumed + batch.size();
+                    continue;
+                }
+
+                batchSizes.add(batch.size());
+                results.add(executor.submit(new Callable<int[]>()
+                {
+                    public int[] call() throws Exception
+                    {
+                        return AuthenticationUtil.runAs(new RunAsWork<int[]>()
+                        {
+                            public int[] doWork() throws Exception
+                            {
+                                return serviceRegistry.getTransactionService().getRetryingTransactionHelper().doInTransaction(
+                                        new RetryingTransactionCallback<int[]>()
+                                        {
+                                            public int[] execute() throws Throwable
+                                            {
+                                                int[] counts = reencryptBatch(batch, passwords);
+                                                if (counts[FAILED] == 0)
+                                                {
+                                                    attributeService.setAttribute(last, CHECKPOINT_KEY, jobId, index);
+                                                }
+                                                return counts;
+                                            }
+                                        }, false, true);
+                            }
+                        }, user);
+                    }
+                }));
+            }
+
+            // a batch that fails as a whole is counted as failed, the others still commit
+            int[] totals = new int[3];
+            for (int i = 0; i < results.size(); i++)
+            {
+                try
+                {
+                    int[] counts = results.get(i).get();
+                    for (int j = 0; j < totals.length; j++)
+                    {
+                        totals[j] = totals[j] + counts[j];
+                    }
+                }
+                catch (ExecutionException e)
+                {
+                    logger.warn("Re-encryption batch of job " + jobId + " failed: " + e.getCause().getMessage(), e.getCause());
+                    totals[FAILED] = totals[FAILED] + batchSizes.get(i);
+                }
+            }
+
+            // the job is complete, its checkpoints are no longer needed
+            if (totals[FAILED] == 0)
+            {
+                serviceRegistry.getTransactionService().getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Void>()
+                {
+                    public Void execute()
+                        throws Throwable
+                    {
+                        attributeService.removeAttributes(CHECKPOINT_KEY, jobId);
+                        return null;
+                    }
+                }, false, true);
+            }
+
+            long elapsed = Math.max(1, System.currentTimeMillis() - started);
+            String report = "Re-encrypted " + totals[REENCRYPTED] + ", skipped " + totals[SKIPPED] + ", failed " + totals[FAILED]
+                            + " and resumed past " + resumed + " of " + documents.size() + " documents in " + elapsed + " ms ("
+                            + (totals[REENCRYPTED] * 1000L / elapsed) + " documents/s)";
+            logger.info("Job " + jobId + ": " + report);
+            return report;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new AlfrescoRuntimeException(e.getMessage(), e);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+
+    /**
+     * Re-encrypts one batch of documents in the current transaction.  A document that
+     * can't be re-encrypted is counted as failed without failing the batch.
+     *
+     * @param batch
+     * @param passwords
+     * @return the number of documents re-encrypted, skipped and failed
+     */
+    protected int[] reencryptBatch(List<NodeRef> batch, Passwords passwords)
+    {
+        int[] counts = new int[3];
+        NodeService nodeService = serviceRegistry.getNodeService();
+
+        for (NodeRef document : batch)
+        {
+            if (!nodeService.exists(document))
+            {
+                counts[SKIPPED]++;
+                continue;
+            }
+
+            ContentWriter writer;
+            try
+            {
+                writer = reencryptDocument(document, passwords);
+            }
+            catch (AlfrescoRuntimeException e)
+            {
+                logger.warn("Could not re-encrypt " + document + ": " + e.getMessage());
+                counts[FAILED]++;
+                continue;
+            }
+
+            if (writer == null)
+            {
+                counts[SKIPPED]++;
+                continue;
+            }
+
+            // the new content replaces the old, in place
+            bindResult(writer, document);
+            nodeService.setProperty(document, PDFToolkitModel.PROP_ENCRYPTIONDATE, new Date());
+            nodeService.setProperty(document, PDFToolkitModel.PROP_ENCRYPTEDBY, AuthenticationUtil.getRunAsUser());
+            counts[REENCRYPTED]++;
+        }
+
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Re-encryption batch: " + counts[REENCRYPTED] + " re-encrypted, " + counts[SKIPPED] + " skipped, "
+                         + counts[FAILED] + " failed");
+        }
+        return counts;
+    }
+
+
+    /**
+     * Re-encrypts a document with the new passwords.  The document is read from a file
+     * with a random access reader, so each object is decrypted and encrypted again as
+     * the stamper writes it out.
+     *
+     * @param document
+     * @param passwords
+     * @return the written result, or null if the document already has the new passwords
+     */
+    private ContentWriter reencryptDocument(NodeRef document, Passwords passwords)
+    {
+        ContentReader contentReader = getReader(document);
+        if (contentReader == null)
+        {
+            throw new AlfrescoRuntimeException("Document has no content");
+        }
+
+        PDFAdmissionController.Ticket ticket = admitDocument(NAME, document, contentReader);
+        PDFTempWorkspace workspace = null;
+        PdfReader reader = null;
+
+        try
+        {
+            workspace = openWorkspace(document, contentReader);
+            String path = getContentFile(contentReader, workspace).getPath();
+
+            try
+            {
+                reader = new PdfReader(new RandomAccessFileOrArray(path), passwords.oldPassword);
+            }
+            catch (BadPasswordException e)
+            {
+                // rotated by an earlier run of the job, if the new password opens it
+                if (opensWith(path, passwords.ownerPassword))
+                {
+                    return null;
+                }
+                throw new AlfrescoRuntimeException("The old password does not open the document");
+            }
+            if (!reader.isOpenedWithFullPermissions())
+            {
+                throw new AlfrescoRuntimeException("The old password is not the owner password of the document");
+            }
+
+            ContentWriter writer = getResultWriter(contentReader);
+            PdfStamper stamp = new PdfStamper(reader, writer.getContentOutputStream());
+            stamp.setEncryption(passwords.userPassword, passwords.ownerPassword, passwords.permissions, passwords.encryptionType);
+            stamp.close();
+
+            return writer;
+        }
+        catch (IOException e)
+        {
+            throw new AlfrescoRuntimeException(e.getMessage(), e);
+        }
+        catch (DocumentException e)
+        {
+            throw new AlfrescoRuntimeException(e.getMessage(), e);
+        }
+        finally
+        {
+            if (reader != null)
+            {
+                reader.close();
+            }
+
+            if (workspace != null)
+            {
+                workspace.close();
+            }
+
+            releaseDocument(ticket);
+        }
+    }
+
+
+    /**
+     * @return true if the password is the owner password of the document in the file
+     */
+    private boolean opensWith(String path, byte[] password)
+        throws IOException
+    {
+        PdfReader reader = null;
+        try
+        {
+            reader = new PdfReader(new RandomAccessFileOrArray(path), password);
+            return reader.isOpenedWithFullPermissions();
+        }
+        catch (BadPasswordException e)
+        {
+            return false;
+        }
+        finally
+        {
+            if (reader != null)
+            {
+                reader.close();
+            }
+        }
+    }
+
+
+    /**
+     * Finds the encrypted documents matched by a Lucene query, in the store of the
+     * actioned upon node
+     *
+     * @param query
+     * @param actionedUponNodeRef
+     * @return the documents, in a stable order
+     */
+    protected List<NodeRef> findDocuments(String query, NodeRef actionedUponNodeRef)
+    {
+        SearchParameters sp = new SearchParameters();
+        sp.addStore(actionedUponNodeRef.getStoreRef());
+        sp.setLanguage(SearchService.LANGUAGE_LUCENE);
+        sp.setQuery(query);
+        sp.setLimitBy(LimitBy.UNLIMITED);
+        sp.setMaxPermissionChecks(Integer.MAX_VALUE);
+        sp.setMaxPermissionCheckTimeMillis(Long.MAX_VALUE);
+
+        ResultSet results = serviceRegistry.getSearchService().query(sp);
+        try
+        {
+            return sortEncrypted(results.getNodeRefs());
+        }
+        finally
+        {
+            results.close();
+        }
+    }
+
+
+    /**
+     * Finds the encrypted documents in a folder and its subfolders.  A document, rather
+     * than a folder, is taken on its own.
+     *
+     * @param root
+     * @return the documents, in a stable order
+     */
+    protected List<NodeRef> walkDocuments(NodeRef root)
+    {
+        FileFolderService fileFolderService = serviceRegistry.getFileFolderService();
+        if (!fileFolderService.getFileInfo(root).isFolder())
+        {
+            return sortEncrypted(Collections.singletonList(root));
+        }
+
+        List<NodeRef> documents = new ArrayList<NodeRef>();
+        LinkedList<NodeRef> folders = new LinkedList<NodeRef>();
+        folders.add(root);
+        while (!folders.isEmpty())
+        {
+            NodeRef folder = folders.removeFirst();
+            for (FileInfo file : fileFolderService.listFiles(folder))
+            {
+                documents.add(file.getNodeRef());
+            }
+            for (FileInfo child : fileFolderService.listFolders(folder))
+            {
+                folders.add(child.getNodeRef());
+            }
+        }
+        return sortEncrypted(documents);
+    }
+
+
+    /**
+     * Keeps the documents with the pdft:encrypted aspect, sorted so that a job's batches
+     * are the same from one run to the next
+     */
+    private List<NodeRef> sortEncrypted(List<NodeRef> nodeRefs)
+    {
+        NodeService nodeService = serviceRegistry.getNodeService();
+        List<NodeRef> documents = new ArrayList<NodeRef>(nodeRefs.size());
+        for (NodeRef nodeRef : nodeRefs)
+        {
+            if (nodeService.hasAspect(nodeRef, PDFToolkitModel.ASPECT_ENCRYPTED))
+            {
+                documents.add(nodeRef);
+            }
+        }
+        Collections.sort(documents, new Comparator<NodeRef>()
+        {
+            public int compare(NodeRef a, NodeRef b)
+            {
+                return a.toString().compareTo(b.toString());
+            }
+        });
+        return documents;
+    }
+
+
+    /**
+     * The old and new passwords and permissions of a job, shared by its batches
+     */
+    protected static class Passwords
+    {
+        final byte[] oldPassword;
+        final byte[] userPassword;
+        final byte[] ownerPassword;
+        final int    permissions;
+        final int    encryptionType;
+
+
+        Passwords(Action ruleAction, int permissions, int encryptionType)
+        {
+            Charset utf8 = Charset.forName("UTF-8");
+            this.oldPassword = ((String)ruleAction.getParameterValue(PARAM_OLD_PASSWORD)).getBytes(utf8);
+            this.userPassword = ((String)ruleAction.getParameterValue(PDFEncryptionActionExecuter.PARAM_USER_PASSWORD)).getBytes(utf8);
+            this.ownerPassword = ((String)ruleAction.getParameterValue(PDFEncryptionActionExecuter.PARAM_OWNER_PASSWORD)).getBytes(utf8);
+            this.permissions = permissions;
+            this.encryptionType = encryptionType;
+        }
+    }
+}
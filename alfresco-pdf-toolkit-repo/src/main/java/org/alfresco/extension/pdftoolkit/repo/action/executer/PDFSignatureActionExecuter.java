@@ -22,6 +22,7 @@ package org.alfresco.extension.pdftoolkit.repo.action.executer;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
@@ -30,13 +31,22 @@ import java.security.PrivateKey;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.alfresco.error.AlfrescoRuntimeException;
 import org.alfresco.extension.pdftoolkit.constraints.MapConstraint;
 import org.alfresco.extension.pdftoolkit.model.PDFToolkitModel;
-import org.alfresco.model.ContentModel;
+import org.alfresco.extension.pdftoolkit.repo.signature.DeferredSignatureService;
+import org.alfresco.extension.pdftoolkit.repo.signature.RevocationDataCache;
+import org.alfresco.extension.pdftoolkit.repo.signature.SignatureWriter;
+import org.alfresco.extension.pdftoolkit.repo.workspace.PDFTempWorkspace;
 import org.alfresco.repo.action.ParameterDefinitionImpl;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
 import org.alfresco.service.cmr.action.Action;
@@ -47,15 +57,18 @@ import org.alfresco.service.cmr.repository.ContentReader;
 import org.alfresco.service.cmr.repository.ContentWriter;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.namespace.QName;
-import org.alfresco.util.TempFileProvider;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.Image;
 import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.pdf.BaseFont;
+import com.itextpdf.text.pdf.PdfPKCS7;
 import com.itextpdf.text.pdf.PdfReader;
 import com.itextpdf.text.pdf.PdfSignatureAppearance;
 import com.itextpdf.text.pdf.PdfStamper;
+import com.itextpdf.text.pdf.RandomAccessFileOrArray;
 
 
 public class PDFSignatureActionExecuter
@@ -73,11 +86,61 @@ public class PDFSignatureActionExecuter
      */
     private boolean useAspect									   = true;
     
+    /**
+     * Signs documents in deferred mode
+     */
+    private DeferredSignatureService      deferredSignatureService;
+
+    private static final int              LAYOUT_CACHE_SIZE        = 256;
+
+    /**
+     * Visible signature layouts by signer, size, reason, location and image
+     */
+    private final Map<String, SignatureLayout> layouts             = new LinkedHashMap<String, SignatureLayout>(16, 0.75f, true)
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SignatureLayout> eldest)
+        {
+            return size() > LAYOUT_CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Signature rectangles by position, page size and signature size
+     */
+    private final Map<String, Rectangle>  rectangles               = new LinkedHashMap<String, Rectangle>(16, 0.75f, true)
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Rectangle> eldest)
+        {
+            return size() > LAYOUT_CACHE_SIZE;
+        }
+    };
+
+    private BaseFont                      layoutFont;
+
+    /**
+     * Writes signatures that carry a timestamp or revocation data
+     */
+    private SignatureWriter               signatureWriter;
+
+    /**
+     * Revocation data for long term validation, pre-warmed the first time each key makes
+     * a long term validation signature
+     */
+    private RevocationDataCache           revocationDataCache;
+    private final Set<String>             prewarmedKeys            = new HashSet<String>();
+    
     /**
      * Constraints
      */
     public static HashMap<String, String> visibilityConstraint     = new HashMap<String, String>();
     public static HashMap<String, String> keyTypeConstraint        = new HashMap<String, String>();
+    public static HashMap<String, String> signatureModeConstraint  = new HashMap<String, String>();
 
     /**
      * Action constants
@@ -103,12 +166,33 @@ public class PDFSignatureActionExecuter
     public static final String            PARAM_ALIAS              = "alias";
     public static final String            PARAM_STORE_PASSWORD     = "store-password";
 
+    // immediate signs with the given key, deferred reserves the signature for the configured signer
+    public static final String            PARAM_SIGNATURE_MODE     = "signature-mode";
+
+    // append the signature as a new revision, leaving earlier signatures untouched
+    public static final String            PARAM_COUNTERSIGN        = "countersign";
+
+    // signatures to add in turn, each a map of the signature parameters above
+    public static final String            PARAM_SIGNERS            = "signers";
+
+    // image drawn in visible signatures, such as a captured handwritten signature
+    public static final String            PARAM_SIGNATURE_IMAGE    = "signature-image";
+
+    // add an RFC 3161 timestamp from the configured timestamp authority
+    public static final String            PARAM_TIMESTAMP          = "timestamp";
+
+    // embed OCSP responses and CRLs for the signing chain, for long term validation
+    public static final String            PARAM_LTV                = "ltv";
+
     public static final String            VISIBILITY_HIDDEN        = "hidden";
     public static final String            VISIBILITY_VISIBLE       = "visible";
 
     public static final String            KEY_TYPE_PKCS12          = "pkcs12";
     public static final String            KEY_TYPE_DEFAULT         = "default";
 
+    public static final String            MODE_IMMEDIATE           = "immediate";
+    public static final String            MODE_DEFERRED            = "deferred";
+
 
     /**
      * Constraint beans
@@ -126,6 +210,29 @@ public class PDFSignatureActionExecuter
         visibilityConstraint.putAll(mc.getAllowableValues());
     }
 
+    public void setSignatureModeConstraint(MapConstraint mc)
+    {
+        signatureModeConstraint.putAll(mc.getAllowableValues());
+    }
+
+
+    public void setDeferredSignatureService(DeferredSignatureService deferredSignatureService)
+    {
+        this.deferredSignatureService = deferredSignatureService;
+    }
+
+
+    public void setSignatureWriter(SignatureWriter signatureWriter)
+    {
+        this.signatureWriter = signatureWriter;
+    }
+
+
+    public void setRevocationDataCache(RevocationDataCache revocationDataCache)
+    {
+        this.revocationDataCache = revocationDataCache;
+    }
+
     public void setUseAspect(boolean useAspect)
     {
     	this.useAspect = useAspect;
@@ -139,16 +246,22 @@ public class PDFSignatureActionExecuter
     {
 
         paramList.add(new ParameterDefinitionImpl(PARAM_DESTINATION_FOLDER, DataTypeDefinition.NODE_REF, true, getParamDisplayLabel(PARAM_DESTINATION_FOLDER)));
-        paramList.add(new ParameterDefinitionImpl(PARAM_PRIVATE_KEY, DataTypeDefinition.NODE_REF, true, getParamDisplayLabel(PARAM_PRIVATE_KEY)));
+        paramList.add(new ParameterDefinitionImpl(PARAM_PRIVATE_KEY, DataTypeDefinition.NODE_REF, false, getParamDisplayLabel(PARAM_PRIVATE_KEY)));
         paramList.add(new ParameterDefinitionImpl(PARAM_VISIBILITY, DataTypeDefinition.TEXT, true, getParamDisplayLabel(PARAM_VISIBILITY), false, "pdfc-visibility"));
         paramList.add(new ParameterDefinitionImpl(PARAM_LOCATION, DataTypeDefinition.TEXT, false, getParamDisplayLabel(PARAM_LOCATION)));
         paramList.add(new ParameterDefinitionImpl(PARAM_REASON, DataTypeDefinition.TEXT, false, getParamDisplayLabel(PARAM_REASON)));
-        paramList.add(new ParameterDefinitionImpl(PARAM_KEY_PASSWORD, DataTypeDefinition.TEXT, true, getParamDisplayLabel(PARAM_KEY_PASSWORD)));
+        paramList.add(new ParameterDefinitionImpl(PARAM_KEY_PASSWORD, DataTypeDefinition.TEXT, false, getParamDisplayLabel(PARAM_KEY_PASSWORD)));
         paramList.add(new ParameterDefinitionImpl(PARAM_WIDTH, DataTypeDefinition.INT, false, getParamDisplayLabel(PARAM_WIDTH)));
         paramList.add(new ParameterDefinitionImpl(PARAM_HEIGHT, DataTypeDefinition.INT, false, getParamDisplayLabel(PARAM_HEIGHT)));
-        paramList.add(new ParameterDefinitionImpl(PARAM_KEY_TYPE, DataTypeDefinition.TEXT, true, getParamDisplayLabel(PARAM_KEY_TYPE), false, "pdfc-keytype"));
-        paramList.add(new ParameterDefinitionImpl(PARAM_ALIAS, DataTypeDefinition.TEXT, true, getParamDisplayLabel(PARAM_ALIAS)));
-        paramList.add(new ParameterDefinitionImpl(PARAM_STORE_PASSWORD, DataTypeDefinition.TEXT, true, getParamDisplayLabel(PARAM_STORE_PASSWORD)));
+        paramList.add(new ParameterDefinitionImpl(PARAM_KEY_TYPE, DataTypeDefinition.TEXT, false, getParamDisplayLabel(PARAM_KEY_TYPE), false, "pdfc-keytype"));
+        paramList.add(new ParameterDefinitionImpl(PARAM_ALIAS, DataTypeDefinition.TEXT, false, getParamDisplayLabel(PARAM_ALIAS)));
+        paramList.add(new ParameterDefinitionImpl(PARAM_STORE_PASSWORD, DataTypeDefinition.TEXT, false, getParamDisplayLabel(PARAM_STORE_PASSWORD)));
+        paramList.add(new ParameterDefinitionImpl(PARAM_SIGNATURE_MODE, DataTypeDefinition.TEXT, false, getParamDisplayLabel(PARAM_SIGNATURE_MODE), false, "pdfc-signaturemode"));
+        paramList.add(new ParameterDefinitionImpl(PARAM_COUNTERSIGN, DataTypeDefinition.BOOLEAN, false, getParamDisplayLabel(PARAM_COUNTERSIGN)));
+        paramList.add(new ParameterDefinitionImpl(PARAM_SIGNERS, DataTypeDefinition.ANY, false, getParamDisplayLabel(PARAM_SIGNERS), true));
+        paramList.add(new ParameterDefinitionImpl(PARAM_SIGNATURE_IMAGE, DataTypeDefinition.NODE_REF, false, getParamDisplayLabel(PARAM_SIGNATURE_IMAGE)));
+        paramList.add(new ParameterDefinitionImpl(PARAM_TIMESTAMP, DataTypeDefinition.BOOLEAN, false, getParamDisplayLabel(PARAM_TIMESTAMP)));
+        paramList.add(new ParameterDefinitionImpl(PARAM_LTV, DataTypeDefinition.BOOLEAN, false, getParamDisplayLabel(PARAM_LTV)));
 
         super.addParameterDefinitions(paramList);
 
@@ -187,6 +300,10 @@ public class PDFSignatureActionExecuter
 
 
     /**
+     * Signs the document with the action's key, or in turn with each of the keys in the
+     * signers parameter.  Every signature after the first, and the first too when
+     * countersigning, is appended as a new revision so that earlier signatures and the
+     * bytes they cover are left alone.
      * 
      * @param ruleAction
      * @param actionedUponNodeRef
@@ -194,111 +311,121 @@ public class PDFSignatureActionExecuter
      */
     protected void doSignature(Action ruleAction, NodeRef actionedUponNodeRef, ContentReader actionedUponContentReader)
     {
+        boolean deferred = MODE_DEFERRED.equals(ruleAction.getParameterValue(PARAM_SIGNATURE_MODE));
+        boolean countersign = Boolean.parseBoolean(String.valueOf(ruleAction.getParameterValue(PARAM_COUNTERSIGN)));
+        List<Map<String, Serializable>> signers = getSigners(ruleAction);
 
-        NodeRef privateKey = (NodeRef)ruleAction.getParameterValue(PARAM_PRIVATE_KEY);
-        String location = (String)ruleAction.getParameterValue(PARAM_LOCATION);
-        String position = (String)ruleAction.getParameterValue(PARAM_POSITION);
-        String reason = (String)ruleAction.getParameterValue(PARAM_REASON);
-        String visibility = (String)ruleAction.getParameterValue(PARAM_VISIBILITY);
-        String keyPassword = (String)ruleAction.getParameterValue(PARAM_KEY_PASSWORD);
-        String keyType = (String)ruleAction.getParameterValue(PARAM_KEY_TYPE);
-        int height = getInteger(ruleAction.getParameterValue(PARAM_HEIGHT));
-        int width = getInteger(ruleAction.getParameterValue(PARAM_WIDTH));
-
-        // New keystore parameters
-        String alias = (String)ruleAction.getParameterValue(PARAM_ALIAS);
-        String storePassword = (String)ruleAction.getParameterValue(PARAM_STORE_PASSWORD);
-        
-        int locationX = getInteger(ruleAction.getParameterValue(PARAM_LOCATION_X));
-        int locationY = getInteger(ruleAction.getParameterValue(PARAM_LOCATION_Y));
-
-        File tempDir = null;
+        if (deferred && signers.size() > 1)
+        {
+            throw new AlfrescoRuntimeException("Deferred signatures are made with the configured signer, not a list of signers");
+        }
+        if ((countersign || signers.size() > 1)
+            && serviceRegistry.getNodeService().hasAspect(actionedUponNodeRef, PDFToolkitModel.ASPECT_SIGNATURE_PENDING))
+        {
+            // a revision appended now would cover the gap the pending signature goes in
+            throw new AlfrescoRuntimeException("The pending signature of " + actionedUponNodeRef + " must be completed before countersigning");
+        }
+
+        PDFTempWorkspace workspace = null;
         ContentWriter writer = null;
-        KeyStore ks = null;
+        Map<QName, Serializable> pending = null;
+        Map<String, Serializable> signer = null;
 
         try
         {
-            // get a keystore instance by
-            if (keyType == null || keyType.equalsIgnoreCase(KEY_TYPE_DEFAULT))
-            {
-                ks = KeyStore.getInstance(KeyStore.getDefaultType());
-            }
-            else if (keyType.equalsIgnoreCase(KEY_TYPE_PKCS12))
-            {
-                ks = KeyStore.getInstance("pkcs12");
-            }
-            else
-            {
-                throw new AlfrescoRuntimeException("Unknown key type " + keyType + " specified");
-            }
-
-            // open the reader to the key and load it
-            ContentReader keyReader = getReader(privateKey);
-            ks.load(keyReader.getContentInputStream(), storePassword.toCharArray());
-
-            // set alias
-            // String alias = (String) ks.aliases().nextElement();
-
-            PrivateKey key = (PrivateKey)ks.getKey(alias, keyPassword.toCharArray());
-            Certificate[] chain = ks.getCertificateChain(alias);
+            // create a private workspace for scratch files and a writer for the result
+            workspace = openWorkspace(actionedUponNodeRef, actionedUponContentReader);
+            String fileName = serviceRegistry.getFileFolderService().getFileInfo(actionedUponNodeRef).getName();
+            writer = getResultWriter(actionedUponContentReader);
 
             // open original pdf
             ContentReader pdfReader = getReader(actionedUponNodeRef);
-            PdfReader reader = new PdfReader(pdfReader.getContentInputStream());
+            PdfReader reader = getPdfReader(pdfReader, workspace);
 
-            // create temp dir to store file
-            File alfTempDir = TempFileProvider.getTempDir();
-            tempDir = new File(alfTempDir.getPath() + File.separatorChar + actionedUponNodeRef.getId());
-            tempDir.mkdir();
-            File file = new File(tempDir, serviceRegistry.getFileFolderService().getFileInfo(actionedUponNodeRef).getName());
+            for (int i = 0; i < signers.size(); i++)
+            {
+                signer = signers.get(i);
+                boolean last = i == signers.size() - 1;
+                boolean append = countersign || i > 0;
+
+                // revisions before the last are written to scratch files and read back
+                // from disk by the next signer
+                File revision = last ? null : workspace.newScratchFile(FILE_EXTENSION);
+                OutputStream out = last ? writer.getContentOutputStream() : new FileOutputStream(revision);
+
+                // deferred and appended signatures are written out through a scratch file,
+                // rather than held in memory until the signature is in.  A deferred one is
+                // left in its scratch file by iText and copied out once its byte range is read
+                File tempFile = deferred || append ? workspace.newScratchFile(FILE_EXTENSION) : null;
+
+                PdfStamper stamp = PdfStamper.createSignature(reader, deferred ? null : out, '\0', tempFile, append);
+                PdfSignatureAppearance sap = stamp.getSignatureAppearance();
+                String alias = (String)getSignerValue(signer, ruleAction, PARAM_ALIAS);
+                boolean timestamp = Boolean.parseBoolean(String.valueOf(getSignerValue(signer, ruleAction, PARAM_TIMESTAMP)));
+                boolean ltv = Boolean.parseBoolean(String.valueOf(getSignerValue(signer, ruleAction, PARAM_LTV)));
+                PrivateKey key = null;
+                Certificate[] chain;
+                if (deferred)
+                {
+                    // the key stays with the signer, only its certificate is needed up front
+                    chain = deferredSignatureService.getCertificateChain();
+                    sap.setCrypto(null, chain, null, PdfSignatureAppearance.WINCER_SIGNED);
+                }
+                else
+                {
+                    String keyPassword = (String)getSignerValue(signer, ruleAction, PARAM_KEY_PASSWORD);
+                    KeyStore ks = loadKeyStore(signer, ruleAction);
+                    key = (PrivateKey)ks.getKey(alias, keyPassword.toCharArray());
+                    chain = ks.getCertificateChain(alias);
+                    sap.setCrypto(key, chain, null, PdfSignatureAppearance.WINCER_SIGNED);
+                    if (ltv)
+                    {
+                        prewarm(getSignerValue(signer, ruleAction, PARAM_PRIVATE_KEY) + "|" + alias, chain);
+                    }
+                }
 
-            FileOutputStream fout = new FileOutputStream(file);
-            PdfStamper stamp = PdfStamper.createSignature(reader, fout, '\0');
-            PdfSignatureAppearance sap = stamp.getSignatureAppearance();
-            sap.setCrypto(key, chain, null, PdfSignatureAppearance.WINCER_SIGNED);
+                setAppearance(sap, reader, signer, ruleAction, alias, chain);
 
-            // set reason for signature and location of signer
-            sap.setReason(reason);
-            sap.setLocation(location);
+                if (deferred)
+                {
+                    pending = deferredSignatureService.reserve(sap, tempFile, out, timestamp, ltv);
+                }
+                else if (timestamp || ltv)
+                {
+                    signatureWriter.sign(sap, key, chain, timestamp, ltv);
+                }
+                else
+                {
+                    stamp.close();
+                }
 
-            if (visibility.equalsIgnoreCase(PDFSignatureActionExecuter.VISIBILITY_VISIBLE))
-            {
-            	//create the signature rectangle using either the provided position or
-            	//the exact coordinates, if provided
-            	if(position != null && !position.trim().equalsIgnoreCase(""))
-            	{
-            		Rectangle pageRect = reader.getPageSizeWithRotation(1);
-            		sap.setVisibleSignature(positionSignature(position, pageRect, width, height), 1, null);
-            	}
-            	else
-            	{
-            		sap.setVisibleSignature(new Rectangle(locationX, locationY, locationX + width, locationY - height), 1, null);
-            	}
+                if (!last)
+                {
+                    reader.close();
+                    reader = new PdfReader(new RandomAccessFileOrArray(revision.getPath()), null);
+                }
             }
 
-            stamp.close();
-
-            //can't use BasePDFActionExecuter.getWriter here need the nodeRef of the destination
-            NodeRef destinationNode = createDestinationNode(file.getName(), 
+            NodeRef destinationNode = createDestinationNode(fileName, 
             		(NodeRef)ruleAction.getParameterValue(PARAM_DESTINATION_FOLDER), actionedUponNodeRef);
-            writer = serviceRegistry.getContentService().getWriter(destinationNode, ContentModel.PROP_CONTENT, true);
-            
-            writer.setEncoding(actionedUponContentReader.getEncoding());
-            writer.setMimetype(FILE_MIMETYPE);
-            writer.putContent(file);
-
-            file.delete();
+            bindResult(writer, destinationNode);
             
-            //if useAspect is true, store some additional info about the signature in the props
+            //if useAspect is true, store some additional info about the last signature in the props
             if(useAspect)
             {
             	serviceRegistry.getNodeService().addAspect(destinationNode, PDFToolkitModel.ASPECT_SIGNED, new HashMap<QName, Serializable>());
-            	serviceRegistry.getNodeService().setProperty(destinationNode, PDFToolkitModel.PROP_REASON, reason);
-            	serviceRegistry.getNodeService().setProperty(destinationNode, PDFToolkitModel.PROP_LOCATION, location);
+            	serviceRegistry.getNodeService().setProperty(destinationNode, PDFToolkitModel.PROP_REASON, getSignerValue(signer, ruleAction, PARAM_REASON));
+            	serviceRegistry.getNodeService().setProperty(destinationNode, PDFToolkitModel.PROP_LOCATION, getSignerValue(signer, ruleAction, PARAM_LOCATION));
             	serviceRegistry.getNodeService().setProperty(destinationNode, PDFToolkitModel.PROP_SIGNATUREDATE, new java.util.Date());
             	serviceRegistry.getNodeService().setProperty(destinationNode, PDFToolkitModel.PROP_SIGNEDBY, AuthenticationUtil.getRunAsUser());
             }
             
+            //a deferred signature is written in once the signer has signed the digest
+            if(pending != null)
+            {
+            	deferredSignatureService.markPending(destinationNode, pending);
+            }
+            
         }
         catch (IOException e)
         {
@@ -330,18 +457,192 @@ public class PDFSignatureActionExecuter
         }
         finally
         {
-            if (tempDir != null)
+            if (workspace != null)
             {
-                try
-                {
-                    tempDir.delete();
-                }
-                catch (Exception ex)
+                workspace.close();
+            }
+        }
+    }
+
+
+    /**
+     * Gets the signers of a run.  Each signer is a map of signature parameters, and any
+     * parameter a signer leaves out is taken from the action.  Without a signers
+     * parameter the action's own parameters make the one signer.
+     * 
+     * @param ruleAction
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    private List<Map<String, Serializable>> getSigners(Action ruleAction)
+    {
+        List<Map<String, Serializable>> signers = new ArrayList<Map<String, Serializable>>();
+        Serializable value = ruleAction.getParameterValue(PARAM_SIGNERS);
+        if (value instanceof List)
+        {
+            for (Object signer : (List<Object>)value)
+            {
+                if (!(signer instanceof Map))
                 {
-                    throw new AlfrescoRuntimeException(ex.getMessage(), ex);
+                    throw new AlfrescoRuntimeException("Signers must be maps of signature parameters");
                 }
+                signers.add((Map<String, Serializable>)signer);
+            }
+        }
+        if (signers.isEmpty())
+        {
+            signers.add(new HashMap<String, Serializable>());
+        }
+        return signers;
+    }
+
+
+    /**
+     * Starts fetching the revocation data of a key's chain the first time the key makes
+     * a long term validation signature, so that it is cached for the signatures after it
+     */
+    private void prewarm(String key, Certificate[] chain)
+    {
+        synchronized (prewarmedKeys)
+        {
+            if (!prewarmedKeys.add(key))
+            {
+                return;
+            }
+        }
+        revocationDataCache.prewarm(chain);
+    }
+
+
+    private Serializable getSignerValue(Map<String, Serializable> signer, Action ruleAction, String name)
+    {
+        return signer.containsKey(name) ? signer.get(name) : ruleAction.getParameterValue(name);
+    }
+
+
+    /**
+     * Loads the key store holding a signer's private key
+     */
+    private KeyStore loadKeyStore(Map<String, Serializable> signer, Action ruleAction)
+        throws KeyStoreException, NoSuchAlgorithmException, CertificateException, IOException
+    {
+        Serializable privateKey = getSignerValue(signer, ruleAction, PARAM_PRIVATE_KEY);
+        String keyType = (String)getSignerValue(signer, ruleAction, PARAM_KEY_TYPE);
+        String storePassword = (String)getSignerValue(signer, ruleAction, PARAM_STORE_PASSWORD);
+
+        if (privateKey == null || storePassword == null || getSignerValue(signer, ruleAction, PARAM_ALIAS) == null
+            || getSignerValue(signer, ruleAction, PARAM_KEY_PASSWORD) == null)
+        {
+            throw new AlfrescoRuntimeException("A private key, alias, key password and store password are required to sign");
+        }
+
+        // get a keystore instance by
+        KeyStore ks = null;
+        if (keyType == null || keyType.equalsIgnoreCase(KEY_TYPE_DEFAULT))
+        {
+            ks = KeyStore.getInstance(KeyStore.getDefaultType());
+        }
+        else if (keyType.equalsIgnoreCase(KEY_TYPE_PKCS12))
+        {
+            ks = KeyStore.getInstance("pkcs12");
+        }
+        else
+        {
+            throw new AlfrescoRuntimeException("Unknown key type " + keyType + " specified");
+        }
+
+        // open the reader to the key and load it
+        NodeRef keyRef = privateKey instanceof NodeRef ? (NodeRef)privateKey : new NodeRef(privateKey.toString());
+        ContentReader keyReader = getReader(keyRef);
+        ks.load(keyReader.getContentInputStream(), storePassword.toCharArray());
+        return ks;
+    }
+
+
+    /**
+     * Sets the reason, location and, for visible signatures, the signature rectangle and
+     * its description, drawn from a cached layout
+     */
+    private void setAppearance(PdfSignatureAppearance sap, PdfReader reader, Map<String, Serializable> signer, Action ruleAction,
+            String alias, Certificate[] chain)
+        throws IOException, DocumentException
+    {
+        String visibility = (String)getSignerValue(signer, ruleAction, PARAM_VISIBILITY);
+        String position = (String)getSignerValue(signer, ruleAction, PARAM_POSITION);
+        int height = getInteger(getSignerValue(signer, ruleAction, PARAM_HEIGHT));
+        int width = getInteger(getSignerValue(signer, ruleAction, PARAM_WIDTH));
+        int locationX = getInteger(getSignerValue(signer, ruleAction, PARAM_LOCATION_X));
+        int locationY = getInteger(getSignerValue(signer, ruleAction, PARAM_LOCATION_Y));
+
+        // set reason for signature and location of signer
+        String reason = (String)getSignerValue(signer, ruleAction, PARAM_REASON);
+        String location = (String)getSignerValue(signer, ruleAction, PARAM_LOCATION);
+        sap.setReason(reason);
+        sap.setLocation(location);
+
+        if (visibility != null && visibility.equalsIgnoreCase(PDFSignatureActionExecuter.VISIBILITY_VISIBLE))
+        {
+        	//create the signature rectangle using either the provided position or
+        	//the exact coordinates, if provided
+        	if(position != null && !position.trim().equalsIgnoreCase(""))
+        	{
+        		Rectangle pageRect = reader.getPageSizeWithRotation(1);
+        		sap.setVisibleSignature(positionSignature(position, pageRect, width, height), 1, null);
+        	}
+        	else
+        	{
+        		sap.setVisibleSignature(new Rectangle(locationX, locationY, locationX + width, locationY - height), 1, null);
+        	}
+
+        	//draw the description layer ourselves, so iText doesn't lay it out again
+        	Serializable image = getSignerValue(signer, ruleAction, PARAM_SIGNATURE_IMAGE);
+        	NodeRef imageRef = image instanceof NodeRef || image == null ? (NodeRef)image : new NodeRef(image.toString());
+        	getSignatureLayout(sap.getRect(), alias, chain, reason, location, imageRef).draw(sap.getLayer(2), sap.getSignDate());
+        }
+    }
+
+
+    /**
+     * Gets the layout of a visible signature, laying it out the first time a combination
+     * of signer, size, reason, location and image is used
+     */
+    private SignatureLayout getSignatureLayout(Rectangle rect, String alias, Certificate[] chain, String reason, String location,
+            NodeRef imageRef)
+        throws IOException, DocumentException
+    {
+        String signerName = PdfPKCS7.getSubjectFields((X509Certificate)chain[0]).getField("CN");
+        ContentReader imageReader = imageRef != null ? getReader(imageRef) : null;
+        String key = alias + "|" + signerName + "|" + rect.getWidth() + "x" + rect.getHeight() + "|" + reason + "|" + location + "|"
+                     + (imageReader != null ? imageRef + "|" + imageReader.getContentUrl() : "");
+
+        SignatureLayout layout;
+        synchronized (layouts)
+        {
+            layout = layouts.get(key);
+        }
+
+        if (layout == null)
+        {
+            Image img = imageReader != null ? getImage(imageRef, imageReader) : null;
+            layout = new SignatureLayout(getLayoutFont(), rect.getWidth(), rect.getHeight(), signerName, reason, location, img);
+            synchronized (layouts)
+            {
+                layouts.put(key, layout);
             }
         }
+
+        return layout;
+    }
+
+
+    private synchronized BaseFont getLayoutFont()
+        throws IOException, DocumentException
+    {
+        if (layoutFont == null)
+        {
+            layoutFont = BaseFont.createFont(BaseFont.HELVETICA, BaseFont.WINANSI, BaseFont.NOT_EMBEDDED);
+        }
+        return layoutFont;
     }
 
     /**
@@ -354,6 +655,15 @@ public class PDFSignatureActionExecuter
      */
     private Rectangle positionSignature(String position, Rectangle pageRect, int width, int height)
     {
+    	String key = position + "|" + pageRect.getWidth() + "x" + pageRect.getHeight() + "|" + width + "x" + height;
+    	synchronized (rectangles)
+    	{
+    		Rectangle cached = rectangles.get(key);
+    		if (cached != null)
+    		{
+    			return new Rectangle(cached);
+    		}
+    	}
 
     	float pageHeight = pageRect.getHeight();
     	float pageWidth = pageRect.getWidth();
@@ -382,6 +692,14 @@ public class PDFSignatureActionExecuter
     				(pageWidth / 2) + (width / 2), (pageHeight / 2) + (height / 2));
     	}
 
+    	if (r != null)
+    	{
+    		synchronized (rectangles)
+    		{
+    			rectangles.put(key, new Rectangle(r));
+    		}
+    	}
+
     	return r;
     }
 }
@@ -19,17 +19,24 @@
 package org.alfresco.extension.pdftoolkit.repo.action.executer;
 
 
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.alfresco.error.AlfrescoRuntimeException;
-import org.alfresco.model.ContentModel;
+import org.alfresco.extension.pdftoolkit.repo.workspace.PDFTempWorkspace;
 import org.alfresco.repo.action.ParameterDefinitionImpl;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport.TxnReadState;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.attributes.AttributeService;
 import org.alfresco.service.cmr.action.Action;
 import org.alfresco.service.cmr.action.ParameterDefinition;
 import org.alfresco.service.cmr.dictionary.DataTypeDefinition;
@@ -38,7 +45,6 @@ import org.alfresco.service.cmr.model.FileInfo;
 import org.alfresco.service.cmr.repository.ContentReader;
 import org.alfresco.service.cmr.repository.ContentWriter;
 import org.alfresco.service.cmr.repository.NodeRef;
-import org.alfresco.util.TempFileProvider;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.pdfbox.exceptions.COSVisitorException;
@@ -70,6 +76,27 @@ public class PDFSplitActionExecuter
     public static final String PARAM_DESTINATION_FOLDER = "destination-folder";
     public static final String PARAM_SPLIT_FREQUENCY    = "split-frequency";
 
+    /**
+     * Attribute key under which committed batches are checkpointed
+     */
+    private static final String CHECKPOINT_KEY          = ".pdftoolkit.split.checkpoint";
+
+    /**
+     * Number of parts created per transaction, 0 to create all parts in the
+     * action's own transaction.  A split run in a transaction creates its batches
+     * once that transaction has committed.
+     */
+    private int                batchSize                = 0;
+
+
+    /**
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
 
     /**
      * Add parameter definitions
@@ -109,9 +136,6 @@ public class PDFSplitActionExecuter
                                  + contentReader + "\n" + "   action: " + this);
                 }
             }
-            
-            //set a noderef as the result
-            ruleAction.setParameterValue(PARAM_RESULT, actionedUponNodeRef);
         }
     }
 
@@ -148,11 +172,14 @@ public class PDFSplitActionExecuter
     {
         PDDocument pdf = null;
         InputStream is = null;
-        File tempDir = null;
-        ContentWriter writer = null;
+        PDFTempWorkspace workspace = null;
+        Map<String, ContentWriter> parts = new LinkedHashMap<String, ContentWriter>();
 
         try
         {
+            // get a private workspace for scratch files
+            workspace = openWorkspace(actionedUponNodeRef, reader);
+
             // Get the split frequency
             int splitFrequency = 0;
 
@@ -165,7 +192,7 @@ public class PDFSplitActionExecuter
             // Get contentReader inputStream
             is = reader.getContentInputStream();
             // stream the document in
-            pdf = PDDocument.load(is);
+            pdf = loadDocument(is, workspace);
             // split the PDF and put the pages in a list
             Splitter splitter = new Splitter();
             // if the default split is not every page, then set it to the right
@@ -177,6 +204,11 @@ public class PDFSplitActionExecuter
             // Split the pages
             List<PDDocument> pdfs = splitter.split(pdf);
 
+            // parts already committed by an earlier, failed run aren't saved again
+            NodeRef destinationFolder = (NodeRef)ruleAction.getParameterValue(PARAM_DESTINATION_FOLDER);
+            boolean batched = isBatched(pdfs.size());
+            int committed = batched ? getCheckpoint(actionedUponNodeRef, destinationFolder, reader, pdfs.size()) : 0;
+
             // Lets get reading to walk the list
             Iterator<PDDocument> it = pdfs.iterator();
 
@@ -184,12 +216,6 @@ public class PDFSplitActionExecuter
             int page = 1;
             int endPage = 0;
 
-            // build a temp dir name based on the ID of the noderef we are
-            // importing
-            File alfTempDir = TempFileProvider.getTempDir();
-            tempDir = new File(alfTempDir.getPath() + File.separatorChar + actionedUponNodeRef.getId());
-            tempDir.mkdir();
-
             while (it.hasNext())
             {
                 // Pulling together the right string split pages
@@ -213,7 +239,8 @@ public class PDFSplitActionExecuter
 
                 // put together the name and save the PDF
                 String fileNameSansExt = getFilenameSansExt(actionedUponNodeRef, FILE_EXTENSION);
-                splitpdf.save(tempDir + "" + File.separatorChar + fileNameSansExt + pg + page + pagePlus + FILE_EXTENSION);
+                parts.put(fileNameSansExt + pg + page + pagePlus + FILE_EXTENSION, 
+                        parts.size() < committed ? null : saveResult(splitpdf, reader));
 
                 // increment page count
                 if (splitFrequency > 0)
@@ -236,33 +263,15 @@ public class PDFSplitActionExecuter
 
             }
 
-            for (File file : tempDir.listFiles())
+            if (batched)
             {
-                try
-                {
-                    if (file.isFile())
-                    {
-
-                        // Get a writer and prep it for putting it back into the
-                        // repo
-                        NodeRef destinationNode = createDestinationNode(file.getName(), 
-                        		(NodeRef)ruleAction.getParameterValue(PARAM_DESTINATION_FOLDER), actionedUponNodeRef);
-                        writer = serviceRegistry.getContentService().getWriter(destinationNode, ContentModel.PROP_CONTENT, true);
-                        
-                        writer.setEncoding(reader.getEncoding()); // original
-                                                                  // encoding
-                        writer.setMimetype(FILE_MIMETYPE);
-
-                        // Put it in the repo
-                        writer.putContent(file);
-
-                        // Clean up
-                        file.delete();
-                    }
-                }
-                catch (FileExistsException e)
+                storePartsAfterCommit(parts, committed, destinationFolder, actionedUponNodeRef, reader);
+            }
+            else
+            {
+                for (Map.Entry<String, ContentWriter> part : parts.entrySet())
                 {
-                    throw new AlfrescoRuntimeException("Failed to process file.", e);
+                    storePart(part.getKey(), part.getValue(), destinationFolder, actionedUponNodeRef);
                 }
             }
         }
@@ -300,10 +309,183 @@ public class PDFSplitActionExecuter
                 }
             }
 
-            if (tempDir != null)
+            if (workspace != null)
+            {
+                workspace.close();
+            }
+        }
+    }
+
+
+    /**
+     * Whether the parts are created in batches, in transactions of their own
+     * 
+     * @param partCount
+     * @return
+     */
+    protected boolean isBatched(int partCount)
+    {
+        return batchSize > 0 && partCount > batchSize;
+    }
+
+
+    /**
+     * Creates the parts in batches once the enclosing transaction has committed, so
+     * that the batches can see the nodes it created and are never run if it rolls
+     * back.  Parts created after commit aren't in the action's result, which has been
+     * returned by then.  A split without an enclosing transaction creates its batches
+     * straight away.
+     * 
+     * @param parts
+     * @param committed the number of parts committed by an earlier run
+     * @param destinationFolder
+     * @param actionedUponNodeRef
+     * @param reader
+     */
+    protected void storePartsAfterCommit(final Map<String, ContentWriter> parts, final int committed, final NodeRef destinationFolder, 
+            final NodeRef actionedUponNodeRef, final ContentReader reader)
+    {
+        if (AlfrescoTransactionSupport.getTransactionReadState() == TxnReadState.TXN_NONE)
+        {
+            storePartsInBatches(parts, committed, destinationFolder, actionedUponNodeRef, reader);
+            return;
+        }
+
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Split of " + actionedUponNodeRef + ": creating " + (parts.size() - committed) + " parts after commit");
+        }
+
+        AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter()
+        {
+            @Override
+            public void afterCommit()
+            {
+                try
+                {
+                    storePartsInBatches(parts, committed, destinationFolder, actionedUponNodeRef, reader);
+                }
+                catch (RuntimeException e)
+                {
+                    // the caller has already committed, running the split again resumes
+                    // after the last committed batch
+                    logger.error("Split of " + actionedUponNodeRef + " stopped after commit: " + e.getMessage(), e);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Gets the number of parts an earlier, failed run against the same content and
+     * destination committed
+     * 
+     * @param actionedUponNodeRef
+     * @param destinationFolder
+     * @param reader
+     * @param partCount
+     * @return
+     */
+    protected int getCheckpoint(NodeRef actionedUponNodeRef, NodeRef destinationFolder, ContentReader reader, int partCount)
+    {
+        Integer checkpoint = (Integer)serviceRegistry.getAttributeService().getAttribute(CHECKPOINT_KEY, 
+                actionedUponNodeRef.getId(), destinationFolder.getId(), reader.getContentUrl());
+        if (checkpoint != null && checkpoint < partCount)
+        {
+            logger.info("Resuming split of " + actionedUponNodeRef + " after " + checkpoint + " of " + partCount + " parts");
+            return checkpoint;
+        }
+        return 0;
+    }
+
+
+    /**
+     * Creates the destination nodes for the split parts batchSize at a time, each batch
+     * in its own transaction.  The number of parts committed so far is checkpointed with
+     * the batch, so if the action is run again after a failure, against the same content
+     * and destination, it resumes after the last committed batch instead of starting over.
+     * The result of a resumed run holds the parts that run created.
+     * 
+     * @param parts
+     * @param committed the number of parts committed by an earlier run, which aren't
+     * saved again
+     * @param destinationFolder
+     * @param actionedUponNodeRef
+     * @param reader
+     */
+    protected void storePartsInBatches(final Map<String, ContentWriter> parts, int committed, final NodeRef destinationFolder, 
+            final NodeRef actionedUponNodeRef, ContentReader reader)
+    {
+        final List<String> names = new ArrayList<String>(parts.keySet());
+        final AttributeService attributeService = serviceRegistry.getAttributeService();
+        RetryingTransactionHelper txnHelper = serviceRegistry.getTransactionService().getRetryingTransactionHelper();
+
+        final String sourceId = actionedUponNodeRef.getId();
+        final String destinationId = destinationFolder.getId();
+        final String contentUrl = reader.getContentUrl();
+
+        while (committed < parts.size())
+        {
+            final int start = committed;
+            final int end = Math.min(start + batchSize, parts.size());
+            final int resultCount = getResultCount();
+
+            txnHelper.doInTransaction(new RetryingTransactionCallback<Void>()
+            {
+                public Void execute()
+                    throws Throwable
+                {
+                    // a retry creates the batch's nodes again
+                    discardResults(resultCount);
+                    for (String name : names.subList(start, end))
+                    {
+                        storePart(name, parts.get(name), destinationFolder, actionedUponNodeRef);
+                    }
+                    attributeService.setAttribute(Integer.valueOf(end), CHECKPOINT_KEY, sourceId, destinationId, contentUrl);
+                    return null;
+                }
+            }, false, true);
+
+            committed = end;
+
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Split of " + actionedUponNodeRef + ": " + committed + " of " + parts.size() + " parts committed");
+            }
+        }
+
+        // every part is in, the checkpoint is no longer needed
+        txnHelper.doInTransaction(new RetryingTransactionCallback<Void>()
+        {
+            public Void execute()
+                throws Throwable
             {
-                tempDir.delete();
+                attributeService.removeAttribute(CHECKPOINT_KEY, sourceId, destinationId, contentUrl);
+                return null;
             }
+        }, false, true);
+    }
+
+
+    /**
+     * Creates the destination node for a single split part and binds its content
+     * 
+     * @param name
+     * @param result
+     * @param destinationFolder
+     * @param actionedUponNodeRef
+     */
+    protected void storePart(String name, ContentWriter result, NodeRef destinationFolder, NodeRef actionedUponNodeRef)
+    {
+        try
+        {
+            // Put it in the repo
+            NodeRef destinationNode = createDestinationNode(name, destinationFolder, actionedUponNodeRef);
+            bindResult(result, destinationNode);
+        }
+        catch (FileExistsException e)
+        {
+            throw new AlfrescoRuntimeException("Failed to process file.", e);
         }
     }
 
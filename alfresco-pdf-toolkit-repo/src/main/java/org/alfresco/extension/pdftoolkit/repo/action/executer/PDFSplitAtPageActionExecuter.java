@@ -19,16 +19,16 @@
 package org.alfresco.extension.pdftoolkit.repo.action.executer;
 
 
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.alfresco.error.AlfrescoRuntimeException;
-import org.alfresco.model.ContentModel;
+import org.alfresco.extension.pdftoolkit.repo.workspace.PDFTempWorkspace;
 import org.alfresco.repo.action.ParameterDefinitionImpl;
 import org.alfresco.service.cmr.action.Action;
 import org.alfresco.service.cmr.action.ParameterDefinition;
@@ -38,7 +38,6 @@ import org.alfresco.service.cmr.model.FileInfo;
 import org.alfresco.service.cmr.repository.ContentReader;
 import org.alfresco.service.cmr.repository.ContentWriter;
 import org.alfresco.service.cmr.repository.NodeRef;
-import org.alfresco.util.TempFileProvider;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.pdfbox.exceptions.COSVisitorException;
@@ -146,11 +145,14 @@ public class PDFSplitAtPageActionExecuter
     {
         PDDocument pdf = null;
         InputStream is = null;
-        File tempDir = null;
-        ContentWriter writer = null;
+        PDFTempWorkspace workspace = null;
+        Map<String, ContentWriter> parts = new LinkedHashMap<String, ContentWriter>();
 
         try
         {
+            // get a private workspace for scratch files
+            workspace = openWorkspace(actionedUponNodeRef, reader);
+
             // Get the split frequency
             int splitFrequency = 0;
 
@@ -167,10 +169,13 @@ public class PDFSplitAtPageActionExecuter
                 }
             }
 
+            // fail fast on a page the document doesn't have
+            checkPageInRange(actionedUponNodeRef, splitFrequency);
+
             // Get contentReader inputStream
             is = reader.getContentInputStream();
             // stream the document in
-            pdf = PDDocument.load(is);
+            pdf = loadDocument(is, workspace);
             // split the PDF and put the pages in a list
             Splitter splitter = new Splitter();
             // Need to adjust the input value to get the split at the right page
@@ -182,12 +187,6 @@ public class PDFSplitAtPageActionExecuter
             // Start page split numbering at
             int page = 1;
 
-            // build a temp dir, name based on the ID of the noderef we are
-            // importing
-            File alfTempDir = TempFileProvider.getTempDir();
-            tempDir = new File(alfTempDir.getPath() + File.separatorChar + actionedUponNodeRef.getId());
-            tempDir.mkdir();
-
             // FLAG: This is ugly.....get the first PDF.
             PDDocument firstPDF = (PDDocument)pdfs.remove(0);
 
@@ -203,7 +202,7 @@ public class PDFSplitAtPageActionExecuter
             }
 
             String fileNameSansExt = getFilenameSansExt(actionedUponNodeRef, FILE_EXTENSION);
-            firstPDF.save(tempDir + "" + File.separatorChar + fileNameSansExt + pg + page + lastPage + FILE_EXTENSION);
+            parts.put(fileNameSansExt + pg + page + lastPage + FILE_EXTENSION, saveResult(firstPDF, reader));
 
             try
             {
@@ -270,30 +269,16 @@ public class PDFSplitAtPageActionExecuter
 
             // This is where we should save the appended PDF
             // put together the name and save the PDF
-            secondPDF.save(tempDir + "" + File.separatorChar + fileNameSansExt + pg + splitFrequency + lastPage + FILE_EXTENSION);
+            parts.put(fileNameSansExt + pg + splitFrequency + lastPage + FILE_EXTENSION, saveResult(secondPDF, reader));
 
-            for (File file : tempDir.listFiles())
+            for (Map.Entry<String, ContentWriter> part : parts.entrySet())
             {
                 try
                 {
-                    if (file.isFile())
-                    {
-                        // Get a writer and prep it for putting it back into the
-                        // repo
-                        NodeRef destinationNode = createDestinationNode(file.getName(), 
-                        		(NodeRef)ruleAction.getParameterValue(PARAM_DESTINATION_FOLDER), actionedUponNodeRef);
-                        writer = serviceRegistry.getContentService().getWriter(destinationNode, ContentModel.PROP_CONTENT, true);
-
-                        writer.setEncoding(reader.getEncoding()); // original
-                                                                  // encoding
-                        writer.setMimetype(FILE_MIMETYPE);
-
-                        // Put it in the repo
-                        writer.putContent(file);
-
-                        // Clean up
-                        file.delete();
-                    }
+                    // Put it in the repo
+                    NodeRef destinationNode = createDestinationNode(part.getKey(), 
+                    		(NodeRef)ruleAction.getParameterValue(PARAM_DESTINATION_FOLDER), actionedUponNodeRef);
+                    bindResult(part.getValue(), destinationNode);
                 }
                 catch (FileExistsException e)
                 {
@@ -335,9 +320,9 @@ public class PDFSplitAtPageActionExecuter
                 }
             }
 
-            if (tempDir != null)
+            if (workspace != null)
             {
-                tempDir.delete();
+                workspace.close();
             }
         }
     }
@@ -0,0 +1,416 @@
+/*
+ * Copyright 2008-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.extension.pdftoolkit.repo.action.executer;
+
+
+import java.io.File;
+import java.io.Serializable;
+import java.security.Provider;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.extension.pdftoolkit.model.PDFToolkitModel;
+import org.alfresco.extension.pdftoolkit.repo.admission.PDFAdmissionController;
+import org.alfresco.extension.pdftoolkit.repo.signature.CertificateVerifier;
+import org.alfresco.extension.pdftoolkit.repo.workspace.PDFTempWorkspace;
+import org.alfresco.repo.action.ParameterDefinitionImpl;
+import org.alfresco.service.cmr.action.Action;
+import org.alfresco.service.cmr.action.ParameterDefinition;
+import org.alfresco.service.cmr.dictionary.DataTypeDefinition;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.itextpdf.text.pdf.AcroFields;
+import com.itextpdf.text.pdf.PdfPKCS7;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.RandomAccessFileOrArray;
+
+
+/**
+ * Verifies the signatures of PDF documents, and records the outcome on the pdft:signed
+ * aspect along with the content it was verified against, so a document is only
+ * verified again once its content changes.  Documents are opened from a file without
+ * being loaded, so the signed byte ranges are digested as they are read from disk,
+ * and a batch of documents is verified in parallel on the shared worker pool.
+ */
+public class PDFVerifySignatureActionExecuter
+    extends BasePDFActionExecuter
+{
+    /**
+     * The logger
+     */
+    private static Log          logger                 = LogFactory.getLog(PDFVerifySignatureActionExecuter.class);
+
+    /**
+     * Action constants
+     */
+    public static final String  NAME                   = "pdf-verify-signature";
+    public static final String  PARAM_VERIFY_DOCUMENTS = "verify-documents";
+
+    private static final String BOUNCY_CASTLE          = "BC";
+
+    private CertificateVerifier certificateVerifier;
+    private ExecutorService     executor;
+    private int                 documentsInFlight      = 4;
+
+
+    public void setCertificateVerifier(CertificateVerifier certificateVerifier)
+    {
+        this.certificateVerifier = certificateVerifier;
+    }
+
+
+    /**
+     * Sets the shared pool the documents are verified on
+     *
+     * @param executor
+     */
+    public void setExecutor(ExecutorService executor)
+    {
+        this.executor = executor;
+    }
+
+
+    /**
+     * Sets how many documents are copied out and verifying ahead of the one being
+     * recorded, which bounds the workspaces open at once
+     *
+     * @param documentsInFlight
+     */
+    public void setDocumentsInFlight(int documentsInFlight)
+    {
+        this.documentsInFlight = documentsInFlight;
+    }
+
+
+    /**
+     * Registers the BouncyCastle provider if the JVM doesn't have it.  iText digests the
+     * signed byte ranges by names such as SHA256, which on Java 6 only BouncyCastle
+     * knows, so without it SHA-2 signatures can't be verified.
+     */
+    @Override
+    public void init()
+    {
+        super.init();
+
+        if (Security.getProvider(BOUNCY_CASTLE) == null)
+        {
+            try
+            {
+                Security.addProvider((Provider)Class.forName("org.bouncycastle.jce.provider.BouncyCastleProvider").newInstance());
+            }
+            catch (Exception e)
+            {
+                logger.warn("Unable to register the BouncyCastle provider, SHA-2 signatures won't verify: " + e.getMessage());
+            }
+        }
+    }
+
+
+    /**
+     * Each document is admitted by the thread that verifies it
+     */
+    @Override
+    protected boolean admitsPerDocument()
+    {
+        return true;
+    }
+
+
+    /**
+     * Add parameter definitions
+     */
+    @Override
+    protected void addParameterDefinitions(List<ParameterDefinition> paramList)
+    {
+        paramList.add(new ParameterDefinitionImpl(PARAM_VERIFY_DOCUMENTS, DataTypeDefinition.NODE_REF, false, getParamDisplayLabel(PARAM_VERIFY_DOCUMENTS), true));
+    }
+
+
+    /**
+     * @see org.alfresco.repo.action.executer.ActionExecuterAbstractBase#executeImpl(org.alfresco.service.cmr.action.Action,
+     * org.alfresco.service.cmr.repository.NodeRef)
+     */
+    @Override
+    protected void executeImpl(Action ruleAction, NodeRef actionedUponNodeRef)
+    {
+        NodeService nodeService = serviceRegistry.getNodeService();
+        if (nodeService.exists(actionedUponNodeRef) == false)
+        {
+            // node doesn't exist - can't do anything
+            return;
+        }
+
+        // only documents whose content has changed since they were last verified
+        List<NodeRef> documents = new ArrayList<NodeRef>();
+        for (NodeRef document : getDocuments(ruleAction, actionedUponNodeRef))
+        {
+            ContentReader reader = getReader(document);
+            if (reader != null && FILE_MIMETYPE.equals(reader.getMimetype()) && !isVerified(document, reader))
+            {
+                documents.add(document);
+            }
+        }
+        if (documents.isEmpty())
+        {
+            return;
+        }
+
+        // verify the documents in parallel, resolving their content here, as the
+        // verifying threads can't see the caller's transaction.  Only a window of
+        // documents is in flight, so a large batch doesn't copy out every document
+        // before the first one is recorded.
+        int window = Math.max(1, documentsInFlight);
+        List<PDFTempWorkspace> workspaces = new ArrayList<PDFTempWorkspace>(documents.size());
+        List<Future<Verification>> results = new ArrayList<Future<Verification>>(documents.size());
+
+        try
+        {
+            for (int i = 0; i < documents.size(); i++)
+            {
+                while (results.size() < documents.size() && results.size() < i + window)
+                {
+                    results.add(submitDocument(documents.get(results.size()), workspaces));
+                }
+
+                // record the results in the action's own transaction
+                recordVerification(documents.get(i), results.get(i).get());
+                workspaces.get(i).close();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new AlfrescoRuntimeException(e.getMessage(), e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new AlfrescoRuntimeException(e.getCause().getMessage(), e.getCause());
+        }
+        finally
+        {
+            for (Future<Verification> result : results)
+            {
+                result.cancel(true);
+            }
+            for (PDFTempWorkspace workspace : workspaces)
+            {
+                workspace.close();
+            }
+        }
+
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Verified the signatures of " + documents.size() + " documents");
+        }
+    }
+
+
+    /**
+     * Gets the documents to verify, the verify-documents parameter if it is set,
+     * otherwise the actioned upon document
+     *
+     * @param ruleAction
+     * @param actionedUponNodeRef
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    protected List<NodeRef> getDocuments(Action ruleAction, NodeRef actionedUponNodeRef)
+    {
+        Serializable documents = ruleAction.getParameterValue(PARAM_VERIFY_DOCUMENTS);
+        if (documents instanceof List)
+        {
+            return new ArrayList<NodeRef>((List<NodeRef>)documents);
+        }
+        else if (documents instanceof NodeRef)
+        {
+            return Collections.singletonList((NodeRef)documents);
+        }
+        return Collections.singletonList(actionedUponNodeRef);
+    }
+
+
+    /**
+     * @param nodeRef
+     * @param reader
+     * @return true if the document's current content has been verified already
+     */
+    private boolean isVerified(NodeRef nodeRef, ContentReader reader)
+    {
+        Serializable verifiedContent = serviceRegistry.getNodeService().getProperty(nodeRef, PDFToolkitModel.PROP_VERIFIED_CONTENT);
+        return verifiedContent != null && verifiedContent.equals(reader.getContentUrl());
+    }
+
+
+    /**
+     * Resolves a document's content and hands it to the pool to be verified
+     *
+     * @param document
+     * @param workspaces receives the document's workspace, to be closed by the caller
+     * @return the outcome, once the document has been verified
+     */
+    private Future<Verification> submitDocument(NodeRef document, List<PDFTempWorkspace> workspaces)
+    {
+        ContentReader contentReader = getReader(document);
+        PDFTempWorkspace workspace = openWorkspace(document, contentReader);
+        workspaces.add(workspace);
+
+        // read from a file, so the signed bytes are streamed rather than loaded
+        final File file = getContentFile(contentReader, workspace);
+        final long size = contentReader.getSize();
+        final int pageCount = getPageCount(document);
+        final String contentUrl = contentReader.getContentUrl();
+
+        return executor.submit(new Callable<Verification>()
+        {
+            public Verification call() throws Exception
+            {
+                return verifyDocument(file, size, pageCount, contentUrl);
+            }
+        });
+    }
+
+
+    /**
+     * Verifies every signature in a document, without using the repository
+     *
+     * @param file the document's content
+     * @param size the size of the content
+     * @param pageCount the document's page count, or UNKNOWN_PAGE_COUNT
+     * @param contentUrl the content the outcome is recorded against
+     * @return
+     */
+    private Verification verifyDocument(File file, long size, int pageCount, String contentUrl)
+    {
+        PDFAdmissionController.Ticket ticket = admitDocument(NAME, size, pageCount);
+        PdfReader reader = null;
+
+        try
+        {
+            reader = new PdfReader(new RandomAccessFileOrArray(file.getPath()), null);
+
+            AcroFields fields = reader.getAcroFields();
+            List<String> names = fields.getSignatureNames();
+            if (names.isEmpty())
+            {
+                return new Verification(contentUrl, false, false, "no signatures");
+            }
+
+            boolean verified = true;
+            StringBuilder result = new StringBuilder();
+            for (String name : names)
+            {
+                PdfPKCS7 pkcs7 = fields.verifySignature(name);
+                String failure = null;
+                if (!pkcs7.verify())
+                {
+                    failure = "document modified";
+                }
+                else if (name.equals(names.get(names.size() - 1)) && !fields.signatureCoversWholeDocument(name))
+                {
+                    failure = "document changed after the last signature";
+                }
+                else
+                {
+                    failure = certificateVerifier.verify(pkcs7.getSignCertificateChain(), pkcs7.getSignDate());
+                }
+
+                verified = verified && failure == null;
+                result.append(result.length() > 0 ? "; " : "").append(name).append(": ")
+                      .append(failure != null ? failure : "valid, signed by " + PdfPKCS7.getSubjectFields(pkcs7.getSigningCertificate()).getField("CN"));
+            }
+
+            return new Verification(contentUrl, true, verified, result.toString());
+        }
+        catch (Exception e)
+        {
+            // a document that can't be read can't be trusted either
+            return new Verification(contentUrl, true, false, "could not verify: " + e.getMessage());
+        }
+        finally
+        {
+            if (reader != null)
+            {
+                reader.close();
+            }
+
+            releaseDocument(ticket);
+        }
+    }
+
+
+    /**
+     * Records the outcome on the pdft:signed aspect.  Documents with no signatures are
+     * left as they are.
+     *
+     * @param document
+     * @param verification
+     */
+    private void recordVerification(NodeRef document, Verification verification)
+    {
+        if (!verification.signed)
+        {
+            return;
+        }
+
+        NodeService nodeService = serviceRegistry.getNodeService();
+        if (!nodeService.hasAspect(document, PDFToolkitModel.ASPECT_SIGNED))
+        {
+            nodeService.addAspect(document, PDFToolkitModel.ASPECT_SIGNED, new HashMap<QName, Serializable>());
+        }
+        nodeService.setProperty(document, PDFToolkitModel.PROP_VERIFIED, verification.verified);
+        nodeService.setProperty(document, PDFToolkitModel.PROP_VERIFICATION_RESULT, verification.result);
+        nodeService.setProperty(document, PDFToolkitModel.PROP_VERIFICATION_DATE, new Date());
+        nodeService.setProperty(document, PDFToolkitModel.PROP_VERIFIED_CONTENT, verification.contentUrl);
+    }
+
+
+    /**
+     * The outcome of verifying one document
+     */
+    private static class Verification
+    {
+        private final String  contentUrl;
+        private final boolean signed;
+        private final boolean verified;
+        private final String  result;
+
+
+        private Verification(String contentUrl, boolean signed, boolean verified, String result)
+        {
+            this.contentUrl = contentUrl;
+            this.signed = signed;
+            this.verified = verified;
+            this.result = result;
+        }
+    }
+}
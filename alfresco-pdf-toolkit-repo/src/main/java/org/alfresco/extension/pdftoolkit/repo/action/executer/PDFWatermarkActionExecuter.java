@@ -19,32 +19,28 @@
 package org.alfresco.extension.pdftoolkit.repo.action.executer;
 
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.StringWriter;
-import java.util.Date;
+import java.io.OutputStream;
+import java.io.Serializable;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
 import java.util.Vector;
 
-import javax.imageio.ImageIO;
 
 import org.alfresco.error.AlfrescoRuntimeException;
 import org.alfresco.extension.pdftoolkit.constraints.MapConstraint;
-import org.alfresco.model.ContentModel;
+import org.alfresco.extension.pdftoolkit.repo.admission.PDFAdmissionController;
+import org.alfresco.extension.pdftoolkit.repo.template.WatermarkTemplateProcessor;
+import org.alfresco.extension.pdftoolkit.repo.workspace.PDFTempWorkspace;
 import org.alfresco.repo.action.ParameterDefinitionImpl;
-import org.alfresco.repo.template.FreeMarkerProcessor;
-import org.alfresco.repo.template.TemplateNode;
 import org.alfresco.service.cmr.action.Action;
 import org.alfresco.service.cmr.action.ParameterDefinition;
 import org.alfresco.service.cmr.dictionary.DataTypeDefinition;
 import org.alfresco.service.cmr.repository.ContentReader;
 import org.alfresco.service.cmr.repository.ContentWriter;
 import org.alfresco.service.cmr.repository.NodeRef;
-import org.alfresco.util.TempFileProvider;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -55,6 +51,8 @@ import com.itextpdf.text.pdf.BaseFont;
 import com.itextpdf.text.pdf.PdfContentByte;
 import com.itextpdf.text.pdf.PdfReader;
 import com.itextpdf.text.pdf.PdfStamper;
+import com.itextpdf.text.pdf.PdfTemplate;
+import com.itextpdf.text.pdf.RandomAccessFileOrArray;
 
 
 public class PDFWatermarkActionExecuter
@@ -70,6 +68,7 @@ public class PDFWatermarkActionExecuter
     public static HashMap<String, String> depthConstraint          = new HashMap<String, String>();
     public static HashMap<String, String> typeConstraint           = new HashMap<String, String>();
     public static HashMap<String, String> fontSizeConstraint       = new HashMap<String, String>();
+    public static HashMap<String, String> layoutConstraint         = new HashMap<String, String>();
 
     /**
      * Action constants
@@ -83,10 +82,14 @@ public class PDFWatermarkActionExecuter
     public static final String            PARAM_WATERMARK_TEXT     = "watermark-text";
     public static final String            PARAM_WATERMARK_FONT     = "watermark-font";
     public static final String            PARAM_WATERMARK_SIZE     = "watermark-size";
+    public static final String            PARAM_BATES_START        = "watermark-bates-start";
+    public static final String            PARAM_BATES_PREFIX       = "watermark-bates-prefix";
+    public static final String            PARAM_WATERMARK_LAYOUT   = "watermark-layout";
+    public static final String            PARAM_WATERMARK_ROTATION = "watermark-rotation";
 
     private static final String           FILE_MIMETYPE            = "application/pdf";
 
-    private FreeMarkerProcessor           freemarkerProcessor;
+    private WatermarkTemplateProcessor    templateProcessor;
 
     /**
      * Position and page constants
@@ -97,17 +100,23 @@ public class PDFWatermarkActionExecuter
     public static final String            TYPE_IMAGE               = "image";
     public static final String            TYPE_TEXT                = "text";
 
+    public static final String            LAYOUT_SINGLE            = "single";
+    public static final String            LAYOUT_TILED             = "tiled";
+    public static final String            LAYOUT_DIAGONAL          = "diagonal";
+
     public static final String            FONT_OPTION_HELVETICA    = BaseFont.HELVETICA;
     public static final String            FONT_OPTION_COURIER      = BaseFont.COURIER;
     public static final String            FONT_OPTION_TIMES_ROMAN  = BaseFont.TIMES_ROMAN;
 
-    private static final float            PAD                      = 15;
+    private boolean                       textAsXObject            = true;
+
+    private int                           batesDigits              = 6;
 
 
     public PDFWatermarkActionExecuter()
     {
 
-        freemarkerProcessor = new FreeMarkerProcessor();
+        templateProcessor = new WatermarkTemplateProcessor();
     }
 
 
@@ -140,6 +149,49 @@ public class PDFWatermarkActionExecuter
     }
 
 
+    public void setLayoutConstraint(MapConstraint mc)
+    {
+        layoutConstraint.putAll(mc.getAllowableValues());
+    }
+
+
+    /**
+     * Sets whether a text watermark is laid out once, as a form XObject that every
+     * stamped page references, or written out as text operators on every page
+     * 
+     * @param textAsXObject
+     */
+    public void setTextAsXObject(boolean textAsXObject)
+    {
+        this.textAsXObject = textAsXObject;
+    }
+
+
+    /**
+     * Sets the minimum number of digits of a ${bates} number, shorter numbers are
+     * padded with zeroes
+     * 
+     * @param batesDigits
+     */
+    public void setBatesDigits(int batesDigits)
+    {
+        this.batesDigits = batesDigits;
+    }
+
+
+    /**
+     * @see org.alfresco.extension.pdftoolkit.repo.action.executer.BasePDFStampActionExecuter#compileStampPlan(java.util.Map)
+     */
+    @Override
+    protected StampPlan compileStampPlan(Map<String, Serializable> parameters)
+    {
+        return new StampPlan(parameters, (String)parameters.get(PARAM_POSITION), (String)parameters.get(PARAM_WATERMARK_PAGES),
+                (String)parameters.get(PARAM_WATERMARK_DEPTH), (String)parameters.get(PARAM_WATERMARK_FONT),
+                (String)parameters.get(PARAM_WATERMARK_SIZE), (String)parameters.get(PARAM_WATERMARK_LAYOUT),
+                (String)parameters.get(PARAM_WATERMARK_ROTATION));
+    }
+
+
     /**
      * Add parameter definitions
      */
@@ -155,6 +207,10 @@ public class PDFWatermarkActionExecuter
         paramList.add(new ParameterDefinitionImpl(PARAM_WATERMARK_FONT, DataTypeDefinition.TEXT, false, getParamDisplayLabel(PARAM_WATERMARK_FONT), false, "pdfc-font"));
         paramList.add(new ParameterDefinitionImpl(PARAM_WATERMARK_SIZE, DataTypeDefinition.TEXT, false, getParamDisplayLabel(PARAM_WATERMARK_SIZE), false, "pdfc-fontsize"));
         paramList.add(new ParameterDefinitionImpl(PARAM_WATERMARK_TYPE, DataTypeDefinition.TEXT, true, getParamDisplayLabel(PARAM_WATERMARK_TYPE), false, "pdfc-watermarktype"));
+        paramList.add(new ParameterDefinitionImpl(PARAM_BATES_START, DataTypeDefinition.INT, false, getParamDisplayLabel(PARAM_BATES_START)));
+        paramList.add(new ParameterDefinitionImpl(PARAM_BATES_PREFIX, DataTypeDefinition.TEXT, false, getParamDisplayLabel(PARAM_BATES_PREFIX)));
+        paramList.add(new ParameterDefinitionImpl(PARAM_WATERMARK_LAYOUT, DataTypeDefinition.TEXT, false, getParamDisplayLabel(PARAM_WATERMARK_LAYOUT), false, "pdfc-layout"));
+        paramList.add(new ParameterDefinitionImpl(PARAM_WATERMARK_ROTATION, DataTypeDefinition.TEXT, false, getParamDisplayLabel(PARAM_WATERMARK_ROTATION)));
         super.addParameterDefinitions(paramList);
     }
 
@@ -234,6 +290,10 @@ public class PDFWatermarkActionExecuter
 
                 options.put(PARAM_WATERMARK_SIZE, ruleAction.getParameterValue(PARAM_WATERMARK_SIZE));
 
+                options.put(PARAM_BATES_START, ruleAction.getParameterValue(PARAM_BATES_START));
+
+                options.put(PARAM_BATES_PREFIX, ruleAction.getParameterValue(PARAM_BATES_PREFIX));
+
                 this.textAction(ruleAction, actionedUponNodeRef, actionedUponContentReader, options);
             }
         }
@@ -257,99 +317,30 @@ public class PDFWatermarkActionExecuter
     {
 
         PdfStamper stamp = null;
-        File tempDir = null;
+        PDFTempWorkspace workspace = null;
         ContentWriter writer = null;
 
         try
         {
-            // get a temp file to stash the watermarked PDF in before moving to
-            // repo
-            File alfTempDir = TempFileProvider.getTempDir();
-            tempDir = new File(alfTempDir.getPath() + File.separatorChar + actionedUponNodeRef.getId());
-            tempDir.mkdir();
-            File file = new File(tempDir, serviceRegistry.getFileFolderService().getFileInfo(actionedUponNodeRef).getName());
+            // get a workspace for scratch files and a writer to stash the
+            // watermarked PDF in before binding it to the destination
+            workspace = openWorkspace(actionedUponNodeRef, actionedUponContentReader);
+            String fileName = serviceRegistry.getFileFolderService().getFileInfo(actionedUponNodeRef).getName();
+            writer = getResultWriter(actionedUponContentReader);
 
             // get the PDF input stream and create a reader for iText
-            PdfReader reader = new PdfReader(actionedUponContentReader.getContentInputStream());
-            stamp = new PdfStamper(reader, new FileOutputStream(file));
-            PdfContentByte pcb;
-
-            // get a com.itextpdf.text.Image object via java.imageio.ImageIO
-            Image img = Image.getInstance(ImageIO.read(watermarkContentReader.getContentInputStream()), null);
-
-            // get the PDF pages and position
-            String pages = (String)options.get(PARAM_WATERMARK_PAGES);
-            String position = (String)options.get(PARAM_POSITION);
-            String depth = (String)options.get(PARAM_WATERMARK_DEPTH);
-
-            // image requires absolute positioning or an exception will be
-            // thrown
-            // set image position according to parameter. Use
-            // PdfReader.getPageSizeWithRotation
-            // to get the canvas size for alignment.
-            img.setAbsolutePosition(100f, 100f);
-
-            // stamp each page
-            int numpages = reader.getNumberOfPages();
-            for (int i = 1; i <= numpages; i++)
-            {
-                Rectangle r = reader.getPageSizeWithRotation(i);
-                // set stamp position
-                if (position.equals(POSITION_BOTTOMLEFT))
-                {
-                    img.setAbsolutePosition(0, 0);
-                }
-                else if (position.equals(POSITION_BOTTOMRIGHT))
-                {
-                    img.setAbsolutePosition(r.getWidth() - img.getWidth(), 0);
-                }
-                else if (position.equals(POSITION_TOPLEFT))
-                {
-                    img.setAbsolutePosition(0, r.getHeight() - img.getHeight());
-                }
-                else if (position.equals(POSITION_TOPRIGHT))
-                {
-                    img.setAbsolutePosition(r.getWidth() - img.getWidth(), r.getHeight() - img.getHeight());
-                }
-                else if (position.equals(POSITION_CENTER))
-                {
-                    img.setAbsolutePosition(getCenterX(r, img), getCenterY(r, img));
-                }
+            PdfReader reader = getPdfReader(actionedUponContentReader, workspace);
+            stamp = new PdfStamper(reader, writer.getContentOutputStream());
 
-                // if this is an under-text stamp, use getUnderContent.
-                // if this is an over-text stamp, usse getOverContent.
-                if (depth.equals(DEPTH_OVER))
-                {
-                    pcb = stamp.getOverContent(i);
-                }
-                else
-                {
-                    pcb = stamp.getUnderContent(i);
-                }
-
-                // only apply stamp to requested pages
-                if (checkPage(pages, i, numpages))
-                {
-                    pcb.addImage(img);
-                }
-            }
+            // stamp the image, decoded once for all the runs of the action
+            stampImage(stamp, reader, getStampPlan(ruleAction), getImage(watermarkNodeRef, watermarkContentReader));
 
             stamp.close();
             
-            // Get a writer and prep it for putting it back into the repo
-            //can't use BasePDFActionExecuter.getWriter here need the nodeRef of the destination
-            NodeRef destinationNode = createDestinationNode(file.getName(), 
+            // Create the destination and put the result in the repo
+            NodeRef destinationNode = createDestinationNode(fileName, 
             		(NodeRef)ruleAction.getParameterValue(PARAM_DESTINATION_FOLDER), actionedUponNodeRef);
-            writer = serviceRegistry.getContentService().getWriter(destinationNode, ContentModel.PROP_CONTENT, true);
-            
-            writer.setEncoding(actionedUponContentReader.getEncoding());
-            writer.setMimetype(FILE_MIMETYPE);
-
-            // Put it in the repo
-            writer.putContent(file);
-
-            // delete the temp file
-            file.delete();
+            bindResult(writer, destinationNode);
         }
         catch (IOException e)
         {
@@ -361,11 +352,11 @@ public class PDFWatermarkActionExecuter
         }
         finally
         {
-            if (tempDir != null)
+            if (stamp != null)
             {
                 try
                 {
-                    tempDir.delete();
+                    stamp.close();
                 }
                 catch (Exception ex)
                 {
@@ -373,16 +364,9 @@ public class PDFWatermarkActionExecuter
                 }
             }
 
-            if (stamp != null)
+            if (workspace != null)
             {
-                try
-                {
-                    stamp.close();
-                }
-                catch (Exception ex)
-                {
-                    throw new AlfrescoRuntimeException(ex.getMessage(), ex);
-                }
+                workspace.close();
             }
         }
     }
@@ -401,93 +385,35 @@ public class PDFWatermarkActionExecuter
     {
 
         PdfStamper stamp = null;
-        File tempDir = null;
+        PDFTempWorkspace workspace = null;
         ContentWriter writer = null;
-        String watermarkText;
-        StringTokenizer st;
-        Vector<String> tokens = new Vector<String>();
 
         try
         {
-            // get a temp file to stash the watermarked PDF in before moving to
-            // repo
-            File alfTempDir = TempFileProvider.getTempDir();
-            tempDir = new File(alfTempDir.getPath() + File.separatorChar + actionedUponNodeRef.getId());
-            tempDir.mkdir();
-            File file = new File(tempDir, serviceRegistry.getFileFolderService().getFileInfo(actionedUponNodeRef).getName());
+            // get a workspace for scratch files and a writer to stash the
+            // watermarked PDF in before binding it to the destination
+            workspace = openWorkspace(actionedUponNodeRef, actionedUponContentReader);
+            String fileName = serviceRegistry.getFileFolderService().getFileInfo(actionedUponNodeRef).getName();
+            writer = getResultWriter(actionedUponContentReader);
 
             // get the PDF input stream and create a reader for iText
-            PdfReader reader = new PdfReader(actionedUponContentReader.getContentInputStream());
-            stamp = new PdfStamper(reader, new FileOutputStream(file));
-            PdfContentByte pcb;
-
-            // get the PDF pages and position
-            String pages = (String)options.get(PARAM_WATERMARK_PAGES);
-            String position = (String)options.get(PARAM_POSITION);
-            String depth = (String)options.get(PARAM_WATERMARK_DEPTH);
-
-            // create the base font for the text stamp
-            BaseFont bf = BaseFont.createFont((String)options.get(PARAM_WATERMARK_FONT), BaseFont.CP1250, BaseFont.EMBEDDED);
-
+            PdfReader reader = getPdfReader(actionedUponContentReader, workspace);
+            stamp = new PdfStamper(reader, writer.getContentOutputStream());
 
-            // get watermark text and process template with model
+            // get watermark text and process template with model, static text
+            // is used as is
             String templateText = (String)options.get(PARAM_WATERMARK_TEXT);
-            Map<String, Object> model = buildWatermarkTemplateModel(actionedUponNodeRef);
-            StringWriter watermarkWriter = new StringWriter();
-            freemarkerProcessor.processString(templateText, model, watermarkWriter);
-            watermarkText = watermarkWriter.getBuffer().toString();
-
-            // tokenize watermark text to support multiple lines and copy tokens
-            // to vector for re-use
-            st = new StringTokenizer(watermarkText, "\r\n", false);
-            while (st.hasMoreTokens())
-            {
-                tokens.add(st.nextToken());
-            }
+            String watermarkText = templateProcessor.process(templateText, actionedUponNodeRef, serviceRegistry);
 
-            // stamp each page
-            int numpages = reader.getNumberOfPages();
-            for (int i = 1; i <= numpages; i++)
-            {
-                Rectangle r = reader.getPageSizeWithRotation(i);
-
-                // if this is an under-text stamp, use getUnderContent.
-                // if this is an over-text stamp, use getOverContent.
-                if (depth.equals(DEPTH_OVER))
-                {
-                    pcb = stamp.getOverContent(i);
-                }
-                else
-                {
-                    pcb = stamp.getUnderContent(i);
-                }
-
-                // set the font and size
-                float size = Float.parseFloat((String)options.get(PARAM_WATERMARK_SIZE));
-                pcb.setFontAndSize(bf, size);
-
-                // only apply stamp to requested pages
-                if (checkPage(pages, i, numpages))
-                {
-                    writeAlignedText(pcb, r, tokens, size, position);
-                }
-            }
+            stampText(stamp, reader, getStampPlan(ruleAction), watermarkText, (String)options.get(PARAM_BATES_PREFIX),
+                    getBatesStart(options.get(PARAM_BATES_START)));
 
             stamp.close();
 
-            // Get a writer and prep it for putting it back into the repo
-            //can't use BasePDFActionExecuter.getWriter here need the nodeRef of the destination
-            NodeRef destinationNode = createDestinationNode(file.getName(), 
+            // Create the destination and put the result in the repo
+            NodeRef destinationNode = createDestinationNode(fileName, 
             		(NodeRef)ruleAction.getParameterValue(PARAM_DESTINATION_FOLDER), actionedUponNodeRef);
-            writer = serviceRegistry.getContentService().getWriter(destinationNode, ContentModel.PROP_CONTENT, true);
-            writer.setEncoding(actionedUponContentReader.getEncoding());
-            writer.setMimetype(FILE_MIMETYPE);
-
-            // Put it in the repo
-            writer.putContent(file);
-
-            // delete the temp file
-            file.delete();
+            bindResult(writer, destinationNode);
         }
         catch (IOException e)
         {
@@ -499,11 +425,11 @@ public class PDFWatermarkActionExecuter
         }
         finally
         {
-            if (tempDir != null)
+            if (stamp != null)
             {
                 try
                 {
-                    tempDir.delete();
+                    stamp.close();
                 }
                 catch (Exception ex)
                 {
@@ -511,6 +437,82 @@ public class PDFWatermarkActionExecuter
                 }
             }
 
+            if (workspace != null)
+            {
+                workspace.close();
+            }
+        }
+    }
+
+
+    /**
+     * Writes a watermarked copy of a document to a stream, without storing it.  The
+     * watermark parameters are compiled once per configuration.
+     * <p>
+     * Unless rewrite is set, the watermark is appended to the original as an incremental
+     * update, so the original bytes are copied through unchanged and no temp file is
+     * written.  The original, unwatermarked revision is then still in the file, and can
+     * be recovered by cutting the file at its end, so watermarks that trace who a copy
+     * was given to must be rewritten.
+     * <p>
+     * Each download is admitted like an action, and the original is read from a file,
+     * the content store's own or a copy in a workspace, so it is never loaded.
+     * 
+     * @param configuration the name the compiled parameters are cached under
+     * @param parameters the watermark parameters, as for the action
+     * @param nodeRef
+     * @param out
+     * @param rewrite true to write the document out in full, leaving no unwatermarked
+     * revision behind
+     */
+    public void writeWatermarked(String configuration, Map<String, Serializable> parameters, NodeRef nodeRef, OutputStream out, 
+            boolean rewrite)
+    {
+        ContentReader contentReader = getReader(nodeRef);
+        if (contentReader == null || !contentReader.exists())
+        {
+            throw new AlfrescoRuntimeException("Document " + nodeRef + " has no content to watermark");
+        }
+
+        PDFAdmissionController.Ticket ticket = admitDocument(NAME, nodeRef, contentReader);
+        PDFTempWorkspace workspace = null;
+        PdfReader reader = null;
+        PdfStamper stamp = null;
+
+        try
+        {
+            workspace = openWorkspace(nodeRef, contentReader);
+            reader = new PdfReader(new RandomAccessFileOrArray(getContentFile(contentReader, workspace).getPath()), null);
+
+            stamp = rewrite ? new PdfStamper(reader, out) : new PdfStamper(reader, out, '\0', true);
+            stamp.getWriter().setCloseStream(false);
+
+            StampPlan plan = getStampPlan(configuration, parameters);
+            if (TYPE_IMAGE.equals(parameters.get(PARAM_WATERMARK_TYPE)))
+            {
+                NodeRef watermarkNodeRef = (NodeRef)parameters.get(PARAM_WATERMARK_IMAGE);
+                stampImage(stamp, reader, plan, getImage(watermarkNodeRef, getReader(watermarkNodeRef)));
+            }
+            else
+            {
+                String watermarkText = templateProcessor.process((String)parameters.get(PARAM_WATERMARK_TEXT), nodeRef, serviceRegistry);
+                stampText(stamp, reader, plan, watermarkText, (String)parameters.get(PARAM_BATES_PREFIX),
+                        getBatesStart(parameters.get(PARAM_BATES_START)));
+            }
+
+            stamp.close();
+            stamp = null;
+        }
+        catch (IOException e)
+        {
+            throw new AlfrescoRuntimeException(e.getMessage(), e);
+        }
+        catch (DocumentException e)
+        {
+            throw new AlfrescoRuntimeException(e.getMessage(), e);
+        }
+        finally
+        {
             if (stamp != null)
             {
                 try
@@ -519,71 +521,248 @@ public class PDFWatermarkActionExecuter
                 }
                 catch (Exception ex)
                 {
-                    throw new AlfrescoRuntimeException(ex.getMessage(), ex);
+                    logger.warn("Could not close the stamper for " + nodeRef + ": " + ex.getMessage());
                 }
             }
+
+            if (reader != null)
+            {
+                reader.close();
+            }
+
+            if (workspace != null)
+            {
+                workspace.close();
+            }
+
+            releaseDocument(ticket);
         }
     }
 
 
     /**
-     * Writes text watermark to one of the 5 preconfigured locations
+     * Stamps an image watermark on the requested pages.  The image is placed with its own
+     * transformation on each page rather than by moving it, so that a cached image can
+     * be stamped by several threads at once.
      * 
-     * @param pcb
-     * @param r
-     * @param tokens
-     * @param size
-     * @param position
+     * @param stamp
+     * @param reader
+     * @param plan
+     * @param img
+     * @throws DocumentException
      */
-    private void writeAlignedText(PdfContentByte pcb, Rectangle r, Vector<String> tokens, float size, String position)
+    private void stampImage(PdfStamper stamp, PdfReader reader, StampPlan plan, Image img) throws DocumentException
     {
-        // get the dimensions of our 'rectangle' for text
-        float height = size * tokens.size();
-        float width = 0;
-        float centerX = 0, startY = 0;
-        for (int i = 0; i < tokens.size(); i++)
+        PdfContentByte pcb;
+        boolean over = plan.getDepth() == StampPlan.Depth.OVER;
+        StampPlan.PageSelection pages = plan.getPages();
+        float width = img.getScaledWidth();
+        float height = img.getScaledHeight();
+        float x;
+        float y;
+        StampLayout layout = new StampLayout(PAD);
+
+        // stamp the selected pages only, the others are never opened so their
+        // content is left as it is
+        int numpages = reader.getNumberOfPages();
+        for (int i = pages.getFirstPage(numpages); i <= pages.getLastPage(numpages); i = i + pages.getStep())
         {
-            if (pcb.getEffectiveStringWidth(tokens.get(i), false) > width)
+            // set image position according to parameter. Use
+            // PdfReader.getPageSizeWithRotation to get the canvas size for
+            // alignment.
+            Rectangle r = reader.getPageSizeWithRotation(i);
+            switch (plan.getPosition())
             {
-                width = pcb.getEffectiveStringWidth(tokens.get(i), false);
+                case BOTTOMLEFT:
+                    x = 0;
+                    y = 0;
+                    break;
+                case BOTTOMRIGHT:
+                    x = r.getWidth() - width;
+                    y = 0;
+                    break;
+                case TOPLEFT:
+                    x = 0;
+                    y = r.getHeight() - height;
+                    break;
+                case TOPRIGHT:
+                    x = r.getWidth() - width;
+                    y = r.getHeight() - height;
+                    break;
+                default:
+                    x = getCenterX(r, img);
+                    y = getCenterY(r, img);
             }
-        }
 
-        // now that we have the width and height, we can calculate the center
-        // position for
-        // the rectangle that will contain our text.
-        if (position.equals(POSITION_BOTTOMLEFT))
-        {
-            centerX = width / 2 + PAD;
-            startY = 0 + PAD + height;
-        }
-        else if (position.equals(POSITION_BOTTOMRIGHT))
-        {
-            centerX = r.getWidth() - (width / 2) - PAD;
-            startY = 0 + PAD + height;
+            // if this is an under-text stamp, use getUnderContent.
+            // if this is an over-text stamp, usse getOverContent.
+            if (over)
+            {
+                pcb = stamp.getOverContent(i);
+            }
+            else
+            {
+                pcb = stamp.getUnderContent(i);
+            }
+
+            if (plan.isTransformed())
+            {
+                // every copy references the same image XObject
+                layout.place(r, width, height, plan);
+                float cos = layout.getCos();
+                float sin = layout.getSin();
+                for (int c = 0; c < layout.getCopies(); c++)
+                {
+                    pcb.addImage(img, width * cos, width * sin, -height * sin, height * cos, layout.getLeft(c), layout.getBottom(c));
+                }
+            }
+            else
+            {
+                pcb.addImage(img, width, 0, 0, height, x, y);
+            }
         }
-        else if (position.equals(POSITION_TOPLEFT))
+    }
+
+
+    /**
+     * Stamps a text watermark on the requested pages
+     * 
+     * @param stamp
+     * @param reader
+     * @param plan
+     * @param watermarkText the processed text
+     * @param batesPrefix
+     * @param batesStart
+     * @throws IOException
+     * @throws DocumentException
+     */
+    private void stampText(PdfStamper stamp, PdfReader reader, StampPlan plan, String watermarkText, String batesPrefix,
+            long batesStart) throws IOException, DocumentException
+    {
+        PdfContentByte pcb;
+        boolean over = plan.getDepth() == StampPlan.Depth.OVER;
+        StampPlan.PageSelection pages = plan.getPages();
+        StampPlan.Position position = plan.getPosition();
+
+        // create the base font for the text stamp, iText caches the font itself
+        BaseFont bf = BaseFont.createFont(plan.getFont(), BaseFont.CP1250, BaseFont.EMBEDDED);
+
+        // tokenize watermark text to support multiple lines and copy tokens
+        // to vector for re-use
+        Vector<String> tokens = new Vector<String>();
+        StringTokenizer st = new StringTokenizer(watermarkText, "\r\n", false);
+        while (st.hasMoreTokens())
         {
-            centerX = width / 2 + PAD;
-            startY = r.getHeight() - (PAD * 2);
+            tokens.add(st.nextToken());
         }
-        else if (position.equals(POSITION_TOPRIGHT))
+
+        // split the text into static runs and per page slots and measure it
+        // once, the block is the same on every page
+        int numpages = reader.getNumberOfPages();
+        StampText text = new StampText(tokens, numpages, batesPrefix, batesStart, batesDigits);
+        float size = plan.getFontSize();
+        text.layout(bf, size);
+        float width = text.getWidth();
+        float ascent = text.getAscent();
+        float[] origin = new float[2];
+        PdfTemplate textBlock = null;
+        Vector<String> lines = text.resolve(1);
+        StampLayout layout = new StampLayout(PAD);
+
+        if (text.isEmpty())
         {
-            centerX = r.getWidth() - (width / 2) - PAD;
-            startY = r.getHeight() - (PAD * 2);
+            return;
         }
-        else if (position.equals(POSITION_CENTER))
+
+        // stamp the selected pages only, the others are never opened so their
+        // content is left as it is
+        for (int i = pages.getFirstPage(numpages); i <= pages.getLastPage(numpages); i = i + pages.getStep())
         {
-            centerX = r.getWidth() / 2;
-            startY = (r.getHeight() / 2) + (height / 2);
+            Rectangle r = reader.getPageSizeWithRotation(i);
+
+            // if this is an under-text stamp, use getUnderContent.
+            // if this is an over-text stamp, use getOverContent.
+            if (over)
+            {
+                pcb = stamp.getOverContent(i);
+            }
+            else
+            {
+                pcb = stamp.getUnderContent(i);
+            }
+
+            if (plan.isTransformed())
+            {
+                // tiled, diagonal and rotated copies all reference the one block
+                if (textBlock == null)
+                {
+                    textBlock = text.createStaticBlock(pcb, bf);
+                }
+                layout.place(r, width, textBlock.getHeight(), plan);
+                float cos = layout.getCos();
+                float sin = layout.getSin();
+                for (int c = 0; c < layout.getCopies(); c++)
+                {
+                    pcb.addTemplate(textBlock, cos, sin, -sin, cos, layout.getLeft(c), layout.getBottom(c));
+                    if (text.isDynamic())
+                    {
+                        text.writeSlots(pcb, bf, layout.getLeft(c), layout.getBottom(c), layout.getRotation(), i);
+                    }
+                }
+            }
+            else if (textAsXObject)
+            {
+                // lay the static text out on first use, then reference it from
+                // every page and write only the page's own values
+                if (textBlock == null)
+                {
+                    textBlock = text.createStaticBlock(pcb, bf);
+                }
+                getTextOrigin(r, width, text.getHeight(), position, origin);
+                float left = origin[0] - (width / 2);
+                float bottom = origin[1] + ascent - textBlock.getHeight();
+                pcb.addTemplate(textBlock, left, bottom);
+                if (text.isDynamic())
+                {
+                    text.writeSlots(pcb, bf, left, bottom, 0, i);
+                }
+            }
+            else
+            {
+                // set the font and size
+                pcb.setFontAndSize(bf, size);
+                if (text.isDynamic())
+                {
+                    lines = text.resolve(i);
+                }
+                writeAlignedText(pcb, r, lines, size, width, position);
+            }
         }
+    }
+
+
+    /**
+     * Writes text watermark to one of the 5 preconfigured locations
+     * 
+     * @param pcb
+     * @param r
+     * @param tokens
+     * @param size
+     * @param width
+     * @param position
+     */
+    private void writeAlignedText(PdfContentByte pcb, Rectangle r, Vector<String> tokens, float size, float width,
+            StampPlan.Position position)
+    {
+        float[] origin = new float[2];
+        getTextOrigin(r, width, size * tokens.size(), position, origin);
 
         // apply text to PDF
         pcb.beginText();
 
         for (int t = 0; t < tokens.size(); t++)
         {
-            pcb.showTextAligned(PdfContentByte.ALIGN_CENTER, tokens.get(t), centerX, startY - (size * t), 0);
+            pcb.showTextAligned(PdfContentByte.ALIGN_CENTER, tokens.get(t), origin[0], origin[1] - (size * t), 0);
         }
 
         pcb.endText();
@@ -592,27 +771,21 @@ public class PDFWatermarkActionExecuter
 
 
     /**
-     * Builds a freemarker model which supports a subset of the default model.
+     * The first Bates number of the document, 1 if none is set
      * 
-     * @param ref
+     * @param start
      * @return
      */
-    private Map<String, Object> buildWatermarkTemplateModel(NodeRef ref)
+    private long getBatesStart(Object start)
     {
-        Map<String, Object> model = new HashMap<String, Object>();
-
-        NodeRef person = serviceRegistry.getPersonService().getPerson(serviceRegistry.getAuthenticationService().getCurrentUserName());
-        model.put("person", new TemplateNode(person, serviceRegistry, null));
-        NodeRef homespace = (NodeRef)serviceRegistry.getNodeService().getProperty(person, ContentModel.PROP_HOMEFOLDER);
-        model.put("userhome", new TemplateNode(homespace, serviceRegistry, null));
-        model.put("document", new TemplateNode(ref, serviceRegistry, null));
-        NodeRef parent = serviceRegistry.getNodeService().getPrimaryParent(ref).getParentRef();
-        model.put("space", new TemplateNode(parent, serviceRegistry, null));
-        model.put("date", new Date());
-
-        //also add all of the node properties to the model
-        model.put("properties", serviceRegistry.getNodeService().getProperties(ref));
-        
-        return model;
+        if (start instanceof Number)
+        {
+            return ((Number)start).longValue();
+        }
+        else if (start != null && start.toString().length() > 0)
+        {
+            return Long.parseLong(start.toString());
+        }
+        return 1;
     }
 }
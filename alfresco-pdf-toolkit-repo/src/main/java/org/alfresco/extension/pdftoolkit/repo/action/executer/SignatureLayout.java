@@ -0,0 +1,136 @@
+/*
+ * Copyright 2008-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.extension.pdftoolkit.repo.action.executer;
+
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.Image;
+import com.itextpdf.text.pdf.BaseFont;
+import com.itextpdf.text.pdf.PdfContentByte;
+import com.itextpdf.text.pdf.PdfTemplate;
+
+
+/**
+ * The description layer of a visible signature, laid out once for a signer, size,
+ * reason and location and replayed into the appearance of each signature.  The text
+ * is fitted to the box when the layout is built, and the date line is fitted with a
+ * sample date, as the date format has a fixed width, so replaying a layout is only a
+ * handful of drawing operators.  A signer image, if any, takes the left of the box.
+ */
+public final class SignatureLayout
+{
+    private static final String DATE_FORMAT = "yyyy.MM.dd HH:mm:ss z";
+    private static final float  MARGIN      = 2;
+    private static final float  LEADING     = 1.2f;
+
+    private final BaseFont      font;
+    private final Image         image;
+    private final List<String>  lines       = new ArrayList<String>();
+    private final int           dateLine;
+
+    private float               fontSize;
+    private float               textLeft;
+    private float               textTop;
+    private float               imageLeft;
+    private float               imageBottom;
+    private float               imageWidth;
+    private float               imageHeight;
+
+
+    /**
+     * @param font
+     * @param width the width of the signature box
+     * @param height the height of the signature box
+     * @param signer the name of the signer
+     * @param reason
+     * @param location
+     * @param image a signer image, or null for text only
+     */
+    public SignatureLayout(BaseFont font, float width, float height, String signer, String reason, String location, Image image)
+    {
+        this.font = font;
+        this.image = image;
+
+        lines.add("Digitally signed by " + signer);
+        dateLine = lines.size();
+        lines.add("Date: " + new SimpleDateFormat(DATE_FORMAT).format(Calendar.getInstance().getTime()));
+        if (reason != null && reason.length() > 0)
+        {
+            lines.add("Reason: " + reason);
+        }
+        if (location != null && location.length() > 0)
+        {
+            lines.add("Location: " + location);
+        }
+
+        // the image gets the left of the box, scaled to fit and keeping its shape
+        float textWidth = width;
+        if (image != null)
+        {
+            float box = Math.min(width / 2, height) - (MARGIN * 2);
+            float scale = Math.min(box / image.getWidth(), box / image.getHeight());
+            imageWidth = image.getWidth() * scale;
+            imageHeight = image.getHeight() * scale;
+            imageLeft = MARGIN + ((box - imageWidth) / 2);
+            imageBottom = (height - imageHeight) / 2;
+            textWidth = width - box - (MARGIN * 2);
+        }
+        textLeft = width - textWidth + MARGIN;
+
+        // the largest size at which the widest line fits across and all lines fit down
+        float widest = 0;
+        for (String line : lines)
+        {
+            widest = Math.max(widest, font.getWidthPoint(line, 1));
+        }
+        fontSize = Math.min((textWidth - (MARGIN * 2)) / widest, (height - (MARGIN * 2)) / (lines.size() * LEADING));
+        textTop = height - MARGIN - font.getFontDescriptor(BaseFont.ASCENT, fontSize);
+    }
+
+
+    /**
+     * Draws the layout into the description layer of a signature appearance
+     *
+     * @param layer
+     * @param signDate
+     * @throws DocumentException
+     */
+    public void draw(PdfTemplate layer, Calendar signDate)
+        throws DocumentException
+    {
+        if (image != null)
+        {
+            layer.addImage(image, imageWidth, 0, 0, imageHeight, imageLeft, imageBottom);
+        }
+
+        layer.beginText();
+        layer.setFontAndSize(font, fontSize);
+        for (int i = 0; i < lines.size(); i++)
+        {
+            String line = i == dateLine ? "Date: " + new SimpleDateFormat(DATE_FORMAT).format(signDate.getTime()) : lines.get(i);
+            layer.showTextAligned(PdfContentByte.ALIGN_LEFT, line, textLeft, textTop - (fontSize * LEADING * i), 0);
+        }
+        layer.endText();
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2008-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.extension.pdftoolkit.repo.action.executer;
+
+
+import com.itextpdf.text.Rectangle;
+
+
+/**
+ * Places the copies of a stamp on a page for tiled, diagonal and rotated layouts.
+ * Each copy is the same stamp, width by height, rotated about its center, so it can be
+ * drawn by referencing one shared XObject with a transformation matrix.  A layout is
+ * reused from page to page and only grows its buffer when a page needs more copies.
+ */
+public final class StampLayout
+{
+    private final float pad;
+
+    private float[]     anchors = new float[8];
+    private int         copies;
+    private float       rotation;
+    private float       cos;
+    private float       sin;
+
+
+    /**
+     * @param pad the margin around the page and between tiles
+     */
+    public StampLayout(float pad)
+    {
+        this.pad = pad;
+    }
+
+
+    /**
+     * Works out the copies of a stamp for a page
+     *
+     * @param r the page size
+     * @param width
+     * @param height
+     * @param plan
+     */
+    public void place(Rectangle r, float width, float height, StampPlan plan)
+    {
+        // a diagonal without a rotation of its own runs from corner to corner
+        if (plan.getLayout() == StampPlan.Layout.DIAGONAL && !plan.isRotated())
+        {
+            rotation = (float)Math.toDegrees(Math.atan2(r.getHeight(), r.getWidth()));
+        }
+        else
+        {
+            rotation = plan.getRotation();
+        }
+        double radians = Math.toRadians(rotation);
+        cos = (float)Math.cos(radians);
+        sin = (float)Math.sin(radians);
+
+        // the upright box around the rotated stamp
+        float boxWidth = Math.abs(width * cos) + Math.abs(height * sin);
+        float boxHeight = Math.abs(width * sin) + Math.abs(height * cos);
+
+        copies = 0;
+        switch (plan.getLayout())
+        {
+            case TILED:
+                float stepX = boxWidth + (pad * 2);
+                float stepY = boxHeight + (pad * 2);
+                int columns = Math.max(1, (int)(r.getWidth() / stepX));
+                int rows = Math.max(1, (int)(r.getHeight() / stepY));
+                float offsetX = (r.getWidth() - (columns * stepX) + stepX) / 2;
+                float offsetY = (r.getHeight() - (rows * stepY) + stepY) / 2;
+                for (int row = 0; row < rows; row++)
+                {
+                    for (int column = 0; column < columns; column++)
+                    {
+                        add(offsetX + (column * stepX), offsetY + (row * stepY), width, height);
+                    }
+                }
+                break;
+            case DIAGONAL:
+                add(r.getWidth() / 2, r.getHeight() / 2, width, height);
+                break;
+            default:
+                add(getCenterX(r, boxWidth, plan.getPosition()), getCenterY(r, boxHeight, plan.getPosition()), width, height);
+        }
+    }
+
+
+    private float getCenterX(Rectangle r, float boxWidth, StampPlan.Position position)
+    {
+        switch (position)
+        {
+            case TOPLEFT:
+            case BOTTOMLEFT:
+                return pad + (boxWidth / 2);
+            case TOPRIGHT:
+            case BOTTOMRIGHT:
+                return r.getWidth() - pad - (boxWidth / 2);
+            default:
+                return r.getWidth() / 2;
+        }
+    }
+
+
+    private float getCenterY(Rectangle r, float boxHeight, StampPlan.Position position)
+    {
+        switch (position)
+        {
+            case TOPLEFT:
+            case TOPRIGHT:
+                return r.getHeight() - pad - (boxHeight / 2);
+            case BOTTOMLEFT:
+            case BOTTOMRIGHT:
+                return pad + (boxHeight / 2);
+            default:
+                return r.getHeight() / 2;
+        }
+    }
+
+
+    /**
+     * Adds a copy centered on a point, recording where its bottom left corner ends up
+     * once it is rotated
+     */
+    private void add(float centerX, float centerY, float width, float height)
+    {
+        if ((copies + 1) * 2 > anchors.length)
+        {
+            float[] grown = new float[anchors.length * 2];
+            System.arraycopy(anchors, 0, grown, 0, anchors.length);
+            anchors = grown;
+        }
+
+        anchors[copies * 2] = centerX - ((width / 2) * cos - (height / 2) * sin);
+        anchors[copies * 2 + 1] = centerY - ((width / 2) * sin + (height / 2) * cos);
+        copies++;
+    }
+
+
+    /**
+     * @return the number of copies on the page
+     */
+    public int getCopies()
+    {
+        return copies;
+    }
+
+
+    /**
+     * @param copy
+     * @return the page x of the bottom left corner of a copy
+     */
+    public float getLeft(int copy)
+    {
+        return anchors[copy * 2];
+    }
+
+
+    /**
+     * @param copy
+     * @return the page y of the bottom left corner of a copy
+     */
+    public float getBottom(int copy)
+    {
+        return anchors[copy * 2 + 1];
+    }
+
+
+    /**
+     * @return the rotation of the copies in degrees, counterclockwise
+     */
+    public float getRotation()
+    {
+        return rotation;
+    }
+
+
+    public float getCos()
+    {
+        return cos;
+    }
+
+
+    public float getSin()
+    {
+        return sin;
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2008-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.extension.pdftoolkit.repo.action.executer;
+
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * The parameters of a stamp action, parsed once into typed values so that the per
+ * page loop doesn't parse or compare strings.  Plans are immutable and remember the
+ * parameters they were compiled from, so a cached plan can be checked against the
+ * action it is reused for.
+ */
+public final class StampPlan
+{
+
+    /**
+     * Where on the page the stamp goes
+     */
+    public enum Position
+    {
+        CENTER, TOPLEFT, TOPRIGHT, BOTTOMLEFT, BOTTOMRIGHT;
+
+        static Position fromParameter(String value)
+        {
+            if (BasePDFStampActionExecuter.POSITION_TOPLEFT.equals(value))
+            {
+                return TOPLEFT;
+            }
+            else if (BasePDFStampActionExecuter.POSITION_TOPRIGHT.equals(value))
+            {
+                return TOPRIGHT;
+            }
+            else if (BasePDFStampActionExecuter.POSITION_BOTTOMLEFT.equals(value))
+            {
+                return BOTTOMLEFT;
+            }
+            else if (BasePDFStampActionExecuter.POSITION_BOTTOMRIGHT.equals(value))
+            {
+                return BOTTOMRIGHT;
+            }
+            return CENTER;
+        }
+    }
+
+
+    /**
+     * Which pages are stamped
+     */
+    public enum PageSelection
+    {
+        ALL, ODD, EVEN, FIRST, LAST;
+
+        static PageSelection fromParameter(String value)
+        {
+            if (BasePDFStampActionExecuter.PAGE_ODD.equals(value))
+            {
+                return ODD;
+            }
+            else if (BasePDFStampActionExecuter.PAGE_EVEN.equals(value))
+            {
+                return EVEN;
+            }
+            else if (BasePDFStampActionExecuter.PAGE_FIRST.equals(value))
+            {
+                return FIRST;
+            }
+            else if (BasePDFStampActionExecuter.PAGE_LAST.equals(value))
+            {
+                return LAST;
+            }
+            return ALL;
+        }
+
+
+        /**
+         * @param page
+         * @param numpages
+         * @return true if the page is part of the selection
+         */
+        public boolean includes(int page, int numpages)
+        {
+            switch (this)
+            {
+                case ODD:
+                    return page % 2 != 0;
+                case EVEN:
+                    return page % 2 == 0;
+                case FIRST:
+                    return page == 1;
+                case LAST:
+                    return page == numpages;
+                default:
+                    return true;
+            }
+        }
+
+
+        /**
+         * @param numpages
+         * @return the first page of the selection
+         */
+        public int getFirstPage(int numpages)
+        {
+            switch (this)
+            {
+                case EVEN:
+                    return 2;
+                case LAST:
+                    return numpages;
+                default:
+                    return 1;
+            }
+        }
+
+
+        /**
+         * @param numpages
+         * @return the last page the selection can include, a selection of one page
+         *         starts and ends on it
+         */
+        public int getLastPage(int numpages)
+        {
+            return this == FIRST ? Math.min(1, numpages) : numpages;
+        }
+
+
+        /**
+         * @return the distance from one selected page to the next
+         */
+        public int getStep()
+        {
+            return this == ODD || this == EVEN ? 2 : 1;
+        }
+    }
+
+
+    /**
+     * Whether the stamp goes over or under the page content
+     */
+    public enum Depth
+    {
+        OVER, UNDER;
+
+        static Depth fromParameter(String value)
+        {
+            return PDFWatermarkActionExecuter.DEPTH_OVER.equals(value) ? OVER : UNDER;
+        }
+    }
+
+
+    /**
+     * How copies of the stamp are laid out on the page
+     */
+    public enum Layout
+    {
+        SINGLE, TILED, DIAGONAL;
+
+        static Layout fromParameter(String value)
+        {
+            if (PDFWatermarkActionExecuter.LAYOUT_TILED.equals(value))
+            {
+                return TILED;
+            }
+            else if (PDFWatermarkActionExecuter.LAYOUT_DIAGONAL.equals(value))
+            {
+                return DIAGONAL;
+            }
+            return SINGLE;
+        }
+    }
+
+
+    private final Map<String, Serializable> parameters;
+    private final Position                  position;
+    private final PageSelection             pages;
+    private final Depth                     depth;
+    private final String                    font;
+    private final float                     fontSize;
+    private final Layout                    layout;
+    private final boolean                   rotated;
+    private final float                     rotation;
+
+
+    /**
+     * @param parameters the action parameters the plan is compiled from
+     * @param position
+     * @param pages
+     * @param depth
+     * @param font
+     * @param fontSize
+     */
+    public StampPlan(Map<String, Serializable> parameters, String position, String pages, String depth, String font, String fontSize)
+    {
+        this(parameters, position, pages, depth, font, fontSize, null, null);
+    }
+
+
+    /**
+     * @param parameters the action parameters the plan is compiled from
+     * @param position
+     * @param pages
+     * @param depth
+     * @param font
+     * @param fontSize
+     * @param layout
+     * @param rotation the rotation in degrees, counterclockwise, or null for none
+     */
+    public StampPlan(Map<String, Serializable> parameters, String position, String pages, String depth, String font, String fontSize,
+            String layout, String rotation)
+    {
+        this.parameters = new HashMap<String, Serializable>(parameters);
+        this.position = Position.fromParameter(position);
+        this.pages = PageSelection.fromParameter(pages);
+        this.depth = Depth.fromParameter(depth);
+        this.font = font;
+        this.fontSize = fontSize != null && fontSize.length() > 0 ? Float.parseFloat(fontSize) : 0;
+        this.layout = Layout.fromParameter(layout);
+        this.rotated = rotation != null && rotation.length() > 0;
+        this.rotation = rotated ? Float.parseFloat(rotation) : 0;
+    }
+
+
+    /**
+     * @param parameters
+     * @return true if the plan was compiled from these parameters
+     */
+    public boolean isFor(Map<String, Serializable> parameters)
+    {
+        return this.parameters.equals(parameters);
+    }
+
+
+    public Position getPosition()
+    {
+        return position;
+    }
+
+
+    public PageSelection getPages()
+    {
+        return pages;
+    }
+
+
+    public Depth getDepth()
+    {
+        return depth;
+    }
+
+
+    public String getFont()
+    {
+        return font;
+    }
+
+
+    public float getFontSize()
+    {
+        return fontSize;
+    }
+
+
+    public Layout getLayout()
+    {
+        return layout;
+    }
+
+
+    /**
+     * @return true if a rotation was given
+     */
+    public boolean isRotated()
+    {
+        return rotated;
+    }
+
+
+    public float getRotation()
+    {
+        return rotation;
+    }
+
+
+    /**
+     * @return true if the stamp is tiled, diagonal or rotated rather than placed upright
+     *         at its position
+     */
+    public boolean isTransformed()
+    {
+        return layout != Layout.SINGLE || (rotated && rotation != 0);
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright 2008-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.extension.pdftoolkit.repo.action.executer;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+
+import org.alfresco.extension.pdftoolkit.repo.template.LazyWatermarkModel;
+
+import com.itextpdf.text.pdf.BaseFont;
+import com.itextpdf.text.pdf.PdfContentByte;
+import com.itextpdf.text.pdf.PdfTemplate;
+
+
+/**
+ * The lines of a text stamp, split into static runs and per page tokens.  ${pages}
+ * is the same on every page and is filled in up front, while ${page} and ${bates}
+ * change from page to page.  Each per page token gets a slot wide enough for its
+ * widest value, so the static runs can be laid out once and only the values are
+ * written on each page.
+ */
+public final class StampText
+{
+    public static final String TOKEN_PAGE  = "${" + LazyWatermarkModel.KEY_PAGE + "}";
+    public static final String TOKEN_PAGES = "${" + LazyWatermarkModel.KEY_PAGES + "}";
+    public static final String TOKEN_BATES = "${" + LazyWatermarkModel.KEY_BATES + "}";
+
+    private static final int   STATIC      = 0;
+    private static final int   PAGE        = 1;
+    private static final int   BATES       = 2;
+
+    private final List<Run[]>  lines       = new ArrayList<Run[]>();
+    private final List<Run>    slots       = new ArrayList<Run>();
+    private final String       batesPrefix;
+    private final long         batesStart;
+    private final int          pageDigits;
+    private final int          batesDigits;
+
+    private float              width;
+    private float              size;
+    private float              ascent;
+    private float              blockHeight;
+
+
+    /**
+     * @param tokens the lines of the stamp
+     * @param numpages
+     * @param batesPrefix
+     * @param batesStart the Bates number of the first page
+     * @param batesDigits the minimum number of digits of a Bates number
+     */
+    public StampText(List<String> tokens, int numpages, String batesPrefix, long batesStart, int batesDigits)
+    {
+        this.batesPrefix = batesPrefix != null ? batesPrefix : "";
+        this.batesStart = batesStart;
+        this.pageDigits = String.valueOf(numpages).length();
+        this.batesDigits = Math.max(batesDigits, String.valueOf(batesStart + numpages - 1).length());
+
+        for (String token : tokens)
+        {
+            lines.add(parse(token.replace(TOKEN_PAGES, String.valueOf(numpages))));
+        }
+    }
+
+
+    private Run[] parse(String line)
+    {
+        List<Run> runs = new ArrayList<Run>();
+        int start = 0;
+
+        while (start < line.length())
+        {
+            int page = line.indexOf(TOKEN_PAGE, start);
+            int bates = line.indexOf(TOKEN_BATES, start);
+            int next = page < 0 ? bates : (bates < 0 ? page : Math.min(page, bates));
+            if (next < 0)
+            {
+                runs.add(new Run(STATIC, line.substring(start)));
+                break;
+            }
+            if (next > start)
+            {
+                runs.add(new Run(STATIC, line.substring(start, next)));
+            }
+
+            Run slot = next == page ? new Run(PAGE, null) : new Run(BATES, null);
+            runs.add(slot);
+            slots.add(slot);
+            start = next + (next == page ? TOKEN_PAGE.length() : TOKEN_BATES.length());
+        }
+
+        return runs.toArray(new Run[runs.size()]);
+    }
+
+
+    /**
+     * @return true if any line holds a value that changes from page to page
+     */
+    public boolean isDynamic()
+    {
+        return !slots.isEmpty();
+    }
+
+
+    /**
+     * @return true if there is nothing to stamp
+     */
+    public boolean isEmpty()
+    {
+        return lines.isEmpty();
+    }
+
+
+    /**
+     * @return the number of lines
+     */
+    public int getLineCount()
+    {
+        return lines.size();
+    }
+
+
+    /**
+     * Measures every run and works out where it goes.  Lines are centered on the
+     * widest line, and the origin of the block is the top left, one ascent above the
+     * baseline of the first line.
+     *
+     * @param bf
+     * @param size
+     */
+    public void layout(BaseFont bf, float size)
+    {
+        this.size = size;
+        this.ascent = bf.getFontDescriptor(BaseFont.ASCENT, size);
+        this.blockHeight = ascent + (size * (lines.size() - 1)) - bf.getFontDescriptor(BaseFont.DESCENT, size);
+
+        // the widest digit, so that a slot fits any number of its length
+        float digit = 0;
+        for (char c = '0'; c <= '9'; c++)
+        {
+            digit = Math.max(digit, bf.getWidthPoint(c, size));
+        }
+
+        width = 0;
+        float[] lineWidths = new float[lines.size()];
+        for (int l = 0; l < lines.size(); l++)
+        {
+            for (Run run : lines.get(l))
+            {
+                switch (run.kind)
+                {
+                    case PAGE:
+                        run.width = digit * pageDigits;
+                        break;
+                    case BATES:
+                        run.width = bf.getWidthPoint(batesPrefix, size) + digit * batesDigits;
+                        break;
+                    default:
+                        run.width = bf.getWidthPoint(run.text, size);
+                }
+                lineWidths[l] = lineWidths[l] + run.width;
+            }
+            width = Math.max(width, lineWidths[l]);
+        }
+
+        for (int l = 0; l < lines.size(); l++)
+        {
+            float x = (width - lineWidths[l]) / 2;
+            for (Run run : lines.get(l))
+            {
+                run.x = x;
+                run.y = -ascent - (size * l);
+                x = x + run.width;
+            }
+        }
+    }
+
+
+    /**
+     * @return the width of the widest line, once laid out
+     */
+    public float getWidth()
+    {
+        return width;
+    }
+
+
+    /**
+     * @return the height of the lines, baseline to baseline
+     */
+    public float getHeight()
+    {
+        return size * lines.size();
+    }
+
+
+    /**
+     * @return the height of the block, from the top of the first line to the bottom of
+     *         the last
+     */
+    public float getBlockHeight()
+    {
+        return blockHeight;
+    }
+
+
+    /**
+     * @return the distance from the top of the block to the first baseline
+     */
+    public float getAscent()
+    {
+        return ascent;
+    }
+
+
+    /**
+     * Writes the static runs into a form XObject, with gaps left for the slots
+     *
+     * @param pcb
+     * @param bf
+     * @return
+     */
+    public PdfTemplate createStaticBlock(PdfContentByte pcb, BaseFont bf)
+    {
+        float height = blockHeight;
+
+        PdfTemplate block = pcb.createTemplate(width, height);
+        block.setFontAndSize(bf, size);
+        block.beginText();
+
+        for (Run[] line : lines)
+        {
+            for (Run run : line)
+            {
+                if (run.kind == STATIC)
+                {
+                    block.showTextAligned(PdfContentByte.ALIGN_LEFT, run.text, run.x, height + run.y, 0);
+                }
+            }
+        }
+
+        block.endText();
+
+        return block;
+    }
+
+
+    /**
+     * Writes the values of the slots for a page.  Only the changing glyph runs are
+     * written, the static text is already on the page.
+     *
+     * @param pcb
+     * @param bf
+     * @param left the page x of the bottom left corner of the block
+     * @param bottom the page y of the bottom left corner of the block
+     * @param rotation the rotation of the block about that corner, in degrees
+     * @param page
+     */
+    public void writeSlots(PdfContentByte pcb, BaseFont bf, float left, float bottom, float rotation, int page)
+    {
+        double radians = Math.toRadians(rotation);
+        float cos = (float)Math.cos(radians);
+        float sin = (float)Math.sin(radians);
+
+        pcb.beginText();
+        pcb.setFontAndSize(bf, size);
+
+        for (Run slot : slots)
+        {
+            float x = slot.x;
+            float y = blockHeight + slot.y;
+            pcb.showTextAligned(PdfContentByte.ALIGN_LEFT, getValue(slot.kind, page), left + (x * cos) - (y * sin),
+                    bottom + (x * sin) + (y * cos), rotation);
+        }
+
+        pcb.endText();
+    }
+
+
+    /**
+     * Resolves the lines for a page, for stamps written out as text on every page
+     *
+     * @param page
+     * @return
+     */
+    public Vector<String> resolve(int page)
+    {
+        Vector<String> resolved = new Vector<String>(lines.size());
+        StringBuilder text = new StringBuilder();
+
+        for (Run[] line : lines)
+        {
+            text.setLength(0);
+            for (Run run : line)
+            {
+                text.append(run.kind == STATIC ? run.text : getValue(run.kind, page));
+            }
+            resolved.add(text.toString());
+        }
+
+        return resolved;
+    }
+
+
+    /**
+     * @param page
+     * @return the Bates number of a page
+     */
+    public String getBatesNumber(int page)
+    {
+        StringBuilder number = new StringBuilder(batesPrefix);
+        String digits = String.valueOf(batesStart + page - 1);
+        for (int i = digits.length(); i < batesDigits; i++)
+        {
+            number.append('0');
+        }
+        return number.append(digits).toString();
+    }
+
+
+    private String getValue(int kind, int page)
+    {
+        return kind == PAGE ? String.valueOf(page) : getBatesNumber(page);
+    }
+
+
+    /**
+     * A static run of text or a per page slot, positioned relative to the top left of
+     * the block
+     */
+    private static class Run
+    {
+        private final int    kind;
+        private final String text;
+        private float        width;
+        private float        x;
+        private float        y;
+
+
+        private Run(int kind, String text)
+        {
+            this.kind = kind;
+            this.text = text;
+        }
+    }
+}
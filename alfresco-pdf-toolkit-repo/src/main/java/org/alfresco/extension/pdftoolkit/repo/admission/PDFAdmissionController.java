@@ -0,0 +1,271 @@
+/*
+ * Copyright 2008-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.extension.pdftoolkit.repo.admission;
+
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * Admission control for PDF actions.  Every job reserves an estimate of the heap it
+ * will need from a node-wide memory budget before it is allowed to load its document.
+ * Jobs that do not fit wait for running jobs to release their reservation, and are
+ * rejected if they still do not fit after maxWait.  A job estimated to need more than
+ * the whole budget is charged the whole budget, so it runs on its own, and is admitted
+ * in low-memory mode, where documents are parsed against a scratch file instead of the
+ * heap.
+ */
+public class PDFAdmissionController
+{
+
+    /**
+     * The logger
+     */
+    private static Log          logger              = LogFactory.getLog(PDFAdmissionController.class);
+
+    public static final int     UNKNOWN_PAGE_COUNT  = -1;
+
+    private static final long   MB                  = 1024L * 1024L;
+
+    /**
+     * Budget and estimate settings
+     */
+    private long                memoryBudget        = 512 * MB;
+    private long                maxWait             = 30000;
+    private float               defaultCostFactor   = 4f;
+    private long                perPageCost         = 16 * 1024;
+    private Map<String, Float>  costFactors         = new HashMap<String, Float>();
+
+    /**
+     * Currently reserved memory
+     */
+    private long                reserved            = 0;
+
+
+    /**
+     * Total heap, in megabytes, that admitted PDF jobs may reserve at any one time
+     *
+     * @param memoryBudgetMB
+     */
+    public void setMemoryBudgetMB(long memoryBudgetMB)
+    {
+        this.memoryBudget = memoryBudgetMB * MB;
+    }
+
+
+    /**
+     * How long, in milliseconds, a job waits for budget before it is rejected
+     *
+     * @param maxWait
+     */
+    public void setMaxWait(long maxWait)
+    {
+        this.maxWait = maxWait;
+    }
+
+
+    /**
+     * Multiplier applied to the content size for actions without a specific factor
+     *
+     * @param defaultCostFactor
+     */
+    public void setDefaultCostFactor(float defaultCostFactor)
+    {
+        this.defaultCostFactor = defaultCostFactor;
+    }
+
+
+    /**
+     * Estimated heap overhead, in bytes, of each page of a loaded document
+     *
+     * @param perPageCost
+     */
+    public void setPerPageCost(long perPageCost)
+    {
+        this.perPageCost = perPageCost;
+    }
+
+
+    /**
+     * Content size multipliers keyed by action name
+     *
+     * @param factors
+     */
+    public void setCostFactors(Map<String, String> factors)
+    {
+        for (Map.Entry<String, String> entry : factors.entrySet())
+        {
+            costFactors.put(entry.getKey(), Float.valueOf(entry.getValue()));
+        }
+    }
+
+
+    /**
+     * Estimates the heap a job will need, from the size of its content, the number of
+     * pages (if known) and the action type
+     *
+     * @param actionName
+     * @param contentSize
+     * @param pageCount
+     * @return
+     */
+    public long estimateCost(String actionName, long contentSize, int pageCount)
+    {
+        Float factor = costFactors.get(actionName);
+        if (factor == null)
+        {
+            factor = defaultCostFactor;
+        }
+
+        long cost = (long)(contentSize * factor);
+        if (pageCount > 0)
+        {
+            cost = cost + (pageCount * perPageCost);
+        }
+
+        return cost;
+    }
+
+
+    /**
+     * Reserves the estimated cost of a job from the budget, waiting up to maxWait for
+     * running jobs to finish.  The returned ticket must be passed to release once the
+     * job completes.
+     *
+     * @throws AlfrescoRuntimeException if the budget doesn't free up in time
+     *
+     * @param actionName
+     * @param contentSize
+     * @param pageCount
+     * @return
+     */
+    public Ticket admit(String actionName, long contentSize, int pageCount)
+    {
+        long cost = estimateCost(actionName, contentSize, pageCount);
+
+        // a job that could never fit takes the whole budget and runs in low-memory mode
+        boolean lowMemory = cost > memoryBudget;
+        if (lowMemory)
+        {
+            logger.info("Estimated cost of " + actionName + " (" + cost / MB + "MB) exceeds the memory budget, running alone in low-memory mode");
+            cost = memoryBudget;
+        }
+
+        synchronized (this)
+        {
+            long deadline = System.currentTimeMillis() + maxWait;
+            while (reserved + cost > memoryBudget)
+            {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                {
+                    throw new AlfrescoRuntimeException("Memory budget exhausted waiting " + maxWait + "ms to run " + actionName);
+                }
+                try
+                {
+                    wait(remaining);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new AlfrescoRuntimeException("Interrupted waiting for memory budget to run " + actionName, e);
+                }
+            }
+
+            reserved = reserved + cost;
+
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Admitted " + actionName + " with " + cost + " bytes, " + reserved + " of " + memoryBudget + " reserved");
+            }
+
+            return new Ticket(actionName, cost, lowMemory);
+        }
+    }
+
+
+    /**
+     * Returns a ticket's reservation to the budget and wakes up waiting jobs
+     *
+     * @param ticket
+     */
+    public synchronized void release(Ticket ticket)
+    {
+        if (ticket != null && ticket.cost > 0)
+        {
+            reserved = reserved - ticket.cost;
+            ticket.cost = 0;
+            notifyAll();
+        }
+    }
+
+
+    /**
+     * @return memory currently reserved by admitted jobs
+     */
+    public synchronized long getReserved()
+    {
+        return reserved;
+    }
+
+
+    /**
+     * An admitted job's reservation
+     */
+    public static class Ticket
+    {
+        private final String  actionName;
+        private long          cost;
+        private final boolean lowMemory;
+
+
+        private Ticket(String actionName, long cost, boolean lowMemory)
+        {
+            this.actionName = actionName;
+            this.cost = cost;
+            this.lowMemory = lowMemory;
+        }
+
+
+        public String getActionName()
+        {
+            return actionName;
+        }
+
+
+        public long getCost()
+        {
+            return cost;
+        }
+
+
+        /**
+         * @return true if the job should parse documents against a scratch file
+         */
+        public boolean isLowMemory()
+        {
+            return lowMemory;
+        }
+    }
+}
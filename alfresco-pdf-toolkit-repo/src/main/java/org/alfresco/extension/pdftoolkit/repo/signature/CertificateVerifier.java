@@ -0,0 +1,233 @@
+/*
+ * Copyright 2008-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.extension.pdftoolkit.repo.signature;
+
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+
+import com.itextpdf.text.pdf.PdfPKCS7;
+
+
+/**
+ * Checks that the certificate chain of a signature leads to a trusted certificate.
+ * Building the chain against the trust store is the costly part of verifying a
+ * signature and most documents are signed by a handful of certificates, so the
+ * outcome is cached by the fingerprint of the chain for a while.  Whether each
+ * certificate was valid when the signature was made is checked every time.
+ */
+public class CertificateVerifier
+{
+    private String                  trustStorePath;
+    private String                  trustStoreType = KeyStore.getDefaultType();
+    private String                  trustStorePassword;
+    private int                     cacheSize      = 1024;
+    private long                    cacheTime      = 3600000;
+
+    private KeyStore                trustStore;
+    private Map<String, Result>     results;
+
+
+    /**
+     * @param trustStorePath the trust store file, empty for the Java runtime's cacerts
+     */
+    public void setTrustStorePath(String trustStorePath)
+    {
+        this.trustStorePath = trustStorePath;
+    }
+
+
+    public void setTrustStoreType(String trustStoreType)
+    {
+        this.trustStoreType = trustStoreType;
+    }
+
+
+    public void setTrustStorePassword(String trustStorePassword)
+    {
+        this.trustStorePassword = trustStorePassword;
+    }
+
+
+    public void setCacheSize(int cacheSize)
+    {
+        this.cacheSize = cacheSize;
+    }
+
+
+    /**
+     * @param cacheTime how long, in ms, the outcome for a chain is reused
+     */
+    public void setCacheTime(long cacheTime)
+    {
+        this.cacheTime = cacheTime;
+    }
+
+
+    public void init()
+    {
+        results = new LinkedHashMap<String, Result>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Result> eldest)
+            {
+                return size() > cacheSize;
+            }
+        };
+
+        if (trustStorePath == null || trustStorePath.length() == 0)
+        {
+            trustStore = PdfPKCS7.loadCacertsKeyStore();
+            return;
+        }
+
+        FileInputStream is = null;
+        try
+        {
+            is = new FileInputStream(trustStorePath);
+            trustStore = KeyStore.getInstance(trustStoreType);
+            trustStore.load(is, trustStorePassword != null ? trustStorePassword.toCharArray() : null);
+        }
+        catch (IOException e)
+        {
+            throw new AlfrescoRuntimeException(e.getMessage(), e);
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new AlfrescoRuntimeException(e.getMessage(), e);
+        }
+        finally
+        {
+            if (is != null)
+            {
+                try
+                {
+                    is.close();
+                }
+                catch (IOException e)
+                {
+                    // nothing more to do
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Verifies a certificate chain
+     *
+     * @param chain the chain, signing certificate first
+     * @param signDate when the signature was made, or null for now
+     * @return null if the chain is valid and trusted, otherwise why it isn't
+     */
+    public String verify(Certificate[] chain, Calendar signDate)
+    {
+        if (chain == null || chain.length == 0)
+        {
+            return "no certificate";
+        }
+
+        for (Certificate certificate : chain)
+        {
+            try
+            {
+                ((X509Certificate)certificate).checkValidity(signDate != null ? signDate.getTime() : new Date());
+            }
+            catch (GeneralSecurityException e)
+            {
+                return "certificate " + ((X509Certificate)certificate).getSubjectDN() + " was not valid when signed";
+            }
+        }
+
+        String fingerprint = getFingerprint(chain);
+        long now = System.currentTimeMillis();
+        synchronized (results)
+        {
+            Result result = results.get(fingerprint);
+            if (result != null && result.expires > now)
+            {
+                return result.failure;
+            }
+        }
+
+        Object[] failure = PdfPKCS7.verifyCertificates(chain, trustStore, null, signDate);
+        Result result = new Result(failure != null ? String.valueOf(failure[1]) : null, now + cacheTime);
+        synchronized (results)
+        {
+            results.put(fingerprint, result);
+        }
+        return result.failure;
+    }
+
+
+    /**
+     * @param chain
+     * @return the SHA-256 fingerprint of a chain, in hex
+     */
+    private static String getFingerprint(Certificate[] chain)
+    {
+        try
+        {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            for (Certificate certificate : chain)
+            {
+                md.update(certificate.getEncoded());
+            }
+
+            StringBuilder hex = new StringBuilder();
+            for (byte b : md.digest())
+            {
+                hex.append(Integer.toHexString((b >> 4) & 0x0f)).append(Integer.toHexString(b & 0x0f));
+            }
+            return hex.toString();
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new AlfrescoRuntimeException(e.getMessage(), e);
+        }
+    }
+
+
+    private static class Result
+    {
+        private final String failure;
+        private final long   expires;
+
+
+        private Result(String failure, long expires)
+        {
+            this.failure = failure;
+            this.expires = expires;
+        }
+    }
+}
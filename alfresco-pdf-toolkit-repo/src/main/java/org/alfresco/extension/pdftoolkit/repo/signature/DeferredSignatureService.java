@@ -0,0 +1,553 @@
+/*
+ * Copyright 2008-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.extension.pdftoolkit.repo.signature;
+
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.cert.CRL;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.extension.pdftoolkit.model.PDFToolkitModel;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.content.MimetypeMap;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentService;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.pdf.AcroFields;
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfDate;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfPKCS7;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfSignature;
+import com.itextpdf.text.pdf.PdfSignatureAppearance;
+import com.itextpdf.text.pdf.PdfString;
+import com.itextpdf.text.pdf.RandomAccessFileOrArray;
+
+
+/**
+ * Signs PDF documents in two phases, so that neither phase holds a document in memory.
+ * The first phase writes the document out with an empty signature of a fixed size and
+ * records the digest of the signed byte ranges on the pdft:signaturePending aspect.
+ * The second phase has the signer sign the digests of many documents in one call and
+ * streams each document through again, writing its signature into the gap.
+ */
+public class DeferredSignatureService
+{
+    private static Log          logger          = LogFactory.getLog(DeferredSignatureService.class);
+
+    private static final char[] HEX             = "0123456789abcdef".toCharArray();
+    private static final int    BUFFER_SIZE     = 8192;
+
+    private NodeService         nodeService;
+    private ContentService      contentService;
+    private PDFSigner           signer;
+    private String              digestAlgorithm = "SHA-256";
+    private int                 contentSize     = 8192;
+    private int                 batchSize       = 200;
+    private TimestampClient     timestampClient;
+    private RevocationDataCache revocationDataCache;
+
+
+    public void setNodeService(NodeService nodeService)
+    {
+        this.nodeService = nodeService;
+    }
+
+
+    public void setContentService(ContentService contentService)
+    {
+        this.contentService = contentService;
+    }
+
+
+    public void setSigner(PDFSigner signer)
+    {
+        this.signer = signer;
+    }
+
+
+    public void setDigestAlgorithm(String digestAlgorithm)
+    {
+        this.digestAlgorithm = digestAlgorithm;
+    }
+
+
+    /**
+     * @param contentSize the bytes reserved in each document for its PKCS#7 signature
+     */
+    public void setContentSize(int contentSize)
+    {
+        this.contentSize = contentSize;
+    }
+
+
+    /**
+     * @param batchSize the most digests passed to the signer in one call
+     */
+    public void setBatchSize(int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
+
+    /**
+     * @param timestampClient gets timestamps for the signatures that ask for them
+     */
+    public void setTimestampClient(TimestampClient timestampClient)
+    {
+        this.timestampClient = timestampClient;
+    }
+
+
+    /**
+     * @param revocationDataCache the revocation data embedded in signatures for long term validation
+     */
+    public void setRevocationDataCache(RevocationDataCache revocationDataCache)
+    {
+        this.revocationDataCache = revocationDataCache;
+    }
+
+
+    /**
+     * @return the certificate chain the deferred signatures are made with
+     */
+    public Certificate[] getCertificateChain()
+    {
+        return signer.getCertificateChain();
+    }
+
+
+    /**
+     * First phase.  Closes a signature appearance with an empty PKCS#7 signature and
+     * digests the signed byte ranges.  The stamper must have been created with a temp
+     * file and no output stream, so that the document is written to disk rather than
+     * held in memory, and so that iText leaves it in the temp file when the appearance
+     * is closed.  The byte range is read back from the temp file, which is then copied
+     * to the output stream.
+     *
+     * @param sap
+     * @param tempFile the temp file the stamper was created with
+     * @param out receives the document, and is closed
+     * @param timestamp whether the signature is to be timestamped when it is completed
+     * @param ltv whether the signature is to embed the chain's revocation data
+     * @return the properties of the pdft:signaturePending aspect, to be added with
+     * {@link #markPending(NodeRef, Map)}
+     * @throws IOException
+     * @throws DocumentException
+     */
+    public Map<QName, Serializable> reserve(PdfSignatureAppearance sap, File tempFile, OutputStream out, boolean timestamp,
+                                            boolean ltv)
+        throws IOException, DocumentException
+    {
+        if (timestamp && (timestampClient == null || !timestampClient.isEnabled()))
+        {
+            throw new AlfrescoRuntimeException("No timestamp authority is configured");
+        }
+        int size = timestamp ? contentSize + timestampClient.getTokenSizeEstimate() : contentSize;
+        if (ltv)
+        {
+            // room for the data as it is now, and for a renewal that comes out a little larger
+            int revocationSize = revocationDataCache.get(getCertificateChain()).getEncodedSize();
+            size = size + revocationSize + (revocationSize / 10);
+        }
+
+        PdfSignature dic = new PdfSignature(PdfName.ADOBE_PPKLITE, PdfName.ADBE_PKCS7_DETACHED);
+        dic.setReason(sap.getReason());
+        dic.setLocation(sap.getLocation());
+        dic.setDate(new PdfDate(sap.getSignDate()));
+        dic.setName(PdfPKCS7.getSubjectFields((X509Certificate)getCertificateChain()[0]).getField("CN"));
+        sap.setCryptoDictionary(dic);
+
+        HashMap<PdfName, Integer> exclusions = new HashMap<PdfName, Integer>();
+        exclusions.put(PdfName.CONTENTS, new Integer(size * 2 + 2));
+        sap.preClose(exclusions);
+
+        byte[] digest = digest(sap.getRangeStream());
+
+        // write the document out with the gap zero filled
+        PdfDictionary update = new PdfDictionary();
+        update.put(PdfName.CONTENTS, new PdfString(new byte[size]).setHexWriting(true));
+        sap.close(update);
+
+        String byteRange = getByteRange(tempFile, sap.getFieldName());
+        InputStream in = new FileInputStream(tempFile);
+        try
+        {
+            copy(in, out, new byte[BUFFER_SIZE], Long.MAX_VALUE);
+        }
+        finally
+        {
+            in.close();
+            out.close();
+        }
+
+        Map<QName, Serializable> props = new HashMap<QName, Serializable>();
+        props.put(PDFToolkitModel.PROP_PENDING_BYTE_RANGE, byteRange);
+        props.put(PDFToolkitModel.PROP_PENDING_DIGEST, toHex(digest));
+        props.put(PDFToolkitModel.PROP_PENDING_TIMESTAMP, timestamp);
+        props.put(PDFToolkitModel.PROP_PENDING_LTV, ltv);
+        return props;
+    }
+
+
+    /**
+     * Adds the pdft:signaturePending aspect to the document the reserved signature was
+     * written to, recording the content it was reserved in
+     *
+     * @param nodeRef the document, with the content written by reserve
+     * @param pending the properties returned by reserve
+     */
+    public void markPending(NodeRef nodeRef, Map<QName, Serializable> pending)
+    {
+        Map<QName, Serializable> props = new HashMap<QName, Serializable>(pending);
+        props.put(PDFToolkitModel.PROP_PENDING_CONTENT, getContentUrl(nodeRef));
+        nodeService.addAspect(nodeRef, PDFToolkitModel.ASPECT_SIGNATURE_PENDING, props);
+    }
+
+
+    /**
+     * Second phase.  Signs the pending signatures of the given documents, batchSize
+     * digests per call to the signer.  Documents without a pending signature are
+     * skipped.  A document whose content has changed since its signature was reserved
+     * is refused, the recorded byte range and digest no longer describe it.
+     *
+     * @param nodeRefs
+     * @return the number of documents signed
+     */
+    public int completeSignatures(List<NodeRef> nodeRefs)
+    {
+        List<NodeRef> pending = new ArrayList<NodeRef>(nodeRefs.size());
+        for (NodeRef nodeRef : nodeRefs)
+        {
+            if (nodeService.exists(nodeRef) && nodeService.hasAspect(nodeRef, PDFToolkitModel.ASPECT_SIGNATURE_PENDING))
+            {
+                checkContent(nodeRef);
+                pending.add(nodeRef);
+            }
+        }
+
+        int size = batchSize > 0 ? batchSize : pending.size();
+        for (int start = 0; start < pending.size(); start = start + size)
+        {
+            completeBatch(pending.subList(start, Math.min(start + size, pending.size())));
+        }
+
+        return pending.size();
+    }
+
+
+    private void completeBatch(List<NodeRef> batch)
+    {
+        Certificate[] chain = signer.getCertificateChain();
+        Calendar signingTime = Calendar.getInstance();
+
+        PdfPKCS7[] signatures = new PdfPKCS7[batch.size()];
+        byte[][] digests = new byte[batch.size()][];
+        byte[][] attributes = new byte[batch.size()][];
+        byte[][] ocsps = new byte[batch.size()][];
+        RevocationDataCache.RevocationData revocation = null;
+
+        try
+        {
+            for (int i = 0; i < batch.size(); i++)
+            {
+                // the whole batch shares the one chain, and so its revocation data
+                CRL[] crls = null;
+                if (Boolean.TRUE.equals(nodeService.getProperty(batch.get(i), PDFToolkitModel.PROP_PENDING_LTV)))
+                {
+                    revocation = revocation != null ? revocation : revocationDataCache.get(chain);
+                    crls = revocation.getCrls();
+                    ocsps[i] = revocation.getOcsp();
+                }
+                digests[i] = fromHex((String)nodeService.getProperty(batch.get(i), PDFToolkitModel.PROP_PENDING_DIGEST));
+                signatures[i] = new PdfPKCS7(null, chain, crls, digestAlgorithm, null, false);
+                attributes[i] = signatures[i].getAuthenticatedAttributeBytes(digests[i], signingTime, ocsps[i]);
+            }
+
+            byte[][] signed = signer.sign(attributes, digestAlgorithm);
+
+            // the signatures to timestamp get their timestamps together
+            byte[][] encoded = new byte[batch.size()][];
+            List<Integer> timestamped = new ArrayList<Integer>();
+            for (int i = 0; i < batch.size(); i++)
+            {
+                signatures[i].setExternalDigest(signed[i], null, signer.getEncryptionAlgorithm());
+                if (Boolean.TRUE.equals(nodeService.getProperty(batch.get(i), PDFToolkitModel.PROP_PENDING_TIMESTAMP)))
+                {
+                    timestamped.add(i);
+                }
+                else
+                {
+                    encoded[i] = signatures[i].getEncodedPKCS7(digests[i], signingTime, null, ocsps[i]);
+                }
+            }
+            if (!timestamped.isEmpty())
+            {
+                PdfPKCS7[] toStamp = new PdfPKCS7[timestamped.size()];
+                byte[][] stampDigests = new byte[timestamped.size()][];
+                byte[][] stampOcsps = new byte[timestamped.size()][];
+                for (int i = 0; i < toStamp.length; i++)
+                {
+                    toStamp[i] = signatures[timestamped.get(i)];
+                    stampDigests[i] = digests[timestamped.get(i)];
+                    stampOcsps[i] = ocsps[timestamped.get(i)];
+                }
+                byte[][] stamped = timestampClient.encode(toStamp, stampDigests, signingTime, stampOcsps);
+                for (int i = 0; i < stamped.length; i++)
+                {
+                    encoded[timestamped.get(i)] = stamped[i];
+                }
+            }
+
+            for (int i = 0; i < batch.size(); i++)
+            {
+                NodeRef nodeRef = batch.get(i);
+                inject(nodeRef, encoded[i]);
+                nodeService.removeAspect(nodeRef, PDFToolkitModel.ASPECT_SIGNATURE_PENDING);
+            }
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new AlfrescoRuntimeException(e.getMessage(), e);
+        }
+        catch (IOException e)
+        {
+            throw new AlfrescoRuntimeException(e.getMessage(), e);
+        }
+
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Completed " + batch.size() + " deferred signatures");
+        }
+    }
+
+
+    /**
+     * Streams a document through to a new content, writing the signature into the gap
+     * between its signed byte ranges
+     */
+    private void inject(NodeRef nodeRef, byte[] pkcs7)
+        throws IOException
+    {
+        long[] range = parseByteRange((String)nodeService.getProperty(nodeRef, PDFToolkitModel.PROP_PENDING_BYTE_RANGE));
+        long gap = range[2] - range[1];
+        if (pkcs7.length * 2 + 2 > gap)
+        {
+            throw new AlfrescoRuntimeException("Signature of " + pkcs7.length + " bytes doesn't fit the space reserved in "
+                                               + nodeRef);
+        }
+
+        ContentReader reader = contentService.getReader(nodeRef, ContentModel.PROP_CONTENT);
+        ContentWriter writer = contentService.getWriter(nodeRef, ContentModel.PROP_CONTENT, true);
+        writer.setMimetype(MimetypeMap.MIMETYPE_PDF);
+
+        InputStream in = reader.getContentInputStream();
+        OutputStream out = new BufferedOutputStream(writer.getContentOutputStream(), BUFFER_SIZE);
+        try
+        {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            copy(in, out, buffer, range[1]);
+
+            // the gap holds <hex> padded out with zeroes
+            out.write('<');
+            for (int i = 0; i < (gap - 2) / 2; i++)
+            {
+                int b = i < pkcs7.length ? pkcs7[i] & 0xff : 0;
+                out.write(HEX[b >> 4]);
+                out.write(HEX[b & 0x0f]);
+            }
+            out.write('>');
+            skip(in, gap);
+
+            copy(in, out, buffer, Long.MAX_VALUE);
+        }
+        finally
+        {
+            in.close();
+            out.close();
+        }
+    }
+
+
+    /**
+     * Checks that a document still holds the content its signature was reserved in
+     */
+    private void checkContent(NodeRef nodeRef)
+    {
+        String reserved = (String)nodeService.getProperty(nodeRef, PDFToolkitModel.PROP_PENDING_CONTENT);
+        if (reserved == null || !reserved.equals(getContentUrl(nodeRef)))
+        {
+            throw new AlfrescoRuntimeException("The content of " + nodeRef + " has changed since its signature was reserved");
+        }
+    }
+
+
+    private String getContentUrl(NodeRef nodeRef)
+    {
+        ContentData content = (ContentData)nodeService.getProperty(nodeRef, ContentModel.PROP_CONTENT);
+        return content == null ? null : content.getContentUrl();
+    }
+
+
+    private byte[] digest(InputStream in)
+        throws IOException
+    {
+        try
+        {
+            MessageDigest md = MessageDigest.getInstance(digestAlgorithm);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) > 0)
+            {
+                md.update(buffer, 0, read);
+            }
+            return md.digest();
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new AlfrescoRuntimeException(e.getMessage(), e);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Reads the byte range back from the signature dictionary, opening the document
+     * without loading it
+     */
+    private String getByteRange(File file, String fieldName)
+        throws IOException
+    {
+        PdfReader reader = new PdfReader(new RandomAccessFileOrArray(file.getPath()), null);
+        try
+        {
+            AcroFields fields = reader.getAcroFields();
+            PdfArray range = fields.getSignatureDictionary(fieldName).getAsArray(PdfName.BYTERANGE);
+            StringBuilder value = new StringBuilder();
+            for (int i = 0; i < range.size(); i++)
+            {
+                value.append(i > 0 ? " " : "").append(range.getAsNumber(i).intValue());
+            }
+            return value.toString();
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+
+    private static long[] parseByteRange(String value)
+    {
+        String[] parts = value.trim().split(" ");
+        long[] range = new long[parts.length];
+        for (int i = 0; i < parts.length; i++)
+        {
+            range[i] = Long.parseLong(parts[i]);
+        }
+        return range;
+    }
+
+
+    private static void copy(InputStream in, OutputStream out, byte[] buffer, long length)
+        throws IOException
+    {
+        long remaining = length;
+        while (remaining > 0)
+        {
+            int read = in.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+            if (read < 0)
+            {
+                break;
+            }
+            out.write(buffer, 0, read);
+            remaining = remaining - read;
+        }
+    }
+
+
+    private static void skip(InputStream in, long length)
+        throws IOException
+    {
+        long remaining = length;
+        while (remaining > 0)
+        {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0)
+            {
+                if (in.read() < 0)
+                {
+                    throw new IOException("Document ends inside its signature");
+                }
+                skipped = 1;
+            }
+            remaining = remaining - skipped;
+        }
+    }
+
+
+    private static String toHex(byte[] bytes)
+    {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+        {
+            hex.append(HEX[(b >> 4) & 0x0f]).append(HEX[b & 0x0f]);
+        }
+        return hex.toString();
+    }
+
+
+    private static byte[] fromHex(String hex)
+    {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            bytes[i] = (byte)Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+}
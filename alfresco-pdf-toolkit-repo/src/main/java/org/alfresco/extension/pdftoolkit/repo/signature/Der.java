@@ -0,0 +1,324 @@
+/*
+ * Copyright 2008-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.extension.pdftoolkit.repo.signature;
+
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+
+
+/**
+ * Just enough DER to build and read the RFC 3161 timestamp structures, which keeps
+ * the toolkit free of a compile time dependency on a particular Bouncy Castle release.
+ */
+final class Der
+{
+    static final int INTEGER           = 0x02;
+    static final int OCTET_STRING      = 0x04;
+    static final int NULL              = 0x05;
+    static final int OBJECT_IDENTIFIER = 0x06;
+    static final int GENERALIZED_TIME  = 0x18;
+    static final int SEQUENCE          = 0x30;
+    static final int SET               = 0x31;
+    static final int CONTEXT_0         = 0xa0;
+
+
+    private Der()
+    {
+    }
+
+
+    static byte[] encode(int tag, byte[]... contents)
+    {
+        int length = 0;
+        for (byte[] content : contents)
+        {
+            length = length + content.length;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length + 6);
+        out.write(tag);
+        if (length < 0x80)
+        {
+            out.write(length);
+        }
+        else
+        {
+            int bytes = (32 - Integer.numberOfLeadingZeros(length) + 7) / 8;
+            out.write(0x80 | bytes);
+            for (int i = bytes - 1; i >= 0; i--)
+            {
+                out.write(length >> (i * 8));
+            }
+        }
+        for (byte[] content : contents)
+        {
+            out.write(content, 0, content.length);
+        }
+        return out.toByteArray();
+    }
+
+
+    static byte[] sequence(byte[]... contents)
+    {
+        return encode(SEQUENCE, contents);
+    }
+
+
+    /**
+     * A SET OF, with its members in the order DER requires
+     */
+    static byte[] set(byte[]... contents)
+    {
+        byte[][] sorted = contents.clone();
+        Arrays.sort(sorted, new Comparator<byte[]>()
+        {
+            public int compare(byte[] a, byte[] b)
+            {
+                for (int i = 0; i < Math.min(a.length, b.length); i++)
+                {
+                    if (a[i] != b[i])
+                    {
+                        return (a[i] & 0xff) - (b[i] & 0xff);
+                    }
+                }
+                return a.length - b.length;
+            }
+        });
+        return encode(SET, sorted);
+    }
+
+
+    static byte[] integer(BigInteger value)
+    {
+        return encode(INTEGER, value.toByteArray());
+    }
+
+
+    static byte[] octetString(byte[] value)
+    {
+        return encode(OCTET_STRING, value);
+    }
+
+
+    static byte[] nul()
+    {
+        return encode(NULL);
+    }
+
+
+    static byte[] generalizedTime(Date date)
+    {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return encode(GENERALIZED_TIME, ascii(format.format(date)));
+    }
+
+
+    static byte[] oid(String oid)
+    {
+        String[] arcs = oid.split("\\.");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(Integer.parseInt(arcs[0]) * 40 + Integer.parseInt(arcs[1]));
+        for (int i = 2; i < arcs.length; i++)
+        {
+            long arc = Long.parseLong(arcs[i]);
+            int groups = Math.max(1, (64 - Long.numberOfLeadingZeros(arc) + 6) / 7);
+            for (int g = groups - 1; g >= 0; g--)
+            {
+                out.write((int)((arc >> (g * 7)) & 0x7f) | (g > 0 ? 0x80 : 0));
+            }
+        }
+        return encode(OBJECT_IDENTIFIER, out.toByteArray());
+    }
+
+
+    /**
+     * @return an AlgorithmIdentifier with NULL parameters
+     */
+    static byte[] algorithm(String oid)
+    {
+        return sequence(oid(oid), nul());
+    }
+
+
+    /**
+     * @param algorithm a digest algorithm name, such as SHA-256
+     * @return its object identifier
+     */
+    static String digestOid(String algorithm)
+    {
+        String name = algorithm.replace("-", "").toUpperCase();
+        if (name.equals("SHA1"))
+        {
+            return "1.3.14.3.2.26";
+        }
+        else if (name.equals("SHA256"))
+        {
+            return "2.16.840.1.101.3.4.2.1";
+        }
+        else if (name.equals("SHA384"))
+        {
+            return "2.16.840.1.101.3.4.2.2";
+        }
+        else if (name.equals("SHA512"))
+        {
+            return "2.16.840.1.101.3.4.2.3";
+        }
+        throw new AlfrescoRuntimeException("Unsupported digest algorithm " + algorithm);
+    }
+
+
+    /**
+     * @param length the length of a digest
+     * @return the object identifier of the SHA digest of that length
+     */
+    static String digestOid(int length)
+    {
+        switch (length)
+        {
+            case 20:
+                return digestOid("SHA-1");
+            case 32:
+                return digestOid("SHA-256");
+            case 48:
+                return digestOid("SHA-384");
+            case 64:
+                return digestOid("SHA-512");
+            default:
+                throw new AlfrescoRuntimeException("No digest algorithm has " + length + " byte digests");
+        }
+    }
+
+
+    static byte[] ascii(String value)
+    {
+        byte[] bytes = new byte[value.length()];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            bytes[i] = (byte)value.charAt(i);
+        }
+        return bytes;
+    }
+
+
+    /**
+     * Reads the element starting at an offset
+     */
+    static Element read(byte[] data, int offset)
+    {
+        if (offset + 2 > data.length)
+        {
+            throw new AlfrescoRuntimeException("Truncated DER element");
+        }
+
+        int tag = data[offset] & 0xff;
+        int length = data[offset + 1] & 0xff;
+        int header = 2;
+        if (length > 0x7f)
+        {
+            int bytes = length & 0x7f;
+            if (bytes == 0 || bytes > 3 || offset + 2 + bytes > data.length)
+            {
+                throw new AlfrescoRuntimeException("Unsupported DER length");
+            }
+            length = 0;
+            for (int i = 0; i < bytes; i++)
+            {
+                length = (length << 8) | (data[offset + 2 + i] & 0xff);
+            }
+            header = 2 + bytes;
+        }
+        if (offset + header + length > data.length)
+        {
+            throw new AlfrescoRuntimeException("Truncated DER element");
+        }
+        return new Element(data, tag, offset, header, length);
+    }
+
+
+    /**
+     * An element read from an encoding, sharing its bytes
+     */
+    static final class Element
+    {
+        final byte[] data;
+        final int    tag;
+        final int    offset;
+        final int    header;
+        final int    length;
+
+
+        private Element(byte[] data, int tag, int offset, int header, int length)
+        {
+            this.data = data;
+            this.tag = tag;
+            this.offset = offset;
+            this.header = header;
+            this.length = length;
+        }
+
+
+        int end()
+        {
+            return offset + header + length;
+        }
+
+
+        /**
+         * @return the elements inside a constructed element
+         */
+        List<Element> children()
+        {
+            List<Element> children = new ArrayList<Element>();
+            for (int i = offset + header; i < end(); i = children.get(children.size() - 1).end())
+            {
+                children.add(read(data, i));
+            }
+            return children;
+        }
+
+
+        byte[] contents()
+        {
+            return Arrays.copyOfRange(data, offset + header, end());
+        }
+
+
+        byte[] encoded()
+        {
+            return Arrays.copyOfRange(data, offset, end());
+        }
+
+
+        BigInteger integer()
+        {
+            return new BigInteger(contents());
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2008-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.extension.pdftoolkit.repo.signature;
+
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.Certificate;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+
+
+/**
+ * A signer holding its key in a Java key store.  With a file based key store (JKS or
+ * PKCS12) it is a local signer, and it stands in for an HSM in development.  With a
+ * PKCS11 key store and no path, the key stays on the token and only the signing is
+ * handed to it.  The key store is opened on first use.
+ */
+public class KeyStorePDFSigner
+    implements PDFSigner
+{
+    private String        keyStorePath;
+    private String        keyStoreType = "pkcs12";
+    private String        alias;
+    private String        storePassword;
+    private String        keyPassword;
+
+    private PrivateKey    key;
+    private Certificate[] chain;
+
+
+    /**
+     * @param keyStorePath the key store file, empty for key stores that aren't files
+     */
+    public void setKeyStorePath(String keyStorePath)
+    {
+        this.keyStorePath = keyStorePath;
+    }
+
+
+    public void setKeyStoreType(String keyStoreType)
+    {
+        this.keyStoreType = keyStoreType;
+    }
+
+
+    public void setAlias(String alias)
+    {
+        this.alias = alias;
+    }
+
+
+    public void setStorePassword(String storePassword)
+    {
+        this.storePassword = storePassword;
+    }
+
+
+    public void setKeyPassword(String keyPassword)
+    {
+        this.keyPassword = keyPassword;
+    }
+
+
+    /**
+     * @see org.alfresco.extension.pdftoolkit.repo.signature.PDFSigner#getCertificateChain()
+     */
+    public Certificate[] getCertificateChain()
+    {
+        load();
+        return chain;
+    }
+
+
+    /**
+     * @see org.alfresco.extension.pdftoolkit.repo.signature.PDFSigner#getEncryptionAlgorithm()
+     */
+    public String getEncryptionAlgorithm()
+    {
+        load();
+        return key.getAlgorithm();
+    }
+
+
+    /**
+     * @see org.alfresco.extension.pdftoolkit.repo.signature.PDFSigner#sign(byte[][], java.lang.String)
+     */
+    public byte[][] sign(byte[][] data, String digestAlgorithm)
+    {
+        load();
+
+        try
+        {
+            Signature signature = Signature.getInstance(digestAlgorithm.replace("-", "") + "with" + key.getAlgorithm());
+            byte[][] signatures = new byte[data.length][];
+            for (int i = 0; i < data.length; i++)
+            {
+                signature.initSign(key);
+                signature.update(data[i]);
+                signatures[i] = signature.sign();
+            }
+            return signatures;
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new AlfrescoRuntimeException(e.getMessage(), e);
+        }
+    }
+
+
+    private synchronized void load()
+    {
+        if (key != null)
+        {
+            return;
+        }
+        if (alias == null || alias.length() == 0)
+        {
+            throw new AlfrescoRuntimeException("No key is configured for deferred signatures");
+        }
+
+        InputStream is = null;
+        try
+        {
+            KeyStore ks = KeyStore.getInstance(keyStoreType);
+            if (keyStorePath != null && keyStorePath.length() > 0)
+            {
+                is = new FileInputStream(keyStorePath);
+            }
+            ks.load(is, storePassword != null ? storePassword.toCharArray() : null);
+
+            PrivateKey storedKey = (PrivateKey)ks.getKey(alias, keyPassword != null ? keyPassword.toCharArray() : null);
+            Certificate[] storedChain = ks.getCertificateChain(alias);
+            if (storedKey == null || storedChain == null)
+            {
+                throw new AlfrescoRuntimeException("Key store has no private key " + alias);
+            }
+            chain = storedChain;
+            key = storedKey;
+        }
+        catch (IOException e)
+        {
+            throw new AlfrescoRuntimeException(e.getMessage(), e);
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new AlfrescoRuntimeException(e.getMessage(), e);
+        }
+        finally
+        {
+            if (is != null)
+            {
+                try
+                {
+                    is.close();
+                }
+                catch (IOException e)
+                {
+                    // nothing more to do
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2008-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.extension.pdftoolkit.repo.signature;
+
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+
+
+/**
+ * An in-process stand-in for an RFC 3161 time stamping authority, for tests and for
+ * benchmarking signing throughput without a network TSA.  It answers timestamp
+ * requests with tokens signed by a PDFSigner, so any key store holding an RSA key can
+ * act as the authority.  Its tokens are only as trustworthy as that key and the local
+ * clock, so it is not meant for production signatures.
+ */
+public class LocalTimestampAuthority
+{
+    private static final String OID_SIGNED_DATA         = "1.2.840.113549.1.7.2";
+    private static final String OID_TST_INFO            = "1.2.840.113549.1.9.16.1.4";
+    private static final String OID_CONTENT_TYPE        = "1.2.840.113549.1.9.3";
+    private static final String OID_MESSAGE_DIGEST      = "1.2.840.113549.1.9.4";
+    private static final String OID_SIGNING_CERTIFICATE = "1.2.840.113549.1.9.16.2.12";
+    private static final String OID_RSA_ENCRYPTION      = "1.2.840.113549.1.1.1";
+
+    private static final int    STATUS_GRANTED          = 0;
+    private static final int    STATUS_REJECTION        = 2;
+
+    private PDFSigner           signer;
+    private String              digestAlgorithm         = "SHA-256";
+    private String              policy                  = "0.4.0.2023.1.1";
+
+    private final AtomicLong    serialNumber            = new AtomicLong(System.currentTimeMillis());
+
+
+    /**
+     * @param signer the signer holding the authority's key and certificate
+     */
+    public void setSigner(PDFSigner signer)
+    {
+        this.signer = signer;
+    }
+
+
+    public void setDigestAlgorithm(String digestAlgorithm)
+    {
+        this.digestAlgorithm = digestAlgorithm;
+    }
+
+
+    /**
+     * @param policy the object identifier of the policy tokens are issued under
+     */
+    public void setPolicy(String policy)
+    {
+        this.policy = policy;
+    }
+
+
+    /**
+     * Answers a DER encoded TimeStampReq
+     *
+     * @param request
+     * @return the DER encoded TimeStampResp
+     */
+    public byte[] respond(byte[] request)
+    {
+        byte[] imprint;
+        BigInteger nonce = null;
+        boolean certReq = false;
+
+        try
+        {
+            List<Der.Element> fields = Der.read(request, 0).children();
+            imprint = fields.get(1).encoded();
+            for (Der.Element field : fields.subList(2, fields.size()))
+            {
+                if (field.tag == Der.INTEGER)
+                {
+                    nonce = field.integer();
+                }
+                else if (field.tag == 0x01)
+                {
+                    certReq = field.length == 1 && field.data[field.offset + field.header] != 0;
+                }
+            }
+        }
+        catch (RuntimeException e)
+        {
+            // a request that can't be read is rejected, as a TSA would
+            return Der.sequence(Der.sequence(Der.integer(BigInteger.valueOf(STATUS_REJECTION))));
+        }
+
+        return Der.sequence(Der.sequence(Der.integer(BigInteger.valueOf(STATUS_GRANTED))), timestamp(imprint, nonce, certReq));
+    }
+
+
+    /**
+     * Issues a timestamp token
+     *
+     * @param messageImprint the DER encoded MessageImprint to timestamp
+     * @param nonce the request's nonce, or null
+     * @param certReq whether to include the authority's certificates
+     * @return the DER encoded TimeStampToken
+     */
+    private byte[] timestamp(byte[] messageImprint, BigInteger nonce, boolean certReq)
+    {
+        Certificate[] chain = signer.getCertificateChain();
+        if (!"RSA".equalsIgnoreCase(signer.getEncryptionAlgorithm()))
+        {
+            throw new AlfrescoRuntimeException("The local timestamp authority signs with RSA keys only");
+        }
+
+        try
+        {
+            X509Certificate certificate = (X509Certificate)chain[0];
+            String digestOid = Der.digestOid(digestAlgorithm);
+
+            List<byte[]> info = new ArrayList<byte[]>();
+            info.add(Der.integer(BigInteger.ONE));
+            info.add(Der.oid(policy));
+            info.add(messageImprint);
+            info.add(Der.integer(BigInteger.valueOf(serialNumber.incrementAndGet())));
+            info.add(Der.generalizedTime(new Date()));
+            if (nonce != null)
+            {
+                info.add(Der.integer(nonce));
+            }
+            byte[] tstInfo = Der.sequence(info.toArray(new byte[info.size()][]));
+
+            // the signed attributes, which are what the signature covers
+            byte[][] attributes = new byte[][] {
+                Der.sequence(Der.oid(OID_CONTENT_TYPE), Der.set(Der.oid(OID_TST_INFO))),
+                Der.sequence(Der.oid(OID_MESSAGE_DIGEST), Der.set(Der.octetString(MessageDigest.getInstance(digestAlgorithm).digest(tstInfo)))),
+                Der.sequence(Der.oid(OID_SIGNING_CERTIFICATE), Der.set(Der.sequence(Der.sequence(Der.sequence(
+                        Der.octetString(MessageDigest.getInstance("SHA-1").digest(certificate.getEncoded())))))))
+            };
+            byte[] signedAttributes = Der.set(attributes);
+            byte[] signature = signer.sign(new byte[][] { signedAttributes }, digestAlgorithm)[0];
+
+            // the same attributes, tagged as the implicit [0] of the SignerInfo
+            signedAttributes[0] = (byte)Der.CONTEXT_0;
+            byte[] signerInfo = Der.sequence(
+                    Der.integer(BigInteger.ONE),
+                    Der.sequence(certificate.getIssuerX500Principal().getEncoded(), Der.integer(certificate.getSerialNumber())),
+                    Der.algorithm(digestOid),
+                    signedAttributes,
+                    Der.algorithm(OID_RSA_ENCRYPTION),
+                    Der.octetString(signature));
+
+            List<byte[]> signedData = new ArrayList<byte[]>();
+            signedData.add(Der.integer(BigInteger.valueOf(3)));
+            signedData.add(Der.set(Der.algorithm(digestOid)));
+            signedData.add(Der.sequence(Der.oid(OID_TST_INFO), Der.encode(Der.CONTEXT_0, Der.octetString(tstInfo))));
+            if (certReq)
+            {
+                byte[][] certificates = new byte[chain.length][];
+                for (int i = 0; i < chain.length; i++)
+                {
+                    certificates[i] = chain[i].getEncoded();
+                }
+                signedData.add(Der.encode(Der.CONTEXT_0, certificates));
+            }
+            signedData.add(Der.set(signerInfo));
+
+            return Der.sequence(Der.oid(OID_SIGNED_DATA), Der.encode(Der.CONTEXT_0, Der.sequence(signedData.toArray(new byte[signedData.size()][]))));
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new AlfrescoRuntimeException(e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2008-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.extension.pdftoolkit.repo.signature;
+
+
+import java.security.cert.Certificate;
+
+
+/**
+ * Signs on behalf of deferred signatures.  The signer never sees a document, only the
+ * signed attributes of each PKCS#7 signature, and signs a whole batch of them in one
+ * call, so a remote signer such as an HSM is called once per batch rather than once
+ * per document.
+ */
+public interface PDFSigner
+{
+    /**
+     * @return the certificate chain of the signing key, signing certificate first
+     */
+    Certificate[] getCertificateChain();
+
+
+    /**
+     * @return the algorithm of the signing key, e.g. RSA
+     */
+    String getEncryptionAlgorithm();
+
+
+    /**
+     * Signs a batch of data
+     *
+     * @param data the bytes to sign
+     * @param digestAlgorithm the digest algorithm to sign with, e.g. SHA256
+     * @return the signatures, in the order of the data
+     */
+    byte[][] sign(byte[][] data, String digestAlgorithm);
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2008-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.extension.pdftoolkit.repo.signature;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.NodeRef;
+
+
+/**
+ * Parsed certificates of the recipients documents are encrypted for, shared by every
+ * encryption.  A distribution list can run to hundreds of recipients, so each
+ * certificate node's content is read and parsed once, and again only when its content
+ * changes.  Looking a certificate up still reads the node's content property as the
+ * current user, so the user must be able to read the node.
+ */
+public class RecipientCertificateCache
+{
+    private ServiceRegistry     serviceRegistry;
+    private int                 cacheSize = 2048;
+
+    private Map<NodeRef, Entry> entries;
+
+
+    public void setServiceRegistry(ServiceRegistry serviceRegistry)
+    {
+        this.serviceRegistry = serviceRegistry;
+    }
+
+
+    public void setCacheSize(int cacheSize)
+    {
+        this.cacheSize = cacheSize;
+    }
+
+
+    public void init()
+    {
+        entries = new LinkedHashMap<NodeRef, Entry>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<NodeRef, Entry> eldest)
+            {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+
+    /**
+     * Gets the certificates of a set of recipients, once each
+     *
+     * @param recipients nodes holding an X.509 certificate, DER or PEM encoded
+     * @return the certificates, in order
+     */
+    public Certificate[] getCertificates(Collection<NodeRef> recipients)
+    {
+        if (recipients == null || recipients.isEmpty())
+        {
+            throw new AlfrescoRuntimeException("No recipients to encrypt for");
+        }
+
+        Date now = new Date();
+        List<Certificate> certificates = new ArrayList<Certificate>(recipients.size());
+        for (NodeRef recipient : new LinkedHashSet<NodeRef>(recipients))
+        {
+            X509Certificate certificate = getCertificate(recipient);
+            try
+            {
+                certificate.checkValidity(now);
+            }
+            catch (GeneralSecurityException e)
+            {
+                throw new AlfrescoRuntimeException("Recipient certificate " + certificate.getSubjectDN() + " is not valid");
+            }
+            certificates.add(certificate);
+        }
+        return certificates.toArray(new Certificate[certificates.size()]);
+    }
+
+
+    /**
+     * Gets the certificate held by a node, parsing it if the node's content is new
+     *
+     * @param recipient
+     * @return
+     */
+    private X509Certificate getCertificate(NodeRef recipient)
+    {
+        ContentData content = (ContentData)serviceRegistry.getNodeService().getProperty(recipient, ContentModel.PROP_CONTENT);
+        if (content == null || content.getContentUrl() == null)
+        {
+            throw new AlfrescoRuntimeException("Recipient " + recipient + " has no certificate");
+        }
+
+        synchronized (entries)
+        {
+            Entry entry = entries.get(recipient);
+            if (entry != null && entry.contentUrl.equals(content.getContentUrl()))
+            {
+                return entry.certificate;
+            }
+        }
+
+        X509Certificate certificate = parse(recipient);
+        synchronized (entries)
+        {
+            entries.put(recipient, new Entry(content.getContentUrl(), certificate));
+        }
+        return certificate;
+    }
+
+
+    private X509Certificate parse(NodeRef recipient)
+    {
+        ContentReader reader = serviceRegistry.getContentService().getReader(recipient, ContentModel.PROP_CONTENT);
+        InputStream is = reader.getContentInputStream();
+        try
+        {
+            Certificate certificate = CertificateFactory.getInstance("X.509").generateCertificate(is);
+            if (!"RSA".equals(certificate.getPublicKey().getAlgorithm()))
+            {
+                throw new AlfrescoRuntimeException("Recipient " + recipient + " does not have an RSA certificate");
+            }
+            return (X509Certificate)certificate;
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new AlfrescoRuntimeException("Recipient " + recipient + " does not hold a certificate: " + e.getMessage(), e);
+        }
+        finally
+        {
+            try
+            {
+                is.close();
+            }
+            catch (IOException e)
+            {
+                // nothing more to do
+            }
+        }
+    }
+
+
+    private static class Entry
+    {
+        final String          contentUrl;
+        final X509Certificate certificate;
+
+
+        Entry(String contentUrl, X509Certificate certificate)
+        {
+            this.contentUrl = contentUrl;
+            this.certificate = certificate;
+        }
+    }
+}
@@ -0,0 +1,643 @@
+/*
+ * Copyright 2008-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.extension.pdftoolkit.repo.signature;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.cert.CRL;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * Revocation data for long term validation signatures: an OCSP response for the
+ * signing certificate and CRLs for the rest of the chain, or for the signing
+ * certificate too when it names no OCSP responder.  Responses are shared by every
+ * signature made with the same chain until their nextUpdate, so signing throughput
+ * doesn't depend on the responders.  A chain can be pre-warmed, fetching its data in
+ * the background, and with a local directory set responses are read from files
+ * instead, for tests against a stand-in CA: OCSP responses named by the certificate
+ * serial number in hex with an .ocsp extension, and CRLs by the file name of their URL.
+ */
+public class RevocationDataCache
+{
+    private static Log                 logger             = LogFactory.getLog(RevocationDataCache.class);
+
+    private static final String        OID_AIA            = "1.3.6.1.5.5.7.1.1";
+    private static final String        OID_OCSP           = "1.3.6.1.5.5.7.48.1";
+    private static final String        OID_CDP            = "2.5.29.31";
+    private static final int           TAG_URI            = 0x86;
+    private static final int           TAG_ENUMERATED     = 0x0a;
+    private static final int           TAG_REVOKED        = 0xa1;
+
+    private int                        cacheSize          = 1024;
+    private long                       maxCacheTime       = 86400000;
+    private long                       defaultCacheTime   = 3600000;
+    private int                        timeout            = 30000;
+    private int                        threads            = 4;
+    private String                     localDirectory;
+    private boolean                    prewarm            = true;
+
+    private HttpClient                 httpClient;
+    private ExecutorService            executor;
+    private Map<String, Entry>         entries;
+
+
+    public void setCacheSize(int cacheSize)
+    {
+        this.cacheSize = cacheSize;
+    }
+
+
+    /**
+     * @param maxCacheTime the longest, in ms, a response is kept, whatever its nextUpdate
+     */
+    public void setMaxCacheTime(long maxCacheTime)
+    {
+        this.maxCacheTime = maxCacheTime;
+    }
+
+
+    /**
+     * @param defaultCacheTime how long, in ms, a response without a nextUpdate is kept
+     */
+    public void setDefaultCacheTime(long defaultCacheTime)
+    {
+        this.defaultCacheTime = defaultCacheTime;
+    }
+
+
+    public void setTimeout(int timeout)
+    {
+        this.timeout = timeout;
+    }
+
+
+    /**
+     * @param threads how many responses are fetched at the same time
+     */
+    public void setThreads(int threads)
+    {
+        this.threads = threads;
+    }
+
+
+    /**
+     * @param localDirectory a directory of responses to use instead of the network, empty for none
+     */
+    public void setLocalDirectory(String localDirectory)
+    {
+        this.localDirectory = localDirectory;
+    }
+
+
+    /**
+     * @param prewarm whether chains are pre-warmed when their key is first used
+     */
+    public void setPrewarm(boolean prewarm)
+    {
+        this.prewarm = prewarm;
+    }
+
+
+    public void init()
+    {
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+            {
+                return size() > cacheSize;
+            }
+        };
+        executor = Executors.newFixedThreadPool(Math.max(1, threads));
+
+        MultiThreadedHttpConnectionManager connectionManager = new MultiThreadedHttpConnectionManager();
+        connectionManager.getParams().setDefaultMaxConnectionsPerHost(Math.max(2, threads));
+        connectionManager.getParams().setMaxTotalConnections(Math.max(2, threads) * 4);
+        connectionManager.getParams().setConnectionTimeout(timeout);
+        connectionManager.getParams().setSoTimeout(timeout);
+        httpClient = new HttpClient(connectionManager);
+    }
+
+
+    public void destroy()
+    {
+        executor.shutdownNow();
+        ((MultiThreadedHttpConnectionManager)httpClient.getHttpConnectionManager()).shutdown();
+    }
+
+
+    /**
+     * Starts fetching the revocation data of a chain in the background, so that it is
+     * ready by the time a signature needs it
+     *
+     * @param chain the chain, signing certificate first
+     */
+    public void prewarm(Certificate[] chain)
+    {
+        if (!prewarm)
+        {
+            return;
+        }
+        for (Entry entry : getEntries(chain))
+        {
+            entry.start(executor);
+        }
+    }
+
+
+    /**
+     * Gets the revocation data of a chain, waiting for any that isn't cached yet
+     *
+     * @param chain the chain, signing certificate first
+     * @return
+     */
+    public RevocationData get(Certificate[] chain)
+    {
+        List<Entry> chainEntries = getEntries(chain);
+        for (Entry entry : chainEntries)
+        {
+            entry.start(executor);
+        }
+
+        byte[] ocsp = null;
+        List<CRL> crls = new ArrayList<CRL>();
+        for (Entry entry : chainEntries)
+        {
+            Object value = entry.get();
+            if (value instanceof byte[])
+            {
+                ocsp = (byte[])value;
+            }
+            else
+            {
+                crls.add((CRL)value);
+            }
+        }
+        return new RevocationData(ocsp, crls.toArray(new CRL[crls.size()]));
+    }
+
+
+    /**
+     * The cache entries holding a chain's revocation data, replacing expired ones
+     */
+    private List<Entry> getEntries(Certificate[] chain)
+    {
+        List<Entry> chainEntries = new ArrayList<Entry>();
+        long now = System.currentTimeMillis();
+
+        // the root vouches for itself, so there is nothing to check it against
+        for (int i = 0; i < chain.length - 1; i++)
+        {
+            final X509Certificate certificate = (X509Certificate)chain[i];
+            final X509Certificate issuer = (X509Certificate)chain[i + 1];
+            final String ocspUrl = i == 0 ? getOcspUrl(certificate) : null;
+
+            List<String> keys = new ArrayList<String>();
+            List<Callable<Fetched>> fetches = new ArrayList<Callable<Fetched>>();
+            if (ocspUrl != null)
+            {
+                keys.add("ocsp|" + issuer.getSubjectX500Principal().getName() + "|" + certificate.getSerialNumber());
+                fetches.add(new Callable<Fetched>()
+                {
+                    public Fetched call() throws Exception
+                    {
+                        return fetchOcsp(ocspUrl, certificate, issuer);
+                    }
+                });
+            }
+            else
+            {
+                for (final String crlUrl : getCrlUrls(certificate))
+                {
+                    keys.add("crl|" + crlUrl);
+                    fetches.add(new Callable<Fetched>()
+                    {
+                        public Fetched call() throws Exception
+                        {
+                            return fetchCrl(crlUrl);
+                        }
+                    });
+                }
+            }
+
+            synchronized (entries)
+            {
+                for (int k = 0; k < keys.size(); k++)
+                {
+                    Entry entry = entries.get(keys.get(k));
+                    if (entry == null || entry.isExpired(now))
+                    {
+                        entry = new Entry(fetches.get(k));
+                        entries.put(keys.get(k), entry);
+                    }
+                    if (!chainEntries.contains(entry))
+                    {
+                        chainEntries.add(entry);
+                    }
+                }
+            }
+        }
+        return chainEntries;
+    }
+
+
+    /**
+     * Fetches the OCSP response for a certificate
+     */
+    private Fetched fetchOcsp(String url, X509Certificate certificate, X509Certificate issuer)
+        throws IOException, GeneralSecurityException
+    {
+        byte[] response;
+        if (localDirectory != null && localDirectory.length() > 0)
+        {
+            response = readFile(new File(localDirectory, certificate.getSerialNumber().toString(16) + ".ocsp"));
+        }
+        else
+        {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] issuerKey = Der.read(issuer.getPublicKey().getEncoded(), 0).children().get(1).contents();
+            byte[] certId = Der.sequence(
+                    Der.algorithm(Der.digestOid("SHA-1")),
+                    Der.octetString(sha1.digest(issuer.getSubjectX500Principal().getEncoded())),
+                    Der.octetString(sha1.digest(Arrays.copyOfRange(issuerKey, 1, issuerKey.length))),
+                    Der.integer(certificate.getSerialNumber()));
+            byte[] request = Der.sequence(Der.sequence(Der.sequence(Der.sequence(certId))));
+
+            PostMethod post = new PostMethod(url);
+            post.setRequestEntity(new ByteArrayRequestEntity(request, "application/ocsp-request"));
+            response = execute(post);
+        }
+
+        // OCSPResponse: status, then the BasicOCSPResponse wrapped in ResponseBytes
+        List<Der.Element> fields = Der.read(response, 0).children();
+        if (fields.get(0).tag != TAG_ENUMERATED || fields.get(0).integer().intValue() != 0 || fields.size() < 2)
+        {
+            throw new AlfrescoRuntimeException("OCSP responder " + url + " refused the request for " + certificate.getSubjectX500Principal());
+        }
+        Der.Element responseBytes = fields.get(1).children().get(0);
+        byte[] basic = responseBytes.children().get(1).contents();
+
+        // the responses are the only SEQUENCE in the ResponseData
+        Date nextUpdate = null;
+        Der.Element tbs = Der.read(basic, 0).children().get(0);
+        for (Der.Element responses : tbs.children())
+        {
+            if (responses.tag != Der.SEQUENCE)
+            {
+                continue;
+            }
+            for (Der.Element single : responses.children())
+            {
+                List<Der.Element> parts = single.children();
+                if (!parts.get(0).children().get(3).integer().equals(certificate.getSerialNumber()))
+                {
+                    continue;
+                }
+                if (parts.get(1).tag == TAG_REVOKED)
+                {
+                    throw new AlfrescoRuntimeException("Certificate " + certificate.getSubjectX500Principal() + " has been revoked");
+                }
+                if (parts.size() > 3 && parts.get(3).tag == Der.CONTEXT_0)
+                {
+                    nextUpdate = parseTime(parts.get(3).children().get(0));
+                }
+            }
+        }
+        return new Fetched(basic, nextUpdate);
+    }
+
+
+    /**
+     * Fetches a CRL
+     */
+    private Fetched fetchCrl(String url)
+        throws IOException, GeneralSecurityException
+    {
+        byte[] encoded;
+        if (localDirectory != null && localDirectory.length() > 0)
+        {
+            encoded = readFile(new File(localDirectory, url.substring(url.lastIndexOf('/') + 1)));
+        }
+        else
+        {
+            encoded = execute(new GetMethod(url));
+        }
+
+        X509CRL crl = (X509CRL)CertificateFactory.getInstance("X.509").generateCRL(new ByteArrayInputStream(encoded));
+        return new Fetched(crl, crl.getNextUpdate());
+    }
+
+
+    private byte[] execute(HttpMethodBase method)
+        throws IOException
+    {
+        try
+        {
+            int status = httpClient.executeMethod(method);
+            if (status != HttpStatus.SC_OK)
+            {
+                throw new AlfrescoRuntimeException("Revocation data server " + method.getURI() + " answered " + status);
+            }
+            return method.getResponseBody();
+        }
+        finally
+        {
+            method.releaseConnection();
+        }
+    }
+
+
+    private static byte[] readFile(File file)
+        throws IOException
+    {
+        byte[] data = new byte[(int)file.length()];
+        InputStream in = new FileInputStream(file);
+        try
+        {
+            int offset = 0;
+            for (int read = 0; offset < data.length && read != -1; offset = offset + read)
+            {
+                read = in.read(data, offset, data.length - offset);
+            }
+            return data;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+
+    /**
+     * @return the OCSP responder named in a certificate's authority information access, or null
+     */
+    private static String getOcspUrl(X509Certificate certificate)
+    {
+        byte[] extension = certificate.getExtensionValue(OID_AIA);
+        if (extension == null)
+        {
+            return null;
+        }
+
+        byte[] ocsp = Der.oid(OID_OCSP);
+        for (Der.Element access : Der.read(Der.read(extension, 0).contents(), 0).children())
+        {
+            List<Der.Element> parts = access.children();
+            if (Arrays.equals(parts.get(0).encoded(), ocsp) && parts.get(1).tag == TAG_URI)
+            {
+                return new String(parts.get(1).contents());
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * @return the URLs in a certificate's CRL distribution points
+     */
+    private static List<String> getCrlUrls(X509Certificate certificate)
+    {
+        List<String> urls = new ArrayList<String>();
+        byte[] extension = certificate.getExtensionValue(OID_CDP);
+        if (extension != null)
+        {
+            collectUris(Der.read(Der.read(extension, 0).contents(), 0), urls);
+        }
+        return urls;
+    }
+
+
+    private static void collectUris(Der.Element element, List<String> urls)
+    {
+        if (element.tag == TAG_URI)
+        {
+            String url = new String(element.contents());
+            if (url.startsWith("http"))
+            {
+                urls.add(url);
+            }
+        }
+        else if ((element.tag & 0x20) != 0)
+        {
+            for (Der.Element child : element.children())
+            {
+                collectUris(child, urls);
+            }
+        }
+    }
+
+
+    private static Date parseTime(Der.Element time)
+    {
+        String value = new String(time.contents());
+        int fraction = value.indexOf('.');
+        if (fraction >= 0)
+        {
+            value = value.substring(0, fraction) + "Z";
+        }
+        try
+        {
+            SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss'Z'");
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return format.parse(value);
+        }
+        catch (ParseException e)
+        {
+            return null;
+        }
+    }
+
+
+    /**
+     * The revocation data for one chain
+     */
+    public static class RevocationData
+    {
+        private final byte[] ocsp;
+        private final CRL[]  crls;
+
+
+        private RevocationData(byte[] ocsp, CRL[] crls)
+        {
+            this.ocsp = ocsp;
+            this.crls = crls;
+        }
+
+
+        /**
+         * @return the BasicOCSPResponse for the signing certificate, or null
+         */
+        public byte[] getOcsp()
+        {
+            return ocsp;
+        }
+
+
+        public CRL[] getCrls()
+        {
+            return crls;
+        }
+
+
+        /**
+         * @return roughly how many bytes the data adds to a PKCS#7 signature
+         */
+        public int getEncodedSize()
+        {
+            int size = ocsp != null ? ocsp.length : 0;
+            for (CRL crl : crls)
+            {
+                try
+                {
+                    size = size + ((X509CRL)crl).getEncoded().length;
+                }
+                catch (GeneralSecurityException e)
+                {
+                    throw new AlfrescoRuntimeException(e.getMessage(), e);
+                }
+            }
+            return size;
+        }
+    }
+
+
+    private static class Fetched
+    {
+        private final Object value;
+        private final Date   nextUpdate;
+        private final long   fetchedAt = System.currentTimeMillis();
+
+
+        private Fetched(Object value, Date nextUpdate)
+        {
+            this.value = value;
+            this.nextUpdate = nextUpdate;
+        }
+    }
+
+
+    /**
+     * A cached response, fetched once however many signatures ask for it
+     */
+    private class Entry
+    {
+        private final FutureTask<Fetched> task;
+        private boolean                   started;
+
+
+        private Entry(Callable<Fetched> fetch)
+        {
+            task = new FutureTask<Fetched>(fetch);
+        }
+
+
+        private synchronized void start(ExecutorService executor)
+        {
+            if (!started)
+            {
+                started = true;
+                executor.execute(task);
+            }
+        }
+
+
+        /**
+         * A response expires at its nextUpdate, and a failed fetch straight away so
+         * that the next signature tries again.  One still being fetched hasn't expired.
+         */
+        private boolean isExpired(long now)
+        {
+            if (!task.isDone())
+            {
+                return false;
+            }
+            try
+            {
+                Fetched fetched = task.get();
+                long fetchedAt = fetched.fetchedAt;
+                long until = fetched.nextUpdate != null ? fetched.nextUpdate.getTime() : fetchedAt + defaultCacheTime;
+                return Math.min(until, fetchedAt + maxCacheTime) <= now;
+            }
+            catch (Exception e)
+            {
+                return true;
+            }
+        }
+
+
+        private Object get()
+        {
+            try
+            {
+                return task.get().value;
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new AlfrescoRuntimeException(e.getMessage(), e);
+            }
+            catch (ExecutionException e)
+            {
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Could not fetch revocation data", e.getCause());
+                }
+                throw new AlfrescoRuntimeException(e.getCause().getMessage(), e.getCause());
+            }
+        }
+    }
+}
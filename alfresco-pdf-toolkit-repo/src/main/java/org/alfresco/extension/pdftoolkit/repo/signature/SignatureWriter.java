@@ -0,0 +1,152 @@
+/*
+ * Copyright 2008-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.extension.pdftoolkit.repo.signature;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Calendar;
+import java.util.HashMap;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.pdf.PdfDate;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfPKCS7;
+import com.itextpdf.text.pdf.PdfSignature;
+import com.itextpdf.text.pdf.PdfSignatureAppearance;
+import com.itextpdf.text.pdf.PdfString;
+
+
+/**
+ * Signs a signature appearance with a PKCS#7 signature built here rather than by the
+ * stamper, which is how iText takes a timestamp or embedded revocation data.  The
+ * space reserved for the signature grows by the size of the revocation data and the
+ * expected size of the timestamp token.
+ */
+public class SignatureWriter
+{
+    private static final int    BUFFER_SIZE     = 8192;
+
+    private TimestampClient     timestampClient;
+    private RevocationDataCache revocationDataCache;
+    private String              digestAlgorithm = "SHA-256";
+    private int                 contentSize     = 8192;
+
+
+    public void setTimestampClient(TimestampClient timestampClient)
+    {
+        this.timestampClient = timestampClient;
+    }
+
+
+    public void setRevocationDataCache(RevocationDataCache revocationDataCache)
+    {
+        this.revocationDataCache = revocationDataCache;
+    }
+
+
+    public void setDigestAlgorithm(String digestAlgorithm)
+    {
+        this.digestAlgorithm = digestAlgorithm;
+    }
+
+
+    /**
+     * @param contentSize the bytes reserved for the signature, not counting timestamps and revocation data
+     */
+    public void setContentSize(int contentSize)
+    {
+        this.contentSize = contentSize;
+    }
+
+
+    /**
+     * Signs and closes a signature appearance
+     *
+     * @param sap
+     * @param key
+     * @param chain
+     * @param timestamp whether to add a timestamp
+     * @param ltv whether to embed the chain's revocation data
+     * @throws IOException
+     * @throws DocumentException
+     */
+    public void sign(PdfSignatureAppearance sap, PrivateKey key, Certificate[] chain, boolean timestamp, boolean ltv)
+        throws IOException, DocumentException
+    {
+        if (timestamp && (timestampClient == null || !timestampClient.isEnabled()))
+        {
+            throw new AlfrescoRuntimeException("No timestamp authority is configured");
+        }
+        RevocationDataCache.RevocationData revocation = ltv ? revocationDataCache.get(chain) : null;
+
+        PdfSignature dic = new PdfSignature(PdfName.ADOBE_PPKLITE, PdfName.ADBE_PKCS7_DETACHED);
+        dic.setReason(sap.getReason());
+        dic.setLocation(sap.getLocation());
+        dic.setDate(new PdfDate(sap.getSignDate()));
+        dic.setName(PdfPKCS7.getSubjectFields((X509Certificate)chain[0]).getField("CN"));
+        sap.setCryptoDictionary(dic);
+
+        int size = contentSize + (timestamp ? timestampClient.getTokenSizeEstimate() : 0) + (revocation != null ? revocation.getEncodedSize() : 0);
+        HashMap<PdfName, Integer> exclusions = new HashMap<PdfName, Integer>();
+        exclusions.put(PdfName.CONTENTS, new Integer(size * 2 + 2));
+        sap.preClose(exclusions);
+
+        try
+        {
+            MessageDigest md = MessageDigest.getInstance(digestAlgorithm);
+            InputStream in = sap.getRangeStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (int read = in.read(buffer); read != -1; read = in.read(buffer))
+            {
+                md.update(buffer, 0, read);
+            }
+            byte[] digest = md.digest();
+
+            Calendar signingTime = sap.getSignDate();
+            byte[] ocsp = revocation != null ? revocation.getOcsp() : null;
+            PdfPKCS7 sgn = new PdfPKCS7(key, chain, revocation != null ? revocation.getCrls() : null, digestAlgorithm, null, false);
+            byte[] attributes = sgn.getAuthenticatedAttributeBytes(digest, signingTime, ocsp);
+            sgn.update(attributes, 0, attributes.length);
+            byte[] encoded = sgn.getEncodedPKCS7(digest, signingTime, timestamp ? timestampClient : null, ocsp);
+            if (encoded.length > size)
+            {
+                throw new AlfrescoRuntimeException("Signature of " + encoded.length + " bytes does not fit the " + size + " reserved");
+            }
+
+            byte[] contents = new byte[size];
+            System.arraycopy(encoded, 0, contents, 0, encoded.length);
+            PdfDictionary update = new PdfDictionary();
+            update.put(PdfName.CONTENTS, new PdfString(contents).setHexWriting(true));
+            sap.close(update);
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new AlfrescoRuntimeException(e.getMessage(), e);
+        }
+    }
+}
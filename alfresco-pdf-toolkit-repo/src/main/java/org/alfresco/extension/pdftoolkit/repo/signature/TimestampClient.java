@@ -0,0 +1,364 @@
+/*
+ * Copyright 2008-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.extension.pdftoolkit.repo.signature;
+
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.itextpdf.text.pdf.PdfPKCS7;
+import com.itextpdf.text.pdf.TSAClient;
+
+
+/**
+ * Gets RFC 3161 timestamps for signatures.  Requests go over a pool of kept alive
+ * connections to the TSA rather than a new connection each, and a cap on how many
+ * requests are outstanding at once keeps a busy repository from swamping the TSA.
+ * RFC 3161 has one imprint per request, so a batch of signatures is timestamped by
+ * sending its requests at the same time over the pool.  Requests can be answered by
+ * an in-process authority instead, for tests and benchmarking.
+ */
+public class TimestampClient
+    implements TSAClient
+{
+    private static Log              logger            = LogFactory.getLog(TimestampClient.class);
+
+    private static final String     CONTENT_TYPE      = "application/timestamp-query";
+
+    private String                  url;
+    private String                  username;
+    private String                  password;
+    private String                  policy;
+    private int                     maxConnections    = 20;
+    private int                     maxConcurrent     = 8;
+    private int                     timeout           = 30000;
+    private int                     tokenSizeEstimate = 8192;
+    private LocalTimestampAuthority localAuthority;
+    private boolean                 useLocalAuthority;
+
+    private HttpClient              httpClient;
+    private Semaphore               permits;
+    private ExecutorService         executor;
+    private final SecureRandom      random            = new SecureRandom();
+
+
+    /**
+     * @param url the TSA's URL, empty for no timestamps unless the local authority is used
+     */
+    public void setUrl(String url)
+    {
+        this.url = url;
+    }
+
+
+    public void setUsername(String username)
+    {
+        this.username = username;
+    }
+
+
+    public void setPassword(String password)
+    {
+        this.password = password;
+    }
+
+
+    /**
+     * @param policy the object identifier of the policy to request, empty for the TSA's default
+     */
+    public void setPolicy(String policy)
+    {
+        this.policy = policy;
+    }
+
+
+    /**
+     * @param maxConnections the most connections kept open to the TSA
+     */
+    public void setMaxConnections(int maxConnections)
+    {
+        this.maxConnections = maxConnections;
+    }
+
+
+    /**
+     * @param maxConcurrent the most requests outstanding at once, across all signing threads
+     */
+    public void setMaxConcurrent(int maxConcurrent)
+    {
+        this.maxConcurrent = maxConcurrent;
+    }
+
+
+    /**
+     * @param timeout how long, in ms, to wait to connect, for a response or for a turn
+     */
+    public void setTimeout(int timeout)
+    {
+        this.timeout = timeout;
+    }
+
+
+    public void setTokenSizeEstimate(int tokenSizeEstimate)
+    {
+        this.tokenSizeEstimate = tokenSizeEstimate;
+    }
+
+
+    public void setLocalAuthority(LocalTimestampAuthority localAuthority)
+    {
+        this.localAuthority = localAuthority;
+    }
+
+
+    /**
+     * @param useLocalAuthority whether to answer requests with the in-process authority instead of the TSA
+     */
+    public void setUseLocalAuthority(boolean useLocalAuthority)
+    {
+        this.useLocalAuthority = useLocalAuthority;
+    }
+
+
+    public void init()
+    {
+        permits = new Semaphore(Math.max(1, maxConcurrent), true);
+        executor = Executors.newFixedThreadPool(Math.max(1, maxConcurrent));
+
+        MultiThreadedHttpConnectionManager connectionManager = new MultiThreadedHttpConnectionManager();
+        connectionManager.getParams().setDefaultMaxConnectionsPerHost(maxConnections);
+        connectionManager.getParams().setMaxTotalConnections(maxConnections);
+        connectionManager.getParams().setConnectionTimeout(timeout);
+        connectionManager.getParams().setSoTimeout(timeout);
+        httpClient = new HttpClient(connectionManager);
+        if (username != null && username.length() > 0)
+        {
+            httpClient.getParams().setAuthenticationPreemptive(true);
+            httpClient.getState().setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(username, password));
+        }
+    }
+
+
+    public void destroy()
+    {
+        executor.shutdownNow();
+        ((MultiThreadedHttpConnectionManager)httpClient.getHttpConnectionManager()).shutdown();
+    }
+
+
+    /**
+     * @return true if there is a TSA, or a local authority, to get timestamps from
+     */
+    public boolean isEnabled()
+    {
+        return (useLocalAuthority && localAuthority != null) || (url != null && url.length() > 0);
+    }
+
+
+    /**
+     * @see com.itextpdf.text.pdf.TSAClient#getTokenSizeEstimate()
+     */
+    public int getTokenSizeEstimate()
+    {
+        return tokenSizeEstimate;
+    }
+
+
+    /**
+     * @see com.itextpdf.text.pdf.TSAClient#getTimeStampToken(com.itextpdf.text.pdf.PdfPKCS7, byte[])
+     */
+    public byte[] getTimeStampToken(PdfPKCS7 caller, byte[] imprint)
+        throws Exception
+    {
+        if (!isEnabled())
+        {
+            throw new AlfrescoRuntimeException("No timestamp authority is configured");
+        }
+
+        List<byte[]> request = new ArrayList<byte[]>();
+        request.add(Der.integer(BigInteger.ONE));
+        request.add(Der.sequence(Der.algorithm(Der.digestOid(imprint.length)), Der.octetString(imprint)));
+        if (policy != null && policy.length() > 0)
+        {
+            request.add(Der.oid(policy));
+        }
+        request.add(Der.integer(new BigInteger(63, random)));
+        request.add(new byte[] { 0x01, 0x01, (byte)0xff });
+
+        if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS))
+        {
+            throw new AlfrescoRuntimeException("Timed out waiting for a turn at the timestamp authority");
+        }
+        byte[] response;
+        try
+        {
+            byte[] encoded = Der.sequence(request.toArray(new byte[request.size()][]));
+            response = useLocalAuthority && localAuthority != null ? localAuthority.respond(encoded) : post(encoded);
+        }
+        finally
+        {
+            permits.release();
+        }
+
+        return getToken(response, imprint);
+    }
+
+
+    /**
+     * Encodes a batch of signatures with timestamps, requesting the timestamps at the
+     * same time.  The signatures must already hold their signed digests.
+     *
+     * @param signatures
+     * @param digests the digests of the signed documents
+     * @param signingTime
+     * @param ocsps the OCSP response to embed in each signature, or null for none
+     * @return the encoded PKCS#7 signatures, in order
+     */
+    public byte[][] encode(final PdfPKCS7[] signatures, final byte[][] digests, final Calendar signingTime, final byte[][] ocsps)
+    {
+        List<Future<byte[]>> results = new ArrayList<Future<byte[]>>(signatures.length);
+        for (int i = 0; i < signatures.length; i++)
+        {
+            final int index = i;
+            results.add(executor.submit(new Callable<byte[]>()
+            {
+                public byte[] call() throws Exception
+                {
+                    return signatures[index].getEncodedPKCS7(digests[index], signingTime, TimestampClient.this, ocsps != null ? ocsps[index] : null);
+                }
+            }));
+        }
+
+        try
+        {
+            byte[][] encoded = new byte[signatures.length][];
+            for (int i = 0; i < signatures.length; i++)
+            {
+                encoded[i] = results.get(i).get();
+            }
+            return encoded;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new AlfrescoRuntimeException(e.getMessage(), e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new AlfrescoRuntimeException(e.getCause().getMessage(), e.getCause());
+        }
+        finally
+        {
+            for (Future<byte[]> result : results)
+            {
+                result.cancel(true);
+            }
+        }
+    }
+
+
+    /**
+     * Posts a request to the TSA over a pooled connection
+     */
+    private byte[] post(byte[] request)
+        throws IOException
+    {
+        PostMethod post = new PostMethod(url);
+        try
+        {
+            post.setRequestEntity(new ByteArrayRequestEntity(request, CONTENT_TYPE));
+            int status = httpClient.executeMethod(post);
+            if (status != HttpStatus.SC_OK)
+            {
+                throw new AlfrescoRuntimeException("Timestamp authority " + url + " answered " + status);
+            }
+            return post.getResponseBody();
+        }
+        finally
+        {
+            // hands the connection back to the pool
+            post.releaseConnection();
+        }
+    }
+
+
+    /**
+     * Takes the token out of a TimeStampResp, checking it was granted for the imprint
+     */
+    private byte[] getToken(byte[] response, byte[] imprint)
+    {
+        List<Der.Element> fields = Der.read(response, 0).children();
+        int status = fields.get(0).children().get(0).integer().intValue();
+        if (status > 1 || fields.size() < 2)
+        {
+            throw new AlfrescoRuntimeException("Timestamp authority refused the request with status " + status);
+        }
+
+        byte[] token = fields.get(1).encoded();
+        if (indexOf(token, imprint) < 0)
+        {
+            throw new AlfrescoRuntimeException("Timestamp authority answered for a different imprint");
+        }
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Timestamp token of " + token.length + " bytes");
+        }
+        return token;
+    }
+
+
+    private static int indexOf(byte[] data, byte[] pattern)
+    {
+        outer:
+        for (int i = 0; i <= data.length - pattern.length; i++)
+        {
+            for (int j = 0; j < pattern.length; j++)
+            {
+                if (data[i + j] != pattern[j])
+                {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,869 @@
+/*
+ * Copyright 2008-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.extension.pdftoolkit.repo.structure;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.alfresco.extension.pdftoolkit.repo.admission.PDFAdmissionController;
+
+
+/**
+ * A quick look at a PDF file that reads only its header, its trailer and the cross
+ * reference entries it needs, a few small reads wherever the file is large, without
+ * parsing the document.  It finds the PDF version and whether the document is
+ * encrypted, checks that the cross reference data leads to the objects it claims to,
+ * and follows the catalog to the page tree's page count.  Cross reference streams and
+ * object streams are inflated to find the catalog and page tree, as long as they are
+ * small enough; the page count is left unknown for anything larger.
+ */
+public class PDFPreflight
+{
+    /**
+     * Bytes read at a time, enough for a trailer or the start of an object
+     */
+    private static final int     WINDOW      = 4096;
+
+    /**
+     * Bytes per cross reference table entry
+     */
+    private static final int     ENTRY       = 20;
+
+    /**
+     * Most cross reference sections followed through /Prev
+     */
+    private static final int     MAX_HOPS    = 64;
+
+    /**
+     * Largest cross reference or object stream inflated, before and after inflating
+     */
+    private static final int     MAX_STREAM  = 1024 * 1024;
+    private static final int     MAX_INFLATED = 8 * 1024 * 1024;
+
+    private static final Pattern HEADER      = Pattern.compile("%PDF-(\\d\\.\\d)");
+    private static final Pattern STARTXREF   = Pattern.compile("startxref\\s+(\\d+)");
+    private static final Pattern XREF        = Pattern.compile("\\s*xref\\s*");
+    private static final Pattern SUBSECTION  = Pattern.compile("\\s*(\\d+) +(\\d+) *(\\r\\n|\\r|\\n)");
+    private static final Pattern ENTRY_LINE  = Pattern.compile("(\\d{10}) (\\d{5}) ([nf])");
+    private static final Pattern TRAILER     = Pattern.compile("\\s*trailer\\s*");
+    private static final Pattern OBJECT      = Pattern.compile("\\s*(\\d+)\\s+(\\d+)\\s+obj");
+    private static final Pattern ROOT        = Pattern.compile("/Root\\s+(\\d+)\\s+\\d+\\s+R");
+    private static final Pattern PAGES       = Pattern.compile("/Pages\\s+(\\d+)\\s+\\d+\\s+R");
+    private static final Pattern PREV        = Pattern.compile("/Prev\\s+(\\d+)");
+    private static final Pattern COUNT       = Pattern.compile("/Count\\s+(\\d+)");
+    private static final Pattern LENGTH      = Pattern.compile("/Length\\s+(\\d+)(\\s+\\d+\\s+R)?");
+    private static final Pattern FILTER      = Pattern.compile("/Filter\\s*(\\[\\s*)?/(\\w+)\\s*(\\])?");
+    private static final Pattern PREDICTOR   = Pattern.compile("/Predictor\\s+(\\d+)");
+    private static final Pattern COLUMNS     = Pattern.compile("/Columns\\s+(\\d+)");
+    private static final Pattern WIDTHS      = Pattern.compile("/W\\s*\\[\\s*(\\d+)\\s+(\\d+)\\s+(\\d+)\\s*\\]");
+    private static final Pattern INDEX       = Pattern.compile("/Index\\s*\\[([\\d\\s]*)\\]");
+    private static final Pattern SIZE        = Pattern.compile("/Size\\s+(\\d+)");
+    private static final Pattern FIRST       = Pattern.compile("/First\\s+(\\d+)");
+
+    private static final long    NOT_FOUND   = -1;
+    private static final long    FREE        = -2;
+
+    private final FileChannel    channel;
+    private final long           size;
+
+    private String               version;
+    private boolean              encrypted;
+    private boolean              xrefDamaged;
+    private int                  pageCount   = PDFAdmissionController.UNKNOWN_PAGE_COUNT;
+
+
+    private PDFPreflight(FileChannel channel)
+        throws IOException
+    {
+        this.channel = channel;
+        this.size = channel.size();
+    }
+
+
+    /**
+     * Takes a quick look at a PDF file
+     *
+     * @param channel the file, which is left open
+     * @return what was found
+     * @throws IOException
+     */
+    public static PDFPreflight scan(FileChannel channel)
+        throws IOException
+    {
+        PDFPreflight preflight = new PDFPreflight(channel);
+        preflight.scan();
+        return preflight;
+    }
+
+
+    /**
+     * @return true if the file starts with a PDF header
+     */
+    public boolean isPdf()
+    {
+        return version != null;
+    }
+
+
+    /**
+     * @return the version in the header, for example "1.4", or null if there is none
+     */
+    public String getVersion()
+    {
+        return version;
+    }
+
+
+    public boolean isEncrypted()
+    {
+        return encrypted;
+    }
+
+
+    /**
+     * @return true if the cross reference table is missing or doesn't match the file,
+     * so that readers will have to rebuild it
+     */
+    public boolean isXrefDamaged()
+    {
+        return xrefDamaged;
+    }
+
+
+    /**
+     * @return the page count, or UNKNOWN_PAGE_COUNT
+     */
+    public int getPageCount()
+    {
+        return pageCount;
+    }
+
+
+    private void scan()
+        throws IOException
+    {
+        Matcher header = HEADER.matcher(read(0, 1024));
+        if (!header.find())
+        {
+            return;
+        }
+        version = header.group(1);
+
+        // the last startxref is the one of the newest revision
+        String tail = read(Math.max(0, size - WINDOW), WINDOW);
+        long xref = -1;
+        Matcher startxref = STARTXREF.matcher(tail);
+        while (startxref.find())
+        {
+            xref = Long.parseLong(startxref.group(1));
+        }
+
+        try
+        {
+            if (xref < 0 || xref >= size)
+            {
+                throw new DamagedXrefException();
+            }
+
+            String section = read(xref, WINDOW);
+            if (XREF.matcher(section).lookingAt())
+            {
+                scanTable(xref);
+            }
+            else if (OBJECT.matcher(section).lookingAt())
+            {
+                // a cross reference stream, whose dictionary is the trailer
+                int stream = section.indexOf("stream");
+                encrypted = (stream < 0 ? section : section.substring(0, stream)).contains("/Encrypt");
+                if (!encrypted)
+                {
+                    scanStream(xref);
+                }
+            }
+            else
+            {
+                throw new DamagedXrefException();
+            }
+        }
+        catch (DamagedXrefException e)
+        {
+            // without a usable trailer, the tail of the file is the best guess
+            xrefDamaged = true;
+            encrypted = tail.contains("/Encrypt");
+        }
+    }
+
+
+    /**
+     * Reads the trailer of the newest cross reference table, then follows the catalog
+     * to the root of the page tree
+     */
+    private void scanTable(long xref)
+        throws IOException
+    {
+        String trailer = readTrailer(xref);
+        encrypted = trailer.contains("/Encrypt");
+        if (encrypted)
+        {
+            // the objects can't be read without decrypting them
+            return;
+        }
+
+        Matcher root = ROOT.matcher(trailer);
+        if (!root.find())
+        {
+            throw new DamagedXrefException();
+        }
+        String catalog = readObject(Integer.parseInt(root.group(1)), xref);
+        if (catalog == null)
+        {
+            return;
+        }
+
+        Matcher pages = PAGES.matcher(catalog);
+        if (!pages.find())
+        {
+            return;
+        }
+        String pageTree = readObject(Integer.parseInt(pages.group(1)), xref);
+        if (pageTree == null)
+        {
+            return;
+        }
+
+        Matcher count = COUNT.matcher(pageTree);
+        if (count.find())
+        {
+            pageCount = Integer.parseInt(count.group(1));
+        }
+    }
+
+
+    /**
+     * Reads the newest cross reference stream, then follows the catalog to the root of
+     * the page tree, through object streams where the objects are kept in them
+     */
+    private void scanStream(long xref)
+        throws IOException
+    {
+        XrefStream stream = readXrefStream(xref);
+        if (stream == null)
+        {
+            return;
+        }
+
+        Matcher root = ROOT.matcher(stream.dictionary);
+        if (!root.find())
+        {
+            throw new DamagedXrefException();
+        }
+        String catalog = readStreamObject(Integer.parseInt(root.group(1)), stream);
+        if (catalog == null)
+        {
+            return;
+        }
+
+        Matcher pages = PAGES.matcher(catalog);
+        if (!pages.find())
+        {
+            return;
+        }
+        String pageTree = readStreamObject(Integer.parseInt(pages.group(1)), stream);
+        if (pageTree == null)
+        {
+            return;
+        }
+
+        Matcher count = COUNT.matcher(pageTree);
+        if (count.find())
+        {
+            pageCount = Integer.parseInt(count.group(1));
+        }
+    }
+
+
+    /**
+     * Reads an object through cross reference streams, from the newest one that has it
+     *
+     * @return the object's dictionary, or null if it can't be found this way
+     */
+    private String readStreamObject(int number, XrefStream newest)
+        throws IOException
+    {
+        XrefStream stream = newest;
+        for (int hops = 0; hops < MAX_HOPS && stream != null; hops++)
+        {
+            long[] entry = stream.lookup(number);
+            if (entry != null)
+            {
+                if (entry[0] == 1)
+                {
+                    return readObjectAt(entry[1], number);
+                }
+                if (entry[0] == 2)
+                {
+                    return readCompressedObject(number, (int)entry[1], newest);
+                }
+                return null;
+            }
+
+            Matcher prev = PREV.matcher(stream.dictionary);
+            if (!prev.find())
+            {
+                return null;
+            }
+            long section = Long.parseLong(prev.group(1));
+            if (section >= size)
+            {
+                throw new DamagedXrefException();
+            }
+            stream = readXrefStream(section);
+        }
+        return null;
+    }
+
+
+    /**
+     * Reads an object kept in an object stream
+     *
+     * @return the object, or null if the object stream is too large to inflate
+     */
+    private String readCompressedObject(int number, int streamNumber, XrefStream newest)
+        throws IOException
+    {
+        long[] entry = newest.lookup(streamNumber);
+        if (entry == null || entry[0] != 1)
+        {
+            return null;
+        }
+
+        // the object stream's dictionary ends at its stream keyword
+        long offset = entry[1];
+        String object = readObjectAt(offset, streamNumber);
+        int stream = object.indexOf("stream");
+        if (stream < 0)
+        {
+            return null;
+        }
+        String dictionary = object.substring(0, stream);
+        byte[] data = readStream(offset, dictionary);
+        Matcher first = FIRST.matcher(dictionary);
+        if (data == null || !first.find())
+        {
+            return null;
+        }
+
+        // pairs of object number and offset, relative to the first object
+        String objects = new String(data, "ISO-8859-1");
+        int start = Integer.parseInt(first.group(1));
+        if (start > objects.length())
+        {
+            throw new DamagedXrefException();
+        }
+        String[] pairs = objects.substring(0, start).trim().split("\\s+");
+        try
+        {
+            for (int i = 0; i + 1 < pairs.length; i = i + 2)
+            {
+                if (Integer.parseInt(pairs[i]) == number)
+                {
+                    int objectStart = start + Integer.parseInt(pairs[i + 1]);
+                    int objectEnd = i + 3 < pairs.length ? start + Integer.parseInt(pairs[i + 3]) : objects.length();
+                    if (objectStart > objectEnd || objectEnd > objects.length())
+                    {
+                        throw new DamagedXrefException();
+                    }
+                    return objects.substring(objectStart, objectEnd);
+                }
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            throw new DamagedXrefException();
+        }
+        return null;
+    }
+
+
+    /**
+     * Reads a cross reference stream
+     *
+     * @return the stream, or null if it is too large to inflate
+     */
+    private XrefStream readXrefStream(long offset)
+        throws IOException
+    {
+        String section = read(offset, WINDOW);
+        Matcher object = OBJECT.matcher(section);
+        if (!object.lookingAt())
+        {
+            throw new DamagedXrefException();
+        }
+
+        int stream = section.indexOf("stream");
+        if (stream < 0)
+        {
+            return null;
+        }
+        String dictionary = section.substring(0, stream);
+        Matcher widths = WIDTHS.matcher(dictionary);
+        Matcher count = SIZE.matcher(dictionary);
+        if (!widths.find() || !count.find())
+        {
+            throw new DamagedXrefException();
+        }
+
+        byte[] entries = readStream(offset, dictionary);
+        if (entries == null)
+        {
+            return null;
+        }
+
+        int[] w = { Integer.parseInt(widths.group(1)), Integer.parseInt(widths.group(2)), Integer.parseInt(widths.group(3)) };
+        long[] index = { 0, Long.parseLong(count.group(1)) };
+        Matcher subsections = INDEX.matcher(dictionary);
+        if (subsections.find())
+        {
+            String[] numbers = subsections.group(1).trim().split("\\s+");
+            index = new long[numbers.length];
+            for (int i = 0; i < numbers.length; i++)
+            {
+                index[i] = Long.parseLong(numbers[i]);
+            }
+        }
+        return new XrefStream(dictionary, entries, w, index);
+    }
+
+
+    /**
+     * Reads and decodes the data of the stream object at an offset
+     *
+     * @param offset the start of the object
+     * @param dictionary the object's dictionary, as read from the offset
+     * @return the data, or null if the stream is too large or uses a filter other than
+     * FlateDecode
+     */
+    private byte[] readStream(long offset, String dictionary)
+        throws IOException
+    {
+        Matcher length = LENGTH.matcher(dictionary);
+        if (!length.find() || length.group(2) != null)
+        {
+            // an indirect length would take another lookup
+            return null;
+        }
+        int dataLength = Integer.parseInt(length.group(1));
+        if (dataLength > MAX_STREAM)
+        {
+            return null;
+        }
+
+        // the data starts after the end of line that follows the stream keyword
+        String start = read(offset + dictionary.length(), 8);
+        if (!start.startsWith("stream"))
+        {
+            throw new DamagedXrefException();
+        }
+        int eol = start.startsWith("stream\r\n") ? 8 : 7;
+        byte[] data = readBytes(offset + dictionary.length() + eol, dataLength);
+        if (data.length < dataLength)
+        {
+            throw new DamagedXrefException();
+        }
+
+        Matcher filter = FILTER.matcher(dictionary);
+        if (filter.find())
+        {
+            if (!"FlateDecode".equals(filter.group(2)))
+            {
+                return null;
+            }
+            data = inflate(data);
+            if (data == null)
+            {
+                return null;
+            }
+
+            Matcher predictor = PREDICTOR.matcher(dictionary);
+            if (predictor.find() && Integer.parseInt(predictor.group(1)) > 1)
+            {
+                if (Integer.parseInt(predictor.group(1)) < 10)
+                {
+                    return null;
+                }
+                Matcher columns = COLUMNS.matcher(dictionary);
+                data = unpredict(data, columns.find() ? Integer.parseInt(columns.group(1)) : 1);
+            }
+        }
+        return data;
+    }
+
+
+    private static byte[] inflate(byte[] data)
+        throws IOException
+    {
+        Inflater inflater = new Inflater();
+        try
+        {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[WINDOW];
+            while (!inflater.finished())
+            {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                {
+                    break;
+                }
+                out.write(buffer, 0, n);
+                if (out.size() > MAX_INFLATED)
+                {
+                    return null;
+                }
+            }
+            return out.toByteArray();
+        }
+        catch (DataFormatException e)
+        {
+            throw new DamagedXrefException();
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+
+
+    /**
+     * Undoes the PNG predictors of a stream, one byte per pixel
+     */
+    private static byte[] unpredict(byte[] data, int columns)
+        throws IOException
+    {
+        int rows = data.length / (columns + 1);
+        byte[] out = new byte[rows * columns];
+        for (int r = 0; r < rows; r++)
+        {
+            int in = r * (columns + 1);
+            int row = r * columns;
+            int type = data[in] & 0xff;
+            for (int i = 0; i < columns; i++)
+            {
+                int raw = data[in + 1 + i] & 0xff;
+                int left = i > 0 ? out[row + i - 1] & 0xff : 0;
+                int up = r > 0 ? out[row - columns + i] & 0xff : 0;
+                int upLeft = r > 0 && i > 0 ? out[row - columns + i - 1] & 0xff : 0;
+                switch (type)
+                {
+                    case 0:
+                        out[row + i] = (byte)raw;
+                        break;
+                    case 1:
+                        out[row + i] = (byte)(raw + left);
+                        break;
+                    case 2:
+                        out[row + i] = (byte)(raw + up);
+                        break;
+                    case 3:
+                        out[row + i] = (byte)(raw + (left + up) / 2);
+                        break;
+                    case 4:
+                        out[row + i] = (byte)(raw + paeth(left, up, upLeft));
+                        break;
+                    default:
+                        throw new DamagedXrefException();
+                }
+            }
+        }
+        return out;
+    }
+
+
+    private static int paeth(int left, int up, int upLeft)
+    {
+        int p = left + up - upLeft;
+        int pa = Math.abs(p - left);
+        int pb = Math.abs(p - up);
+        int pc = Math.abs(p - upLeft);
+        if (pa <= pb && pa <= pc)
+        {
+            return left;
+        }
+        return pb <= pc ? up : upLeft;
+    }
+
+
+    /**
+     * Reads an object's dictionary, checking that the cross reference entry points
+     * at it
+     *
+     * @return the start of the object, or null if it isn't in a cross reference table
+     */
+    private String readObject(int number, long xref)
+        throws IOException
+    {
+        long offset = findOffset(number, xref);
+        if (offset < 0)
+        {
+            return null;
+        }
+        return readObjectAt(offset, number);
+    }
+
+
+    /**
+     * Reads the start of an object, checking that it is the object expected there
+     */
+    private String readObjectAt(long offset, int number)
+        throws IOException
+    {
+        String object = read(offset, WINDOW);
+        Matcher m = OBJECT.matcher(object);
+        if (!m.lookingAt() || Integer.parseInt(m.group(1)) != number)
+        {
+            throw new DamagedXrefException();
+        }
+        int end = object.indexOf("endobj");
+        return end < 0 ? object : object.substring(0, end);
+    }
+
+
+    /**
+     * Finds the offset of an object in the newest cross reference section that has it
+     *
+     * @return the offset, or a negative value if the object is free or not in a table
+     */
+    private long findOffset(int number, long xref)
+        throws IOException
+    {
+        long section = xref;
+        for (int hops = 0; hops < MAX_HOPS; hops++)
+        {
+            long[] trailer = new long[1];
+            long offset = lookup(section, number, trailer);
+            if (offset != NOT_FOUND)
+            {
+                return offset;
+            }
+
+            Matcher prev = PREV.matcher(readDictionary(trailer[0]));
+            if (!prev.find())
+            {
+                return NOT_FOUND;
+            }
+            section = Long.parseLong(prev.group(1));
+            if (section >= size)
+            {
+                throw new DamagedXrefException();
+            }
+        }
+        return NOT_FOUND;
+    }
+
+
+    private String readTrailer(long xref)
+        throws IOException
+    {
+        long[] trailer = new long[1];
+        lookup(xref, -1, trailer);
+        return readDictionary(trailer[0]);
+    }
+
+
+    /**
+     * Walks the subsections of a cross reference table, jumping straight to the entry
+     * of the object if the table has it, and on to the trailer
+     *
+     * @param section the offset of the table
+     * @param number the object number to look up, or -1 for none
+     * @param trailer receives the offset of the trailer dictionary
+     * @return the object's offset, FREE, or NOT_FOUND
+     */
+    private long lookup(long section, int number, long[] trailer)
+        throws IOException
+    {
+        Matcher xref = XREF.matcher(read(section, 64));
+        if (!xref.lookingAt())
+        {
+            throw new DamagedXrefException();
+        }
+
+        long found = NOT_FOUND;
+        long position = section + xref.end();
+        while (position < size)
+        {
+            String line = read(position, 64);
+            Matcher end = TRAILER.matcher(line);
+            if (end.lookingAt())
+            {
+                trailer[0] = position + end.end();
+                return found;
+            }
+
+            Matcher subsection = SUBSECTION.matcher(line);
+            if (!subsection.lookingAt())
+            {
+                throw new DamagedXrefException();
+            }
+            long first = Long.parseLong(subsection.group(1));
+            long count = Long.parseLong(subsection.group(2));
+            long entries = position + subsection.end();
+
+            if (found == NOT_FOUND && number >= first && number < first + count)
+            {
+                Matcher entry = ENTRY_LINE.matcher(read(entries + ENTRY * (number - first), ENTRY));
+                if (!entry.lookingAt())
+                {
+                    throw new DamagedXrefException();
+                }
+                found = "n".equals(entry.group(3)) ? Long.parseLong(entry.group(1)) : FREE;
+            }
+            position = entries + ENTRY * count;
+        }
+
+        throw new DamagedXrefException();
+    }
+
+
+    private String readDictionary(long offset)
+        throws IOException
+    {
+        String dictionary = read(offset, WINDOW);
+        int end = dictionary.indexOf("startxref");
+        return end < 0 ? dictionary : dictionary.substring(0, end);
+    }
+
+
+    private String read(long position, int length)
+        throws IOException
+    {
+        return new String(readBytes(position, length), "ISO-8859-1");
+    }
+
+
+    private byte[] readBytes(long position, int length)
+        throws IOException
+    {
+        if (position < 0 || position >= size)
+        {
+            return new byte[0];
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(length, size - position));
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+            {
+                break;
+            }
+        }
+        if (buffer.hasRemaining())
+        {
+            byte[] read = new byte[buffer.position()];
+            System.arraycopy(buffer.array(), 0, read, 0, read.length);
+            return read;
+        }
+        return buffer.array();
+    }
+
+
+    /**
+     * The decoded entries of a cross reference stream
+     */
+    private static class XrefStream
+    {
+        private final String dictionary;
+        private final byte[] entries;
+        private final int[]  widths;
+        private final long[] index;
+
+
+        private XrefStream(String dictionary, byte[] entries, int[] widths, long[] index)
+        {
+            this.dictionary = dictionary;
+            this.entries = entries;
+            this.widths = widths;
+            this.index = index;
+        }
+
+
+        /**
+         * @return the type and the two fields of the object's entry, or null if this
+         * stream has no entry for it
+         */
+        private long[] lookup(int number)
+            throws DamagedXrefException
+        {
+            int width = widths[0] + widths[1] + widths[2];
+            long row = 0;
+            for (int i = 0; i + 1 < index.length; i = i + 2)
+            {
+                long first = index[i];
+                long count = index[i + 1];
+                if (number >= first && number < first + count)
+                {
+                    long position = (row + number - first) * width;
+                    if (position + width > entries.length)
+                    {
+                        throw new DamagedXrefException();
+                    }
+                    int p = (int)position;
+                    long type = field(p, widths[0], 1);
+                    long second = field(p + widths[0], widths[1], 0);
+                    long third = field(p + widths[0] + widths[1], widths[2], 0);
+                    return new long[] { type, second, third };
+                }
+                row = row + count;
+            }
+            return null;
+        }
+
+
+        private long field(int position, int width, long defaultValue)
+        {
+            if (width == 0)
+            {
+                return defaultValue;
+            }
+            long value = 0;
+            for (int i = 0; i < width; i++)
+            {
+                value = (value << 8) | (entries[position + i] & 0xff);
+            }
+            return value;
+        }
+    }
+
+
+    /**
+     * The cross reference data doesn't match the file
+     */
+    private static class DamagedXrefException
+        extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+    }
+}
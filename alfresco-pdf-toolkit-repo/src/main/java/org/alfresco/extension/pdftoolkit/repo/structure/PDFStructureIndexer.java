@@ -0,0 +1,553 @@
+/*
+ * Copyright 2008-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.extension.pdftoolkit.repo.structure;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.alfresco.extension.pdftoolkit.model.PDFToolkitModel;
+import org.alfresco.extension.pdftoolkit.repo.admission.PDFAdmissionController;
+import org.alfresco.extension.pdftoolkit.repo.workspace.PDFTempWorkspace;
+import org.alfresco.extension.pdftoolkit.repo.workspace.PDFTempWorkspaceManager;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.content.ContentServicePolicies;
+import org.alfresco.repo.content.MimetypeMap;
+import org.alfresco.repo.content.filestore.FileContentReader;
+import org.alfresco.repo.policy.Behaviour.NotificationFrequency;
+import org.alfresco.repo.policy.BehaviourFilter;
+import org.alfresco.repo.policy.JavaBehaviour;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.exceptions.BadPasswordException;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.RandomAccessFileOrArray;
+
+
+/**
+ * Keeps the pdft:structure aspect of PDF nodes up to date.  Whenever the content of
+ * a PDF changes, its header, trailer and cross reference data are read with
+ * PDFPreflight, and its page count, encryption state, linearisation, version and
+ * whether its cross reference table has to be rebuilt are stored on the node.  Only
+ * when the trailer doesn't lead to the page count, or the document is small enough
+ * for its page sizes to be summarised, is it opened for partial reading.  Actions can
+ * then validate and plan against the aspect instead of parsing the document again.
+ * A document that can't be indexed loses the aspect rather than keep a stale one.
+ * <p>
+ * Content in a file content store is indexed in place as the transaction commits.
+ * Other content would have to be copied into a workspace first, so it is indexed
+ * after the commit, in a transaction of its own, and skipped if the workspace quota
+ * is exhausted rather than holding up the upload.  Actions that find no aspect read
+ * the document themselves.
+ */
+public class PDFStructureIndexer
+    implements ContentServicePolicies.OnContentUpdatePolicy
+{
+
+    /**
+     * The logger
+     */
+    private static Log              logger          = LogFactory.getLog(PDFStructureIndexer.class);
+
+    /**
+     * Bytes at the start of the file searched for the linearisation dictionary
+     */
+    private static final int        HEADER_LENGTH   = 1024;
+
+    /**
+     * Most pages a document can have for its page sizes to be summarised
+     */
+    private int                     maxSizedPages   = 100;
+    private int                     threads         = 1;
+
+    private PolicyComponent         policyComponent;
+    private BehaviourFilter         behaviourFilter;
+    private NodeService             nodeService;
+    private ContentService          contentService;
+    private PDFTempWorkspaceManager workspaceManager;
+    private TransactionService      transactionService;
+    private ExecutorService         executor;
+
+
+    public void setPolicyComponent(PolicyComponent policyComponent)
+    {
+        this.policyComponent = policyComponent;
+    }
+
+
+    public void setBehaviourFilter(BehaviourFilter behaviourFilter)
+    {
+        this.behaviourFilter = behaviourFilter;
+    }
+
+
+    public void setNodeService(NodeService nodeService)
+    {
+        this.nodeService = nodeService;
+    }
+
+
+    public void setContentService(ContentService contentService)
+    {
+        this.contentService = contentService;
+    }
+
+
+    public void setWorkspaceManager(PDFTempWorkspaceManager workspaceManager)
+    {
+        this.workspaceManager = workspaceManager;
+    }
+
+
+    public void setTransactionService(TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+
+    /**
+     * Number of threads indexing content that isn't in a file content store, after the
+     * transactions that wrote it commit
+     * 
+     * @param threads
+     */
+    public void setThreads(int threads)
+    {
+        this.threads = threads;
+    }
+
+
+    /**
+     * Most pages a document can have for pdft:pagesizes to be recorded, as it takes a
+     * visit to every page.  0 never records it.
+     * 
+     * @param maxSizedPages
+     */
+    public void setMaxSizedPages(int maxSizedPages)
+    {
+        this.maxSizedPages = maxSizedPages;
+    }
+
+
+    /**
+     * Binds the content update behaviour.  It runs once per transaction, however many
+     * times the content was written.
+     */
+    public void init()
+    {
+        policyComponent.bindClassBehaviour(ContentServicePolicies.OnContentUpdatePolicy.QNAME, ContentModel.TYPE_CONTENT,
+                new JavaBehaviour(this, "onContentUpdate", NotificationFrequency.TRANSACTION_COMMIT));
+        executor = Executors.newFixedThreadPool(Math.max(1, threads));
+    }
+
+
+    public void destroy()
+    {
+        executor.shutdownNow();
+    }
+
+
+    /**
+     * @see org.alfresco.repo.content.ContentServicePolicies.OnContentUpdatePolicy#onContentUpdate(org.alfresco.service.cmr.repository.NodeRef,
+     * boolean)
+     */
+    public void onContentUpdate(NodeRef nodeRef, boolean newContent)
+    {
+        if (nodeService.exists(nodeRef) == false)
+        {
+            return;
+        }
+
+        ContentReader reader = contentService.getReader(nodeRef, ContentModel.PROP_CONTENT);
+        if (reader == null || !reader.exists() || !MimetypeMap.MIMETYPE_PDF.equals(reader.getMimetype()))
+        {
+            // no longer a PDF, so the structure no longer applies
+            if (nodeService.hasAspect(nodeRef, PDFToolkitModel.ASPECT_STRUCTURE))
+            {
+                update(nodeRef, null);
+            }
+            return;
+        }
+
+        if (reader instanceof FileContentReader)
+        {
+            index(nodeRef, reader);
+        }
+        else
+        {
+            indexAfterCommit(nodeRef, reader.getContentUrl());
+        }
+    }
+
+
+    /**
+     * Queues content that isn't in a file content store to be indexed once the
+     * transaction has committed
+     *
+     * @param nodeRef
+     * @param contentUrl the content to index
+     */
+    private void indexAfterCommit(final NodeRef nodeRef, final String contentUrl)
+    {
+        AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter()
+        {
+            @Override
+            public void afterCommit()
+            {
+                executor.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            indexQueued(nodeRef, contentUrl);
+                        }
+                        catch (Exception e)
+                        {
+                            logger.warn("Could not index the structure of " + nodeRef + ": " + e.getMessage());
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+
+    /**
+     * Indexes queued content in a transaction of its own, unless the content has been
+     * changed again since, in which case that change queued its own index
+     *
+     * @param nodeRef
+     * @param contentUrl
+     */
+    private void indexQueued(final NodeRef nodeRef, final String contentUrl)
+    {
+        AuthenticationUtil.runAsSystem(new RunAsWork<Void>()
+        {
+            public Void doWork() throws Exception
+            {
+                return transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Void>()
+                {
+                    public Void execute() throws Throwable
+                    {
+                        if (nodeService.exists(nodeRef))
+                        {
+                            ContentReader reader = contentService.getReader(nodeRef, ContentModel.PROP_CONTENT);
+                            if (reader != null && reader.exists() && contentUrl.equals(reader.getContentUrl()))
+                            {
+                                index(nodeRef, reader);
+                            }
+                        }
+                        return null;
+                    }
+                }, false, true);
+            }
+        });
+    }
+
+
+    /**
+     * Indexes a document and applies the structure, or removes the aspect if the
+     * document can't be indexed.  A workspace, if one is needed, doesn't wait for disk.
+     *
+     * @param nodeRef
+     * @param reader
+     */
+    private void index(NodeRef nodeRef, ContentReader reader)
+    {
+        Map<QName, Serializable> structure;
+        try
+        {
+            structure = scan(nodeRef, reader, 0);
+        }
+        catch (Exception e)
+        {
+            // a document we can't read must not stop it from being stored, but what
+            // was recorded about its previous content no longer applies
+            logger.warn("Could not index the structure of " + nodeRef + ": " + e.getMessage());
+            if (nodeService.hasAspect(nodeRef, PDFToolkitModel.ASPECT_STRUCTURE))
+            {
+                update(nodeRef, null);
+            }
+            return;
+        }
+        update(nodeRef, structure);
+    }
+
+
+    /**
+     * Scans a PDF and returns its structure properties
+     *
+     * @param nodeRef
+     * @param reader
+     * @return
+     * @throws IOException
+     */
+    public Map<QName, Serializable> scan(NodeRef nodeRef, ContentReader reader) throws IOException
+    {
+        return scan(nodeRef, reader, -1);
+    }
+
+
+    /**
+     * @param nodeRef
+     * @param reader
+     * @param wait how long, in milliseconds, to wait for workspace disk, or -1 for the
+     * workspace manager's own limit
+     * @return
+     * @throws IOException
+     */
+    private Map<QName, Serializable> scan(NodeRef nodeRef, ContentReader reader, long wait) throws IOException
+    {
+        Map<QName, Serializable> properties = new HashMap<QName, Serializable>();
+        PDFTempWorkspace workspace = null;
+        PdfReader pdf = null;
+
+        try
+        {
+            File file;
+            if (reader instanceof FileContentReader)
+            {
+                file = ((FileContentReader)reader).getFile();
+            }
+            else
+            {
+                workspace = wait < 0 ? workspaceManager.open(nodeRef, reader.getSize())
+                        : workspaceManager.open(nodeRef, reader.getSize(), wait);
+                file = workspace.newScratchFile(".pdf");
+                reader.getContent(file);
+            }
+
+            properties.put(PDFToolkitModel.PROP_LINEARIZED, isLinearized(file));
+
+            PDFPreflight preflight = preflight(file);
+            if (!preflight.isPdf())
+            {
+                throw new IOException("not a PDF document");
+            }
+            properties.put(PDFToolkitModel.PROP_PDF_ENCRYPTED, preflight.isEncrypted());
+            properties.put(PDFToolkitModel.PROP_PDF_VERSION, preflight.getVersion());
+            properties.put(PDFToolkitModel.PROP_XREF_REBUILT, preflight.isXrefDamaged());
+            properties.put(PDFToolkitModel.PROP_PAGE_SIZES, null);
+
+            int pageCount = preflight.getPageCount();
+            if (pageCount != PDFAdmissionController.UNKNOWN_PAGE_COUNT)
+            {
+                properties.put(PDFToolkitModel.PROP_PAGE_COUNT, pageCount);
+                if (pageCount > maxSizedPages)
+                {
+                    // the trailer had all there is to index
+                    return properties;
+                }
+            }
+
+            try
+            {
+                pdf = new PdfReader(new RandomAccessFileOrArray(file.getPath()), null);
+            }
+            catch (BadPasswordException e)
+            {
+                // protected by a user password, nothing more can be read
+                properties.put(PDFToolkitModel.PROP_PDF_ENCRYPTED, Boolean.TRUE);
+                properties.put(PDFToolkitModel.PROP_PAGE_COUNT, null);
+                return properties;
+            }
+
+            properties.put(PDFToolkitModel.PROP_PDF_ENCRYPTED, pdf.isEncrypted());
+            properties.put(PDFToolkitModel.PROP_PDF_VERSION, "1." + pdf.getPdfVersion());
+            properties.put(PDFToolkitModel.PROP_XREF_REBUILT, pdf.isRebuilt());
+            properties.put(PDFToolkitModel.PROP_PAGE_COUNT, pdf.getNumberOfPages());
+            if (pdf.getNumberOfPages() <= maxSizedPages)
+            {
+                properties.put(PDFToolkitModel.PROP_PAGE_SIZES, summarizePageSizes(pdf));
+            }
+        }
+        finally
+        {
+            if (pdf != null)
+            {
+                pdf.close();
+            }
+            if (workspace != null)
+            {
+                workspace.close();
+            }
+        }
+
+        return properties;
+    }
+
+
+    /**
+     * Reads the header, trailer and cross reference table of a file
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    protected PDFPreflight preflight(File file) throws IOException
+    {
+        FileInputStream is = new FileInputStream(file);
+        try
+        {
+            return PDFPreflight.scan(is.getChannel());
+        }
+        finally
+        {
+            is.close();
+        }
+    }
+
+
+    /**
+     * Builds a run length summary of the page sizes, in the form
+     * width x height @ rotation * count, for example "612x792@0*10,842x595@90*2"
+     *
+     * @param pdf
+     * @return
+     */
+    protected String summarizePageSizes(PdfReader pdf)
+    {
+        StringBuilder summary = new StringBuilder();
+        String run = null;
+        int count = 0;
+
+        int numpages = pdf.getNumberOfPages();
+        for (int i = 1; i <= numpages; i++)
+        {
+            Rectangle box = pdf.getPageSize(i);
+            String size = Math.round(box.getWidth()) + "x" + Math.round(box.getHeight()) + "@" + pdf.getPageRotation(i);
+
+            // keep the partial reader from holding on to every page dictionary
+            pdf.releasePage(i);
+
+            if (size.equals(run))
+            {
+                count++;
+                continue;
+            }
+            appendRun(summary, run, count);
+            run = size;
+            count = 1;
+        }
+        appendRun(summary, run, count);
+
+        return summary.toString();
+    }
+
+
+    private void appendRun(StringBuilder summary, String run, int count)
+    {
+        if (run != null)
+        {
+            if (summary.length() > 0)
+            {
+                summary.append(',');
+            }
+            summary.append(run).append('*').append(count);
+        }
+    }
+
+
+    /**
+     * A linearised PDF carries its linearisation dictionary in the first object of
+     * the file
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    protected boolean isLinearized(File file) throws IOException
+    {
+        byte[] header = new byte[HEADER_LENGTH];
+        int read = 0;
+
+        InputStream is = new FileInputStream(file);
+        try
+        {
+            int n;
+            while (read < header.length && (n = is.read(header, read, header.length - read)) > 0)
+            {
+                read = read + n;
+            }
+        }
+        finally
+        {
+            is.close();
+        }
+
+        return new String(header, 0, read, "ISO-8859-1").contains("/Linearized");
+    }
+
+
+    /**
+     * Applies or removes the structure aspect without touching the auditable
+     * properties or creating a new version
+     *
+     * @param nodeRef
+     * @param properties the structure, or null to remove the aspect
+     */
+    private void update(NodeRef nodeRef, Map<QName, Serializable> properties)
+    {
+        behaviourFilter.disableBehaviour(nodeRef, ContentModel.ASPECT_AUDITABLE);
+        behaviourFilter.disableBehaviour(nodeRef, ContentModel.ASPECT_VERSIONABLE);
+        try
+        {
+            if (properties == null)
+            {
+                nodeService.removeAspect(nodeRef, PDFToolkitModel.ASPECT_STRUCTURE);
+            }
+            else
+            {
+                nodeService.addAspect(nodeRef, PDFToolkitModel.ASPECT_STRUCTURE, properties);
+            }
+        }
+        finally
+        {
+            behaviourFilter.enableBehaviour(nodeRef, ContentModel.ASPECT_VERSIONABLE);
+            behaviourFilter.enableBehaviour(nodeRef, ContentModel.ASPECT_AUDITABLE);
+        }
+
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Indexed structure of " + nodeRef + ": " + properties);
+        }
+    }
+}
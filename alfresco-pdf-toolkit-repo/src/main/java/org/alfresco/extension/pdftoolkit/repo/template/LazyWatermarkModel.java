@@ -0,0 +1,159 @@
+/*
+ * Copyright 2008-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.extension.pdftoolkit.repo.template;
+
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.template.TemplateNode;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.NodeRef;
+
+import freemarker.template.ObjectWrapper;
+import freemarker.template.TemplateHashModel;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelException;
+
+
+/**
+ * The watermark template model: person, userhome, document, space, date and
+ * properties (the document's properties, as the node service returns them).  Each
+ * entry is only looked up the first time the template asks for it.  page, pages and
+ * bates evaluate to themselves, so they survive processing and can be filled in per
+ * page.
+ */
+public class LazyWatermarkModel
+    implements TemplateHashModel
+{
+    public static final String        KEY_PERSON     = "person";
+    public static final String        KEY_USERHOME   = "userhome";
+    public static final String        KEY_DOCUMENT   = "document";
+    public static final String        KEY_SPACE      = "space";
+    public static final String        KEY_DATE       = "date";
+    public static final String        KEY_PROPERTIES = "properties";
+
+    /**
+     * Per page keys, which are left in the text as they are and filled in as each
+     * page is stamped
+     */
+    public static final String        KEY_PAGE       = "page";
+    public static final String        KEY_PAGES      = "pages";
+    public static final String        KEY_BATES      = "bates";
+
+    private final NodeRef             document;
+    private final ServiceRegistry     serviceRegistry;
+    private final ObjectWrapper       wrapper;
+
+    private final Map<String, Object> resolved       = new HashMap<String, Object>();
+    private NodeRef                   person;
+    private TemplateNode              documentNode;
+
+
+    public LazyWatermarkModel(NodeRef document, ServiceRegistry serviceRegistry, ObjectWrapper wrapper)
+    {
+        this.document = document;
+        this.serviceRegistry = serviceRegistry;
+        this.wrapper = wrapper;
+    }
+
+
+    /**
+     * @see freemarker.template.TemplateHashModel#get(java.lang.String)
+     */
+    public TemplateModel get(String key)
+        throws TemplateModelException
+    {
+        if (!resolved.containsKey(key))
+        {
+            resolved.put(key, resolve(key));
+        }
+
+        Object value = resolved.get(key);
+        return value != null ? wrapper.wrap(value) : null;
+    }
+
+
+    /**
+     * @see freemarker.template.TemplateHashModel#isEmpty()
+     */
+    public boolean isEmpty()
+    {
+        return false;
+    }
+
+
+    private Object resolve(String key)
+    {
+        if (KEY_DOCUMENT.equals(key))
+        {
+            return getDocumentNode();
+        }
+        else if (KEY_PROPERTIES.equals(key))
+        {
+            // the node service's own map, raw QName keys and values, as templates expect
+            return serviceRegistry.getNodeService().getProperties(document);
+        }
+        else if (KEY_SPACE.equals(key))
+        {
+            NodeRef parent = serviceRegistry.getNodeService().getPrimaryParent(document).getParentRef();
+            return new TemplateNode(parent, serviceRegistry, null);
+        }
+        else if (KEY_PERSON.equals(key))
+        {
+            return new TemplateNode(getPerson(), serviceRegistry, null);
+        }
+        else if (KEY_USERHOME.equals(key))
+        {
+            NodeRef homespace = (NodeRef)serviceRegistry.getNodeService().getProperty(getPerson(), ContentModel.PROP_HOMEFOLDER);
+            return homespace != null ? new TemplateNode(homespace, serviceRegistry, null) : null;
+        }
+        else if (KEY_DATE.equals(key))
+        {
+            return new Date();
+        }
+        else if (KEY_PAGE.equals(key) || KEY_PAGES.equals(key) || KEY_BATES.equals(key))
+        {
+            return "${" + key + "}";
+        }
+        return null;
+    }
+
+
+    private TemplateNode getDocumentNode()
+    {
+        if (documentNode == null)
+        {
+            documentNode = new TemplateNode(document, serviceRegistry, null);
+        }
+        return documentNode;
+    }
+
+
+    private NodeRef getPerson()
+    {
+        if (person == null)
+        {
+            person = serviceRegistry.getPersonService().getPerson(serviceRegistry.getAuthenticationService().getCurrentUserName());
+        }
+        return person;
+    }
+}
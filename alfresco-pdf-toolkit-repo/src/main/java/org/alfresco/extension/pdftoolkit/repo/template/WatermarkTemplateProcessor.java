@@ -0,0 +1,169 @@
+/*
+ * Copyright 2008-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.extension.pdftoolkit.repo.template;
+
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.repo.template.QNameAwareObjectWrapper;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.NodeRef;
+
+import freemarker.template.Configuration;
+import freemarker.template.ObjectWrapper;
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+import freemarker.template.TemplateExceptionHandler;
+
+
+/**
+ * Renders watermark text.  Text without any FreeMarker markup is returned as is.
+ * Anything else is compiled once and the compiled template is cached by its text,
+ * then rendered against a lazy model that only looks up the values the template
+ * actually uses.
+ */
+public class WatermarkTemplateProcessor
+{
+
+    /**
+     * Markup that makes a watermark a template rather than static text
+     */
+    private static final String[]       MARKUP = { "${", "#{", "<#", "</#", "<@", "[#", "[@" };
+
+    private final Configuration         config;
+    private final ObjectWrapper         wrapper;
+    private final Map<String, Template> templates;
+
+
+    public WatermarkTemplateProcessor()
+    {
+        this(100);
+    }
+
+
+    /**
+     * @param cacheSize the number of compiled templates to keep
+     */
+    public WatermarkTemplateProcessor(final int cacheSize)
+    {
+        wrapper = new QNameAwareObjectWrapper();
+
+        config = new Configuration();
+        config.setObjectWrapper(wrapper);
+        config.setLocalizedLookup(false);
+        config.setDefaultEncoding("UTF-8");
+        config.setTemplateExceptionHandler(TemplateExceptionHandler.RETHROW_HANDLER);
+
+        templates = new LinkedHashMap<String, Template>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Template> eldest)
+            {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+
+    /**
+     * @param text
+     * @return true if the text contains no FreeMarker markup
+     */
+    public boolean isStatic(String text)
+    {
+        for (String markup : MARKUP)
+        {
+            if (text.contains(markup))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Renders the watermark text for a document
+     * 
+     * @param text
+     * @param document
+     * @param serviceRegistry
+     * @return
+     */
+    public String process(String text, NodeRef document, ServiceRegistry serviceRegistry)
+    {
+        if (text == null || isStatic(text))
+        {
+            return text;
+        }
+
+        StringWriter out = new StringWriter();
+        try
+        {
+            getTemplate(text).process(new LazyWatermarkModel(document, serviceRegistry, wrapper), out);
+        }
+        catch (TemplateException e)
+        {
+            throw new AlfrescoRuntimeException("Failed to process watermark template: " + e.getMessage(), e);
+        }
+        catch (IOException e)
+        {
+            throw new AlfrescoRuntimeException("Failed to process watermark template: " + e.getMessage(), e);
+        }
+
+        return out.toString();
+    }
+
+
+    /**
+     * Gets the compiled template for the text, compiling it on first use
+     * 
+     * @param text
+     * @return
+     * @throws IOException
+     */
+    protected Template getTemplate(String text) throws IOException
+    {
+        synchronized (templates)
+        {
+            Template template = templates.get(text);
+            if (template != null)
+            {
+                return template;
+            }
+        }
+
+        // compile outside the lock, at worst two threads compile the same text
+        Template template = new Template("watermark", new StringReader(text), config);
+
+        synchronized (templates)
+        {
+            templates.put(text, template);
+        }
+
+        return template;
+    }
+}
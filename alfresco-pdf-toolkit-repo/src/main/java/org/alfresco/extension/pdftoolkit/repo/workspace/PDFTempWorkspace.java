@@ -0,0 +1,144 @@
+/*
+ * Copyright 2008-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.extension.pdftoolkit.repo.workspace;
+
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.util.Arrays;
+
+import org.alfresco.util.GUID;
+
+
+/**
+ * A private temp directory for a single PDF action invocation.  Disk is reserved from
+ * the manager's quota when the first file is created.  Close it in a finally block;
+ * closing removes the directory and everything in it and returns any reserved disk to
+ * the quota.
+ */
+public class PDFTempWorkspace
+    implements Closeable
+{
+    private static final String           SCRATCH_DIR = "scratch";
+
+    private final PDFTempWorkspaceManager manager;
+    private final File                    directory;
+    private final long                    expected;
+    private final long                    wait;
+    private long                          reserved    = 0;
+    private boolean                       closed      = false;
+
+
+    PDFTempWorkspace(PDFTempWorkspaceManager manager, File directory, long expected, long wait)
+    {
+        this.manager = manager;
+        this.directory = directory;
+        this.expected = expected;
+        this.wait = wait;
+    }
+
+
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+
+    synchronized long getReserved()
+    {
+        return reserved;
+    }
+
+
+    /**
+     * Reserves the workspace's expected disk use the first time a file is created
+     */
+    private synchronized void reserve()
+    {
+        if (reserved == 0 && expected > 0)
+        {
+            manager.reserve(expected, wait);
+            reserved = expected;
+        }
+    }
+
+
+    /**
+     * Gets a file with the given name in the workspace
+     * 
+     * @param name
+     * @return
+     */
+    public File newFile(String name)
+    {
+        reserve();
+        return new File(directory, name);
+    }
+
+
+    /**
+     * Gets a uniquely named scratch file in the workspace.  Scratch files are kept in
+     * their own subdirectory so they are never picked up as action output.
+     * 
+     * @param suffix
+     * @return
+     */
+    public File newScratchFile(String suffix)
+    {
+        reserve();
+        File scratchDir = new File(directory, SCRATCH_DIR);
+        scratchDir.mkdir();
+        return new File(scratchDir, GUID.generate() + suffix);
+    }
+
+
+    /**
+     * @return the output files in the workspace, ordered by name
+     */
+    public File[] listFiles()
+    {
+        File[] files = directory.listFiles(new FileFilter()
+        {
+            public boolean accept(File file)
+            {
+                return file.isFile();
+            }
+        });
+        if (files == null)
+        {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+
+    /**
+     * Removes the workspace.  Safe to call more than once.
+     */
+    public void close()
+    {
+        if (!closed)
+        {
+            closed = true;
+            manager.close(this);
+        }
+    }
+}
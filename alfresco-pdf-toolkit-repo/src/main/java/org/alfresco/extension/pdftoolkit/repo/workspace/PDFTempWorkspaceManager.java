@@ -0,0 +1,270 @@
+/*
+ * Copyright 2008-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.extension.pdftoolkit.repo.workspace;
+
+
+import java.io.File;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.util.GUID;
+import org.alfresco.util.TempFileProvider;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * Hands out temp workspaces to PDF actions.  Each invocation gets its own directory
+ * under a common root, so concurrent actions on the same node never share files.
+ * The disk each workspace expects to use is reserved from a quota when it creates its
+ * first file, and callers wait for running workspaces to close when the quota is
+ * exhausted.  Results are written straight into the content store, so workspaces that
+ * never need a scratch file never reserve anything.  On startup anything
+ * left under the root by a previous run is swept away.
+ */
+public class PDFTempWorkspaceManager
+{
+
+    /**
+     * The logger
+     */
+    private static Log        logger       = LogFactory.getLog(PDFTempWorkspaceManager.class);
+
+    private static final long MB           = 1024L * 1024L;
+
+    /**
+     * Workspace settings
+     */
+    private String            rootName     = "pdftoolkit";
+    private long              diskQuota    = 0;
+    private long              maxWait      = 60000;
+    private float             sizeFactor   = 2f;
+
+    /**
+     * Disk currently reserved by open workspaces
+     */
+    private long              reserved     = 0;
+
+
+    /**
+     * Name of the directory, under the Alfresco temp dir, that holds all workspaces
+     * 
+     * @param rootName
+     */
+    public void setRootName(String rootName)
+    {
+        this.rootName = rootName;
+    }
+
+
+    /**
+     * Total disk, in megabytes, open workspaces may reserve. 0 means no quota.
+     * 
+     * @param diskQuotaMB
+     */
+    public void setDiskQuotaMB(long diskQuotaMB)
+    {
+        this.diskQuota = diskQuotaMB * MB;
+    }
+
+
+    /**
+     * How long, in milliseconds, to wait for disk before giving up
+     * 
+     * @param maxWait
+     */
+    public void setMaxWait(long maxWait)
+    {
+        this.maxWait = maxWait;
+    }
+
+
+    /**
+     * Multiplier applied to the source content size to estimate a workspace's disk use
+     * 
+     * @param sizeFactor
+     */
+    public void setSizeFactor(float sizeFactor)
+    {
+        this.sizeFactor = sizeFactor;
+    }
+
+
+    /**
+     * Startup sweep.  Workspaces only live for the duration of an action, so anything
+     * found under the root at startup was orphaned by a previous run.
+     */
+    public void init()
+    {
+        File root = getRoot();
+        File[] orphans = root.listFiles();
+        if (orphans == null)
+        {
+            return;
+        }
+
+        int swept = 0;
+        for (File orphan : orphans)
+        {
+            if (delete(orphan))
+            {
+                swept++;
+            }
+        }
+
+        if (swept > 0)
+        {
+            logger.info("Removed " + swept + " orphaned PDF toolkit workspaces from " + root.getPath());
+        }
+    }
+
+
+    /**
+     * Opens a new workspace for an action on the given node.  The disk it is expected
+     * to use, based on the size of the source content, is reserved when it creates its
+     * first file.
+     * 
+     * @param nodeRef
+     * @param contentSize
+     * @return
+     */
+    public PDFTempWorkspace open(NodeRef nodeRef, long contentSize)
+    {
+        return open(nodeRef, contentSize, maxWait);
+    }
+
+
+    /**
+     * Opens a new workspace that waits no longer than the given time for disk.  0
+     * fails straight away when the quota is exhausted, for work that is better skipped
+     * than held up.
+     * 
+     * @param nodeRef
+     * @param contentSize
+     * @param wait how long, in milliseconds, to wait for disk
+     * @return
+     */
+    public PDFTempWorkspace open(NodeRef nodeRef, long contentSize, long wait)
+    {
+        long expected = (long)(contentSize * sizeFactor);
+
+        File dir = new File(getRoot(), nodeRef.getId() + "-" + GUID.generate());
+        if (!dir.mkdirs())
+        {
+            throw new AlfrescoRuntimeException("Unable to create PDF toolkit workspace " + dir.getPath());
+        }
+
+        return new PDFTempWorkspace(this, dir, expected, wait);
+    }
+
+
+    /**
+     * Called by a workspace when it is closed
+     * 
+     * @param workspace
+     */
+    void close(PDFTempWorkspace workspace)
+    {
+        if (!delete(workspace.getDirectory()))
+        {
+            logger.warn("Unable to fully remove PDF toolkit workspace " + workspace.getDirectory().getPath()
+                        + ", it will be removed on the next startup");
+        }
+        release(workspace.getReserved());
+    }
+
+
+    /**
+     * Reserves disk from the quota, waiting for other workspaces to close if necessary.
+     * A workspace larger than the whole quota is let through once nothing else is open.
+     * 
+     * @param size
+     * @param wait how long, in milliseconds, to wait
+     */
+    synchronized void reserve(long size, long wait)
+    {
+        if (diskQuota <= 0)
+        {
+            return;
+        }
+
+        long deadline = System.currentTimeMillis() + wait;
+        while (reserved > 0 && reserved + size > diskQuota)
+        {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+            {
+                throw new AlfrescoRuntimeException("PDF toolkit temp disk quota exhausted, " + reserved / MB + "MB of "
+                                                   + diskQuota / MB + "MB in use");
+            }
+            try
+            {
+                wait(remaining);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new AlfrescoRuntimeException("Interrupted waiting for PDF toolkit temp disk quota", e);
+            }
+        }
+
+        reserved = reserved + size;
+    }
+
+
+    private synchronized void release(long size)
+    {
+        if (diskQuota <= 0)
+        {
+            return;
+        }
+
+        reserved = reserved - size;
+        notifyAll();
+    }
+
+
+    private File getRoot()
+    {
+        File root = new File(TempFileProvider.getTempDir(), rootName);
+        root.mkdirs();
+        return root;
+    }
+
+
+    /**
+     * Recursively deletes a file or directory
+     * 
+     * @param file
+     * @return true if everything was deleted
+     */
+    private boolean delete(File file)
+    {
+        boolean deleted = true;
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+            {
+                deleted = delete(child) && deleted;
+            }
+        }
+        return file.delete() && deleted;
+    }
+}
@@ -20,32 +20,47 @@ package org.alfresco.extension.pdftoolkit.service;
 
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.alfresco.extension.pdftoolkit.repo.action.executer.PDFAppendActionExecuter;
+import org.alfresco.extension.pdftoolkit.repo.action.executer.PDFBatesActionExecuter;
+import org.alfresco.extension.pdftoolkit.repo.action.executer.PDFDecryptionActionExecuter;
 import org.alfresco.extension.pdftoolkit.repo.action.executer.PDFEncryptionActionExecuter;
 import org.alfresco.extension.pdftoolkit.repo.action.executer.PDFInsertAtPageActionExecuter;
+import org.alfresco.extension.pdftoolkit.repo.action.executer.PDFReEncryptionActionExecuter;
 import org.alfresco.extension.pdftoolkit.repo.action.executer.PDFSignatureActionExecuter;
 import org.alfresco.extension.pdftoolkit.repo.action.executer.PDFSplitActionExecuter;
 import org.alfresco.extension.pdftoolkit.repo.action.executer.PDFSplitAtPageActionExecuter;
+import org.alfresco.extension.pdftoolkit.repo.action.executer.PDFVerifySignatureActionExecuter;
 import org.alfresco.extension.pdftoolkit.repo.action.executer.PDFWatermarkActionExecuter;
-import org.alfresco.repo.processor.BaseProcessorExtension;
+import org.alfresco.extension.pdftoolkit.model.PDFToolkitModel;
+import org.alfresco.extension.pdftoolkit.repo.signature.DeferredSignatureService;
+import org.alfresco.repo.jscript.BaseScopableProcessorExtension;
+import org.alfresco.repo.jscript.ScriptNode;
 import org.alfresco.service.ServiceException;
 import org.alfresco.service.ServiceRegistry;
 import org.alfresco.service.cmr.action.Action;
+import org.alfresco.service.cmr.action.ActionExecuter;
 import org.alfresco.service.cmr.action.ActionService;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.NativeArray;
 import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.Scriptable;
 
 
-public class PDFToolkitService extends BaseProcessorExtension
+public class PDFToolkitService extends BaseScopableProcessorExtension
 {
 
 	private ServiceRegistry serviceRegistry;
+	private DeferredSignatureService deferredSignatureService;
 	private static final Log logger = LogFactory.getLog(PDFToolkitService.class);
 	
 	private String PARAM_TARGET = "target";
@@ -55,6 +70,11 @@ public class PDFToolkitService extends BaseProcessorExtension
 		this.serviceRegistry = serviceRegistry;
 	}
 	
+	public void setDeferredSignatureService(DeferredSignatureService deferredSignatureService)
+	{
+		this.deferredSignatureService = deferredSignatureService;
+	}
+	
     public PDFToolkitService()
     {
     }
@@ -90,18 +110,103 @@ public class PDFToolkitService extends BaseProcessorExtension
      *  	allow-degraded-print : true,
      *  	allow-assembly : true,
      *  	encryption-level : "0",
-     *  	exclude-metadata : true
+     *  	exclude-metadata : true,
+     *  	recipients : ["workspace:SpacesStore://node-uuid", "workspace:SpacesStore://node-uuid"]
      * 	}
      * 
+     * recipients is optional, and encrypts the document for the certificates held by the
+     * nodes instead of with the passwords, which can then be left out.
+     * 
      * For the available options for encryption-level, look at the constraint pdfc-encryptionlevel 
      * in module-context.xml
+     * 
+     * @return the created documents, in order
      */
-    public void encryptPDF(NativeObject obj)
+    public Scriptable encryptPDF(NativeObject obj)
     {
 
     	Map<String, Serializable> params = buildParamMap(obj);
     	NodeRef toEncrypt = getActionTargetNode(params);
-    	this.executePDFAction(PDFEncryptionActionExecuter.NAME, params, toEncrypt);
+    	
+    	//the recipient certificates come in as an array of node reference strings
+    	Object recipients = params.get(PDFEncryptionActionExecuter.PARAM_RECIPIENTS);
+    	if(recipients instanceof NativeArray)
+    	{
+    		NativeArray array = (NativeArray)recipients;
+    		ArrayList<NodeRef> nodeRefs = new ArrayList<NodeRef>();
+    		for(int i = 0; i < array.getLength(); i++)
+    		{
+    			Map<String, Serializable> recipient = new HashMap<String, Serializable>();
+    			recipient.put(PARAM_TARGET, array.get(i, array).toString());
+    			nodeRefs.add(getActionTargetNode(recipient));
+    		}
+    		params.put(PDFEncryptionActionExecuter.PARAM_RECIPIENTS, nodeRefs);
+    	}
+    	return this.executePDFAction(PDFEncryptionActionExecuter.NAME, params, toEncrypt);
+    }
+
+    /**
+     * Wrapper for the decrypt PDF action. This calls the PDFDecryptionActionExecuter
+     * 
+     * When used in a JS context, this code expects a JSON object to with the following structure:
+     * 
+     * 	{
+     * 		target : "workspace:SpacesStore://node-uuid",
+     * 		destination-folder : "workspace:SpacesStore://node-uuid",
+     * 		password : "password"
+     * 	}
+     * 
+     * The password is the owner password, or a user password that grants full permissions.
+     * The encryption the document had is recorded on the pdft:decrypted aspect of the result.
+     * 
+     * @return the created documents, in order
+     */
+    public Scriptable decryptPDF(NativeObject obj)
+    {
+    	Map<String, Serializable> params = buildParamMap(obj);
+    	NodeRef toDecrypt = getActionTargetNode(params);
+    	return this.executePDFAction(PDFDecryptionActionExecuter.NAME, params, toDecrypt);
+    }
+
+    /**
+     * Wrapper for the bulk re-encryption action. This calls the PDFReEncryptionActionExecuter
+     * 
+     * When used in a JS context, this code expects a JSON object to with the following structure:
+     * 
+     * 	{
+     * 		target : "workspace:SpacesStore://node-uuid",
+     * 		query : "ASPECT:\"pdft:encrypted\"",
+     * 		job-id : "password-rotation-2012",
+     * 		old-password : "password",
+     * 		user-password : "password",
+     *  	owner-password : "password",
+     *  	allow-print : true,
+     *  	allow-copy : true,
+     *  	allow-content-modification : true,
+     *  	allow-annotation-modification : true,
+     *  	allow-form-fill : true,
+     *  	allow-screen-reader : true,
+     *  	allow-degraded-print : true,
+     *  	allow-assembly : true,
+     *  	encryption-level : "0",
+     *  	exclude-metadata : true
+     * 	}
+     * 
+     * The encrypted documents under the target folder, or found by query in the target's
+     * store, are re-encrypted in place.  query and job-id are optional.  Running the same
+     * job again resumes after the batches it already committed.
+     * 
+     * @return a report of the documents re-encrypted, skipped and failed, and the throughput
+     */
+    public String reencryptPDF(NativeObject obj)
+    {
+    	Map<String, Serializable> params = nativeObjectToMap(obj);
+    	NodeRef target = getActionTargetNode(params);
+    	
+    	ActionService actionService = serviceRegistry.getActionService();
+    	Action toExecute = actionService.createAction(PDFReEncryptionActionExecuter.NAME, params);
+    	actionService.executeAction(toExecute, target);
+    	return (String)toExecute.getParameterValue(ActionExecuter.PARAM_RESULT);
     }
 
     /**
@@ -124,9 +229,21 @@ public class PDFToolkitService extends BaseProcessorExtension
      *  	visibility : "visible",
      *  	position : "center",
      *  	location-x : "50",
-     *  	location-y : "50"
+     *  	location-y : "50",
+     *  	signature-mode : "immediate",
+     *  	countersign : "true",
+     *  	signers : [{private-key : "workspace:SpacesStore://node-uuid", alias : "alias",
+     *  		key-password : "keypassword", store-password : "storepassword", position : "topleft"}]
      * 	}
      * 
+     * In deferred signature mode the key parameters are left out, the document is signed
+     * with the configured signer once completeSignatures is called for it.
+     * 
+     * countersign appends the signature as a new revision rather than rewriting the
+     * document.  signers is optional, and signs with each of its keys in turn in one run,
+     * each signature appended to the one before.  Parameters a signer leaves out are
+     * taken from the object itself.
+     * 
      * For the available options for visibility, look at the constraint pdfc-visibility
      * in module-context.xml
      * 
@@ -135,17 +252,65 @@ public class PDFToolkitService extends BaseProcessorExtension
      * 
      * For the available options for position, look at the constraint pdfc-position
      * in module-context.xml
+     * 
+     * @return the created documents, in order
      */
-    public void signPDF(NativeObject obj)
+    public Scriptable signPDF(NativeObject obj)
     {
     	Map<String, Serializable> params = buildParamMap(obj);
     	
-    	//check and make sure we have a valid ref for the private key
-    	NodeRef key = getDependentNode(params, PDFSignatureActionExecuter.PARAM_PRIVATE_KEY);
-    	params.put(PDFSignatureActionExecuter.PARAM_PRIVATE_KEY, key);
+    	//each signer comes in as an object of signature parameters
+    	Object signers = params.get(PDFSignatureActionExecuter.PARAM_SIGNERS);
+    	if(signers instanceof NativeArray)
+    	{
+    		NativeArray array = (NativeArray)signers;
+    		ArrayList<Map<String, Serializable>> signerMaps = new ArrayList<Map<String, Serializable>>();
+    		for(int i = 0; i < array.getLength(); i++)
+    		{
+    			Map<String, Serializable> signer = nativeObjectToMap((NativeObject)array.get(i, array));
+    			if(signer.containsKey(PDFSignatureActionExecuter.PARAM_PRIVATE_KEY))
+    			{
+    				signer.put(PDFSignatureActionExecuter.PARAM_PRIVATE_KEY, getDependentNode(signer, PDFSignatureActionExecuter.PARAM_PRIVATE_KEY));
+    			}
+    			signerMaps.add(signer);
+    		}
+    		params.put(PDFSignatureActionExecuter.PARAM_SIGNERS, signerMaps);
+    	}
+    	
+    	//check and make sure we have a valid ref for the private key, deferred signatures
+    	//are made with the configured signer instead
+    	else if(!PDFSignatureActionExecuter.MODE_DEFERRED.equals(params.get(PDFSignatureActionExecuter.PARAM_SIGNATURE_MODE)))
+    	{
+    		NodeRef key = getDependentNode(params, PDFSignatureActionExecuter.PARAM_PRIVATE_KEY);
+    		params.put(PDFSignatureActionExecuter.PARAM_PRIVATE_KEY, key);
+    	}
 
     	NodeRef toSign = getActionTargetNode(params);
-    	this.executePDFAction(PDFSignatureActionExecuter.NAME, params, toSign);
+    	return this.executePDFAction(PDFSignatureActionExecuter.NAME, params, toSign);
+    }
+
+    /**
+     * Completes the deferred signatures of a set of documents, signing their digests in
+     * batches with the configured signer.  Documents without a pending signature are
+     * skipped.
+     * 
+     * When used in a JS context, this code expects an array of node reference strings:
+     * 
+     * 	["workspace:SpacesStore://node-uuid", "workspace:SpacesStore://node-uuid"]
+     * 
+     * @return the number of documents signed
+     */
+    public int completeSignatures(NativeArray documents)
+    {
+    	ArrayList<NodeRef> nodeRefs = new ArrayList<NodeRef>();
+    	for(int i = 0; i < documents.getLength(); i++)
+    	{
+    		Map<String, Serializable> document = new HashMap<String, Serializable>();
+    		document.put(PARAM_TARGET, documents.get(i, documents).toString());
+    		nodeRefs.add(getActionTargetNode(document));
+    	}
+    	
+    	return deferredSignatureService.completeSignatures(nodeRefs);
     }
 
     /**
@@ -165,7 +330,9 @@ public class PDFToolkitService extends BaseProcessorExtension
      *  	watermark-depth : "under",
      *  	watermark-text : "Text to use as watermark",
      *  	watermark-font : "Courier",
-     *  	watermark-size : "18"
+     *  	watermark-size : "18",
+     *  	watermark-layout : "single",
+     *  	watermark-rotation : "45"
      * 	}
      * 
      * For the available options for position, look at the constraint pdfc-position
@@ -182,8 +349,10 @@ public class PDFToolkitService extends BaseProcessorExtension
      * 
      * For the available options for watermark-font, look at the constraint pdfc-font
      * in module-context.xml
+     * 
+     * @return the created documents, in order
      */
-    public void watermarkPDF(NativeObject obj)
+    public Scriptable watermarkPDF(NativeObject obj)
     {
     	Map<String, Serializable> params = buildParamMap(obj);
     	NodeRef toWatermark = getActionTargetNode(params);
@@ -197,7 +366,7 @@ public class PDFToolkitService extends BaseProcessorExtension
     		params.put(PDFWatermarkActionExecuter.PARAM_WATERMARK_IMAGE, image);
     	}
     	
-    	this.executePDFAction(PDFWatermarkActionExecuter.NAME, params, toWatermark);
+    	return this.executePDFAction(PDFWatermarkActionExecuter.NAME, params, toWatermark);
     }
 
     /**
@@ -211,12 +380,14 @@ public class PDFToolkitService extends BaseProcessorExtension
      * 		split-frequency : "1"
      * 	}
      * 
+     * 
+     * @return the created documents, in order
      */
-    public void splitPDF(NativeObject obj)
+    public Scriptable splitPDF(NativeObject obj)
     {
     	Map<String, Serializable> params = buildParamMap(obj);
     	NodeRef toSplit = getActionTargetNode(params);
-    	this.executePDFAction(PDFSplitActionExecuter.NAME, params, toSplit);
+    	return this.executePDFAction(PDFSplitActionExecuter.NAME, params, toSplit);
     }
 
     /**
@@ -230,12 +401,14 @@ public class PDFToolkitService extends BaseProcessorExtension
      * 		split-at-page : "1"
      * 	}
      * 
+     * 
+     * @return the created documents, in order
      */
-    public void splitPDFAtPage(NativeObject obj)
+    public Scriptable splitPDFAtPage(NativeObject obj)
     {
     	Map<String, Serializable> params = buildParamMap(obj);
     	NodeRef toSplit = getActionTargetNode(params);
-    	this.executePDFAction(PDFSplitAtPageActionExecuter.NAME, params, toSplit);
+    	return this.executePDFAction(PDFSplitAtPageActionExecuter.NAME, params, toSplit);
     }
     
     /**
@@ -250,8 +423,10 @@ public class PDFToolkitService extends BaseProcessorExtension
      * 		destination-name : "new_file_name.pdf"
      * 	}
      * 
+     * 
+     * @return the created documents, in order
      */
-    public void appendPDF(NativeObject obj)
+    public Scriptable appendPDF(NativeObject obj)
     {
     	Map<String, Serializable> params = buildParamMap(obj);
     	NodeRef appendTo = getActionTargetNode(params);
@@ -260,7 +435,7 @@ public class PDFToolkitService extends BaseProcessorExtension
     	NodeRef toAppend = getDependentNode(params, "append-content");
     	params.put("append-content", toAppend);
     	
-    	this.executePDFAction(PDFAppendActionExecuter.NAME, params, appendTo);
+    	return this.executePDFAction(PDFAppendActionExecuter.NAME, params, appendTo);
     }
 
     /**
@@ -276,8 +451,10 @@ public class PDFToolkitService extends BaseProcessorExtension
      * 		insert-at-page : "1"
      * 	}
      * 
+     * 
+     * @return the created documents, in order
      */
-    public void insertPDF(NativeObject obj)
+    public Scriptable insertPDF(NativeObject obj)
     {
     	Map<String, Serializable> params = buildParamMap(obj);
     	NodeRef insertInto = getActionTargetNode(params);
@@ -286,7 +463,95 @@ public class PDFToolkitService extends BaseProcessorExtension
     	NodeRef toInsert= getDependentNode(params, PDFInsertAtPageActionExecuter.PARAM_INSERT_CONTENT);
     	params.put(PDFInsertAtPageActionExecuter.PARAM_INSERT_CONTENT, toInsert);
     	
-    	this.executePDFAction(PDFInsertAtPageActionExecuter.NAME, params, insertInto);
+    	return this.executePDFAction(PDFInsertAtPageActionExecuter.NAME, params, insertInto);
+    }
+    
+    /**
+     * Wrapper for the Bates numbering action. This calls the PDFBatesActionExecuter
+     * 
+     * When used in a JS context, this code expects a JSON object to with the following structure:
+     * 
+     * 	{
+     * 		target : "workspace:SpacesStore://node-uuid",
+     * 		destination-folder : "workspace:SpacesStore://node-uuid",
+     * 		bates-documents : ["workspace:SpacesStore://node-uuid", "workspace:SpacesStore://node-uuid"],
+     * 		bates-start : 1,
+     * 		bates-prefix : "ABC",
+     * 		bates-digits : 6,
+     * 		bates-font : "Helvetica",
+     * 		bates-size : "10",
+     * 		position : "bottomright"
+     * 	}
+     * 
+     * The target is the folder holding the production.  bates-documents is optional, and
+     * gives the documents in the order they are numbered.  Without it the PDF documents
+     * in the target folder are numbered in name order.
+     * 
+     * For the available options for position, look at the constraint pdfc-position
+     * in module-context.xml
+     * 
+     * @return the created documents, in order
+     */
+    public Scriptable batesPDF(NativeObject obj)
+    {
+    	Map<String, Serializable> params = buildParamMap(obj);
+    	NodeRef folder = getActionTargetNode(params);
+    	
+    	//the documents come in as an array of node reference strings
+    	Object documents = params.get(PDFBatesActionExecuter.PARAM_BATES_DOCUMENTS);
+    	if(documents instanceof NativeArray)
+    	{
+    		NativeArray array = (NativeArray)documents;
+    		ArrayList<NodeRef> nodeRefs = new ArrayList<NodeRef>();
+    		for(int i = 0; i < array.getLength(); i++)
+    		{
+    			Map<String, Serializable> document = new HashMap<String, Serializable>();
+    			document.put(PARAM_TARGET, array.get(i, array).toString());
+    			nodeRefs.add(getActionTargetNode(document));
+    		}
+    		params.put(PDFBatesActionExecuter.PARAM_BATES_DOCUMENTS, nodeRefs);
+    	}
+    	
+    	return this.executePDFAction(PDFBatesActionExecuter.NAME, params, folder);
+    }
+    
+    /**
+     * Wrapper for the verify signature action. This calls the PDFVerifySignatureActionExecuter
+     * 
+     * When used in a JS context, this code expects a JSON object to with the following structure:
+     * 
+     * 	{
+     * 		target : "workspace:SpacesStore://node-uuid",
+     * 		verify-documents : ["workspace:SpacesStore://node-uuid", "workspace:SpacesStore://node-uuid"]
+     * 	}
+     * 
+     * verify-documents is optional, and verifies a batch of documents in parallel instead
+     * of the target.  The outcome is recorded on the pdft:signed aspect of each document.
+     * 
+     * @return true if the signatures of the target are verified
+     */
+    public boolean verifyPDF(NativeObject obj)
+    {
+    	Map<String, Serializable> params = nativeObjectToMap(obj);
+    	NodeRef target = getActionTargetNode(params);
+    	
+    	//the documents come in as an array of node reference strings
+    	Object documents = params.get(PDFVerifySignatureActionExecuter.PARAM_VERIFY_DOCUMENTS);
+    	if(documents instanceof NativeArray)
+    	{
+    		NativeArray array = (NativeArray)documents;
+    		ArrayList<NodeRef> nodeRefs = new ArrayList<NodeRef>();
+    		for(int i = 0; i < array.getLength(); i++)
+    		{
+    			Map<String, Serializable> document = new HashMap<String, Serializable>();
+    			document.put(PARAM_TARGET, array.get(i, array).toString());
+    			nodeRefs.add(getActionTargetNode(document));
+    		}
+    		params.put(PDFVerifySignatureActionExecuter.PARAM_VERIFY_DOCUMENTS, nodeRefs);
+    	}
+    	
+    	this.executePDFAction(PDFVerifySignatureActionExecuter.NAME, params, target);
+    	return Boolean.TRUE.equals(serviceRegistry.getNodeService().getProperty(target, PDFToolkitModel.PROP_VERIFIED));
     }
     
     /**
@@ -295,12 +560,24 @@ public class PDFToolkitService extends BaseProcessorExtension
      * @param name
      * @param params
      * @param actioned
+     * @return the nodes the action created, in order
      */
-    private void executePDFAction(String name, Map<String, Serializable> params, NodeRef actioned)
+    @SuppressWarnings("unchecked")
+    private Scriptable executePDFAction(String name, Map<String, Serializable> params, NodeRef actioned)
     {
     	ActionService actionService = serviceRegistry.getActionService();
     	Action toExecute = actionService.createAction(name, params);
     	actionService.executeAction(toExecute, actioned);
+    	
+    	//the executers collect the nodes they create as the action's result
+    	Serializable result = toExecute.getParameterValue(ActionExecuter.PARAM_RESULT);
+    	List<NodeRef> created = result instanceof List ? (List<NodeRef>)result : Collections.<NodeRef>emptyList();
+    	Object[] nodes = new Object[created.size()];
+    	for(int i = 0; i < nodes.length; i++)
+    	{
+    		nodes[i] = new ScriptNode(created.get(i), serviceRegistry, getScope());
+    	}
+    	return Context.getCurrentContext().newArray(getScope(), nodes);
     }
     
     /**
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2008-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.extension.pdftoolkit.web.scripts;
+
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.alfresco.extension.pdftoolkit.repo.action.executer.PDFWatermarkActionExecuter;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.content.MimetypeMap;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.springframework.extensions.webscripts.AbstractWebScript;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+
+/**
+ * Streams a PDF to the client with a watermark applied on the fly, for watermarks that
+ * differ per recipient and aren't worth storing.  The watermark is one of a set of
+ * named configurations, holding the same parameters as the pdf-watermark action, and
+ * a rewrite entry.  With rewrite set to false the watermark is appended to the
+ * original as an incremental update, which is quicker but leaves the unwatermarked
+ * original recoverable from the download, so it must not be used to trace leaks.
+ */
+public class WatermarkDownloadWebScript
+    extends AbstractWebScript
+{
+    public static final String                          PARAM_CONFIGURATION   = "config";
+    public static final String                          PARAM_ATTACH          = "a";
+    public static final String                          DEFAULT_CONFIGURATION = "default";
+    public static final String                          CONFIG_REWRITE        = "rewrite";
+
+    private static final String                         PLAN_KEY_PREFIX       = "download:";
+
+    private PDFWatermarkActionExecuter                  watermarkExecuter;
+    private NodeService                                 nodeService;
+    private Map<String, Map<String, Serializable>>      configurations        = new HashMap<String, Map<String, Serializable>>();
+    private Map<String, Boolean>                        rewrite               = new HashMap<String, Boolean>();
+
+
+    public void setWatermarkExecuter(PDFWatermarkActionExecuter watermarkExecuter)
+    {
+        this.watermarkExecuter = watermarkExecuter;
+    }
+
+
+    public void setNodeService(NodeService nodeService)
+    {
+        this.nodeService = nodeService;
+    }
+
+
+    /**
+     * Sets the watermark configurations by name.  The watermark image, if any, is given
+     * as a node reference string.  The rewrite entry, true unless it is set to false,
+     * writes the document out in full rather than as an incremental update.
+     *
+     * @param configurations
+     */
+    public void setConfigurations(Map<String, Map<String, String>> configurations)
+    {
+        for (Map.Entry<String, Map<String, String>> configuration : configurations.entrySet())
+        {
+            Map<String, Serializable> parameters = new HashMap<String, Serializable>();
+            this.rewrite.put(configuration.getKey(), Boolean.TRUE);
+            for (Map.Entry<String, String> parameter : configuration.getValue().entrySet())
+            {
+                if (CONFIG_REWRITE.equals(parameter.getKey()))
+                {
+                    this.rewrite.put(configuration.getKey(), !"false".equalsIgnoreCase(parameter.getValue()));
+                }
+                else if (PDFWatermarkActionExecuter.PARAM_WATERMARK_IMAGE.equals(parameter.getKey()))
+                {
+                    parameters.put(parameter.getKey(), new NodeRef(parameter.getValue()));
+                }
+                else
+                {
+                    parameters.put(parameter.getKey(), parameter.getValue());
+                }
+            }
+            this.configurations.put(configuration.getKey(), parameters);
+        }
+    }
+
+
+    /**
+     * @see org.springframework.extensions.webscripts.WebScript#execute(org.springframework.extensions.webscripts.WebScriptRequest,
+     * org.springframework.extensions.webscripts.WebScriptResponse)
+     */
+    public void execute(WebScriptRequest req, WebScriptResponse res)
+        throws IOException
+    {
+        Map<String, String> vars = req.getServiceMatch().getTemplateVars();
+        NodeRef nodeRef = new NodeRef(vars.get("store_type"), vars.get("store_id"), vars.get("id"));
+        if (!nodeService.exists(nodeRef))
+        {
+            throw new WebScriptException(Status.STATUS_NOT_FOUND, "Unable to find " + nodeRef);
+        }
+
+        ContentData content = (ContentData)nodeService.getProperty(nodeRef, ContentModel.PROP_CONTENT);
+        if (content == null || !MimetypeMap.MIMETYPE_PDF.equals(content.getMimetype()))
+        {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, nodeRef + " is not a PDF document");
+        }
+
+        String name = req.getParameter(PARAM_CONFIGURATION);
+        if (name == null || name.length() == 0)
+        {
+            name = DEFAULT_CONFIGURATION;
+        }
+        Map<String, Serializable> parameters = configurations.get(name);
+        if (parameters == null)
+        {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Unknown watermark configuration " + name);
+        }
+
+        // the watermark is personal, so the response mustn't be shared
+        res.setContentType(MimetypeMap.MIMETYPE_PDF);
+        res.setHeader("Cache-Control", "private, no-store");
+        if (Boolean.valueOf(req.getParameter(PARAM_ATTACH)))
+        {
+            String fileName = (String)nodeService.getProperty(nodeRef, ContentModel.PROP_NAME);
+            res.setHeader("Content-Disposition", "attachment; filename=\"" + fileName.replace("\"", "") + "\"");
+        }
+
+        watermarkExecuter.writeWatermarked(PLAN_KEY_PREFIX + name, parameters, nodeRef, res.getOutputStream(), rewrite.get(name));
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2008-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.extension.pdftoolkit.repo.action.executer;
+
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import org.alfresco.extension.pdftoolkit.repo.workspace.PDFTempWorkspaceManager;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.content.MimetypeMap;
+import org.alfresco.repo.content.filestore.FileContentReader;
+import org.alfresco.repo.content.filestore.FileContentWriter;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.action.Action;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.model.FileFolderService;
+import org.alfresco.service.cmr.model.FileInfo;
+import org.alfresco.service.cmr.repository.ContentService;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.itextpdf.text.Document;
+import com.itextpdf.text.Paragraph;
+import com.itextpdf.text.pdf.PdfWriter;
+
+
+/**
+ * Splits a document into more parts than a batch holds, inside and outside an
+ * enclosing transaction
+ */
+public class PDFSplitActionExecuterTest
+{
+    private static final NodeRef      SOURCE      = new NodeRef("workspace://SpacesStore/split-test");
+    private static final NodeRef      DESTINATION = new NodeRef("workspace://SpacesStore/split-test-destination");
+    private static final int          PAGES       = 5;
+
+    @Rule
+    public TemporaryFolder            folder      = new TemporaryFolder();
+
+    private FileFolderService         fileFolderService;
+    private AttributeService          attributeService;
+    private RetryingTransactionHelper txnHelper;
+    private PDFSplitActionExecuter    executer;
+
+
+    @Before
+    public void setUp()
+        throws Exception
+    {
+        final File source = folder.newFile("source.pdf");
+        createDocument(source);
+
+        NodeService nodeService = mock(NodeService.class);
+        when(nodeService.exists(any(NodeRef.class))).thenReturn(true);
+        when(nodeService.getType(any(NodeRef.class))).thenReturn(ContentModel.TYPE_CONTENT);
+
+        DictionaryService dictionaryService = mock(DictionaryService.class);
+        when(dictionaryService.isSubClass(any(QName.class), eq(ContentModel.TYPE_CONTENT))).thenReturn(true);
+
+        ContentService contentService = mock(ContentService.class);
+        when(contentService.getReader(SOURCE, ContentModel.PROP_CONTENT)).thenAnswer(new Answer<FileContentReader>()
+        {
+            public FileContentReader answer(InvocationOnMock invocation)
+            {
+                FileContentReader reader = new FileContentReader(source);
+                reader.setMimetype(MimetypeMap.MIMETYPE_PDF);
+                return reader;
+            }
+        });
+        when(contentService.getWriter(null, null, false)).thenAnswer(new Answer<ContentWriter>()
+        {
+            public ContentWriter answer(InvocationOnMock invocation)
+                throws Throwable
+            {
+                return new FileContentWriter(folder.newFile());
+            }
+        });
+
+        FileInfo sourceInfo = mock(FileInfo.class);
+        when(sourceInfo.getName()).thenReturn("source.pdf");
+        fileFolderService = mock(FileFolderService.class);
+        when(fileFolderService.getFileInfo(SOURCE)).thenReturn(sourceInfo);
+        when(fileFolderService.create(eq(DESTINATION), anyString(), eq(ContentModel.TYPE_CONTENT))).thenAnswer(new Answer<FileInfo>()
+        {
+            public FileInfo answer(InvocationOnMock invocation)
+            {
+                FileInfo part = mock(FileInfo.class);
+                when(part.getNodeRef()).thenReturn(new NodeRef("workspace://SpacesStore/" + invocation.getArguments()[1]));
+                return part;
+            }
+        });
+
+        // runs each batch straight away, as a new transaction would
+        txnHelper = mock(RetryingTransactionHelper.class);
+        when(txnHelper.doInTransaction(any(RetryingTransactionCallback.class), anyBoolean(), anyBoolean())).thenAnswer(new Answer<Object>()
+        {
+            public Object answer(InvocationOnMock invocation)
+                throws Throwable
+            {
+                return ((RetryingTransactionCallback<?>)invocation.getArguments()[0]).execute();
+            }
+        });
+        TransactionService transactionService = mock(TransactionService.class);
+        when(transactionService.getRetryingTransactionHelper()).thenReturn(txnHelper);
+
+        attributeService = mock(AttributeService.class);
+
+        ServiceRegistry serviceRegistry = mock(ServiceRegistry.class);
+        when(serviceRegistry.getNodeService()).thenReturn(nodeService);
+        when(serviceRegistry.getDictionaryService()).thenReturn(dictionaryService);
+        when(serviceRegistry.getContentService()).thenReturn(contentService);
+        when(serviceRegistry.getFileFolderService()).thenReturn(fileFolderService);
+        when(serviceRegistry.getTransactionService()).thenReturn(transactionService);
+        when(serviceRegistry.getAttributeService()).thenReturn(attributeService);
+
+        PDFTempWorkspaceManager workspaceManager = new PDFTempWorkspaceManager();
+        workspaceManager.setRootName("pdftoolkit-split-test");
+        workspaceManager.init();
+
+        executer = new PDFSplitActionExecuter();
+        executer.setServiceRegistry(serviceRegistry);
+        executer.setWorkspaceManager(workspaceManager);
+        executer.setDirectContentWrite(true);
+        executer.setBatchSize(2);
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        if (TransactionSynchronizationManager.isSynchronizationActive())
+        {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+
+    @Test
+    public void createsBatchesAfterCommit()
+        throws Exception
+    {
+        TransactionSynchronizationManager.initSynchronization();
+        executer.execute(createAction(), SOURCE);
+
+        // nothing is created in the caller's transaction
+        verify(fileFolderService, never()).create(any(NodeRef.class), anyString(), any(QName.class));
+
+        complete(TransactionSynchronization.STATUS_COMMITTED);
+
+        verifyBatches();
+    }
+
+
+    @Test
+    public void createsNoBatchesAfterRollback()
+        throws Exception
+    {
+        TransactionSynchronizationManager.initSynchronization();
+        executer.execute(createAction(), SOURCE);
+
+        complete(TransactionSynchronization.STATUS_ROLLED_BACK);
+
+        verify(fileFolderService, never()).create(any(NodeRef.class), anyString(), any(QName.class));
+        verify(txnHelper, never()).doInTransaction(any(RetryingTransactionCallback.class), anyBoolean(), anyBoolean());
+    }
+
+
+    @Test
+    public void createsBatchesWithoutTransaction()
+        throws Exception
+    {
+        executer.execute(createAction(), SOURCE);
+
+        verifyBatches();
+    }
+
+
+    /**
+     * Five parts in batches of two, each checkpointed in a new transaction, and the
+     * checkpoint removed in a last one
+     */
+    private void verifyBatches()
+    {
+        verify(fileFolderService, times(PAGES)).create(eq(DESTINATION), anyString(), eq(ContentModel.TYPE_CONTENT));
+        verify(fileFolderService).create(DESTINATION, "source_pg5.pdf", ContentModel.TYPE_CONTENT);
+        verify(txnHelper, times(4)).doInTransaction(any(RetryingTransactionCallback.class), eq(false), eq(true));
+        for (int checkpoint : new int[] { 2, 4, 5 })
+        {
+            verify(attributeService).setAttribute(eq(Integer.valueOf(checkpoint)), anyString(), eq(SOURCE.getId()), eq(DESTINATION.getId()),
+                    anyString());
+        }
+        verify(attributeService).removeAttribute(anyString(), eq(SOURCE.getId()), eq(DESTINATION.getId()), anyString());
+    }
+
+
+    /**
+     * Ends the enclosing transaction the way the transaction manager does
+     */
+    private static void complete(int status)
+    {
+        try
+        {
+            for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations())
+            {
+                synchronization.afterCompletion(status);
+            }
+        }
+        finally
+        {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+
+    private static Action createAction()
+    {
+        Action action = mock(Action.class);
+        when(action.getActionDefinitionName()).thenReturn(PDFSplitActionExecuter.NAME);
+        when(action.getParameterValue(PDFSplitActionExecuter.PARAM_DESTINATION_FOLDER)).thenReturn(DESTINATION);
+        when(action.getParameterValue(PDFSplitActionExecuter.PARAM_SPLIT_FREQUENCY)).thenReturn("");
+        return action;
+    }
+
+
+    private static void createDocument(File file)
+        throws Exception
+    {
+        FileOutputStream out = new FileOutputStream(file);
+        try
+        {
+            Document document = new Document();
+            PdfWriter.getInstance(document, out);
+            document.open();
+            for (int i = 1; i <= PAGES; i++)
+            {
+                document.newPage();
+                document.add(new Paragraph("Page " + i));
+            }
+            document.close();
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+}
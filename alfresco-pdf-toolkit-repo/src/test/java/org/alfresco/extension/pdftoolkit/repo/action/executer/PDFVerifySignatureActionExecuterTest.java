@@ -0,0 +1,262 @@
+/*
+ * Copyright 2008-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.extension.pdftoolkit.repo.action.executer;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.alfresco.extension.pdftoolkit.model.PDFToolkitModel;
+import org.alfresco.extension.pdftoolkit.repo.admission.PDFAdmissionController;
+import org.alfresco.extension.pdftoolkit.repo.signature.CertificateVerifier;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.content.MimetypeMap;
+import org.alfresco.repo.content.filestore.FileContentReader;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.action.Action;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.repository.ContentService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.QName;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.itextpdf.text.Document;
+import com.itextpdf.text.Paragraph;
+import com.itextpdf.text.pdf.PdfFileSpecification;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfSignatureAppearance;
+import com.itextpdf.text.pdf.PdfStamper;
+import com.itextpdf.text.pdf.PdfWriter;
+
+
+/**
+ * Verifies signed documents too big to be admitted twice from the memory budget, and
+ * batches of documents larger than the number in flight
+ */
+public class PDFVerifySignatureActionExecuterTest
+{
+    private static final NodeRef             NODE     = new NodeRef("workspace://SpacesStore/verify-signature-test");
+    private static final long                MB       = 1024L * 1024L;
+
+    @Rule
+    public TemporaryFolder                   folder   = new TemporaryFolder();
+
+    private NodeService                      nodeService;
+    private File                             signed;
+    private PDFAdmissionController           admissionController;
+    private ExecutorService                  executor;
+    private PDFVerifySignatureActionExecuter executer;
+
+
+    @Before
+    public void setUp()
+        throws Exception
+    {
+        signed = folder.newFile("signed.pdf");
+        sign(createDocument(700 * 1024), signed);
+
+        nodeService = mock(NodeService.class);
+        when(nodeService.exists(any(NodeRef.class))).thenReturn(true);
+        when(nodeService.getType(any(NodeRef.class))).thenReturn(ContentModel.TYPE_CONTENT);
+
+        DictionaryService dictionaryService = mock(DictionaryService.class);
+        when(dictionaryService.isSubClass(any(QName.class), eq(ContentModel.TYPE_CONTENT))).thenReturn(true);
+
+        ContentService contentService = mock(ContentService.class);
+        when(contentService.getReader(any(NodeRef.class), eq(ContentModel.PROP_CONTENT))).thenAnswer(new Answer<FileContentReader>()
+        {
+            public FileContentReader answer(InvocationOnMock invocation)
+            {
+                FileContentReader reader = new FileContentReader(signed);
+                reader.setMimetype(MimetypeMap.MIMETYPE_PDF);
+                return reader;
+            }
+        });
+
+        ServiceRegistry serviceRegistry = mock(ServiceRegistry.class);
+        when(serviceRegistry.getNodeService()).thenReturn(nodeService);
+        when(serviceRegistry.getDictionaryService()).thenReturn(dictionaryService);
+        when(serviceRegistry.getContentService()).thenReturn(contentService);
+
+        // a budget of 1MB, with a short wait so a double admission fails quickly
+        admissionController = new PDFAdmissionController();
+        admissionController.setMemoryBudgetMB(1);
+        admissionController.setMaxWait(200);
+
+        executor = Executors.newFixedThreadPool(2);
+
+        executer = new PDFVerifySignatureActionExecuter();
+        executer.setServiceRegistry(serviceRegistry);
+        executer.setAdmissionController(admissionController);
+        executer.setCertificateVerifier(mock(CertificateVerifier.class));
+        executer.setExecutor(executor);
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        executor.shutdownNow();
+    }
+
+
+    @Test
+    public void verifiesDocumentOverHalfTheBudget()
+        throws Exception
+    {
+        setCostFactor("1");
+        assertEquals(true, admissionController.estimateCost(PDFVerifySignatureActionExecuter.NAME, signed.length(),
+                PDFAdmissionController.UNKNOWN_PAGE_COUNT) > MB / 2);
+
+        executer.execute(createAction(), NODE);
+
+        verify(nodeService).setProperty(NODE, PDFToolkitModel.PROP_VERIFIED, true);
+        assertEquals(0, admissionController.getReserved());
+    }
+
+
+    @Test
+    public void verifiesDocumentOverTheBudget()
+        throws Exception
+    {
+        setCostFactor("2");
+        assertEquals(true, admissionController.estimateCost(PDFVerifySignatureActionExecuter.NAME, signed.length(),
+                PDFAdmissionController.UNKNOWN_PAGE_COUNT) > MB);
+
+        executer.execute(createAction(), NODE);
+
+        verify(nodeService).setProperty(NODE, PDFToolkitModel.PROP_VERIFIED, true);
+        assertEquals(0, admissionController.getReserved());
+    }
+
+
+    @Test
+    public void verifiesMoreDocumentsThanAreInFlight()
+        throws Exception
+    {
+        ArrayList<NodeRef> documents = new ArrayList<NodeRef>();
+        for (int i = 0; i < 3; i++)
+        {
+            documents.add(new NodeRef("workspace://SpacesStore/verify-signature-test-" + i));
+        }
+        executer.setDocumentsInFlight(1);
+
+        Action action = createAction();
+        when(action.getParameterValue(PDFVerifySignatureActionExecuter.PARAM_VERIFY_DOCUMENTS)).thenReturn(documents);
+        executer.execute(action, NODE);
+
+        for (NodeRef document : documents)
+        {
+            verify(nodeService).setProperty(document, PDFToolkitModel.PROP_VERIFIED, true);
+        }
+        assertEquals(0, admissionController.getReserved());
+    }
+
+
+    private void setCostFactor(String factor)
+    {
+        admissionController.setCostFactors(Collections.singletonMap(PDFVerifySignatureActionExecuter.NAME, factor));
+    }
+
+
+    private static Action createAction()
+    {
+        Action action = mock(Action.class);
+        when(action.getActionDefinitionName()).thenReturn(PDFVerifySignatureActionExecuter.NAME);
+        return action;
+    }
+
+
+    /**
+     * A document with an attachment of random bytes, so that it doesn't compress below
+     * the given size
+     */
+    private static byte[] createDocument(int size)
+        throws Exception
+    {
+        byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Document document = new Document();
+        PdfWriter writer = PdfWriter.getInstance(document, out);
+        document.open();
+        document.add(new Paragraph("Signed and verified"));
+        writer.addFileAttachment(PdfFileSpecification.fileEmbedded(writer, null, "data.bin", data));
+        document.close();
+        return out.toByteArray();
+    }
+
+
+    private void sign(byte[] document, File file)
+        throws Exception
+    {
+        KeyStore ks = KeyStore.getInstance("jks");
+        InputStream is = getClass().getResourceAsStream("/org/alfresco/extension/pdftoolkit/repo/signature/test-signer.jks");
+        try
+        {
+            ks.load(is, "password".toCharArray());
+        }
+        finally
+        {
+            is.close();
+        }
+
+        PdfReader reader = new PdfReader(document);
+        FileOutputStream out = new FileOutputStream(file);
+        try
+        {
+            PdfStamper stamper = PdfStamper.createSignature(reader, out, '\0');
+            PdfSignatureAppearance sap = stamper.getSignatureAppearance();
+            sap.setCrypto((PrivateKey)ks.getKey("signer", "password".toCharArray()), ks.getCertificateChain("signer"), null,
+                          PdfSignatureAppearance.WINCER_SIGNED);
+            sap.setSignDate(Calendar.getInstance());
+            stamper.close();
+        }
+        finally
+        {
+            out.close();
+            reader.close();
+        }
+    }
+}
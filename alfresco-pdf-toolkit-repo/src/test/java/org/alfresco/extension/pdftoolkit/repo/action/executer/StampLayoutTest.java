@@ -0,0 +1,122 @@
+/*
+ * Copyright 2008-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.extension.pdftoolkit.repo.action.executer;
+
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.Serializable;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import com.itextpdf.text.Rectangle;
+
+
+/**
+ * Places stamps on a letter size page and checks where their corners end up
+ */
+public class StampLayoutTest
+{
+    private static final float     DELTA  = 0.01f;
+
+    private static final Rectangle LETTER = new Rectangle(612, 792);
+
+
+    @Test
+    public void placesSingleStampAtPosition()
+    {
+        StampLayout layout = new StampLayout(10);
+
+        layout.place(LETTER, 100, 20, plan(BasePDFStampActionExecuter.POSITION_BOTTOMLEFT, null, null));
+        assertEquals(1, layout.getCopies());
+        assertEquals(10, layout.getLeft(0), DELTA);
+        assertEquals(10, layout.getBottom(0), DELTA);
+        assertEquals(0, layout.getRotation(), DELTA);
+
+        layout.place(LETTER, 100, 20, plan(BasePDFStampActionExecuter.POSITION_TOPRIGHT, null, null));
+        assertEquals(1, layout.getCopies());
+        assertEquals(502, layout.getLeft(0), DELTA);
+        assertEquals(762, layout.getBottom(0), DELTA);
+    }
+
+
+    @Test
+    public void keepsRotatedStampCentered()
+    {
+        StampLayout layout = new StampLayout(10);
+        layout.place(LETTER, 100, 20, plan(BasePDFStampActionExecuter.POSITION_CENTER, null, "90"));
+
+        // the bottom left corner of the stamp turns to the bottom right
+        assertEquals(90, layout.getRotation(), DELTA);
+        assertEquals(306 + 10, layout.getLeft(0), DELTA);
+        assertEquals(396 - 50, layout.getBottom(0), DELTA);
+        assertCentered(layout, 0, 100, 20, 306, 396);
+    }
+
+
+    @Test
+    public void runsDiagonalFromCornerToCorner()
+    {
+        StampLayout layout = new StampLayout(10);
+        layout.place(LETTER, 200, 40, plan(null, PDFWatermarkActionExecuter.LAYOUT_DIAGONAL, null));
+
+        assertEquals(1, layout.getCopies());
+        assertEquals((float)Math.toDegrees(Math.atan2(792, 612)), layout.getRotation(), DELTA);
+        assertCentered(layout, 0, 200, 40, 306, 396);
+
+        // a rotation of its own wins over the diagonal
+        layout.place(LETTER, 200, 40, plan(null, PDFWatermarkActionExecuter.LAYOUT_DIAGONAL, "30"));
+        assertEquals(30, layout.getRotation(), DELTA);
+    }
+
+
+    @Test
+    public void tilesThePage()
+    {
+        StampLayout layout = new StampLayout(0);
+        layout.place(new Rectangle(600, 400), 100, 50, plan(null, PDFWatermarkActionExecuter.LAYOUT_TILED, null));
+
+        // six columns of eight rows, more than the first buffer holds
+        assertEquals(48, layout.getCopies());
+        assertEquals(0, layout.getLeft(0), DELTA);
+        assertEquals(0, layout.getBottom(0), DELTA);
+        assertEquals(500, layout.getLeft(47), DELTA);
+        assertEquals(350, layout.getBottom(47), DELTA);
+
+        // reused for a smaller page
+        layout.place(new Rectangle(200, 100), 100, 50, plan(null, PDFWatermarkActionExecuter.LAYOUT_TILED, null));
+        assertEquals(4, layout.getCopies());
+    }
+
+
+    private static void assertCentered(StampLayout layout, int copy, float width, float height, float x, float y)
+    {
+        float centerX = layout.getLeft(copy) + (width / 2) * layout.getCos() - (height / 2) * layout.getSin();
+        float centerY = layout.getBottom(copy) + (width / 2) * layout.getSin() + (height / 2) * layout.getCos();
+        assertEquals(x, centerX, DELTA);
+        assertEquals(y, centerY, DELTA);
+    }
+
+
+    private static StampPlan plan(String position, String layout, String rotation)
+    {
+        return new StampPlan(new HashMap<String, Serializable>(), position, null, null, "Helvetica", "12", layout, rotation);
+    }
+}
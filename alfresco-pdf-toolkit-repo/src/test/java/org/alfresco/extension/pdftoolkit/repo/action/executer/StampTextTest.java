@@ -0,0 +1,104 @@
+/*
+ * Copyright 2008-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.extension.pdftoolkit.repo.action.executer;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.itextpdf.text.pdf.BaseFont;
+
+
+/**
+ * Resolves and measures stamp text with ${page}, ${pages} and ${bates} tokens
+ */
+public class StampTextTest
+{
+    @Test
+    public void resolvesPageTokens()
+    {
+        StampText text = new StampText(Arrays.asList("Confidential", "Page " + StampText.TOKEN_PAGE + " of " + StampText.TOKEN_PAGES), 12,
+                null, 1, 0);
+
+        assertTrue(text.isDynamic());
+        assertEquals(2, text.getLineCount());
+        assertEquals(Arrays.asList("Confidential", "Page 3 of 12"), text.resolve(3));
+        assertEquals(Arrays.asList("Confidential", "Page 12 of 12"), text.resolve(12));
+    }
+
+
+    @Test
+    public void leavesStaticTextAlone()
+    {
+        StampText text = new StampText(Collections.singletonList("Draft, " + StampText.TOKEN_PAGES + " pages"), 4, null, 1, 0);
+
+        assertFalse(text.isDynamic());
+        assertEquals(Collections.singletonList("Draft, 4 pages"), text.resolve(2));
+    }
+
+
+    @Test
+    public void padsBatesNumbers()
+    {
+        StampText text = new StampText(Collections.singletonList(StampText.TOKEN_BATES), 10, "ABC", 100, 6);
+
+        assertEquals("ABC000100", text.getBatesNumber(1));
+        assertEquals("ABC000109", text.getBatesNumber(10));
+        assertEquals(Collections.singletonList("ABC000104"), text.resolve(5));
+    }
+
+
+    @Test
+    public void widensBatesNumbersPastTheirDigits()
+    {
+        // the last number of the document needs four digits, so the first gets them too
+        StampText text = new StampText(Collections.singletonList(StampText.TOKEN_BATES), 2, null, 999, 3);
+
+        assertEquals("0999", text.getBatesNumber(1));
+        assertEquals("1000", text.getBatesNumber(2));
+    }
+
+
+    @Test
+    public void leavesSlotsWideEnoughForEveryPage()
+        throws Exception
+    {
+        BaseFont bf = BaseFont.createFont(BaseFont.HELVETICA, BaseFont.CP1252, BaseFont.NOT_EMBEDDED);
+        StampText text = new StampText(Arrays.asList("Page " + StampText.TOKEN_PAGE + " of " + StampText.TOKEN_PAGES, "Bates "
+                + StampText.TOKEN_BATES), 120, "X", 1, 0);
+        text.layout(bf, 10);
+
+        for (int page = 1; page <= 120; page++)
+        {
+            for (String line : text.resolve(page))
+            {
+                assertTrue(line + " is wider than the stamp", bf.getWidthPoint(line, 10) <= text.getWidth() + 0.01f);
+            }
+        }
+        assertEquals(20, text.getHeight(), 0.01f);
+        assertEquals(bf.getFontDescriptor(BaseFont.ASCENT, 10), text.getAscent(), 0.01f);
+        assertTrue(text.getBlockHeight() > text.getAscent() + 10);
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2008-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.extension.pdftoolkit.repo.signature;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.Serializable;
+import java.security.Security;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.extension.pdftoolkit.model.PDFToolkitModel;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.content.MimetypeMap;
+import org.alfresco.repo.content.filestore.FileContentReader;
+import org.alfresco.repo.content.filestore.FileContentWriter;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.ContentService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.QName;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.itextpdf.text.Document;
+import com.itextpdf.text.Paragraph;
+import com.itextpdf.text.pdf.AcroFields;
+import com.itextpdf.text.pdf.PdfPKCS7;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfSignatureAppearance;
+import com.itextpdf.text.pdf.PdfStamper;
+import com.itextpdf.text.pdf.PdfWriter;
+
+
+/**
+ * Reserves a deferred signature in a document, completes it, and verifies the result
+ */
+public class DeferredSignatureServiceTest
+{
+    private static final NodeRef     NODE     = new NodeRef("workspace://SpacesStore/deferred-signature-test");
+
+    @Rule
+    public TemporaryFolder           folder   = new TemporaryFolder();
+
+    private Map<QName, Serializable> properties;
+    private File                     reserved;
+    private File                     completed;
+    private DeferredSignatureService service;
+
+
+    /**
+     * iText verifies SHA-256 digests by a name only BouncyCastle knows on older JVMs, the
+     * way the verify action registers it
+     */
+    @BeforeClass
+    public static void registerProvider()
+    {
+        if (Security.getProvider("BC") == null)
+        {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+    }
+
+
+    @Before
+    public void setUp()
+        throws Exception
+    {
+        properties = new HashMap<QName, Serializable>();
+        reserved = new File(folder.getRoot(), "reserved.pdf");
+        completed = new File(folder.getRoot(), "completed.pdf");
+
+        NodeService nodeService = mock(NodeService.class);
+        when(nodeService.exists(NODE)).thenReturn(true);
+        when(nodeService.hasAspect(NODE, PDFToolkitModel.ASPECT_SIGNATURE_PENDING)).thenReturn(true);
+        when(nodeService.getProperty(eq(NODE), any(QName.class))).thenAnswer(new Answer<Serializable>()
+        {
+            public Serializable answer(InvocationOnMock invocation)
+            {
+                return properties.get(invocation.getArguments()[1]);
+            }
+        });
+        doAnswer(new Answer<Object>()
+        {
+            @SuppressWarnings("unchecked")
+            public Object answer(InvocationOnMock invocation)
+            {
+                properties.putAll((Map<QName, Serializable>)invocation.getArguments()[2]);
+                return null;
+            }
+        }).when(nodeService).addAspect(eq(NODE), eq(PDFToolkitModel.ASPECT_SIGNATURE_PENDING), anyMapOf(QName.class, Serializable.class));
+
+        ContentService contentService = mock(ContentService.class);
+        when(contentService.getReader(NODE, ContentModel.PROP_CONTENT)).thenReturn(new FileContentReader(reserved));
+        when(contentService.getWriter(NODE, ContentModel.PROP_CONTENT, true)).thenReturn(new FileContentWriter(completed));
+
+        KeyStorePDFSigner signer = new KeyStorePDFSigner();
+        signer.setKeyStorePath(new File(getClass().getResource("test-signer.jks").toURI()).getPath());
+        signer.setKeyStoreType("jks");
+        signer.setAlias("signer");
+        signer.setStorePassword("password");
+        signer.setKeyPassword("password");
+
+        service = new DeferredSignatureService();
+        service.setNodeService(nodeService);
+        service.setContentService(contentService);
+        service.setSigner(signer);
+    }
+
+
+    @Test
+    public void signsInTwoPhases()
+        throws Exception
+    {
+        reserve();
+        assertEquals(1, service.completeSignatures(Collections.singletonList(NODE)));
+
+        PdfReader reader = new PdfReader(completed.getPath());
+        try
+        {
+            AcroFields fields = reader.getAcroFields();
+            List<String> names = fields.getSignatureNames();
+            assertEquals(1, names.size());
+            assertTrue(fields.signatureCoversWholeDocument(names.get(0)));
+
+            PdfPKCS7 signature = fields.verifySignature(names.get(0));
+            assertTrue(signature.verify());
+            assertEquals(service.getCertificateChain()[0], signature.getSigningCertificate());
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+
+    @Test
+    public void refusesChangedContent()
+        throws Exception
+    {
+        reserve();
+        properties.put(ContentModel.PROP_CONTENT, new ContentData("store://changed.bin", MimetypeMap.MIMETYPE_PDF,
+                                                                  reserved.length(), "UTF-8"));
+        try
+        {
+            service.completeSignatures(Collections.singletonList(NODE));
+            fail("Signature was written into changed content");
+        }
+        catch (AlfrescoRuntimeException e)
+        {
+            assertFalse(completed.exists());
+        }
+    }
+
+
+    /**
+     * First phase, the way the signature action runs it
+     */
+    private void reserve()
+        throws Exception
+    {
+        PdfReader reader = new PdfReader(createDocument());
+        File tempFile = folder.newFile("scratch.pdf");
+        PdfStamper stamper = PdfStamper.createSignature(reader, null, '\0', tempFile, false);
+        PdfSignatureAppearance sap = stamper.getSignatureAppearance();
+        sap.setCrypto(null, service.getCertificateChain(), null, PdfSignatureAppearance.WINCER_SIGNED);
+        sap.setReason("Approved");
+        sap.setLocation("Test");
+
+        Map<QName, Serializable> pending = service.reserve(sap, tempFile, new FileOutputStream(reserved), false, false);
+        properties.put(ContentModel.PROP_CONTENT, new ContentData("store://reserved.bin", MimetypeMap.MIMETYPE_PDF,
+                                                                  reserved.length(), "UTF-8"));
+        service.markPending(NODE, pending);
+        reader.close();
+    }
+
+
+    private static byte[] createDocument()
+        throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Document document = new Document();
+        PdfWriter.getInstance(document, out);
+        document.open();
+        document.add(new Paragraph("Signed later"));
+        document.close();
+        return out.toByteArray();
+    }
+}
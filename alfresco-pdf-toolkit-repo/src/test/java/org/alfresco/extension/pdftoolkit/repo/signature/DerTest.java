@@ -0,0 +1,131 @@
+/*
+ * Copyright 2008-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.extension.pdftoolkit.repo.signature;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.junit.Test;
+
+
+/**
+ * Checks the DER encodings against known values, and reads them back
+ */
+public class DerTest
+{
+    @Test
+    public void encodesObjectIdentifiers()
+    {
+        assertArrayEquals(bytes(0x06, 0x09, 0x60, 0x86, 0x48, 0x01, 0x65, 0x03, 0x04, 0x02, 0x01), Der.oid("2.16.840.1.101.3.4.2.1"));
+        assertArrayEquals(bytes(0x06, 0x05, 0x2b, 0x0e, 0x03, 0x02, 0x1a), Der.oid(Der.digestOid("SHA-1")));
+    }
+
+
+    @Test
+    public void encodesLongLengths()
+    {
+        byte[] short127 = Der.octetString(new byte[127]);
+        assertArrayEquals(bytes(0x04, 0x7f), Arrays.copyOf(short127, 2));
+
+        byte[] long200 = Der.octetString(new byte[200]);
+        assertArrayEquals(bytes(0x04, 0x81, 0xc8), Arrays.copyOf(long200, 3));
+        assertEquals(203, long200.length);
+
+        byte[] long300 = Der.octetString(new byte[300]);
+        assertArrayEquals(bytes(0x04, 0x82, 0x01, 0x2c), Arrays.copyOf(long300, 4));
+        assertEquals(304, long300.length);
+    }
+
+
+    @Test
+    public void sortsSetMembers()
+    {
+        byte[] set = Der.set(Der.integer(BigInteger.valueOf(2)), Der.integer(BigInteger.ONE));
+        assertArrayEquals(bytes(0x31, 0x06, 0x02, 0x01, 0x01, 0x02, 0x01, 0x02), set);
+    }
+
+
+    @Test
+    public void encodesGeneralizedTime()
+    {
+        assertArrayEquals(Der.encode(Der.GENERALIZED_TIME, Der.ascii("19700101000000Z")), Der.generalizedTime(new Date(0)));
+    }
+
+
+    @Test
+    public void readsBackWhatItWrites()
+    {
+        byte[] content = new byte[300];
+        Arrays.fill(content, (byte)7);
+        byte[] encoded = Der.sequence(Der.integer(BigInteger.valueOf(-129)), Der.octetString(content), Der.algorithm("1.3.14.3.2.26"));
+
+        Der.Element sequence = Der.read(encoded, 0);
+        assertEquals(Der.SEQUENCE, sequence.tag);
+        assertEquals(encoded.length, sequence.end());
+
+        List<Der.Element> children = sequence.children();
+        assertEquals(3, children.size());
+        assertEquals(BigInteger.valueOf(-129), children.get(0).integer());
+        assertArrayEquals(content, children.get(1).contents());
+        assertArrayEquals(Der.algorithm("1.3.14.3.2.26"), children.get(2).encoded());
+        assertEquals(Der.NULL, children.get(2).children().get(1).tag);
+    }
+
+
+    @Test
+    public void findsDigestAlgorithmsByLength()
+    {
+        assertEquals("1.3.14.3.2.26", Der.digestOid(20));
+        assertEquals("2.16.840.1.101.3.4.2.1", Der.digestOid(32));
+        assertEquals("2.16.840.1.101.3.4.2.3", Der.digestOid("sha512"));
+    }
+
+
+    @Test(expected = AlfrescoRuntimeException.class)
+    public void refusesTruncatedElements()
+    {
+        byte[] encoded = Der.octetString(new byte[200]);
+        Der.read(Arrays.copyOf(encoded, 100), 0);
+    }
+
+
+    @Test(expected = AlfrescoRuntimeException.class)
+    public void refusesUnknownDigestLengths()
+    {
+        Der.digestOid(16);
+    }
+
+
+    private static byte[] bytes(int... values)
+    {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++)
+        {
+            bytes[i] = (byte)values[i];
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2008-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.extension.pdftoolkit.repo.signature;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Reads OCSP responses for a chain whose signing certificate names a responder, from
+ * a local directory rather than the responder
+ */
+public class RevocationDataCacheTest
+{
+    private static final int    GOOD         = 0x80;
+    private static final int    REVOKED      = 0xa1;
+    private static final int    UNAUTHORIZED = 6;
+    private static final long   HOUR         = 3600000;
+
+    @Rule
+    public TemporaryFolder      folder       = new TemporaryFolder();
+
+    private Certificate[]       chain;
+    private File                responseFile;
+    private RevocationDataCache cache;
+
+
+    @Before
+    public void setUp()
+        throws Exception
+    {
+        KeyStore ks = KeyStore.getInstance("jks");
+        InputStream is = getClass().getResourceAsStream("test-chain.jks");
+        try
+        {
+            ks.load(is, "password".toCharArray());
+        }
+        finally
+        {
+            is.close();
+        }
+        chain = ks.getCertificateChain("signer");
+
+        File directory = folder.newFolder("ocsp");
+        responseFile = new File(directory, ((X509Certificate)chain[0]).getSerialNumber().toString(16) + ".ocsp");
+
+        cache = new RevocationDataCache();
+        cache.setLocalDirectory(directory.getPath());
+        cache.init();
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        cache.destroy();
+    }
+
+
+    @Test
+    public void embedsGoodResponse()
+        throws Exception
+    {
+        byte[] basic = basicResponse(GOOD);
+        writeResponse(0, basic);
+
+        RevocationDataCache.RevocationData data = cache.get(chain);
+        assertArrayEquals(basic, data.getOcsp());
+        assertEquals(0, data.getCrls().length);
+        assertEquals(basic.length, data.getEncodedSize());
+    }
+
+
+    @Test
+    public void cachesResponseUntilNextUpdate()
+        throws Exception
+    {
+        byte[] basic = basicResponse(GOOD);
+        writeResponse(0, basic);
+        cache.get(chain);
+
+        assertTrue(responseFile.delete());
+        assertArrayEquals(basic, cache.get(chain).getOcsp());
+    }
+
+
+    @Test(expected = AlfrescoRuntimeException.class)
+    public void refusesRevokedCertificate()
+        throws Exception
+    {
+        writeResponse(0, basicResponse(REVOKED));
+        cache.get(chain);
+    }
+
+
+    @Test
+    public void triesAgainAfterRefusal()
+        throws Exception
+    {
+        writeResponse(UNAUTHORIZED, null);
+        try
+        {
+            cache.get(chain);
+            fail("Unauthorized response was accepted");
+        }
+        catch (AlfrescoRuntimeException e)
+        {
+            // the failed fetch isn't cached
+        }
+
+        byte[] basic = basicResponse(GOOD);
+        writeResponse(0, basic);
+        assertArrayEquals(basic, cache.get(chain).getOcsp());
+    }
+
+
+    /**
+     * A BasicOCSPResponse for the signing certificate.  The cache doesn't check the
+     * responder's signature, so the one here is only a placeholder.
+     */
+    private byte[] basicResponse(int status)
+    {
+        Date now = new Date();
+        byte[] certId = Der.sequence(Der.algorithm(Der.digestOid("SHA-1")), Der.octetString(new byte[20]), Der.octetString(new byte[20]),
+                Der.integer(((X509Certificate)chain[0]).getSerialNumber()));
+        byte[] certStatus = status == REVOKED ? Der.encode(REVOKED, Der.generalizedTime(now)) : Der.encode(GOOD);
+        byte[] single = Der.sequence(certId, certStatus, Der.generalizedTime(now),
+                Der.encode(Der.CONTEXT_0, Der.generalizedTime(new Date(now.getTime() + HOUR))));
+
+        // responderID byKey, producedAt, responses
+        byte[] tbs = Der.sequence(Der.encode(0xa2, Der.octetString(new byte[20])), Der.generalizedTime(now), Der.sequence(single));
+        return Der.sequence(tbs, Der.algorithm("1.2.840.113549.1.1.11"), Der.encode(0x03, new byte[] { 0, 0 }));
+    }
+
+
+    /**
+     * Writes an OCSPResponse, with the basic response if the status is successful
+     */
+    private void writeResponse(int status, byte[] basic)
+        throws Exception
+    {
+        byte[] responseStatus = Der.encode(0x0a, BigInteger.valueOf(status).toByteArray());
+        byte[] response = basic == null ? Der.sequence(responseStatus) : Der.sequence(responseStatus,
+                Der.encode(Der.CONTEXT_0, Der.sequence(Der.oid("1.3.6.1.5.5.7.48.1.1"), Der.octetString(basic))));
+
+        FileOutputStream out = new FileOutputStream(responseFile);
+        try
+        {
+            out.write(response);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+}
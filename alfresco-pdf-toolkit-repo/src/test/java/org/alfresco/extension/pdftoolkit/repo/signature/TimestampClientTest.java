@@ -0,0 +1,157 @@
+/*
+ * Copyright 2008-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.extension.pdftoolkit.repo.signature;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Gets timestamp tokens from the local authority, and from stand-ins for an authority
+ * that answers badly
+ */
+public class TimestampClientTest
+{
+    private KeyStorePDFSigner signer;
+    private TimestampClient   client;
+    private byte[]            imprint;
+
+
+    @Before
+    public void setUp()
+        throws Exception
+    {
+        signer = new KeyStorePDFSigner();
+        signer.setKeyStorePath(new File(getClass().getResource("test-signer.jks").toURI()).getPath());
+        signer.setKeyStoreType("jks");
+        signer.setAlias("signer");
+        signer.setStorePassword("password");
+        signer.setKeyPassword("password");
+
+        imprint = MessageDigest.getInstance("SHA-256").digest("signed bytes".getBytes("UTF-8"));
+    }
+
+
+    @After
+    public void tearDown()
+    {
+        if (client != null)
+        {
+            client.destroy();
+        }
+    }
+
+
+    @Test
+    public void getsGrantedToken()
+        throws Exception
+    {
+        LocalTimestampAuthority authority = new LocalTimestampAuthority();
+        authority.setSigner(signer);
+        client = createClient(authority);
+
+        byte[] token = client.getTimeStampToken(null, imprint);
+
+        // a ContentInfo holding SignedData, over a TSTInfo with the imprint in it
+        Der.Element contentInfo = Der.read(token, 0);
+        assertEquals(token.length, contentInfo.end());
+        assertArrayEquals(Der.oid("1.2.840.113549.1.7.2"), contentInfo.children().get(0).encoded());
+        assertTrue(indexOf(token, imprint) >= 0);
+    }
+
+
+    @Test(expected = AlfrescoRuntimeException.class)
+    public void refusesRejection()
+        throws Exception
+    {
+        client = createClient(new LocalTimestampAuthority()
+        {
+            @Override
+            public byte[] respond(byte[] request)
+            {
+                return Der.sequence(Der.sequence(Der.integer(BigInteger.valueOf(2))));
+            }
+        });
+        client.getTimeStampToken(null, imprint);
+    }
+
+
+    @Test(expected = AlfrescoRuntimeException.class)
+    public void refusesTokenForAnotherImprint()
+        throws Exception
+    {
+        client = createClient(new LocalTimestampAuthority()
+        {
+            @Override
+            public byte[] respond(byte[] request)
+            {
+                return Der.sequence(Der.sequence(Der.integer(BigInteger.ZERO)), Der.sequence(Der.octetString(new byte[32])));
+            }
+        });
+        client.getTimeStampToken(null, imprint);
+    }
+
+
+    @Test(expected = AlfrescoRuntimeException.class)
+    public void refusesWithoutAuthority()
+        throws Exception
+    {
+        client = createClient(null);
+        client.getTimeStampToken(null, imprint);
+    }
+
+
+    private static TimestampClient createClient(LocalTimestampAuthority authority)
+    {
+        TimestampClient client = new TimestampClient();
+        client.setLocalAuthority(authority);
+        client.setUseLocalAuthority(true);
+        client.init();
+        return client;
+    }
+
+
+    private static int indexOf(byte[] data, byte[] pattern)
+    {
+        for (int i = 0; i <= data.length - pattern.length; i++)
+        {
+            int j = 0;
+            while (j < pattern.length && data[i + j] == pattern[j])
+            {
+                j++;
+            }
+            if (j == pattern.length)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
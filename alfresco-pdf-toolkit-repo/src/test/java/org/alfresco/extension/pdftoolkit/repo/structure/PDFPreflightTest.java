@@ -0,0 +1,374 @@
+/*
+ * Copyright 2008-2012 Alfresco Software Limited.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ * This file is part of an unsupported extension to Alfresco.
+ */
+
+package org.alfresco.extension.pdftoolkit.repo.structure;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.Deflater;
+
+import org.alfresco.extension.pdftoolkit.repo.admission.PDFAdmissionController;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.itextpdf.text.Document;
+import com.itextpdf.text.PageSize;
+import com.itextpdf.text.Paragraph;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfStamper;
+import com.itextpdf.text.pdf.PdfWriter;
+
+
+/**
+ * Preflights documents written out byte for byte, so that every offset is known, and
+ * fully compressed documents written by iText
+ */
+public class PDFPreflightTest
+{
+    private static final String[] OBJECTS = {
+        "<< /Type /Catalog /Pages 2 0 R >>",
+        "<< /Type /Pages /Kids [3 0 R 4 0 R 5 0 R] /Count 3 >>",
+        "<< /Type /Page /Parent 2 0 R /MediaBox [0 0 612 792] >>",
+        "<< /Type /Page /Parent 2 0 R /MediaBox [0 0 612 792] >>",
+        "<< /Type /Page /Parent 2 0 R /MediaBox [0 0 612 792] >>" };
+
+    private static final String   ENCRYPT = " /Encrypt 6 0 R /ID [<0123> <0123>]";
+
+    @Rule
+    public TemporaryFolder        folder  = new TemporaryFolder();
+
+
+    @Test
+    public void readsXrefTable()
+        throws Exception
+    {
+        PDFPreflight preflight = scan(withXrefTable(""));
+
+        assertTrue(preflight.isPdf());
+        assertEquals("1.4", preflight.getVersion());
+        assertFalse(preflight.isEncrypted());
+        assertFalse(preflight.isXrefDamaged());
+        assertEquals(3, preflight.getPageCount());
+    }
+
+
+    @Test
+    public void readsXrefStream()
+        throws Exception
+    {
+        PDFPreflight preflight = scan(withXrefStream("", false));
+
+        assertTrue(preflight.isPdf());
+        assertEquals("1.5", preflight.getVersion());
+        assertFalse(preflight.isEncrypted());
+        assertFalse(preflight.isXrefDamaged());
+        assertEquals(3, preflight.getPageCount());
+    }
+
+
+    @Test
+    public void readsPredictedXrefStream()
+        throws Exception
+    {
+        PDFPreflight preflight = scan(withXrefStream("", true));
+
+        assertFalse(preflight.isXrefDamaged());
+        assertEquals(3, preflight.getPageCount());
+    }
+
+
+    @Test
+    public void readsObjectStreams()
+        throws Exception
+    {
+        PDFPreflight preflight = scan(createCompressed(5));
+
+        assertTrue(preflight.isPdf());
+        assertFalse(preflight.isEncrypted());
+        assertFalse(preflight.isXrefDamaged());
+        assertEquals(5, preflight.getPageCount());
+    }
+
+
+    @Test
+    public void readsUpdatedObjectStreams()
+        throws Exception
+    {
+        // the appended revision has a cross reference stream of its own, with /Prev
+        PdfReader reader = new PdfReader(createCompressed(5).getBytes("ISO-8859-1"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PdfStamper stamper = new PdfStamper(reader, out, '\0', true);
+        stamper.setFullCompression();
+        stamper.insertPage(6, PageSize.A4);
+        stamper.close();
+        reader.close();
+
+        PDFPreflight preflight = scan(new String(out.toByteArray(), "ISO-8859-1"));
+
+        assertFalse(preflight.isXrefDamaged());
+        assertEquals(6, preflight.getPageCount());
+    }
+
+
+    @Test
+    public void findsEncryptionInXrefTable()
+        throws Exception
+    {
+        PDFPreflight preflight = scan(withXrefTable(ENCRYPT));
+
+        assertTrue(preflight.isEncrypted());
+        assertFalse(preflight.isXrefDamaged());
+        assertEquals(PDFAdmissionController.UNKNOWN_PAGE_COUNT, preflight.getPageCount());
+    }
+
+
+    @Test
+    public void findsEncryptionInXrefStream()
+        throws Exception
+    {
+        PDFPreflight preflight = scan(withXrefStream(ENCRYPT, false));
+
+        assertTrue(preflight.isEncrypted());
+        assertFalse(preflight.isXrefDamaged());
+    }
+
+
+    @Test
+    public void findsShiftedOffsets()
+        throws Exception
+    {
+        // a line added after the header moves every object away from its xref entry
+        String document = withXrefTable("");
+        int header = document.indexOf('\n') + 1;
+        PDFPreflight preflight = scan(document.substring(0, header) + "% inserted by a careless editor\n" + document.substring(header));
+
+        assertTrue(preflight.isPdf());
+        assertTrue(preflight.isXrefDamaged());
+        assertFalse(preflight.isEncrypted());
+        assertEquals(PDFAdmissionController.UNKNOWN_PAGE_COUNT, preflight.getPageCount());
+    }
+
+
+    @Test
+    public void findsEntryPointingAtAnotherObject()
+        throws Exception
+    {
+        // the catalog's entry points at the page tree
+        String document = withXrefTable("");
+        int pages = document.indexOf("2 0 obj");
+        String entry = String.format("%010d 00000 n \n", document.indexOf("1 0 obj"));
+        PDFPreflight preflight = scan(document.replace(entry, String.format("%010d 00000 n \n", pages)));
+
+        assertTrue(preflight.isXrefDamaged());
+    }
+
+
+    @Test
+    public void findsEncryptionWithoutTrailer()
+        throws Exception
+    {
+        String document = withXrefTable(ENCRYPT);
+        PDFPreflight preflight = scan(document.replaceAll("startxref\n\\d+", "startxref\n" + (document.length() + 100)));
+
+        assertTrue(preflight.isXrefDamaged());
+        assertTrue(preflight.isEncrypted());
+    }
+
+
+    @Test
+    public void rejectsOtherContent()
+        throws Exception
+    {
+        PDFPreflight preflight = scan("Not a PDF document, only some text.\n");
+
+        assertFalse(preflight.isPdf());
+        assertEquals(null, preflight.getVersion());
+    }
+
+
+    /**
+     * A PDF 1.4 document with a cross reference table
+     */
+    private static String withXrefTable(String trailer)
+    {
+        StringBuilder pdf = new StringBuilder("%PDF-1.4\n%\u00e2\u00e3\u00cf\u00d3\n");
+        int[] offsets = writeObjects(pdf);
+
+        int xref = pdf.length();
+        pdf.append("xref\n0 ").append(OBJECTS.length + 1).append("\n0000000000 65535 f \n");
+        for (int offset : offsets)
+        {
+            pdf.append(String.format("%010d 00000 n \n", offset));
+        }
+        pdf.append("trailer\n<< /Size ").append(OBJECTS.length + 1).append(" /Root 1 0 R").append(trailer).append(" >>\n");
+        pdf.append("startxref\n").append(xref).append("\n%%EOF\n");
+        return pdf.toString();
+    }
+
+
+    /**
+     * A PDF 1.5 document with a cross reference stream, whose dictionary is the trailer,
+     * optionally compressed with the PNG Up predictor
+     */
+    private static String withXrefStream(String trailer, boolean compressed)
+        throws IOException
+    {
+        StringBuilder pdf = new StringBuilder("%PDF-1.5\n%\u00e2\u00e3\u00cf\u00d3\n");
+        int[] offsets = writeObjects(pdf);
+
+        // type, four byte offset, two byte generation
+        int xref = pdf.length();
+        int size = OBJECTS.length + 2;
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        writeEntry(entries, 0, 0, 65535);
+        for (int offset : offsets)
+        {
+            writeEntry(entries, 1, offset, 0);
+        }
+        writeEntry(entries, 1, xref, 0);
+
+        byte[] data = entries.toByteArray();
+        pdf.append(size - 1).append(" 0 obj\n<< /Type /XRef /Size ").append(size).append(" /W [1 4 2] /Root 1 0 R").append(trailer);
+        if (compressed)
+        {
+            data = deflate(predictUp(data, 7));
+            pdf.append(" /Filter /FlateDecode /DecodeParms << /Predictor 12 /Columns 7 >>");
+        }
+        pdf.append(" /Length ").append(data.length).append(" >>\nstream\n");
+        pdf.append(new String(data, "ISO-8859-1"));
+        pdf.append("\nendstream\nendobj\n");
+        pdf.append("startxref\n").append(xref).append("\n%%EOF\n");
+        return pdf.toString();
+    }
+
+
+    /**
+     * A document with cross reference and object streams, compressed with predictors
+     */
+    private static String createCompressed(int pages)
+        throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Document document = new Document();
+        PdfWriter writer = PdfWriter.getInstance(document, out);
+        writer.setFullCompression();
+        document.open();
+        for (int i = 0; i < pages; i++)
+        {
+            document.newPage();
+            document.add(new Paragraph("Page " + (i + 1)));
+        }
+        document.close();
+        return new String(out.toByteArray(), "ISO-8859-1");
+    }
+
+
+    private static int[] writeObjects(StringBuilder pdf)
+    {
+        int[] offsets = new int[OBJECTS.length];
+        for (int i = 0; i < OBJECTS.length; i++)
+        {
+            offsets[i] = pdf.length();
+            pdf.append(i + 1).append(" 0 obj\n").append(OBJECTS[i]).append("\nendobj\n");
+        }
+        return offsets;
+    }
+
+
+    /**
+     * Prefixes each row with the Up filter type and the difference from the row above
+     */
+    private static byte[] predictUp(byte[] data, int columns)
+    {
+        int rows = data.length / columns;
+        byte[] out = new byte[rows * (columns + 1)];
+        for (int r = 0; r < rows; r++)
+        {
+            out[r * (columns + 1)] = 2;
+            for (int i = 0; i < columns; i++)
+            {
+                int up = r > 0 ? data[(r - 1) * columns + i] : 0;
+                out[r * (columns + 1) + 1 + i] = (byte)(data[r * columns + i] - up);
+            }
+        }
+        return out;
+    }
+
+
+    private static byte[] deflate(byte[] data)
+    {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        while (!deflater.finished())
+        {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+
+    private static void writeEntry(ByteArrayOutputStream out, int type, int offset, int generation)
+    {
+        out.write(type);
+        for (int shift = 24; shift >= 0; shift = shift - 8)
+        {
+            out.write(offset >> shift);
+        }
+        out.write(generation >> 8);
+        out.write(generation);
+    }
+
+
+    private PDFPreflight scan(String document)
+        throws IOException
+    {
+        File file = folder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        try
+        {
+            out.write(document.getBytes("ISO-8859-1"));
+        }
+        finally
+        {
+            out.close();
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            return PDFPreflight.scan(raf.getChannel());
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+}